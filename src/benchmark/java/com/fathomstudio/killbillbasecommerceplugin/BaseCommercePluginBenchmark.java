@@ -0,0 +1,177 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.fathomstudio.killbillbasecommerceplugin;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.killbill.billing.account.api.Account;
+import org.killbill.billing.account.api.AccountUserApi;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillLogService;
+import org.killbill.billing.payment.api.PaymentMethodPlugin;
+import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.payment.plugin.api.PaymentPluginApiException;
+import org.killbill.billing.payment.plugin.api.PaymentTransactionInfoPlugin;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.openjdk.jmh.annotations.*;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.log.LogService;
+
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end benchmarks of the payment plugin api, against an in-memory H2 database (in MySQL mode, loaded from
+ * {@code db.sql}) and a gateway that approves everything right away.
+ * <p>
+ * Run with {@code mvn -Pbenchmark verify}, see the README.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class BaseCommercePluginBenchmark {
+	
+	private static final int PAYMENT_METHODS = 10000;
+	
+	/**
+	 * Whether charges go through the asynchronous charge queue.
+	 */
+	@Param({"false"})
+	public boolean asyncCharges;
+	
+	/**
+	 * Whether the credentials are stored encrypted. Only {@code getChargeDetails}, a credentials cache miss, decrypts
+	 * them; {@code purchasePayment} should be within noise of the plaintext run.
+	 */
+	@Param({"false", "true"})
+	public boolean encryptedCredentials;
+	
+	private JdbcConnectionPool dataSource;
+	private BaseCommerceDao dao;
+	private BaseCommerceChargeExecutor chargeExecutor;
+	private ExecutorService refreshExecutor;
+	private BaseCommercePaymentPluginApi api;
+	
+	private final UUID kbTenantId = UUID.randomUUID();
+	private final UUID kbAccountId = UUID.randomUUID();
+	private final UUID[] kbPaymentMethodIds = new UUID[PAYMENT_METHODS];
+	private CallContext context;
+	private PaymentMethodPlugin card;
+	
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		dataSource = JdbcConnectionPool.create("jdbc:h2:mem:basecommerce-" + UUID.randomUUID() + ";MODE=MySQL;DB_CLOSE_DELAY=-1", "sa", "");
+		dataSource.setMaxConnections(128);
+		PluginStubs.createSchema(dataSource);
+		
+		final BaseCommerceConfig config = new BaseCommerceConfig(new Properties());
+		final BaseCommerceCredentialsCipher credentialsCipher;
+		if (encryptedCredentials) {
+			final byte[] masterKey = new byte[32];
+			ThreadLocalRandom.current().nextBytes(masterKey);
+			credentialsCipher = new BaseCommerceCredentialsCipher(masterKey, config.getEncryptionDataKeyCacheMaxSize(), config.getEncryptionDataKeyCacheTtlSeconds());
+		} else {
+			credentialsCipher = BaseCommerceCredentialsCipher.plaintext();
+		}
+		dao = new BaseCommerceDao(dataSource, credentialsCipher);
+		// db.sql creates the migrated schema
+		dao.setBinaryIds(true);
+		dao.saveCredentials(new BaseCommerceCredentials(kbTenantId, "username", "password", "key", true));
+		
+		// the log service and account api are looked up through OSGi, so hand them stubs through a fake bundle context
+		final Account account = PluginStubs.proxy(Account.class, ImmutableMap.of("getId", kbAccountId));
+		final AccountUserApi accountUserApi = PluginStubs.proxy(AccountUserApi.class, ImmutableMap.of("getAccountById", account));
+		final LogService logService = PluginStubs.proxy(LogService.class, Collections.<String, Object>emptyMap());
+		final BundleContext bundleContext = PluginStubs.bundleContext(ImmutableMap.<String, Object>of(AccountUserApi.class.getName(), accountUserApi,
+		                                                                                               LogService.class.getName(), logService));
+		
+		chargeExecutor = new BaseCommerceChargeExecutor(asyncCharges, config.getAsyncChargesThreads(), config.getAsyncChargesQueueSize());
+		refreshExecutor = Executors.newFixedThreadPool(config.getRefreshParallelism());
+		final BaseCommerceAccountCache accountCache = new BaseCommerceAccountCache(new OSGIKillbillAPI(bundleContext), config.getAccountCacheMaxSize(), config.getAccountCacheTtlSeconds());
+		final BaseCommerceCredentialsCache credentialsCache = new BaseCommerceCredentialsCache(config.getCredentialsCacheMaxSize(), config.getCredentialsCacheTtlSeconds());
+		final BaseCommerceGateway gateway = new BenchmarkGateway();
+		api = new BaseCommercePaymentPluginApi(new Properties(), new OSGIKillbillLogService(bundleContext), new OSGIKillbillAPI(bundleContext), dao,
+		                                       credentialsCache,
+		                                       gateway,
+		                                       new BaseCommercePaymentMethodCache(config.getPaymentMethodCacheMaxSize(), config.getPaymentMethodCacheTtlSeconds()),
+		                                       chargeExecutor,
+		                                       new BaseCommercePaymentMetrics(),
+		                                       refreshExecutor,
+		                                       new BaseCommerceIdempotencyStore(config.getIdempotencyCacheMaxSize(), config.getIdempotencyCacheTtlSeconds()),
+		                                       new BaseCommerceNotificationQueue(dao, new OSGIKillbillAPI(bundleContext), accountCache, logService,
+		                                                                         config.getNotificationsQueueSize(), config.getNotificationsBatchSize()),
+		                                       accountCache);
+		
+		context = PluginStubs.proxy(CallContext.class, ImmutableMap.of("getTenantId", kbTenantId));
+		final List<PluginProperty> cardProperties = ImmutableList.of(new PluginProperty("paymentType", "card", false),
+		                                                             new PluginProperty("creditCardNumber", "4111111111111111", false),
+		                                                             new PluginProperty("creditCardCVV2", "123", false),
+		                                                             new PluginProperty("creditCardExpirationMonth", "1", false),
+		                                                             new PluginProperty("creditCardExpirationYear", "30", false));
+		card = PluginStubs.proxy(PaymentMethodPlugin.class, ImmutableMap.of("getProperties", cardProperties));
+		
+		for (int i = 0; i < PAYMENT_METHODS; i++) {
+			kbPaymentMethodIds[i] = UUID.randomUUID();
+			api.addPaymentMethod(kbAccountId, kbPaymentMethodIds[i], card, false, Collections.<PluginProperty>emptyList(), context);
+		}
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() throws InterruptedException {
+		chargeExecutor.drain(60);
+		refreshExecutor.shutdownNow();
+		dataSource.dispose();
+	}
+	
+	private UUID randomPaymentMethod() {
+		return kbPaymentMethodIds[ThreadLocalRandom.current().nextInt(PAYMENT_METHODS)];
+	}
+	
+	@Benchmark
+	public PaymentTransactionInfoPlugin purchasePayment() throws PaymentPluginApiException {
+		return api.purchasePayment(kbAccountId, UUID.randomUUID(), UUID.randomUUID(), randomPaymentMethod(), BigDecimal.TEN, Currency.USD,
+		                           Collections.<PluginProperty>emptyList(), context);
+	}
+	
+	@Benchmark
+	public UUID addPaymentMethod() throws PaymentPluginApiException {
+		final UUID kbPaymentMethodId = UUID.randomUUID();
+		api.addPaymentMethod(kbAccountId, kbPaymentMethodId, card, false, Collections.<PluginProperty>emptyList(), context);
+		return kbPaymentMethodId;
+	}
+	
+	/**
+	 * The single query made by {@code purchasePayment} when the credentials aren't cached.
+	 */
+	@Benchmark
+	public BaseCommerceDao.ChargeDetails getChargeDetails() throws SQLException {
+		return dao.getChargeDetails(kbTenantId, randomPaymentMethod());
+	}
+}
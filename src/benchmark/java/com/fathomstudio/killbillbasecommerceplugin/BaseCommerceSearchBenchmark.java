@@ -0,0 +1,110 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.fathomstudio.killbillbasecommerceplugin;
+
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.killbill.billing.payment.api.PaymentMethodPlugin;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads a page of payment methods at increasing depths of a large table, to check that page N costs the same as page 1.
+ * <p>
+ * The table is kept in {@code target/benchmark-search} between runs, since filling it takes a while.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BaseCommerceSearchBenchmark {
+	
+	private static final int PAGE_SIZE = 100;
+	private static final int INSERT_BATCH_SIZE = 10000;
+	private static final UUID TENANT_ID = UUID.fromString("00000000-0000-0000-0000-000000000001");
+	
+	@Param({"10000000"})
+	public int rows;
+	
+	/**
+	 * The page read, as a fraction of the table: 0 is the first page, 0.99 is near the end. Offsets are record IDs, which
+	 * run from 1 to {@link #rows}.
+	 */
+	@Param({"0", "0.5", "0.99"})
+	public double depth;
+	
+	private JdbcConnectionPool dataSource;
+	private BaseCommerceDao dao;
+	
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		dataSource = JdbcConnectionPool.create("jdbc:h2:file:./target/benchmark-search-" + rows + ";MODE=MySQL", "sa", "");
+		dao = new BaseCommerceDao(dataSource);
+		// db.sql creates the migrated schema
+		dao.setBinaryIds(true);
+		
+		long existing;
+		try {
+			existing = dao.countPaymentMethods(TENANT_ID, BaseCommerceDao.SearchField.ALL, null);
+		} catch (Exception e) {
+			existing = -1;
+		}
+		if (existing != rows) {
+			// record IDs are sequential from 1, and the types alternate
+			PluginStubs.createSchema(dataSource);
+			final List<BaseCommercePaymentMethod> batch = new ArrayList<BaseCommercePaymentMethod>(INSERT_BATCH_SIZE);
+			for (int i = 0; i < rows; i++) {
+				final String type = i % 2 == 0 ? BaseCommercePaymentPluginApi.TYPE_CARD : BaseCommercePaymentPluginApi.TYPE_BANK;
+				batch.add(new BaseCommercePaymentMethod(UUID.randomUUID(), "token-" + i, type, String.format("%04d", i % 10000)));
+				if (batch.size() == INSERT_BATCH_SIZE) {
+					dao.savePaymentMethods(TENANT_ID, batch);
+					batch.clear();
+				}
+			}
+			dao.savePaymentMethods(TENANT_ID, batch);
+		}
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		dataSource.dispose();
+	}
+	
+	@Benchmark
+	public Long allPaymentMethods(final Blackhole blackhole) {
+		return readPage(BaseCommerceDao.SearchField.ALL, null, (long) (rows * depth), blackhole);
+	}
+	
+	@Benchmark
+	public Long cardsOnly(final Blackhole blackhole) {
+		return readPage(BaseCommerceDao.SearchField.TYPE, BaseCommercePaymentPluginApi.TYPE_CARD, (long) (rows * depth), blackhole);
+	}
+	
+	private Long readPage(final BaseCommerceDao.SearchField field, final String value, final long offset, final Blackhole blackhole) {
+		final BaseCommercePaymentMethodPagination page = new BaseCommercePaymentMethodPagination(dao, TENANT_ID, field, value, offset, PAGE_SIZE);
+		for (PaymentMethodPlugin paymentMethod : page) {
+			blackhole.consume(paymentMethod);
+		}
+		return page.getNextOffset();
+	}
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.fathomstudio.killbillbasecommerceplugin;
+
+import java.math.BigDecimal;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A gateway that approves everything right away, so the benchmarks only measure the plugin.
+ */
+public class BenchmarkGateway implements BaseCommerceGateway {
+	
+	private final AtomicLong ids = new AtomicLong();
+	
+	@Override
+	public BaseCommerceGatewayResult charge(final BaseCommerceCredentials credentials, final String type, final String token, final BigDecimal amount) {
+		return new BaseCommerceGatewayResult(true, String.valueOf(ids.incrementAndGet()), "CAPTURED", "", "");
+	}
+	
+	@Override
+	public String addBankCard(final BaseCommerceCredentials credentials, final String number, final String expirationMonth, final String expirationYear, final String name) {
+		return "card-" + ids.incrementAndGet();
+	}
+	
+	@Override
+	public String addBankAccount(final BaseCommerceCredentials credentials, final String routingNumber, final String accountNumber, final String name) {
+		return "bank-" + ids.incrementAndGet();
+	}
+	
+	@Override
+	public boolean isPaymentMethodActive(final BaseCommerceCredentials credentials, final String type, final String token) {
+		return true;
+	}
+	
+	@Override
+	public BaseCommerceGatewayResult getTransaction(final BaseCommerceCredentials credentials, final String type, final String gatewayTransactionId) {
+		return new BaseCommerceGatewayResult(true, gatewayTransactionId, "SETTLED", "", "");
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbasecommerceplugin;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.killbill.billing.account.api.Account;
+import org.killbill.billing.account.api.AccountApiException;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.killbill.billing.util.callcontext.TenantContext;
+
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps Kill Bill accounts in memory, so that reading customer details for the gateway doesn't cost a Kill Bill API
+ * round trip per payment.
+ * <p>
+ * Entries are invalidated by {@link BaseCommerceListener} on account changes. Those bus events are handled by one node
+ * only, so the other nodes rely on the short time to live.
+ */
+public class BaseCommerceAccountCache implements BaseCommerceMetricsSource {
+	
+	private final OSGIKillbillAPI killbillAPI;
+	private final Cache<UUID, Account> cache;
+	
+	public BaseCommerceAccountCache(final OSGIKillbillAPI killbillAPI, final long maxSize, final long ttlSeconds) {
+		this.killbillAPI = killbillAPI;
+		this.cache = CacheBuilder.newBuilder()
+		                         .maximumSize(maxSize)
+		                         .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+		                         .recordStats()
+		                         .build();
+	}
+	
+	/**
+	 * Get an account, asking Kill Bill if it isn't cached.
+	 *
+	 * @param kbAccountId - the account
+	 * @param context     - the context of the tenant owning the account
+	 * @return the account
+	 * @throws AccountApiException if Kill Bill could not return the account
+	 */
+	public Account get(final UUID kbAccountId, final TenantContext context) throws AccountApiException {
+		try {
+			return cache.get(kbAccountId, new Callable<Account>() {
+				@Override
+				public Account call() throws AccountApiException {
+					return killbillAPI.getAccountUserApi().getAccountById(kbAccountId, context);
+				}
+			});
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof AccountApiException) {
+				throw (AccountApiException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+	}
+	
+	/**
+	 * @param kbAccountId - the account
+	 * @param context     - the context of the tenant owning the account
+	 * @return the account, fetched the first time one of its fields is read
+	 */
+	public BaseCommerceAccountContext lazy(final UUID kbAccountId, final TenantContext context) {
+		return new BaseCommerceAccountContext(this, kbAccountId, context);
+	}
+	
+	public void invalidate(final UUID kbAccountId) {
+		cache.invalidate(kbAccountId);
+	}
+	
+	@Override
+	public void appendMetrics(final StringBuilder out) {
+		final CacheStats stats = cache.stats();
+		out.append("# TYPE basecommerce_account_cache_hits_total counter\n");
+		out.append("basecommerce_account_cache_hits_total ").append(stats.hitCount()).append('\n');
+		out.append("# TYPE basecommerce_account_cache_misses_total counter\n");
+		out.append("basecommerce_account_cache_misses_total ").append(stats.missCount()).append('\n');
+		out.append("# TYPE basecommerce_account_cache_size gauge\n");
+		out.append("basecommerce_account_cache_size ").append(cache.size()).append('\n');
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbasecommerceplugin;
+
+import org.killbill.billing.account.api.Account;
+import org.killbill.billing.account.api.AccountApiException;
+import org.killbill.billing.payment.plugin.api.PaymentPluginApiException;
+import org.killbill.billing.util.callcontext.TenantContext;
+
+import java.util.UUID;
+
+/**
+ * The Kill Bill account behind a payment call, fetched (through the {@link BaseCommerceAccountCache}) only when one of
+ * its fields is read, then kept for the rest of the call.
+ * <p>
+ * Not thread safe: it lives for one plugin call.
+ */
+public class BaseCommerceAccountContext {
+	
+	private final BaseCommerceAccountCache accountCache;
+	private final UUID kbAccountId;
+	private final TenantContext context;
+	private Account account;
+	
+	BaseCommerceAccountContext(final BaseCommerceAccountCache accountCache, final UUID kbAccountId, final TenantContext context) {
+		this.accountCache = accountCache;
+		this.kbAccountId = kbAccountId;
+		this.context = context;
+	}
+	
+	public UUID getKbAccountId() {
+		return kbAccountId;
+	}
+	
+	/**
+	 * @return the account
+	 * @throws PaymentPluginApiException if Kill Bill could not return it
+	 */
+	public Account getAccount() throws PaymentPluginApiException {
+		if (account == null) {
+			try {
+				account = accountCache.get(kbAccountId, context);
+			} catch (AccountApiException e) {
+				throw new PaymentPluginApiException("could not retrieve account", e);
+			}
+		}
+		return account;
+	}
+	
+	/**
+	 * @return the first name of the account holder, or null if the account has no name
+	 * @throws PaymentPluginApiException if the account could not be retrieved
+	 */
+	public String getFirstName() throws PaymentPluginApiException {
+		final String name = getAccount().getName();
+		if (name == null) {
+			return null;
+		}
+		final Integer firstNameLength = getAccount().getFirstNameLength();
+		return firstNameLength == null ? name : name.substring(0, Math.min(firstNameLength, name.length())).trim();
+	}
+	
+	/**
+	 * @return the last name of the account holder, or null if the account has no name or no separate last name
+	 * @throws PaymentPluginApiException if the account could not be retrieved
+	 */
+	public String getLastName() throws PaymentPluginApiException {
+		final String name = getAccount().getName();
+		final Integer firstNameLength = getAccount().getFirstNameLength();
+		if (name == null || firstNameLength == null || firstNameLength >= name.length()) {
+			return null;
+		}
+		return name.substring(firstNameLength).trim();
+	}
+	
+	public String getAddress1() throws PaymentPluginApiException {
+		return getAccount().getAddress1();
+	}
+	
+	public String getAddress2() throws PaymentPluginApiException {
+		return getAccount().getAddress2();
+	}
+	
+	public String getCity() throws PaymentPluginApiException {
+		return getAccount().getCity();
+	}
+	
+	public String getStateOrProvince() throws PaymentPluginApiException {
+		return getAccount().getStateOrProvince();
+	}
+	
+	public String getPostalCode() throws PaymentPluginApiException {
+		return getAccount().getPostalCode();
+	}
+	
+	public String getCountry() throws PaymentPluginApiException {
+		return getAccount().getCountry();
+	}
+	
+	public String getPhone() throws PaymentPluginApiException {
+		return getAccount().getPhone();
+	}
+	
+	public String getEmail() throws PaymentPluginApiException {
+		return getAccount().getEmail();
+	}
+}
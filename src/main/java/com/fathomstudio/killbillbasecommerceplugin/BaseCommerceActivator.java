@@ -18,15 +18,20 @@
 
 package com.fathomstudio.killbillbasecommerceplugin;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.killbill.billing.osgi.api.OSGIPluginProperties;
 import org.killbill.billing.osgi.libs.killbill.KillbillActivatorBase;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillEventDispatcher;
 import org.killbill.billing.payment.plugin.api.PaymentPluginApi;
 import org.osgi.framework.BundleContext;
+import org.osgi.service.log.LogService;
 
 import javax.servlet.Servlet;
 import javax.servlet.http.HttpServlet;
 import java.util.Hashtable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This is the plugin entrance point.
@@ -38,28 +43,148 @@ public class BaseCommerceActivator extends KillbillActivatorBase {
 	public static final String PLUGIN_NAME = "killbill-basecommerce-plugin";
 	
 	private OSGIKillbillEventDispatcher.OSGIKillbillEventHandler killbillEventHandler;
+	private BaseCommerceConfig config;
+	private BaseCommerceChargeExecutor chargeExecutor;
+	private ExecutorService refreshExecutor;
+	private BaseCommerceNotificationQueue notificationQueue;
+	private BaseCommerceReconciler reconciler;
+	private BaseCommerceCacheCoherence cacheCoherence;
+	private BaseCommerceGatewayExecutor gatewayExecutor;
+	private BaseCommerceRetryingGateway retryingGateway;
+	private BaseCommerceSchemaMigrator schemaMigrator;
+	private BaseCommerceWarmUp warmUp;
 	
 	@Override
 	public void start(final BundleContext context) throws Exception {
 		super.start(context);
 		
+		config = new BaseCommerceConfig(configProperties.getProperties());
+		final BaseCommerceCredentialsCipher credentialsCipher;
+		if (config.getEncryptionMasterKeyFile() != null) {
+			credentialsCipher = BaseCommerceCredentialsCipher.fromKeyFile(config.getEncryptionMasterKeyFile(), config.getEncryptionDataKeyCacheMaxSize(),
+			                                                              config.getEncryptionDataKeyCacheTtlSeconds());
+		} else {
+			logService.log(LogService.LOG_WARNING, "no master key file configured, the Base Commerce credentials are stored in plaintext");
+			credentialsCipher = BaseCommerceCredentialsCipher.plaintext();
+		}
+		final BaseCommerceDao dao = new BaseCommerceDao(dataSource.getDataSource(), credentialsCipher);
+		// reads the schema version before anything queries the plugin tables, and migrates in the background
+		schemaMigrator = new BaseCommerceSchemaMigrator(dataSource.getDataSource(), dao, logService, config.isSchemaMigrationEnabled(), config.isSchemaContractEnabled(),
+		                                                config.getSchemaBackfillChunkSize(), config.getSchemaBackfillPauseMillis(), config.getSchemaCheckIntervalSeconds());
+		schemaMigrator.start();
+		// nodes without the master key can't read encrypted rows, so this waits until every node has it
+		if (config.isEncryptionEncryptExistingEnabled()) {
+			final int encryptedCount = dao.encryptPlaintextCredentials();
+			if (encryptedCount > 0) {
+				logService.log(LogService.LOG_INFO, "encrypted the credentials of " + encryptedCount + " tenants");
+			}
+		}
+		
+		// gateway clients are cached per tenant, their connections are only reused by the JVM keep-alive cache
+		final BaseCommerceClientRegistry clientRegistry = new BaseCommerceClientRegistry(config.getGatewayClientsMaxSize(), config.getGatewayClientsIdleEvictionSeconds());
+		
+		// shared between the listener (which invalidates it) and the payment api (which reads from it)
+		final BaseCommerceCredentialsCache credentialsCache = new BaseCommerceCredentialsCache(config.getCredentialsCacheMaxSize(), config.getCredentialsCacheTtlSeconds(), clientRegistry);
+		
+		final BaseCommerceGateway backend;
+		if (config.isGatewaySimulatorEnabled()) {
+			logService.log(LogService.LOG_WARNING, "using the gateway simulator, no payment will reach Base Commerce");
+			backend = new BaseCommerceSimulatedGateway(config.getSimulatorLatencyMedianMillis(), config.getSimulatorLatencyP99Millis(), config.getSimulatorDeclineRate(),
+			                                           config.getSimulatorErrorRate(), config.getSimulatorTimeoutRate(), config.getSimulatorTimeoutMillis());
+		} else {
+			backend = new BaseCommerceSdkGateway(clientRegistry, logService);
+		}
+		// deadlines sit under the circuit breaker, so calls that time out count as failures
+		gatewayExecutor = new BaseCommerceGatewayExecutor(backend, config.getGatewayExecutorMode(), config.getGatewayExecutorThreads(), config.getGatewayExecutorQueueSize(),
+		                                                  config.getGatewayExecutorDeadlineMillis(), config.getGatewayExecutorLookupDeadlineMillis(), logService);
+		final BaseCommerceGuardedGateway guardedGateway = new BaseCommerceGuardedGateway(gatewayExecutor, config.getCircuitBreakerFailureThreshold(), config.getCircuitBreakerOpenSeconds(),
+		                                                                                 config.getBulkheadMaxConcurrentCalls(), config.getBulkheadMaxWaitMillis());
+		// callers wait for their turn before taking a bulkhead slot
+		final BaseCommerceRateLimitedGateway rateLimitedGateway = new BaseCommerceRateLimitedGateway(guardedGateway, config.getRateLimitRequestsPerSecond(), config.getRateLimitBurst(),
+		                                                                                             config.getRateLimitMaxWaitMillis());
+		// each retry goes through the rate limit and the circuit breaker again
+		retryingGateway = new BaseCommerceRetryingGateway(rateLimitedGateway, config.getRetryMaxAttempts(), config.getRetryInitialBackoffMillis(), config.getRetryMaxBackoffMillis(),
+		                                                  config.getRetryDeadlineMillis(), config.getRetryLookupDeadlineMillis(), config.getRetryBudgetRatio(), config.getRetryBudgetMax(),
+		                                                  config.isHedgeEnabled(), config.getHedgeDelayMillis());
+		final BaseCommerceGateway gateway = retryingGateway;
+		
+		final BaseCommercePaymentMethodCache paymentMethodCache = new BaseCommercePaymentMethodCache(config.getPaymentMethodCacheMaxSize(), config.getPaymentMethodCacheTtlSeconds());
+		// other nodes may change what is cached here
+		cacheCoherence = new BaseCommerceCacheCoherence(dao, credentialsCache, paymentMethodCache, logService, config.getCacheCoherenceIntervalSeconds(), config.getCacheCoherenceOverlapSeconds());
+		cacheCoherence.start();
+		final BaseCommercePaymentMetrics paymentMetrics = new BaseCommercePaymentMetrics();
+		chargeExecutor = new BaseCommerceChargeExecutor(config.isAsyncChargesEnabled(), config.getAsyncChargesThreads(), config.getAsyncChargesQueueSize());
+		final BaseCommerceIdempotencyStore idempotencyStore = new BaseCommerceIdempotencyStore(config.getIdempotencyCacheMaxSize(), config.getIdempotencyCacheTtlSeconds());
+		// accounts are only fetched when read, and shared between the payment api, the notifications and the listener
+		final BaseCommerceAccountCache accountCache = new BaseCommerceAccountCache(killbillAPI, config.getAccountCacheMaxSize(), config.getAccountCacheTtlSeconds());
+		notificationQueue = new BaseCommerceNotificationQueue(dao, killbillAPI, accountCache, logService, config.getNotificationsQueueSize(), config.getNotificationsBatchSize());
+		notificationQueue.start();
+		refreshExecutor = Executors.newFixedThreadPool(config.getRefreshParallelism(), new ThreadFactoryBuilder().setNameFormat("basecommerce-refresh-%d").setDaemon(true).build());
+		
+		// threads are only created once started
+		reconciler = new BaseCommerceReconciler(dao, gateway, credentialsCache, notificationQueue, logService, config.getReconciliationIntervalSeconds(),
+		                                        config.getNotificationsLookupIntervalSeconds(), config.getReconciliationParallelism(), config.getReconciliationBatchSize(),
+		                                        config.getReconciliationRequestsPerSecond());
+		// confirms the notifications, which are never applied unchecked
+		reconciler.startLookups();
+		if (config.isReconciliationEnabled()) {
+			reconciler.start();
+		}
+		
 		// Register an event listener (optional)
-		killbillEventHandler = new BaseCommerceListener(logService, killbillAPI, dataSource);
+		killbillEventHandler = new BaseCommerceListener(logService, killbillAPI, dao, credentialsCache, clientRegistry, accountCache);
 		dispatcher.registerEventHandlers(killbillEventHandler);
 		
 		// As an example, this plugin registers a PaymentPluginApi (this could be changed to any other plugin api)
-		final PaymentPluginApi paymentPluginApi = new BaseCommercePaymentPluginApi(configProperties.getProperties(), logService, killbillAPI, dataSource);
+		final PaymentPluginApi paymentPluginApi = new BaseCommercePaymentPluginApi(configProperties.getProperties(), logService, killbillAPI, dao, credentialsCache, gateway, paymentMethodCache, chargeExecutor, paymentMetrics, refreshExecutor, idempotencyStore, notificationQueue, accountCache);
 		registerPaymentPluginApi(context, paymentPluginApi);
 		
+		// fills the caches and gateway connections in the background, the servlet reports ready once done
+		warmUp = new BaseCommerceWarmUp(dao, credentialsCache, clientRegistry, logService, config.getWarmUpUrls(), config.getWarmUpConnectionsPerUrl(),
+		                                TimeUnit.SECONDS.toMillis(config.getWarmUpTimeoutSeconds()));
+		if (config.isWarmUpEnabled()) {
+			warmUp.start();
+		}
+		
 		// Register a servlet (optional)
-		final BaseCommerceServlet analyticsServlet = new BaseCommerceServlet(logService);
+		final BaseCommercePaymentMethodImporter importer = new BaseCommercePaymentMethodImporter(dao, gateway, logService, config.getImportParallelism(), config.getImportBatchSize());
+		final BaseCommerceServlet analyticsServlet = new BaseCommerceServlet(logService, importer, warmUp, schemaMigrator, credentialsCache, paymentMethodCache, chargeExecutor, paymentMetrics, guardedGateway, idempotencyStore,
+		                                                                     notificationQueue, reconciler, cacheCoherence, gatewayExecutor, rateLimitedGateway, retryingGateway, accountCache,
+		                                                                     schemaMigrator, credentialsCipher);
 		registerServlet(context, analyticsServlet);
 	}
 	
 	@Override
 	public void stop(final BundleContext context) throws Exception {
+		if (warmUp != null) {
+			warmUp.stop();
+		}
+		if (reconciler != null) {
+			reconciler.stop();
+		}
+		if (cacheCoherence != null) {
+			cacheCoherence.stop();
+		}
+		// finish the queued charges while the data source is still around
+		if (chargeExecutor != null && !chargeExecutor.drain(config.getAsyncChargesShutdownTimeoutSeconds())) {
+			logService.log(LogService.LOG_WARNING, "some queued charges did not finish before shutdown, those not started were canceled");
+		}
+		if (notificationQueue != null && !notificationQueue.drain(config.getNotificationsShutdownTimeoutSeconds())) {
+			logService.log(LogService.LOG_WARNING, "some queued notifications were not applied before shutdown, the Janitor will pick them up");
+		}
+		if (refreshExecutor != null) {
+			refreshExecutor.shutdownNow();
+		}
+		if (retryingGateway != null) {
+			retryingGateway.shutdown();
+		}
+		if (gatewayExecutor != null) {
+			gatewayExecutor.shutdown();
+		}
+		if (schemaMigrator != null) {
+			schemaMigrator.stop();
+		}
 		super.stop(context);
-		// Do additional work on shutdown (optional)
 	}
 	
 	private void registerServlet(final BundleContext context, final HttpServlet servlet) {
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbasecommerceplugin;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.osgi.service.log.LogService;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the caches of this node in line with the changes made by the other Kill Bill nodes.
+ * <p>
+ * Kill Bill bus events are only handled by the node that sent them, so a tenant reconfigured or a payment method
+ * replaced on one node would otherwise stay cached on the others until it expires. Every saved row gets a new
+ * {@code version}; each check reads the versions of the credentials (one row per tenant) and of the payment methods
+ * updated since the previous check, by the database clock, and drops the cached entries whose version differs, along
+ * with the credentials of the tenants that have no row anymore. Deleted payment methods can't be told apart from
+ * unchanged ones this way; they expire from {@link BaseCommercePaymentMethodCache} instead.
+ */
+public class BaseCommerceCacheCoherence implements BaseCommerceMetricsSource {
+	
+	private final BaseCommerceDao dao;
+	private final BaseCommerceCredentialsCache credentialsCache;
+	private final BaseCommercePaymentMethodCache paymentMethodCache;
+	private final LogService logService;
+	private final long intervalSeconds;
+	private final long overlapMillis;
+	private final ScheduledExecutorService scheduler;
+	private final AtomicLong checkCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	private final AtomicLong credentialsInvalidationCount = new AtomicLong();
+	private final AtomicLong paymentMethodInvalidationCount = new AtomicLong();
+	// database time of the start of the last successful check, only touched by the scheduler thread
+	private Timestamp lastCheck;
+	
+	public BaseCommerceCacheCoherence(final BaseCommerceDao dao, final BaseCommerceCredentialsCache credentialsCache, final BaseCommercePaymentMethodCache paymentMethodCache,
+	                                  final LogService logService, final long intervalSeconds, final long overlapSeconds) {
+		this.dao = dao;
+		this.credentialsCache = credentialsCache;
+		this.paymentMethodCache = paymentMethodCache;
+		this.logService = logService;
+		this.intervalSeconds = intervalSeconds;
+		this.overlapMillis = TimeUnit.SECONDS.toMillis(overlapSeconds);
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("basecommerce-cache-coherence-%d").setDaemon(true).build());
+	}
+	
+	/**
+	 * Check the caches every interval.
+	 */
+	public void start() {
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				check();
+			}
+		}, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+	}
+	
+	public void stop() {
+		scheduler.shutdownNow();
+	}
+	
+	private void check() {
+		checkCount.incrementAndGet();
+		try {
+			final Timestamp now = dao.getDatabaseTime();
+			
+			final Map<UUID, Long> credentialsVersions = dao.getCredentialsVersions();
+			for (Map.Entry<UUID, Long> entry : credentialsVersions.entrySet()) {
+				if (credentialsCache.invalidateIfStale(entry.getKey(), entry.getValue())) {
+					credentialsInvalidationCount.incrementAndGet();
+				}
+			}
+			credentialsInvalidationCount.addAndGet(credentialsCache.invalidateAllExcept(credentialsVersions.keySet()));
+			
+			// the first check runs one interval after the start, nothing was cached before that
+			final long previous = lastCheck != null ? lastCheck.getTime() : now.getTime() - TimeUnit.SECONDS.toMillis(intervalSeconds);
+			// rows committed late can carry an update time a bit before the previous check, look back a little further
+			for (Map.Entry<UUID, Long> entry : dao.getPaymentMethodVersionsUpdatedSince(new Timestamp(previous - overlapMillis)).entrySet()) {
+				if (paymentMethodCache.invalidateIfStale(entry.getKey(), entry.getValue())) {
+					paymentMethodInvalidationCount.incrementAndGet();
+				}
+			}
+			lastCheck = now;
+		} catch (SQLException e) {
+			failedCount.incrementAndGet();
+			logService.log(LogService.LOG_WARNING, "could not check the caches: ", e);
+		} catch (RuntimeException e) {
+			// an exception would cancel the schedule
+			failedCount.incrementAndGet();
+			logService.log(LogService.LOG_ERROR, "could not check the caches: ", e);
+		}
+	}
+	
+	@Override
+	public void appendMetrics(final StringBuilder out) {
+		out.append("# TYPE basecommerce_cache_coherence_checks_total counter\n");
+		out.append("basecommerce_cache_coherence_checks_total ").append(checkCount.get()).append('\n');
+		out.append("# TYPE basecommerce_cache_coherence_failed_total counter\n");
+		out.append("basecommerce_cache_coherence_failed_total ").append(failedCount.get()).append('\n');
+		out.append("# TYPE basecommerce_cache_coherence_invalidations_total counter\n");
+		out.append("basecommerce_cache_coherence_invalidations_total{cache=\"credentials\"} ").append(credentialsInvalidationCount.get()).append('\n');
+		out.append("basecommerce_cache_coherence_invalidations_total{cache=\"paymentMethods\"} ").append(paymentMethodInvalidationCount.get()).append('\n');
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbasecommerceplugin;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs charges in the background when the asynchronous mode is enabled, so Kill Bill threads don't wait on the gateway.
+ * <p>
+ * The queue is bounded: when it is full {@link #submit(Charge)} refuses the charge and the caller runs it itself,
+ * which slows callers down instead of queueing without limit.
+ */
+public class BaseCommerceChargeExecutor implements BaseCommerceMetricsSource {
+	
+	private final boolean enabled;
+	private final ThreadPoolExecutor executor;
+	private final AtomicLong rejectedCount = new AtomicLong();
+	
+	public BaseCommerceChargeExecutor(final boolean enabled, final int threads, final int queueSize) {
+		this.enabled = enabled;
+		if (enabled) {
+			this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+			                                       new ArrayBlockingQueue<Runnable>(queueSize),
+			                                       new ThreadFactoryBuilder().setNameFormat("basecommerce-charge-%d").setDaemon(true).build(),
+			                                       new ThreadPoolExecutor.AbortPolicy());
+		} else {
+			this.executor = null;
+		}
+	}
+	
+	/**
+	 * @return true if charges should be queued instead of made on the caller thread
+	 */
+	public boolean isEnabled() {
+		return enabled && !executor.isShutdown();
+	}
+	
+	/**
+	 * Queue a charge.
+	 *
+	 * @param charge - the charge to run
+	 * @return false if the queue is full (or shutting down) and the charge wasn't queued
+	 */
+	public boolean submit(final Charge charge) {
+		try {
+			executor.execute(charge);
+			return true;
+		} catch (RejectedExecutionException e) {
+			rejectedCount.incrementAndGet();
+			return false;
+		}
+	}
+	
+	/**
+	 * Stop taking new charges and wait for the queued ones to finish. The charges still waiting in the queue when the
+	 * time is up are canceled; those already at the gateway are left to finish.
+	 *
+	 * @param timeoutSeconds - how long to wait
+	 * @return true if every queued charge finished in time
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean drain(final long timeoutSeconds) throws InterruptedException {
+		if (executor == null) {
+			return true;
+		}
+		executor.shutdown();
+		if (executor.awaitTermination(timeoutSeconds, TimeUnit.SECONDS)) {
+			return true;
+		}
+		final List<Runnable> unstarted = new ArrayList<Runnable>();
+		executor.getQueue().drainTo(unstarted);
+		for (Runnable charge : unstarted) {
+			((Charge) charge).cancel();
+		}
+		return false;
+	}
+	
+	/**
+	 * A charge to run in the background.
+	 */
+	public interface Charge extends Runnable {
+		
+		/**
+		 * Record that the charge will never be made, when it is dropped from the queue at shutdown.
+		 */
+		void cancel();
+	}
+	
+	@Override
+	public void appendMetrics(final StringBuilder out) {
+		if (executor == null) {
+			return;
+		}
+		out.append("# TYPE basecommerce_charge_queue_depth gauge\n");
+		out.append("basecommerce_charge_queue_depth ").append(executor.getQueue().size()).append('\n');
+		out.append("# TYPE basecommerce_charge_queue_active gauge\n");
+		out.append("basecommerce_charge_queue_active ").append(executor.getActiveCount()).append('\n');
+		out.append("# TYPE basecommerce_charge_queue_rejected_total counter\n");
+		out.append("basecommerce_charge_queue_rejected_total ").append(rejectedCount.get()).append('\n');
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbasecommerceplugin;
+
+import com.basecommercepay.client.BaseCommerceClient;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches one {@link BaseCommerceClient} per tenant and sandbox flag, instead of building a new client for every
+ * request.
+ * <p>
+ * This is a client cache, not a connection pool. The SDK makes its calls with the JDK {@code HttpURLConnection} and
+ * has no hook to hand it an HTTP client, so the plugin can't pool connections itself: they are reused only through the
+ * JVM-wide keep-alive and TLS session caches, whose limits are set on the Kill Bill command line.
+ * <p>
+ * A cached client is only handed out for the same credentials object it was built from, so a credentials change never
+ * reuses a stale client even before {@link BaseCommerceListener} invalidates it. The SDK only takes the password and
+ * key as strings, which can't be zeroed, so {@link BaseCommerceCredentialsCache} drops a client as soon as its
+ * credentials are evicted, and a client never outlives them.
+ */
+public class BaseCommerceClientRegistry {
+	
+	private final Cache<ClientKey, ClientEntry> clients;
+	
+	public BaseCommerceClientRegistry(final long maxSize, final long idleEvictionSeconds) {
+		this.clients = CacheBuilder.newBuilder()
+		                           .maximumSize(maxSize)
+		                           .expireAfterAccess(idleEvictionSeconds, TimeUnit.SECONDS)
+		                           .build();
+	}
+	
+	/**
+	 * Get the client for the given credentials, building it if needed.
+	 *
+	 * @param credentials - the tenant credentials
+	 * @return the client
+	 * @throws BaseCommerceGatewayUnavailableException if the credentials were evicted before a client was built
+	 */
+	public BaseCommerceClient getClient(final BaseCommerceCredentials credentials) throws BaseCommerceGatewayUnavailableException {
+		final ClientKey clientKey = new ClientKey(credentials.getKbTenantId(), credentials.isTest());
+		final ClientEntry entry = clients.getIfPresent(clientKey);
+		if (entry != null && entry.credentials == credentials) {
+			return entry.client;
+		}
+		
+		final char[] password;
+		final char[] key;
+		try {
+			password = credentials.getPassword();
+			key = credentials.getKey();
+		} catch (IllegalStateException e) {
+			// nothing was sent, the next call reads the credentials again
+			throw new BaseCommerceGatewayUnavailableException(e.getMessage());
+		}
+		final BaseCommerceClient client;
+		try {
+			client = new BaseCommerceClient(credentials.getUsername(), password == null ? null : new String(password), key == null ? null : new String(key));
+		} finally {
+			clear(password);
+			clear(key);
+		}
+		if (credentials.isTest()) {
+			client.setSandbox(true);
+		}
+		clients.put(clientKey, new ClientEntry(credentials, client));
+		return client;
+	}
+	
+	/**
+	 * Drop the clients of the given tenant, both sandbox and production.
+	 *
+	 * @param kbTenantId - the tenant
+	 */
+	public void invalidate(final UUID kbTenantId) {
+		clients.invalidate(new ClientKey(kbTenantId, true));
+		clients.invalidate(new ClientKey(kbTenantId, false));
+	}
+	
+	/**
+	 * Drop the client built from the given credentials, if it is still cached.
+	 *
+	 * @param credentials - the tenant credentials
+	 */
+	public void invalidate(final BaseCommerceCredentials credentials) {
+		final ClientKey clientKey = new ClientKey(credentials.getKbTenantId(), credentials.isTest());
+		final ClientEntry entry = clients.getIfPresent(clientKey);
+		if (entry != null && entry.credentials == credentials) {
+			clients.asMap().remove(clientKey, entry);
+		}
+	}
+	
+	private static void clear(final char[] secret) {
+		if (secret != null) {
+			Arrays.fill(secret, '\0');
+		}
+	}
+	
+	public long size() {
+		return clients.size();
+	}
+	
+	private static class ClientKey {
+		private final UUID kbTenantId;
+		private final boolean sandbox;
+		
+		private ClientKey(final UUID kbTenantId, final boolean sandbox) {
+			this.kbTenantId = kbTenantId;
+			this.sandbox = sandbox;
+		}
+		
+		@Override
+		public boolean equals(final Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (o == null || getClass() != o.getClass()) {
+				return false;
+			}
+			final ClientKey that = (ClientKey) o;
+			return sandbox == that.sandbox && Objects.equals(kbTenantId, that.kbTenantId);
+		}
+		
+		@Override
+		public int hashCode() {
+			return Objects.hash(kbTenantId, sandbox);
+		}
+	}
+	
+	private static class ClientEntry {
+		// the credentials object itself, compared by identity, and destroyed by the credentials cache
+		private final BaseCommerceCredentials credentials;
+		private final BaseCommerceClient client;
+		
+		private ClientEntry(final BaseCommerceCredentials credentials, final BaseCommerceClient client) {
+			this.credentials = credentials;
+			this.client = client;
+		}
+	}
+}
@@ -0,0 +1,558 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbasecommerceplugin;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Plugin-wide settings, read from the Kill Bill properties.
+ */
+public class BaseCommerceConfig {
+	private static final String PROPERTY_PREFIX = "org.killbill.billing.plugin.basecommerce.";
+	
+	private final Properties properties;
+	
+	public BaseCommerceConfig(final Properties properties) {
+		this.properties = properties == null ? new Properties() : properties;
+	}
+	
+	/**
+	 * @return the maximum number of tenants kept in the credentials cache
+	 */
+	public long getCredentialsCacheMaxSize() {
+		return getLong("credentialsCache.maxSize", 1000);
+	}
+	
+	/**
+	 * @return how long cached credentials are trusted before they are read again from the database
+	 */
+	public long getCredentialsCacheTtlSeconds() {
+		return getLong("credentialsCache.ttlSeconds", 300);
+	}
+	
+	/**
+	 * @return the maximum number of payment method tokens kept in memory
+	 */
+	public long getPaymentMethodCacheMaxSize() {
+		return getLong("paymentMethodCache.maxSize", 100000);
+	}
+	
+	/**
+	 * @return how long a cached payment method token is used before being read again
+	 */
+	public long getPaymentMethodCacheTtlSeconds() {
+		return getLong("paymentMethodCache.ttlSeconds", 3600);
+	}
+	
+	/**
+	 * @return the maximum number of Kill Bill accounts kept in memory
+	 */
+	public long getAccountCacheMaxSize() {
+		return getLong("accountCache.maxSize", 10000);
+	}
+	
+	/**
+	 * @return how long a cached account is used before being read again
+	 */
+	public long getAccountCacheTtlSeconds() {
+		return getLong("accountCache.ttlSeconds", 60);
+	}
+	
+	/**
+	 * @return the maximum number of gateway clients cached, one per tenant and sandbox flag
+	 */
+	public long getGatewayClientsMaxSize() {
+		return getLong("gatewayClients.maxSize", 1000);
+	}
+	
+	/**
+	 * @return how long an unused gateway client is kept before being evicted, it is also dropped with its credentials
+	 */
+	public long getGatewayClientsIdleEvictionSeconds() {
+		return getLong("gatewayClients.idleEvictionSeconds", 3600);
+	}
+	
+	/**
+	 * @return true if charges are queued and reported as PENDING instead of being made on the Kill Bill thread
+	 */
+	public boolean isAsyncChargesEnabled() {
+		return Boolean.parseBoolean(properties.getProperty(PROPERTY_PREFIX + "asyncCharges.enabled", "false"));
+	}
+	
+	/**
+	 * @return the number of threads making queued charges
+	 */
+	public int getAsyncChargesThreads() {
+		return (int) getLong("asyncCharges.threads", 8);
+	}
+	
+	/**
+	 * @return the maximum number of charges waiting in the queue
+	 */
+	public int getAsyncChargesQueueSize() {
+		return (int) getLong("asyncCharges.queueSize", 1000);
+	}
+	
+	/**
+	 * @return how long the plugin waits for queued charges when stopping
+	 */
+	public long getAsyncChargesShutdownTimeoutSeconds() {
+		return getLong("asyncCharges.shutdownTimeoutSeconds", 60);
+	}
+	
+	/**
+	 * @return how long a charge may stay pending without reaching the gateway before it is considered lost and canceled
+	 */
+	public long getPendingChargesTimeoutSeconds() {
+		return getLong("pendingCharges.timeoutSeconds", 900);
+	}
+	
+	/**
+	 * @return true if charges and tokenizations go to the built-in gateway simulator instead of Base Commerce
+	 */
+	public boolean isGatewaySimulatorEnabled() {
+		return Boolean.parseBoolean(properties.getProperty(PROPERTY_PREFIX + "simulator.enabled", "false"));
+	}
+	
+	/**
+	 * @return the median latency of a simulated gateway call
+	 */
+	public long getSimulatorLatencyMedianMillis() {
+		return getLong("simulator.latencyMedianMillis", 150);
+	}
+	
+	/**
+	 * @return the 99th percentile latency of a simulated gateway call
+	 */
+	public long getSimulatorLatencyP99Millis() {
+		return getLong("simulator.latencyP99Millis", 800);
+	}
+	
+	/**
+	 * @return the share of simulated charges that are declined
+	 */
+	public double getSimulatorDeclineRate() {
+		return getDouble("simulator.declineRate", 0.05);
+	}
+	
+	/**
+	 * @return the share of simulated calls that fail with a gateway error
+	 */
+	public double getSimulatorErrorRate() {
+		return getDouble("simulator.errorRate", 0.01);
+	}
+	
+	/**
+	 * @return the share of simulated calls that time out
+	 */
+	public double getSimulatorTimeoutRate() {
+		return getDouble("simulator.timeoutRate", 0);
+	}
+	
+	/**
+	 * @return how long a simulated call hangs before timing out
+	 */
+	public long getSimulatorTimeoutMillis() {
+		return getLong("simulator.timeoutMillis", 30000);
+	}
+	
+	/**
+	 * @return the number of consecutive gateway failures that open the circuit of a tenant
+	 */
+	public int getCircuitBreakerFailureThreshold() {
+		return (int) getLong("circuitBreaker.failureThreshold", 5);
+	}
+	
+	/**
+	 * @return how long an open circuit refuses calls before letting a trial call through
+	 */
+	public long getCircuitBreakerOpenSeconds() {
+		return getLong("circuitBreaker.openSeconds", 30);
+	}
+	
+	/**
+	 * @return the maximum number of gateway calls in flight per tenant
+	 */
+	public int getBulkheadMaxConcurrentCalls() {
+		return (int) getLong("bulkhead.maxConcurrentCalls", 20);
+	}
+	
+	/**
+	 * @return how long a call waits for a free slot when the tenant is at its limit
+	 */
+	public long getBulkheadMaxWaitMillis() {
+		return getLong("bulkhead.maxWaitMillis", 0);
+	}
+	
+	/**
+	 * @return where gateway calls run: caller, pool or virtual
+	 */
+	public BaseCommerceGatewayExecutor.Mode getGatewayExecutorMode() {
+		return BaseCommerceGatewayExecutor.parseMode(properties.getProperty(PROPERTY_PREFIX + "gatewayExecutor.mode", "caller"));
+	}
+	
+	/**
+	 * @return the number of threads making gateway calls in pool mode
+	 */
+	public int getGatewayExecutorThreads() {
+		return (int) getLong("gatewayExecutor.threads", 64);
+	}
+	
+	/**
+	 * @return the maximum number of gateway calls waiting for a thread in pool mode
+	 */
+	public int getGatewayExecutorQueueSize() {
+		return (int) getLong("gatewayExecutor.queueSize", 1000);
+	}
+	
+	/**
+	 * @return how long a charge or tokenization may take before the caller gives up on it, 0 for no limit
+	 */
+	public long getGatewayExecutorDeadlineMillis() {
+		return getLong("gatewayExecutor.deadlineMillis", 30000);
+	}
+	
+	/**
+	 * @return how long a payment method or transaction lookup may take before the caller gives up on it, 0 for no limit
+	 */
+	public long getGatewayExecutorLookupDeadlineMillis() {
+		return getLong("gatewayExecutor.lookupDeadlineMillis", 10000);
+	}
+	
+	/**
+	 * @return the gateway calls per second allowed for a tenant without its own limit, 0 for no limit
+	 */
+	public double getRateLimitRequestsPerSecond() {
+		return getDouble("rateLimit.requestsPerSecond", 0);
+	}
+	
+	/**
+	 * @return the gateway calls a tenant without its own burst can make at once after being idle, 0 for one second of calls
+	 */
+	public int getRateLimitBurst() {
+		return (int) getLong("rateLimit.burst", 0);
+	}
+	
+	/**
+	 * @return how long a gateway call waits for the rate limit of its tenant before being refused
+	 */
+	public long getRateLimitMaxWaitMillis() {
+		return getLong("rateLimit.maxWaitMillis", 5000);
+	}
+	
+	/**
+	 * @return the attempts made for a gateway operation, the first one included
+	 */
+	public int getRetryMaxAttempts() {
+		return (int) getLong("retry.maxAttempts", 3);
+	}
+	
+	/**
+	 * @return the backoff before the first retry, doubled for each next one
+	 */
+	public long getRetryInitialBackoffMillis() {
+		return getLong("retry.initialBackoffMillis", 100);
+	}
+	
+	/**
+	 * @return the longest backoff between two attempts
+	 */
+	public long getRetryMaxBackoffMillis() {
+		return getLong("retry.maxBackoffMillis", 2000);
+	}
+	
+	/**
+	 * @return how long a charge or tokenization may take, retries included
+	 */
+	public long getRetryDeadlineMillis() {
+		return getLong("retry.deadlineMillis", 60000);
+	}
+	
+	/**
+	 * @return how long a payment method or transaction lookup may take, retries included
+	 */
+	public long getRetryLookupDeadlineMillis() {
+		return getLong("retry.lookupDeadlineMillis", 20000);
+	}
+	
+	/**
+	 * @return the retries allowed per gateway operation, across all tenants
+	 */
+	public double getRetryBudgetRatio() {
+		return getDouble("retry.budgetRatio", 0.1);
+	}
+	
+	/**
+	 * @return the retries that can be saved up while the gateway is healthy
+	 */
+	public int getRetryBudgetMax() {
+		return (int) getLong("retry.budgetMax", 100);
+	}
+	
+	/**
+	 * @return true if slow lookups get a second attempt in parallel
+	 */
+	public boolean isHedgeEnabled() {
+		return Boolean.parseBoolean(properties.getProperty(PROPERTY_PREFIX + "hedge.enabled", "false"));
+	}
+	
+	/**
+	 * @return how long a lookup runs before being hedged
+	 */
+	public long getHedgeDelayMillis() {
+		return getLong("hedge.delayMillis", 500);
+	}
+	
+	/**
+	 * @return the number of payment methods tokenized at the same time by a bulk import
+	 */
+	public int getImportParallelism() {
+		return (int) getLong("import.parallelism", 8);
+	}
+	
+	/**
+	 * @return the number of payment methods saved per database batch by a bulk import
+	 */
+	public int getImportBatchSize() {
+		return (int) getLong("import.batchSize", 500);
+	}
+	
+	/**
+	 * @return the number of gateway lookups made at the same time when refreshing the payment methods of accounts
+	 */
+	public int getRefreshParallelism() {
+		return (int) getLong("refresh.parallelism", 8);
+	}
+	
+	/**
+	 * @return the maximum number of transaction outcomes kept in memory to answer Kill Bill retries
+	 */
+	public long getIdempotencyCacheMaxSize() {
+		return getLong("idempotency.cacheMaxSize", 100000);
+	}
+	
+	/**
+	 * @return how long a transaction outcome is kept in memory, after which retries read it from the database
+	 */
+	public long getIdempotencyCacheTtlSeconds() {
+		return getLong("idempotency.cacheTtlSeconds", 3600);
+	}
+	
+	/**
+	 * @return the maximum number of gateway notifications waiting to be applied
+	 */
+	public int getNotificationsQueueSize() {
+		return (int) getLong("notifications.queueSize", 10000);
+	}
+	
+	/**
+	 * @return the number of gateway notifications applied per database batch
+	 */
+	public int getNotificationsBatchSize() {
+		return (int) getLong("notifications.batchSize", 500);
+	}
+	
+	/**
+	 * @return how long the plugin waits for queued notifications when stopping
+	 */
+	public long getNotificationsShutdownTimeoutSeconds() {
+		return getLong("notifications.shutdownTimeoutSeconds", 30);
+	}
+	
+	/**
+	 * @return the delay between two lookups of the transactions that unconfirmed notifications are about
+	 */
+	public long getNotificationsLookupIntervalSeconds() {
+		return getLong("notifications.lookupIntervalSeconds", 30);
+	}
+	
+	/**
+	 * @return true if bank debits stay PENDING until they settle, and a background job follows them
+	 */
+	public boolean isReconciliationEnabled() {
+		return Boolean.parseBoolean(properties.getProperty(PROPERTY_PREFIX + "reconciliation.enabled", "false"));
+	}
+	
+	/**
+	 * @return the delay between two reconciliation runs
+	 */
+	public long getReconciliationIntervalSeconds() {
+		return getLong("reconciliation.intervalSeconds", 900);
+	}
+	
+	/**
+	 * @return the number of transactions looked up at the same time by the reconciliation
+	 */
+	public int getReconciliationParallelism() {
+		return (int) getLong("reconciliation.parallelism", 4);
+	}
+	
+	/**
+	 * @return the number of pending transactions read per page by the reconciliation
+	 */
+	public int getReconciliationBatchSize() {
+		return (int) getLong("reconciliation.batchSize", 100);
+	}
+	
+	/**
+	 * @return the maximum number of lookups per second the reconciliation makes for a tenant
+	 */
+	public double getReconciliationRequestsPerSecond() {
+		return getDouble("reconciliation.requestsPerSecond", 5);
+	}
+	
+	/**
+	 * @return the delay between two checks of the cached credentials and payment methods against the database
+	 */
+	public long getCacheCoherenceIntervalSeconds() {
+		return getLong("cacheCoherence.intervalSeconds", 5);
+	}
+	
+	/**
+	 * @return how far back each check looks for changed payment methods, to cover clock skew and slow commits
+	 */
+	public long getCacheCoherenceOverlapSeconds() {
+		return getLong("cacheCoherence.overlapSeconds", 60);
+	}
+	
+	/**
+	 * @return true if this node migrates the plugin tables to the current schema; other nodes only follow the version
+	 */
+	public boolean isSchemaMigrationEnabled() {
+		return Boolean.parseBoolean(properties.getProperty(PROPERTY_PREFIX + "schema.migrate", "false"));
+	}
+	
+	/**
+	 * @return true if the migration may drop the string ID columns, once every node supports binary IDs
+	 */
+	public boolean isSchemaContractEnabled() {
+		return Boolean.parseBoolean(properties.getProperty(PROPERTY_PREFIX + "schema.contract", "false"));
+	}
+	
+	/**
+	 * @return the number of rows copied per transaction while filling a new column
+	 */
+	public int getSchemaBackfillChunkSize() {
+		return (int) getLong("schema.backfillChunkSize", 1000);
+	}
+	
+	/**
+	 * @return the pause between two chunks of a column fill
+	 */
+	public long getSchemaBackfillPauseMillis() {
+		return getLong("schema.backfillPauseMillis", 50);
+	}
+	
+	/**
+	 * @return the delay between two checks of the schema version
+	 */
+	public long getSchemaCheckIntervalSeconds() {
+		return getLong("schema.checkIntervalSeconds", 10);
+	}
+	
+	/**
+	 * @return the file holding the base64 encoded master key the credentials are encrypted with, or null to store them
+	 * in plaintext
+	 */
+	public String getEncryptionMasterKeyFile() {
+		final String value = properties.getProperty(PROPERTY_PREFIX + "encryption.masterKeyFile");
+		return value == null || value.trim().isEmpty() ? null : value.trim();
+	}
+	
+	/**
+	 * @return the maximum number of decrypted credentials data keys kept in memory
+	 */
+	public long getEncryptionDataKeyCacheMaxSize() {
+		return getLong("encryption.dataKeyCacheMaxSize", 1000);
+	}
+	
+	/**
+	 * @return how long a decrypted credentials data key is kept in memory before being zeroed
+	 */
+	public long getEncryptionDataKeyCacheTtlSeconds() {
+		return getLong("encryption.dataKeyCacheTtlSeconds", 300);
+	}
+	
+	/**
+	 * @return true if credentials saved in plaintext are encrypted when the plugin starts, which should only be enabled
+	 * once every node has the master key
+	 */
+	public boolean isEncryptionEncryptExistingEnabled() {
+		return Boolean.parseBoolean(properties.getProperty(PROPERTY_PREFIX + "encryption.encryptExisting", "false"));
+	}
+	
+	/**
+	 * @return true if the credentials and gateway connections are warmed up when the plugin starts
+	 */
+	public boolean isWarmUpEnabled() {
+		return Boolean.parseBoolean(properties.getProperty(PROPERTY_PREFIX + "warmUp.enabled", "false"));
+	}
+	
+	/**
+	 * @return how long the warm-up may take before the plugin reports ready anyway
+	 */
+	public long getWarmUpTimeoutSeconds() {
+		return getLong("warmUp.timeoutSeconds", 30);
+	}
+	
+	/**
+	 * @return the gateway URLs the warm-up opens connections to
+	 */
+	public List<String> getWarmUpUrls() {
+		final List<String> urls = new ArrayList<String>();
+		for (String url : properties.getProperty(PROPERTY_PREFIX + "warmUp.urls", "").split(",")) {
+			if (!url.trim().isEmpty()) {
+				urls.add(url.trim());
+			}
+		}
+		return urls;
+	}
+	
+	/**
+	 * @return the connections the warm-up opens to each gateway URL
+	 */
+	public int getWarmUpConnectionsPerUrl() {
+		return (int) getLong("warmUp.connectionsPerUrl", 4);
+	}
+	
+	private long getLong(final String name, final long defaultValue) {
+		final String value = properties.getProperty(PROPERTY_PREFIX + name);
+		if (value == null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+	
+	private double getDouble(final String name, final double defaultValue) {
+		final String value = properties.getProperty(PROPERTY_PREFIX + name);
+		if (value == null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+		try {
+			return Double.parseDouble(value.trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbasecommerceplugin;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * The Base Commerce credentials of a tenant.
+ * <p>
+ * The password and key are kept as char arrays, which {@link BaseCommerceCredentialsCache} zeroes once the credentials
+ * are evicted. Reading them afterwards throws an {@link IllegalStateException}.
+ */
+public class BaseCommerceCredentials {
+	
+	private final UUID kbTenantId;
+	private final String username;
+	private char[] password;
+	private char[] key;
+	private boolean destroyed;
+	private final boolean test;
+	private final double requestsPerSecond;
+	private final int burst;
+	private final long version;
+	
+	public BaseCommerceCredentials(final UUID kbTenantId, final String username, final String password, final String key, final boolean test) {
+		this(kbTenantId, username, password, key, test, 0, 0);
+	}
+	
+	public BaseCommerceCredentials(final UUID kbTenantId, final String username, final String password, final String key, final boolean test, final double requestsPerSecond, final int burst) {
+		this(kbTenantId, username, toChars(password), toChars(key), test, requestsPerSecond, burst, 0);
+	}
+	
+	/**
+	 * The credentials take ownership of the given password and key, and zero them once destroyed.
+	 */
+	public BaseCommerceCredentials(final UUID kbTenantId, final String username, final char[] password, final char[] key, final boolean test, final double requestsPerSecond, final int burst,
+	                               final long version) {
+		this.kbTenantId = kbTenantId;
+		this.username = username;
+		this.password = password;
+		this.key = key;
+		this.test = test;
+		this.requestsPerSecond = requestsPerSecond;
+		this.burst = burst;
+		this.version = version;
+	}
+	
+	private static char[] toChars(final String value) {
+		return value == null ? null : value.toCharArray();
+	}
+	
+	public UUID getKbTenantId() {
+		return kbTenantId;
+	}
+	
+	public String getUsername() {
+		return username;
+	}
+	
+	/**
+	 * @return a copy of the password, which the caller zeroes once done with it, or null if there is none
+	 * @throws IllegalStateException if the credentials were destroyed
+	 */
+	public synchronized char[] getPassword() {
+		checkNotDestroyed();
+		return password == null ? null : password.clone();
+	}
+	
+	/**
+	 * @return a copy of the key, which the caller zeroes once done with it, or null if there is none
+	 * @throws IllegalStateException if the credentials were destroyed
+	 */
+	public synchronized char[] getKey() {
+		checkNotDestroyed();
+		return key == null ? null : key.clone();
+	}
+	
+	/**
+	 * @throws IllegalStateException if the credentials were destroyed
+	 */
+	public synchronized boolean hasPassword() {
+		checkNotDestroyed();
+		return password != null && password.length > 0;
+	}
+	
+	/**
+	 * @throws IllegalStateException if the credentials were destroyed
+	 */
+	public synchronized boolean hasKey() {
+		checkNotDestroyed();
+		return key != null && key.length > 0;
+	}
+	
+	public boolean isTest() {
+		return test;
+	}
+	
+	/**
+	 * @return the gateway calls per second allowed for the tenant, or 0 for the configured default
+	 */
+	public double getRequestsPerSecond() {
+		return requestsPerSecond;
+	}
+	
+	/**
+	 * @return the gateway calls the tenant can make at once after being idle, or 0 for the configured default
+	 */
+	public int getBurst() {
+		return burst;
+	}
+	
+	/**
+	 * @return the version of the database row these credentials were read from, or 0 if they weren't read from it
+	 */
+	public long getVersion() {
+		return version;
+	}
+	
+	/**
+	 * Zero the password and key.
+	 */
+	public synchronized void destroy() {
+		if (password != null) {
+			Arrays.fill(password, '\0');
+			password = null;
+		}
+		if (key != null) {
+			Arrays.fill(key, '\0');
+			key = null;
+		}
+		destroyed = true;
+	}
+	
+	public synchronized boolean isDestroyed() {
+		return destroyed;
+	}
+	
+	private void checkNotDestroyed() {
+		if (destroyed) {
+			throw new IllegalStateException("the credentials of tenant " + kbTenantId + " were evicted");
+		}
+	}
+}
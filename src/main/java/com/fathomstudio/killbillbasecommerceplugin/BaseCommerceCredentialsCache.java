@@ -0,0 +1,166 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbasecommerceplugin;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the tenant credentials in memory so that payments don't have to read them from the database every time.
+ * <p>
+ * Entries are invalidated by {@link BaseCommerceListener} when the tenant configuration changes on this node, and by
+ * {@link BaseCommerceCacheCoherence} when it changed on another one. Evicted credentials are destroyed, zeroing their
+ * password and key, together with the gateway clients built from them.
+ */
+public class BaseCommerceCredentialsCache implements BaseCommerceMetricsSource {
+	
+	private final Cache<UUID, BaseCommerceCredentials> cache;
+	
+	public BaseCommerceCredentialsCache(final long maxSize, final long ttlSeconds) {
+		this(maxSize, ttlSeconds, null);
+	}
+	
+	/**
+	 * @param clientRegistry - the gateway clients to drop along with the credentials they were built from, or null
+	 */
+	public BaseCommerceCredentialsCache(final long maxSize, final long ttlSeconds, final BaseCommerceClientRegistry clientRegistry) {
+		this.cache = CacheBuilder.newBuilder()
+		                         .maximumSize(maxSize)
+		                         .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+		                         .removalListener(new RemovalListener<UUID, BaseCommerceCredentials>() {
+			                         @Override
+			                         public void onRemoval(final RemovalNotification<UUID, BaseCommerceCredentials> notification) {
+				                         final BaseCommerceCredentials credentials = notification.getValue();
+				                         // the same credentials put again aren't evicted
+				                         if (credentials == null || credentials == cache.asMap().get(notification.getKey())) {
+					                         return;
+				                         }
+				                         if (clientRegistry != null) {
+					                         clientRegistry.invalidate(credentials);
+				                         }
+				                         credentials.destroy();
+			                         }
+		                         })
+		                         .recordStats()
+		                         .build();
+	}
+	
+	/**
+	 * Get the credentials of the given tenant, calling the loader if they aren't cached.
+	 *
+	 * @param kbTenantId - the tenant
+	 * @param loader     - reads the credentials from the database
+	 * @return the credentials
+	 * @throws ExecutionException if the loader failed
+	 */
+	public BaseCommerceCredentials get(final UUID kbTenantId, final Callable<BaseCommerceCredentials> loader) throws ExecutionException {
+		return cache.get(kbTenantId, loader);
+	}
+	
+	/**
+	 * @param kbTenantId - the tenant
+	 * @return the cached credentials, or null if they aren't cached
+	 */
+	public BaseCommerceCredentials getIfPresent(final UUID kbTenantId) {
+		return cache.getIfPresent(kbTenantId);
+	}
+	
+	/**
+	 * Cache credentials read from the database, unless the same version is already cached. In that case the given
+	 * credentials are destroyed and the cached ones are returned, so that calls already holding them keep working.
+	 *
+	 * @param credentials - the credentials
+	 * @return the credentials to use
+	 */
+	public BaseCommerceCredentials put(final BaseCommerceCredentials credentials) {
+		final BaseCommerceCredentials cached = cache.asMap().putIfAbsent(credentials.getKbTenantId(), credentials);
+		if (cached == null) {
+			return credentials;
+		}
+		if (cached.getVersion() == credentials.getVersion() && !cached.isDestroyed()) {
+			credentials.destroy();
+			return cached;
+		}
+		cache.put(credentials.getKbTenantId(), credentials);
+		return credentials;
+	}
+	
+	public void invalidate(final UUID kbTenantId) {
+		cache.invalidate(kbTenantId);
+	}
+	
+	/**
+	 * Drop the cached credentials if they aren't the given version.
+	 *
+	 * @param kbTenantId - the tenant
+	 * @param version    - the version in the database
+	 * @return true if stale credentials were dropped
+	 */
+	public boolean invalidateIfStale(final UUID kbTenantId, final long version) {
+		// read through the map view so these checks don't count as cache hits or misses
+		final BaseCommerceCredentials cached = cache.asMap().get(kbTenantId);
+		return cached != null && cached.getVersion() != version && cache.asMap().remove(kbTenantId, cached);
+	}
+	
+	/**
+	 * Drop the cached credentials of the tenants that have none in the database anymore.
+	 *
+	 * @param kbTenantIds - the tenants with credentials in the database
+	 * @return the number of credentials dropped
+	 */
+	public int invalidateAllExcept(final Set<UUID> kbTenantIds) {
+		int count = 0;
+		for (final Map.Entry<UUID, BaseCommerceCredentials> entry : cache.asMap().entrySet()) {
+			if (!kbTenantIds.contains(entry.getKey()) && cache.asMap().remove(entry.getKey(), entry.getValue())) {
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	public long getHitCount() {
+		return cache.stats().hitCount();
+	}
+	
+	public long getMissCount() {
+		return cache.stats().missCount();
+	}
+	
+	@Override
+	public void appendMetrics(final StringBuilder out) {
+		final CacheStats stats = cache.stats();
+		out.append("# TYPE basecommerce_credentials_cache_hits_total counter\n");
+		out.append("basecommerce_credentials_cache_hits_total ").append(stats.hitCount()).append('\n');
+		out.append("# TYPE basecommerce_credentials_cache_misses_total counter\n");
+		out.append("basecommerce_credentials_cache_misses_total ").append(stats.missCount()).append('\n');
+		out.append("# TYPE basecommerce_credentials_cache_evictions_total counter\n");
+		out.append("basecommerce_credentials_cache_evictions_total ").append(stats.evictionCount()).append('\n');
+		out.append("# TYPE basecommerce_credentials_cache_size gauge\n");
+		out.append("basecommerce_credentials_cache_size ").append(cache.size()).append('\n');
+	}
+}
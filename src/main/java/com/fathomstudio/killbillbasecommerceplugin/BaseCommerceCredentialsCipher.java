@@ -0,0 +1,293 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.fathomstudio.killbillbasecommerceplugin;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.io.BaseEncoding;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Encrypts the secrets of {@code baseCommerce_credentials} at rest, with AES-GCM envelope encryption.
+ * <p>
+ * Each save draws a new data key, which encrypts the password and the key and is itself encrypted by the master key read
+ * from a local file. Both are stored in the existing columns as {@code {aesgcm}<encrypted data key>:<encrypted value>},
+ * so no schema change is needed and rows saved before encryption was enabled are still read as plaintext.
+ * <p>
+ * Decryption only happens when credentials are read from the database, since charges use the credentials cache.
+ * Decrypted data keys are kept for a short while so that a credentials cache miss costs a single AES-GCM decryption,
+ * and their bytes are zeroed when they are evicted.
+ */
+public class BaseCommerceCredentialsCipher implements BaseCommerceMetricsSource {
+	
+	private static final String PREFIX = "{aesgcm}";
+	private static final String SEPARATOR = ":";
+	private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+	private static final int IV_LENGTH = 12;
+	private static final int TAG_LENGTH_BITS = 128;
+	private static final int DATA_KEY_LENGTH = 32;
+	private static final BaseEncoding BASE64 = BaseEncoding.base64();
+	
+	private final SecretKeySpec masterKey;
+	private final Cache<String, DataKey> dataKeys;
+	private final SecureRandom random = new SecureRandom();
+	private final AtomicLong unwrapCount = new AtomicLong();
+	private final AtomicLong decryptionCount = new AtomicLong();
+	
+	/**
+	 * @param masterKey              - a 128, 192 or 256 bit AES key, or null to save the credentials in plaintext
+	 * @param dataKeyCacheMaxSize    - the decrypted data keys kept in memory
+	 * @param dataKeyCacheTtlSeconds - how long a decrypted data key is kept in memory
+	 */
+	public BaseCommerceCredentialsCipher(final byte[] masterKey, final long dataKeyCacheMaxSize, final long dataKeyCacheTtlSeconds) {
+		this.masterKey = masterKey == null ? null : new SecretKeySpec(masterKey, "AES");
+		this.dataKeys = CacheBuilder.newBuilder()
+		                            .maximumSize(dataKeyCacheMaxSize)
+		                            .expireAfterWrite(dataKeyCacheTtlSeconds, TimeUnit.SECONDS)
+		                            .removalListener(new RemovalListener<String, DataKey>() {
+			                            @Override
+			                            public void onRemoval(final RemovalNotification<String, DataKey> notification) {
+				                            notification.getValue().destroy();
+			                            }
+		                            })
+		                            .build();
+	}
+	
+	/**
+	 * @return a cipher that saves the credentials in plaintext, and only reads encrypted ones if given a master key
+	 */
+	public static BaseCommerceCredentialsCipher plaintext() {
+		return new BaseCommerceCredentialsCipher(null, 0, 0);
+	}
+	
+	/**
+	 * Read the master key from a file holding it base64 encoded, e.g. made by {@code openssl rand -base64 32}.
+	 *
+	 * @param path                   - the file
+	 * @param dataKeyCacheMaxSize    - the decrypted data keys kept in memory
+	 * @param dataKeyCacheTtlSeconds - how long a decrypted data key is kept in memory
+	 * @return the cipher
+	 * @throws IOException if the file could not be read or doesn't hold an AES key
+	 */
+	public static BaseCommerceCredentialsCipher fromKeyFile(final String path, final long dataKeyCacheMaxSize, final long dataKeyCacheTtlSeconds) throws IOException {
+		final byte[] masterKey;
+		try {
+			masterKey = BASE64.decode(new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.US_ASCII).trim());
+		} catch (IllegalArgumentException e) {
+			throw new IOException("the master key file " + path + " is not base64 encoded", e);
+		}
+		try {
+			if (masterKey.length != 16 && masterKey.length != 24 && masterKey.length != 32) {
+				throw new IOException("the master key in " + path + " is " + masterKey.length + " bytes long, instead of 16, 24 or 32");
+			}
+			return new BaseCommerceCredentialsCipher(masterKey, dataKeyCacheMaxSize, dataKeyCacheTtlSeconds);
+		} finally {
+			// the key spec keeps its own copy
+			Arrays.fill(masterKey, (byte) 0);
+		}
+	}
+	
+	/**
+	 * @return true if saved credentials are encrypted
+	 */
+	public boolean isEnabled() {
+		return masterKey != null;
+	}
+	
+	/**
+	 * @param value - a value read from the database
+	 * @return true if it is encrypted
+	 */
+	public static boolean isEncrypted(final String value) {
+		return value != null && value.startsWith(PREFIX);
+	}
+	
+	/**
+	 * Encrypt the secrets of a credentials row, under a single new data key.
+	 *
+	 * @param values - the values to encrypt, null values stay null
+	 * @return the values to store, or the given values as strings if encryption isn't enabled
+	 * @throws GeneralSecurityException if the values could not be encrypted
+	 */
+	public String[] encrypt(final char[]... values) throws GeneralSecurityException {
+		final String[] encrypted = new String[values.length];
+		if (masterKey == null) {
+			for (int i = 0; i < values.length; i++) {
+				encrypted[i] = values[i] == null ? null : new String(values[i]);
+			}
+			return encrypted;
+		}
+		final byte[] dataKey = new byte[DATA_KEY_LENGTH];
+		random.nextBytes(dataKey);
+		try {
+			final String header = PREFIX + BASE64.encode(seal(masterKey, dataKey)) + SEPARATOR;
+			final SecretKeySpec dataKeySpec = new SecretKeySpec(dataKey, "AES");
+			for (int i = 0; i < values.length; i++) {
+				if (values[i] != null) {
+					final byte[] plaintext = toBytes(values[i]);
+					try {
+						encrypted[i] = header + BASE64.encode(seal(dataKeySpec, plaintext));
+					} finally {
+						Arrays.fill(plaintext, (byte) 0);
+					}
+				}
+			}
+			return encrypted;
+		} finally {
+			Arrays.fill(dataKey, (byte) 0);
+		}
+	}
+	
+	/**
+	 * @param value - a value read from the database
+	 * @return the decrypted value, or the value itself if it isn't encrypted, which the caller zeroes once done with it
+	 * @throws GeneralSecurityException if the value could not be decrypted, e.g. because the master key is wrong
+	 */
+	public char[] decrypt(final String value) throws GeneralSecurityException {
+		if (!isEncrypted(value)) {
+			return value == null ? null : value.toCharArray();
+		}
+		if (masterKey == null) {
+			throw new GeneralSecurityException("the credentials are encrypted but no master key is configured");
+		}
+		final int separator = value.indexOf(SEPARATOR, PREFIX.length());
+		if (separator < 0) {
+			throw new GeneralSecurityException("malformed encrypted value");
+		}
+		final byte[] dataKey = getDataKey(value.substring(PREFIX.length(), separator));
+		try {
+			decryptionCount.incrementAndGet();
+			final byte[] plaintext = open(new SecretKeySpec(dataKey, "AES"), decode(value.substring(separator + 1)));
+			try {
+				return toChars(plaintext);
+			} finally {
+				Arrays.fill(plaintext, (byte) 0);
+			}
+		} finally {
+			Arrays.fill(dataKey, (byte) 0);
+		}
+	}
+	
+	// through buffers that are zeroed afterwards, a String would leave a copy of the secret that can't be zeroed
+	private static byte[] toBytes(final char[] chars) {
+		final ByteBuffer buffer = StandardCharsets.UTF_8.encode(CharBuffer.wrap(chars));
+		final byte[] bytes = Arrays.copyOfRange(buffer.array(), buffer.position(), buffer.limit());
+		Arrays.fill(buffer.array(), (byte) 0);
+		return bytes;
+	}
+	
+	private static char[] toChars(final byte[] bytes) {
+		final CharBuffer buffer = StandardCharsets.UTF_8.decode(ByteBuffer.wrap(bytes));
+		final char[] chars = Arrays.copyOfRange(buffer.array(), buffer.position(), buffer.limit());
+		Arrays.fill(buffer.array(), '\0');
+		return chars;
+	}
+	
+	/**
+	 * @return a copy of the decrypted data key, which the caller zeroes once done with it
+	 */
+	private byte[] getDataKey(final String encryptedDataKey) throws GeneralSecurityException {
+		final DataKey cached = dataKeys.getIfPresent(encryptedDataKey);
+		if (cached != null) {
+			final byte[] dataKey = cached.copy();
+			// null if it was evicted meanwhile
+			if (dataKey != null) {
+				return dataKey;
+			}
+		}
+		final byte[] dataKey = open(masterKey, decode(encryptedDataKey));
+		unwrapCount.incrementAndGet();
+		dataKeys.put(encryptedDataKey, new DataKey(dataKey.clone()));
+		return dataKey;
+	}
+	
+	private byte[] seal(final SecretKeySpec key, final byte[] plaintext) throws GeneralSecurityException {
+		final byte[] iv = new byte[IV_LENGTH];
+		random.nextBytes(iv);
+		final Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+		cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH_BITS, iv));
+		final byte[] sealed = Arrays.copyOf(iv, IV_LENGTH + cipher.getOutputSize(plaintext.length));
+		cipher.doFinal(plaintext, 0, plaintext.length, sealed, IV_LENGTH);
+		return sealed;
+	}
+	
+	private static byte[] open(final SecretKeySpec key, final byte[] sealed) throws GeneralSecurityException {
+		if (sealed.length < IV_LENGTH) {
+			throw new GeneralSecurityException("malformed encrypted value");
+		}
+		final Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+		cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH_BITS, sealed, 0, IV_LENGTH));
+		return cipher.doFinal(sealed, IV_LENGTH, sealed.length - IV_LENGTH);
+	}
+	
+	private static byte[] decode(final String value) throws GeneralSecurityException {
+		try {
+			return BASE64.decode(value);
+		} catch (IllegalArgumentException e) {
+			throw new GeneralSecurityException("malformed encrypted value", e);
+		}
+	}
+	
+	@Override
+	public void appendMetrics(final StringBuilder out) {
+		out.append("# TYPE basecommerce_credentials_decryptions_total counter\n");
+		out.append("basecommerce_credentials_decryptions_total ").append(decryptionCount.get()).append('\n');
+		out.append("# TYPE basecommerce_credentials_data_key_unwraps_total counter\n");
+		out.append("basecommerce_credentials_data_key_unwraps_total ").append(unwrapCount.get()).append('\n');
+		out.append("# TYPE basecommerce_credentials_data_key_cache_size gauge\n");
+		out.append("basecommerce_credentials_data_key_cache_size ").append(dataKeys.size()).append('\n');
+	}
+	
+	/**
+	 * A decrypted data key, zeroed once evicted.
+	 */
+	private static class DataKey {
+		
+		private byte[] key;
+		
+		private DataKey(final byte[] key) {
+			this.key = key;
+		}
+		
+		private synchronized byte[] copy() {
+			return key == null ? null : key.clone();
+		}
+		
+		private synchronized void destroy() {
+			if (key != null) {
+				Arrays.fill(key, (byte) 0);
+				key = null;
+			}
+		}
+	}
+}
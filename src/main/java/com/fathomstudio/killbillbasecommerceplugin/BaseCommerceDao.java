@@ -0,0 +1,1115 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbasecommerceplugin;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.payment.api.TransactionType;
+import org.killbill.billing.payment.plugin.api.PaymentMethodInfoPlugin;
+import org.killbill.billing.payment.plugin.api.PaymentPluginStatus;
+
+import javax.sql.DataSource;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * All the SQL used by the plugin.
+ * <p>
+ * Every statement is a constant string, so the prepared statement cache of the Kill Bill connection pool
+ * ({@code org.killbill.dao.cachePrepStmts}) reuses them across calls instead of preparing them again. Each method
+ * borrows a connection and gives it back before returning.
+ */
+public class BaseCommerceDao {
+	
+	private static final String TRANSACTION_COLUMNS = "`tenantId`, `kbAccountId`, `kbPaymentId`, `kbTransactionId`, `kbPaymentMethodId`, `transactionType`, `paymentMethodType`, `amount`, `currency`, `status`, `gatewayTransactionId`, `gatewayStatus`, `gatewayErrorCode`, `gatewayError`, `createdDate`, `effectiveDate`";
+	private static final String CREDENTIALS_QUERY = "SELECT `username`, `password`, `key`, `test`, `requestsPerSecond`, `burst`, `version` FROM `baseCommerce_credentials` WHERE `tenantId` = ?";
+	private static final String ALL_CREDENTIALS_QUERY = "SELECT `tenantId`, `username`, `password`, `key`, `test`, `requestsPerSecond`, `burst`, `version` FROM `baseCommerce_credentials`";
+	private static final String SAVE_CREDENTIALS_QUERY = "INSERT INTO `baseCommerce_credentials` (`tenantId`, `username`, `password`, `key`, `test`, `requestsPerSecond`, `burst`) VALUES (?, ?, ?, ?, ?, ?, ?) ON DUPLICATE KEY UPDATE `tenantId` = ?, `username` = ?, `password` = ?, `key` = ?, `test` = ?, `requestsPerSecond` = ?, `burst` = ?, `version` = `version` + 1";
+	private static final String PAYMENT_METHOD_QUERY = "SELECT `token`, `type`, `version` FROM `baseCommerce_paymentMethods` WHERE `paymentMethodId` = ?";
+	private static final String SAVE_PAYMENT_METHOD_QUERY = "INSERT INTO `baseCommerce_paymentMethods` (`tenantId`, `kbAccountId`, `paymentMethodId`, `token`, `type`, `lastFour`, `updatedDate`) VALUES (?, ?, ?, ?, ?, ?, CURRENT_TIMESTAMP(3)) ON DUPLICATE KEY UPDATE `tenantId` = VALUES(`tenantId`), `kbAccountId` = COALESCE(VALUES(`kbAccountId`), `kbAccountId`), `token` = VALUES(`token`), `type` = VALUES(`type`), `lastFour` = VALUES(`lastFour`), `version` = `version` + 1, `updatedDate` = CURRENT_TIMESTAMP(3)";
+	private static final String ACCOUNT_PAYMENT_METHODS_QUERY = "SELECT `paymentMethodId`, `token`, `type`, `lastFour` FROM `baseCommerce_paymentMethods` WHERE `tenantId` = ? AND `kbAccountId` = ? ORDER BY `id`";
+	private static final String RESET_PAYMENT_METHOD_QUERY = "UPDATE `baseCommerce_paymentMethods` SET `kbAccountId` = ?, `token` = COALESCE(?, `token`), `version` = `version` + 1, `updatedDate` = CURRENT_TIMESTAMP(3) WHERE `paymentMethodId` = ? AND `tenantId` = ?";
+	private static final String UPDATED_PAYMENT_METHODS_QUERY = "SELECT `paymentMethodId`, `version` FROM `baseCommerce_paymentMethods` WHERE `updatedDate` >= ?";
+	private static final String CREDENTIALS_SECRETS_QUERY = "SELECT `tenantId`, `password`, `key` FROM `baseCommerce_credentials`";
+	// only replaces the secrets it read, and leaves the version alone since the credentials don't change
+	private static final String ENCRYPT_CREDENTIALS_QUERY = "UPDATE `baseCommerce_credentials` SET `password` = ?, `key` = ? WHERE `tenantId` = ? AND `password` <=> ? AND `key` <=> ?";
+	private static final String CREDENTIALS_VERSIONS_QUERY = "SELECT `tenantId`, `version` FROM `baseCommerce_credentials`";
+	private static final String DATABASE_TIME_QUERY = "SELECT CURRENT_TIMESTAMP(3)";
+	private static final String EXISTING_PAYMENT_METHODS_QUERY = "SELECT `paymentMethodId` FROM `baseCommerce_paymentMethods` WHERE `paymentMethodId` IN (";
+	private static final String DELETE_PAYMENT_METHOD_QUERY = "DELETE FROM `baseCommerce_paymentMethods` WHERE `paymentMethodId` = ?";
+	private static final String SAVE_TRANSACTION_QUERY = "INSERT INTO `baseCommerce_transactions` (`tenantId`, `kbAccountId`, `kbPaymentId`, `kbTransactionId`, `kbPaymentMethodId`, `transactionType`, `paymentMethodType`, `amount`, `currency`, `status`, `gatewayTransactionId`, `gatewayStatus`, `gatewayErrorCode`, `gatewayError`, `createdDate`, `effectiveDate`) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) ON DUPLICATE KEY UPDATE `status` = VALUES(`status`), `gatewayTransactionId` = VALUES(`gatewayTransactionId`), `gatewayStatus` = VALUES(`gatewayStatus`), `gatewayErrorCode` = VALUES(`gatewayErrorCode`), `gatewayError` = VALUES(`gatewayError`), `effectiveDate` = VALUES(`effectiveDate`)";
+	private static final String START_TRANSACTION_QUERY = "INSERT INTO `baseCommerce_transactions` (" + TRANSACTION_COLUMNS + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+	// only an attempt that never reached the gateway may be made again
+	private static final String RESTART_TRANSACTION_QUERY = "UPDATE `baseCommerce_transactions` SET `status` = ?, `gatewayTransactionId` = NULL, `gatewayStatus` = NULL, `gatewayErrorCode` = NULL, `gatewayError` = NULL, `effectiveDate` = ? WHERE `kbTransactionId` = ? AND `tenantId` = ? AND `status` = 'CANCELED'";
+	// only a charge that never got a gateway transaction, and wasn't attempted again since, is canceled
+	private static final String CANCEL_PENDING_TRANSACTION_QUERY = "UPDATE `baseCommerce_transactions` SET `status` = 'CANCELED', `gatewayErrorCode` = ?, `gatewayError` = ?, `effectiveDate` = ? WHERE `kbTransactionId` = ? AND `tenantId` = ? AND `status` = 'PENDING' AND `gatewayTransactionId` IS NULL AND `effectiveDate` < ?";
+	private static final String GET_LOCK_QUERY = "SELECT GET_LOCK(?, 0)";
+	private static final String RELEASE_LOCK_QUERY = "SELECT RELEASE_LOCK(?)";
+	private static final String TRANSACTION_QUERY = "SELECT " + TRANSACTION_COLUMNS + " FROM `baseCommerce_transactions` WHERE `kbTransactionId` = ? AND `tenantId` = ?";
+	private static final String GATEWAY_TRANSACTIONS_QUERY = "SELECT " + TRANSACTION_COLUMNS + " FROM `baseCommerce_transactions` WHERE `tenantId` = ? AND `paymentMethodType` = ? AND `gatewayTransactionId` IN (";
+	private static final String PENDING_TENANTS_QUERY = "SELECT DISTINCT `tenantId` FROM `baseCommerce_transactions` WHERE `status` = 'PENDING' AND `paymentMethodType` = ?";
+	private static final String PENDING_TRANSACTIONS_QUERY = "SELECT `id`, " + TRANSACTION_COLUMNS + " FROM `baseCommerce_transactions` WHERE `status` = 'PENDING' AND `paymentMethodType` = ? AND `tenantId` = ? AND `id` > ? ORDER BY `id` LIMIT ?";
+	private static final String LOOKUP_TENANTS_QUERY = "SELECT DISTINCT `tenantId` FROM `baseCommerce_transactions` WHERE `lookupRequested` = TRUE";
+	private static final String LOOKUP_TRANSACTIONS_QUERY = "SELECT `id`, " + TRANSACTION_COLUMNS + " FROM `baseCommerce_transactions` WHERE `lookupRequested` = TRUE AND `tenantId` = ? AND `id` > ? ORDER BY `id` LIMIT ?";
+	private static final String SET_LOOKUP_REQUESTED_QUERY = "UPDATE `baseCommerce_transactions` SET `lookupRequested` = ? WHERE `kbTransactionId` = ? AND `tenantId` = ?";
+	private static final String TRANSACTIONS_QUERY = "SELECT " + TRANSACTION_COLUMNS + " FROM `baseCommerce_transactions` WHERE `kbPaymentId` = ? AND `tenantId` = ? ORDER BY `id`";
+	// the credentials row always exists for a configured tenant, the payment method may not
+	private static final String CHARGE_DETAILS_QUERY = "SELECT c.`username`, c.`password`, c.`key`, c.`test`, c.`requestsPerSecond`, c.`burst`, c.`version`, m.`token`, m.`type`, m.`version` AS `paymentMethodVersion` FROM `baseCommerce_credentials` c LEFT JOIN `baseCommerce_paymentMethods` m ON m.`paymentMethodId` = ? WHERE c.`tenantId` = ?";
+	
+	private final DataSource dataSource;
+	private final BaseCommerceCredentialsCipher credentialsCipher;
+	// set by BaseCommerceSchemaMigrator once the payment method and tenant IDs are stored as BINARY(16)
+	private volatile boolean binaryIds;
+	
+	public BaseCommerceDao(final DataSource dataSource) {
+		this(dataSource, BaseCommerceCredentialsCipher.plaintext());
+	}
+	
+	/**
+	 * @param dataSource        - the Kill Bill database
+	 * @param credentialsCipher - encrypts the credentials secrets when saved and decrypts them when read
+	 */
+	public BaseCommerceDao(final DataSource dataSource, final BaseCommerceCredentialsCipher credentialsCipher) {
+		this.dataSource = dataSource;
+		this.credentialsCipher = credentialsCipher;
+	}
+	
+	/**
+	 * @param binaryIds - true if {@code baseCommerce_paymentMethods.paymentMethodId} and
+	 *                  {@code baseCommerce_credentials.tenantId} are stored as BINARY(16), false if as strings
+	 */
+	public void setBinaryIds(final boolean binaryIds) {
+		this.binaryIds = binaryIds;
+	}
+	
+	/**
+	 * @param kbTenantId - the tenant
+	 * @return the credentials of the tenant, or null if the tenant isn't configured
+	 * @throws SQLException if the query failed
+	 */
+	public BaseCommerceCredentials getCredentials(final UUID kbTenantId) throws SQLException {
+		try (Connection connection = dataSource.getConnection();
+		     PreparedStatement statement = connection.prepareStatement(CREDENTIALS_QUERY)) {
+			setId(statement, 1, kbTenantId);
+			try (ResultSet resultSet = statement.executeQuery()) {
+				if (!resultSet.next()) {
+					return null;
+				}
+				return readCredentials(kbTenantId, resultSet);
+			}
+		}
+	}
+	
+	/**
+	 * @return the credentials of every configured tenant
+	 * @throws SQLException if the query failed
+	 */
+	public List<BaseCommerceCredentials> getAllCredentials() throws SQLException {
+		try (Connection connection = dataSource.getConnection();
+		     PreparedStatement statement = connection.prepareStatement(ALL_CREDENTIALS_QUERY);
+		     ResultSet resultSet = statement.executeQuery()) {
+			final List<BaseCommerceCredentials> credentials = new ArrayList<BaseCommerceCredentials>();
+			while (resultSet.next()) {
+				credentials.add(readCredentials(getId(resultSet, "tenantId"), resultSet));
+			}
+			return credentials;
+		}
+	}
+	
+	/**
+	 * Save the credentials of a tenant, replacing the previous ones.
+	 *
+	 * @param credentials - the credentials
+	 * @throws SQLException if the query failed
+	 */
+	public void saveCredentials(final BaseCommerceCredentials credentials) throws SQLException {
+		final char[] password = credentials.getPassword();
+		final char[] key = credentials.getKey();
+		final String[] secrets;
+		try {
+			secrets = encryptSecrets(password, key);
+		} finally {
+			clear(password);
+			clear(key);
+		}
+		try (Connection connection = dataSource.getConnection();
+		     PreparedStatement statement = connection.prepareStatement(SAVE_CREDENTIALS_QUERY)) {
+			setId(statement, 1, credentials.getKbTenantId());
+			statement.setString(2, credentials.getUsername());
+			statement.setString(3, secrets[0]);
+			statement.setString(4, secrets[1]);
+			statement.setBoolean(5, credentials.isTest());
+			statement.setDouble(6, credentials.getRequestsPerSecond());
+			statement.setInt(7, credentials.getBurst());
+			setId(statement, 8, credentials.getKbTenantId());
+			statement.setString(9, credentials.getUsername());
+			statement.setString(10, secrets[0]);
+			statement.setString(11, secrets[1]);
+			statement.setBoolean(12, credentials.isTest());
+			statement.setDouble(13, credentials.getRequestsPerSecond());
+			statement.setInt(14, credentials.getBurst());
+			statement.executeUpdate();
+		}
+	}
+	
+	/**
+	 * @param kbPaymentMethodId - the payment method
+	 * @return the saved payment method, or null if it isn't known
+	 * @throws SQLException if the query failed
+	 */
+	public BaseCommercePaymentMethod getPaymentMethod(final UUID kbPaymentMethodId) throws SQLException {
+		try (Connection connection = dataSource.getConnection();
+		     PreparedStatement statement = connection.prepareStatement(PAYMENT_METHOD_QUERY)) {
+			setId(statement, 1, kbPaymentMethodId);
+			try (ResultSet resultSet = statement.executeQuery()) {
+				if (!resultSet.next()) {
+					return null;
+				}
+				return new BaseCommercePaymentMethod(kbPaymentMethodId, null, resultSet.getString("token"), resultSet.getString("type"), null, resultSet.getLong("version"));
+			}
+		}
+	}
+	
+	/**
+	 * Save the token of a payment method, replacing any previous one.
+	 *
+	 * @param kbTenantId    - the tenant owning the payment method
+	 * @param paymentMethod - the payment method
+	 * @throws SQLException if the query failed
+	 */
+	public void savePaymentMethod(final UUID kbTenantId, final BaseCommercePaymentMethod paymentMethod) throws SQLException {
+		try (Connection connection = dataSource.getConnection();
+		     PreparedStatement statement = connection.prepareStatement(SAVE_PAYMENT_METHOD_QUERY)) {
+			bindPaymentMethod(statement, kbTenantId, paymentMethod);
+			statement.executeUpdate();
+		}
+	}
+	
+	/**
+	 * Save the tokens of many payment methods in a single transaction, sending the inserts as one JDBC batch.
+	 *
+	 * @param kbTenantId     - the tenant owning the payment methods
+	 * @param paymentMethods - the payment methods
+	 * @throws SQLException if the batch failed, in which case none are saved
+	 */
+	public void savePaymentMethods(final UUID kbTenantId, final List<BaseCommercePaymentMethod> paymentMethods) throws SQLException {
+		if (paymentMethods.isEmpty()) {
+			return;
+		}
+		try (Connection connection = dataSource.getConnection()) {
+			final boolean autoCommit = connection.getAutoCommit();
+			connection.setAutoCommit(false);
+			try (PreparedStatement statement = connection.prepareStatement(SAVE_PAYMENT_METHOD_QUERY)) {
+				for (BaseCommercePaymentMethod paymentMethod : paymentMethods) {
+					bindPaymentMethod(statement, kbTenantId, paymentMethod);
+					statement.addBatch();
+				}
+				statement.executeBatch();
+				connection.commit();
+			} catch (SQLException e) {
+				connection.rollback();
+				throw e;
+			} finally {
+				connection.setAutoCommit(autoCommit);
+			}
+		}
+	}
+	
+	/**
+	 * @param kbTenantId  - the tenant
+	 * @param kbAccountId - the account
+	 * @return the payment methods of the account, oldest first
+	 * @throws SQLException if the query failed
+	 */
+	public List<BaseCommercePaymentMethod> getPaymentMethods(final UUID kbTenantId, final UUID kbAccountId) throws SQLException {
+		try (Connection connection = dataSource.getConnection();
+		     PreparedStatement statement = connection.prepareStatement(ACCOUNT_PAYMENT_METHODS_QUERY)) {
+			statement.setString(1, kbTenantId.toString());
+			statement.setString(2, kbAccountId.toString());
+			try (ResultSet resultSet = statement.executeQuery()) {
+				final List<BaseCommercePaymentMethod> paymentMethods = new ArrayList<BaseCommercePaymentMethod>();
+				while (resultSet.next()) {
+					paymentMethods.add(new BaseCommercePaymentMethod(getId(resultSet, "paymentMethodId"), kbAccountId, resultSet.getString("token"),
+					                                                 resultSet.getString("type"), resultSet.getString("lastFour")));
+				}
+				return paymentMethods;
+			}
+		}
+	}
+	
+	/**
+	 * Attach payment methods to an account, and update their tokens, in a single transaction sent as one JDBC batch.
+	 * <p>
+	 * Payment methods this plugin never saw are left out, as there is no way to tell whether their token is a card
+	 * or a bank account.
+	 *
+	 * @param kbTenantId     - the tenant
+	 * @param kbAccountId    - the account
+	 * @param paymentMethods - the Kill Bill payment methods of the account
+	 * @return the IDs of the payment methods that were not found
+	 * @throws SQLException if the batch failed, in which case none are updated
+	 */
+	public List<UUID> resetPaymentMethods(final UUID kbTenantId, final UUID kbAccountId, final List<PaymentMethodInfoPlugin> paymentMethods) throws SQLException {
+		final List<UUID> missing = new ArrayList<UUID>();
+		if (paymentMethods.isEmpty()) {
+			return missing;
+		}
+		try (Connection connection = dataSource.getConnection()) {
+			final boolean autoCommit = connection.getAutoCommit();
+			connection.setAutoCommit(false);
+			try (PreparedStatement statement = connection.prepareStatement(RESET_PAYMENT_METHOD_QUERY)) {
+				for (PaymentMethodInfoPlugin paymentMethod : paymentMethods) {
+					statement.setString(1, kbAccountId.toString());
+					statement.setString(2, paymentMethod.getExternalPaymentMethodId());
+					setId(statement, 3, paymentMethod.getPaymentMethodId());
+					statement.setString(4, kbTenantId.toString());
+					statement.addBatch();
+				}
+				final int[] counts = statement.executeBatch();
+				connection.commit();
+				for (int i = 0; i < counts.length; i++) {
+					if (counts[i] == 0) {
+						missing.add(paymentMethods.get(i).getPaymentMethodId());
+					}
+				}
+			} catch (SQLException e) {
+				connection.rollback();
+				throw e;
+			} finally {
+				connection.setAutoCommit(autoCommit);
+			}
+		}
+		return missing;
+	}
+	
+	/**
+	 * @param kbPaymentMethodIds - the payment methods to look for
+	 * @return those that already have a token
+	 * @throws SQLException if the query failed
+	 */
+	public Set<UUID> getExistingPaymentMethodIds(final Collection<UUID> kbPaymentMethodIds) throws SQLException {
+		final Set<UUID> existing = new HashSet<UUID>();
+		if (kbPaymentMethodIds.isEmpty()) {
+			return existing;
+		}
+		final StringBuilder query = new StringBuilder(EXISTING_PAYMENT_METHODS_QUERY);
+		for (int i = 0; i < kbPaymentMethodIds.size(); i++) {
+			query.append(i == 0 ? "?" : ", ?");
+		}
+		query.append(')');
+		try (Connection connection = dataSource.getConnection();
+		     PreparedStatement statement = connection.prepareStatement(query.toString())) {
+			int index = 1;
+			for (UUID kbPaymentMethodId : kbPaymentMethodIds) {
+				setId(statement, index++, kbPaymentMethodId);
+			}
+			try (ResultSet resultSet = statement.executeQuery()) {
+				while (resultSet.next()) {
+					existing.add(getId(resultSet, "paymentMethodId"));
+				}
+			}
+		}
+		return existing;
+	}
+	
+	/**
+	 * Read a page of the payment methods of a tenant, in record ID order.
+	 * <p>
+	 * Pages are read by keyset ({@code id > afterRecordId}) rather than by offset, so any page costs the same as the
+	 * first one.
+	 *
+	 * @param kbTenantId    - the tenant
+	 * @param field         - the column to match
+	 * @param value         - the value to match, ignored for {@link SearchField#ALL}
+	 * @param afterRecordId - the record ID of the last payment method of the previous page, or 0
+	 * @param limit         - the maximum number of payment methods to read
+	 * @return the payment methods with their record IDs
+	 * @throws SQLException if the query failed
+	 */
+	public List<PaymentMethodRecord> searchPaymentMethods(final UUID kbTenantId, final SearchField field, final String value, final long afterRecordId, final int limit) throws SQLException {
+		try (Connection connection = dataSource.getConnection();
+		     PreparedStatement statement = connection.prepareStatement(field.searchQuery)) {
+			int index = bindSearch(statement, kbTenantId, field, value);
+			statement.setLong(index++, afterRecordId);
+			statement.setInt(index, limit);
+			try (ResultSet resultSet = statement.executeQuery()) {
+				final List<PaymentMethodRecord> records = new ArrayList<PaymentMethodRecord>(limit);
+				while (resultSet.next()) {
+					records.add(new PaymentMethodRecord(resultSet.getLong("id"),
+					                                    new BaseCommercePaymentMethod(getId(resultSet, "paymentMethodId"), resultSet.getString("token"),
+					                                                                  resultSet.getString("type"), resultSet.getString("lastFour"))));
+				}
+				return records;
+			}
+		}
+	}
+	
+	/**
+	 * Find where the page after the given one starts, without reading the page itself. Only the record IDs of the page
+	 * are read from the search index, so this costs the size of the page whatever its depth.
+	 *
+	 * @param kbTenantId    - the tenant
+	 * @param field         - the column to match
+	 * @param value         - the value to match, ignored for {@link SearchField#ALL}
+	 * @param afterRecordId - where the page starts
+	 * @param limit         - the size of the page
+	 * @return the record ID of the last payment method of the page, or null if the page isn't full
+	 * @throws SQLException if the query failed
+	 */
+	public Long getLastRecordIdOfPage(final UUID kbTenantId, final SearchField field, final String value, final long afterRecordId, final long limit) throws SQLException {
+		if (limit <= 0) {
+			return null;
+		}
+		try (Connection connection = dataSource.getConnection();
+		     PreparedStatement statement = connection.prepareStatement(field.lastRecordIdQuery)) {
+			int index = bindSearch(statement, kbTenantId, field, value);
+			statement.setLong(index++, afterRecordId);
+			statement.setLong(index, limit);
+			try (ResultSet resultSet = statement.executeQuery()) {
+				resultSet.next();
+				return resultSet.getLong(1) == limit ? resultSet.getLong(2) : null;
+			}
+		}
+	}
+	
+	/**
+	 * @param kbTenantId - the tenant
+	 * @param field      - the column to match
+	 * @param value      - the value to match, ignored for {@link SearchField#ALL}
+	 * @return the number of matching payment methods
+	 * @throws SQLException if the query failed
+	 */
+	public long countPaymentMethods(final UUID kbTenantId, final SearchField field, final String value) throws SQLException {
+		try (Connection connection = dataSource.getConnection();
+		     PreparedStatement statement = connection.prepareStatement(field.countQuery)) {
+			bindSearch(statement, kbTenantId, field, value);
+			try (ResultSet resultSet = statement.executeQuery()) {
+				resultSet.next();
+				return resultSet.getLong(1);
+			}
+		}
+	}
+	
+	/**
+	 * @return the current time of the database, which stamps the rows so all nodes compare them against the same clock
+	 * @throws SQLException if the query failed
+	 */
+	public Timestamp getDatabaseTime() throws SQLException {
+		try (Connection connection = dataSource.getConnection();
+		     PreparedStatement statement = connection.prepareStatement(DATABASE_TIME_QUERY);
+		     ResultSet resultSet = statement.executeQuery()) {
+			resultSet.next();
+			return resultSet.getTimestamp(1);
+		}
+	}
+	
+	/**
+	 * @param since - the oldest change to return
+	 * @return the versions of the payment methods saved since the given time, by payment method
+	 * @throws SQLException if the query failed
+	 */
+	public Map<UUID, Long> getPaymentMethodVersionsUpdatedSince(final Timestamp since) throws SQLException {
+		try (Connection connection = dataSource.getConnection();
+		     PreparedStatement statement = connection.prepareStatement(UPDATED_PAYMENT_METHODS_QUERY)) {
+			statement.setTimestamp(1, since);
+			try (ResultSet resultSet = statement.executeQuery()) {
+				final Map<UUID, Long> versions = new HashMap<UUID, Long>();
+				while (resultSet.next()) {
+					versions.put(getId(resultSet, "paymentMethodId"), resultSet.getLong("version"));
+				}
+				return versions;
+			}
+		}
+	}
+	
+	/**
+	 * Encrypt the credentials secrets still stored in plaintext, e.g. saved before a master key was configured.
+	 *
+	 * @return the number of tenants whose credentials were encrypted
+	 * @throws SQLException if a query failed or the secrets could not be encrypted
+	 */
+	public int encryptPlaintextCredentials() throws SQLException {
+		if (!credentialsCipher.isEnabled()) {
+			return 0;
+		}
+		int count = 0;
+		try (Connection connection = dataSource.getConnection();
+		     PreparedStatement select = connection.prepareStatement(CREDENTIALS_SECRETS_QUERY);
+		     PreparedStatement update = connection.prepareStatement(ENCRYPT_CREDENTIALS_QUERY);
+		     ResultSet resultSet = select.executeQuery()) {
+			while (resultSet.next()) {
+				final String password = resultSet.getString("password");
+				final String key = resultSet.getString("key");
+				if ((password == null || BaseCommerceCredentialsCipher.isEncrypted(password)) && (key == null || BaseCommerceCredentialsCipher.isEncrypted(key))) {
+					continue;
+				}
+				final char[] decryptedPassword = decryptSecret(password);
+				final char[] decryptedKey = decryptSecret(key);
+				final String[] secrets;
+				try {
+					secrets = encryptSecrets(decryptedPassword, decryptedKey);
+				} finally {
+					clear(decryptedPassword);
+					clear(decryptedKey);
+				}
+				update.setString(1, secrets[0]);
+				update.setString(2, secrets[1]);
+				setId(update, 3, getId(resultSet, "tenantId"));
+				update.setString(4, password);
+				update.setString(5, key);
+				count += update.executeUpdate();
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * @return the versions of the credentials of every tenant, by tenant
+	 * @throws SQLException if the query failed
+	 */
+	public Map<UUID, Long> getCredentialsVersions() throws SQLException {
+		try (Connection connection = dataSource.getConnection();
+		     PreparedStatement statement = connection.prepareStatement(CREDENTIALS_VERSIONS_QUERY);
+		     ResultSet resultSet = statement.executeQuery()) {
+			final Map<UUID, Long> versions = new HashMap<UUID, Long>();
+			while (resultSet.next()) {
+				versions.put(getId(resultSet, "tenantId"), resultSet.getLong("version"));
+			}
+			return versions;
+		}
+	}
+	
+	/**
+	 * @param kbPaymentMethodId - the payment method to forget
+	 * @throws SQLException if the query failed
+	 */
+	public void deletePaymentMethod(final UUID kbPaymentMethodId) throws SQLException {
+		try (Connection connection = dataSource.getConnection();
+		     PreparedStatement statement = connection.prepareStatement(DELETE_PAYMENT_METHOD_QUERY)) {
+			setId(statement, 1, kbPaymentMethodId);
+			statement.executeUpdate();
+		}
+	}
+	
+	/**
+	 * Read both the tenant credentials and the payment method token in a single round trip.
+	 *
+	 * @param kbTenantId        - the tenant
+	 * @param kbPaymentMethodId - the payment method
+	 * @return the details, or null if the tenant isn't configured
+	 * @throws SQLException if the query failed
+	 */
+	public ChargeDetails getChargeDetails(final UUID kbTenantId, final UUID kbPaymentMethodId) throws SQLException {
+		try (Connection connection = dataSource.getConnection();
+		     PreparedStatement statement = connection.prepareStatement(CHARGE_DETAILS_QUERY)) {
+			setId(statement, 1, kbPaymentMethodId);
+			setId(statement, 2, kbTenantId);
+			try (ResultSet resultSet = statement.executeQuery()) {
+				if (!resultSet.next()) {
+					return null;
+				}
+				final BaseCommerceCredentials credentials = readCredentials(kbTenantId, resultSet);
+				final String token = resultSet.getString("token");
+				final BaseCommercePaymentMethod paymentMethod = token == null ? null : new BaseCommercePaymentMethod(kbPaymentMethodId, null, token, resultSet.getString("type"), null,
+				                                                                                                     resultSet.getLong("paymentMethodVersion"));
+				return new ChargeDetails(credentials, paymentMethod);
+			}
+		}
+	}
+	
+	/**
+	 * Save the result of a gateway transaction. If the transaction was already saved, its outcome is updated.
+	 *
+	 * @param transaction - the transaction
+	 * @throws SQLException if the query failed
+	 */
+	public void saveTransaction(final BaseCommercePaymentTransactionInfoPlugin transaction) throws SQLException {
+		try (Connection connection = dataSource.getConnection();
+		     PreparedStatement statement = connection.prepareStatement(SAVE_TRANSACTION_QUERY)) {
+			bindTransaction(statement, transaction);
+			statement.executeUpdate();
+		}
+	}
+	
+	/**
+	 * Record a transaction about to be sent to the gateway. This is what keeps Kill Bill nodes from making the same
+	 * transaction twice: only one of them can insert it, or take it over from a canceled attempt.
+	 *
+	 * @param transaction - the pending transaction
+	 * @return true if the caller may make the transaction, false if another attempt already recorded it
+	 * @throws SQLException if the transaction could not be recorded
+	 */
+	public boolean startTransaction(final BaseCommercePaymentTransactionInfoPlugin transaction) throws SQLException {
+		try (Connection connection = dataSource.getConnection()) {
+			try (PreparedStatement statement = connection.prepareStatement(START_TRANSACTION_QUERY)) {
+				bindTransaction(statement, transaction);
+				statement.executeUpdate();
+				return true;
+			} catch (SQLException e) {
+				// integrity constraint violations, here a duplicate kbTransactionId, are in SQL state class 23
+				if (e.getSQLState() == null || !e.getSQLState().startsWith("23")) {
+					throw e;
+				}
+			}
+			try (PreparedStatement statement = connection.prepareStatement(RESTART_TRANSACTION_QUERY)) {
+				statement.setString(1, transaction.getStatus().name());
+				statement.setTimestamp(2, new Timestamp(transaction.getEffectiveDate().getMillis()));
+				statement.setString(3, transaction.getKbTransactionPaymentId().toString());
+				statement.setString(4, transaction.getKbTenantId().toString());
+				return statement.executeUpdate() == 1;
+			}
+		}
+	}
+	
+	/**
+	 * Cancel a pending transaction that never reached the gateway.
+	 *
+	 * @param canceled      - the transaction, with its canceled outcome
+	 * @param startedBefore - the transaction is only canceled if its last attempt started before then
+	 * @return true if the transaction was canceled, false if it got a gateway transaction or was attempted again
+	 * @throws SQLException if the update failed
+	 */
+	public boolean cancelPendingTransaction(final BaseCommercePaymentTransactionInfoPlugin canceled, final DateTime startedBefore) throws SQLException {
+		try (Connection connection = dataSource.getConnection();
+		     PreparedStatement statement = connection.prepareStatement(CANCEL_PENDING_TRANSACTION_QUERY)) {
+			statement.setString(1, canceled.getGatewayErrorCode());
+			statement.setString(2, canceled.getGatewayError());
+			statement.setTimestamp(3, new Timestamp(canceled.getEffectiveDate().getMillis()));
+			statement.setString(4, canceled.getKbTransactionPaymentId().toString());
+			statement.setString(5, canceled.getKbTenantId().toString());
+			statement.setTimestamp(6, new Timestamp(startedBefore.getMillis()));
+			return statement.executeUpdate() == 1;
+		}
+	}
+	
+	/**
+	 * Save the results of many gateway transactions in a single transaction, sending the upserts as one JDBC batch.
+	 *
+	 * @param transactions - the transactions
+	 * @throws SQLException if the batch failed, in which case none are saved
+	 */
+	public void saveTransactions(final List<BaseCommercePaymentTransactionInfoPlugin> transactions) throws SQLException {
+		if (transactions.isEmpty()) {
+			return;
+		}
+		try (Connection connection = dataSource.getConnection()) {
+			final boolean autoCommit = connection.getAutoCommit();
+			connection.setAutoCommit(false);
+			try (PreparedStatement statement = connection.prepareStatement(SAVE_TRANSACTION_QUERY)) {
+				for (BaseCommercePaymentTransactionInfoPlugin transaction : transactions) {
+					bindTransaction(statement, transaction);
+					statement.addBatch();
+				}
+				statement.executeBatch();
+				connection.commit();
+			} catch (SQLException e) {
+				connection.rollback();
+				throw e;
+			} finally {
+				connection.setAutoCommit(autoCommit);
+			}
+		}
+	}
+	
+	/**
+	 * @param kbTenantId            - the tenant
+	 * @param paymentMethodType     - the payment method type, as card and bank transactions are numbered separately
+	 * @param gatewayTransactionIds - the Base Commerce transaction IDs
+	 * @return the saved transactions, by Base Commerce transaction ID
+	 * @throws SQLException if the query failed
+	 */
+	public Map<String, BaseCommercePaymentTransactionInfoPlugin> getTransactionsByGatewayTransactionIds(final UUID kbTenantId, final String paymentMethodType, final Collection<String> gatewayTransactionIds) throws SQLException {
+		final Map<String, BaseCommercePaymentTransactionInfoPlugin> transactions = new HashMap<String, BaseCommercePaymentTransactionInfoPlugin>();
+		if (gatewayTransactionIds.isEmpty()) {
+			return transactions;
+		}
+		final StringBuilder query = new StringBuilder(GATEWAY_TRANSACTIONS_QUERY);
+		for (int i = 0; i < gatewayTransactionIds.size(); i++) {
+			query.append(i == 0 ? "?" : ", ?");
+		}
+		query.append(')');
+		try (Connection connection = dataSource.getConnection();
+		     PreparedStatement statement = connection.prepareStatement(query.toString())) {
+			statement.setString(1, kbTenantId.toString());
+			statement.setString(2, paymentMethodType);
+			int index = 3;
+			for (String gatewayTransactionId : gatewayTransactionIds) {
+				statement.setString(index++, gatewayTransactionId);
+			}
+			try (ResultSet resultSet = statement.executeQuery()) {
+				while (resultSet.next()) {
+					final BaseCommercePaymentTransactionInfoPlugin transaction = readTransaction(resultSet);
+					transactions.put(transaction.getFirstPaymentReferenceId(), transaction);
+				}
+			}
+		}
+		return transactions;
+	}
+	
+	/**
+	 * @param kbTenantId  - the tenant
+	 * @param kbPaymentId - the payment
+	 * @return the transactions of the payment, oldest first
+	 * @throws SQLException if the query failed
+	 */
+	public List<BaseCommercePaymentTransactionInfoPlugin> getTransactions(final UUID kbTenantId, final UUID kbPaymentId) throws SQLException {
+		try (Connection connection = dataSource.getConnection();
+		     PreparedStatement statement = connection.prepareStatement(TRANSACTIONS_QUERY)) {
+			statement.setString(1, kbPaymentId.toString());
+			statement.setString(2, kbTenantId.toString());
+			try (ResultSet resultSet = statement.executeQuery()) {
+				final List<BaseCommercePaymentTransactionInfoPlugin> transactions = new ArrayList<>();
+				while (resultSet.next()) {
+					transactions.add(readTransaction(resultSet));
+				}
+				return transactions;
+			}
+		}
+	}
+	
+	/**
+	 * @param kbTenantId      - the tenant
+	 * @param kbTransactionId - the transaction
+	 * @return the saved transaction, or null if it was never attempted
+	 * @throws SQLException if the query failed
+	 */
+	public BaseCommercePaymentTransactionInfoPlugin getTransaction(final UUID kbTenantId, final UUID kbTransactionId) throws SQLException {
+		try (Connection connection = dataSource.getConnection();
+		     PreparedStatement statement = connection.prepareStatement(TRANSACTION_QUERY)) {
+			statement.setString(1, kbTransactionId.toString());
+			statement.setString(2, kbTenantId.toString());
+			try (ResultSet resultSet = statement.executeQuery()) {
+				return resultSet.next() ? readTransaction(resultSet) : null;
+			}
+		}
+	}
+	
+	/**
+	 * @param paymentMethodType - the payment method type
+	 * @return the tenants having pending transactions of that type
+	 * @throws SQLException if the query failed
+	 */
+	public List<UUID> getTenantsWithPendingTransactions(final String paymentMethodType) throws SQLException {
+		try (Connection connection = dataSource.getConnection();
+		     PreparedStatement statement = connection.prepareStatement(PENDING_TENANTS_QUERY)) {
+			statement.setString(1, paymentMethodType);
+			try (ResultSet resultSet = statement.executeQuery()) {
+				final List<UUID> kbTenantIds = new ArrayList<UUID>();
+				while (resultSet.next()) {
+					kbTenantIds.add(UUID.fromString(resultSet.getString("tenantId")));
+				}
+				return kbTenantIds;
+			}
+		}
+	}
+	
+	/**
+	 * Read a page of the pending transactions of a tenant, in record ID order, by keyset like
+	 * {@link #searchPaymentMethods}.
+	 *
+	 * @param kbTenantId        - the tenant
+	 * @param paymentMethodType - the payment method type
+	 * @param afterRecordId     - the record ID of the last transaction of the previous page, or 0
+	 * @param limit             - the maximum number of transactions to read
+	 * @return the transactions with their record IDs
+	 * @throws SQLException if the query failed
+	 */
+	public List<TransactionRecord> getPendingTransactions(final UUID kbTenantId, final String paymentMethodType, final long afterRecordId, final int limit) throws SQLException {
+		try (Connection connection = dataSource.getConnection();
+		     PreparedStatement statement = connection.prepareStatement(PENDING_TRANSACTIONS_QUERY)) {
+			statement.setString(1, paymentMethodType);
+			statement.setString(2, kbTenantId.toString());
+			statement.setLong(3, afterRecordId);
+			statement.setInt(4, limit);
+			try (ResultSet resultSet = statement.executeQuery()) {
+				final List<TransactionRecord> records = new ArrayList<TransactionRecord>(limit);
+				while (resultSet.next()) {
+					records.add(new TransactionRecord(resultSet.getLong("id"), readTransaction(resultSet)));
+				}
+				return records;
+			}
+		}
+	}
+	
+	/**
+	 * @return the tenants having transactions to look up on the gateway
+	 * @throws SQLException if the query failed
+	 */
+	public List<UUID> getTenantsWithLookupRequests() throws SQLException {
+		try (Connection connection = dataSource.getConnection();
+		     PreparedStatement statement = connection.prepareStatement(LOOKUP_TENANTS_QUERY);
+		     ResultSet resultSet = statement.executeQuery()) {
+			final List<UUID> kbTenantIds = new ArrayList<UUID>();
+			while (resultSet.next()) {
+				kbTenantIds.add(UUID.fromString(resultSet.getString("tenantId")));
+			}
+			return kbTenantIds;
+		}
+	}
+	
+	/**
+	 * Read a page of the transactions of a tenant to look up on the gateway, in record ID order, by keyset like
+	 * {@link #searchPaymentMethods}.
+	 *
+	 * @param kbTenantId    - the tenant
+	 * @param afterRecordId - the record ID of the last transaction of the previous page, or 0
+	 * @param limit         - the maximum number of transactions to read
+	 * @return the transactions with their record IDs
+	 * @throws SQLException if the query failed
+	 */
+	public List<TransactionRecord> getLookupRequests(final UUID kbTenantId, final long afterRecordId, final int limit) throws SQLException {
+		try (Connection connection = dataSource.getConnection();
+		     PreparedStatement statement = connection.prepareStatement(LOOKUP_TRANSACTIONS_QUERY)) {
+			statement.setString(1, kbTenantId.toString());
+			statement.setLong(2, afterRecordId);
+			statement.setInt(3, limit);
+			try (ResultSet resultSet = statement.executeQuery()) {
+				final List<TransactionRecord> records = new ArrayList<TransactionRecord>(limit);
+				while (resultSet.next()) {
+					records.add(new TransactionRecord(resultSet.getLong("id"), readTransaction(resultSet)));
+				}
+				return records;
+			}
+		}
+	}
+	
+	/**
+	 * Flag or unflag transactions as needing a lookup on the gateway, in one batch.
+	 *
+	 * @param transactions    - the transactions
+	 * @param lookupRequested - true to flag them, false once they are being looked up
+	 * @throws SQLException if the update failed
+	 */
+	public void setLookupRequested(final Collection<BaseCommercePaymentTransactionInfoPlugin> transactions, final boolean lookupRequested) throws SQLException {
+		if (transactions.isEmpty()) {
+			return;
+		}
+		try (Connection connection = dataSource.getConnection();
+		     PreparedStatement statement = connection.prepareStatement(SET_LOOKUP_REQUESTED_QUERY)) {
+			for (BaseCommercePaymentTransactionInfoPlugin transaction : transactions) {
+				statement.setBoolean(1, lookupRequested);
+				statement.setString(2, transaction.getKbTransactionPaymentId().toString());
+				statement.setString(3, transaction.getKbTenantId().toString());
+				statement.addBatch();
+			}
+			statement.executeBatch();
+		}
+	}
+	
+	private static BaseCommercePaymentTransactionInfoPlugin readTransaction(final ResultSet resultSet) throws SQLException {
+		return new BaseCommercePaymentTransactionInfoPlugin(UUID.fromString(resultSet.getString("tenantId")),
+		                                                    UUID.fromString(resultSet.getString("kbAccountId")),
+		                                                    UUID.fromString(resultSet.getString("kbPaymentId")),
+		                                                    UUID.fromString(resultSet.getString("kbTransactionId")),
+		                                                    UUID.fromString(resultSet.getString("kbPaymentMethodId")),
+		                                                    TransactionType.valueOf(resultSet.getString("transactionType")),
+		                                                    resultSet.getString("paymentMethodType"),
+		                                                    resultSet.getBigDecimal("amount"),
+		                                                    Currency.valueOf(resultSet.getString("currency")),
+		                                                    PaymentPluginStatus.valueOf(resultSet.getString("status")),
+		                                                    resultSet.getString("gatewayTransactionId"),
+		                                                    resultSet.getString("gatewayStatus"),
+		                                                    resultSet.getString("gatewayErrorCode"),
+		                                                    resultSet.getString("gatewayError"),
+		                                                    new DateTime(resultSet.getTimestamp("createdDate").getTime(), DateTimeZone.UTC),
+		                                                    new DateTime(resultSet.getTimestamp("effectiveDate").getTime(), DateTimeZone.UTC));
+	}
+	
+	private static void bindTransaction(final PreparedStatement statement, final BaseCommercePaymentTransactionInfoPlugin transaction) throws SQLException {
+		statement.setString(1, transaction.getKbTenantId().toString());
+		statement.setString(2, transaction.getKbAccountId().toString());
+		statement.setString(3, transaction.getKbPaymentId().toString());
+		statement.setString(4, transaction.getKbTransactionPaymentId().toString());
+		statement.setString(5, transaction.getKbPaymentMethodId().toString());
+		statement.setString(6, transaction.getTransactionType().name());
+		statement.setString(7, transaction.getPaymentMethodType());
+		statement.setBigDecimal(8, transaction.getAmount());
+		statement.setString(9, transaction.getCurrency().name());
+		statement.setString(10, transaction.getStatus().name());
+		statement.setString(11, transaction.getFirstPaymentReferenceId());
+		statement.setString(12, transaction.getGatewayStatus());
+		statement.setString(13, transaction.getGatewayErrorCode());
+		statement.setString(14, transaction.getGatewayError());
+		statement.setTimestamp(15, new Timestamp(transaction.getCreatedDate().getMillis()));
+		statement.setTimestamp(16, new Timestamp(transaction.getEffectiveDate().getMillis()));
+	}
+	
+	private void bindPaymentMethod(final PreparedStatement statement, final UUID kbTenantId, final BaseCommercePaymentMethod paymentMethod) throws SQLException {
+		statement.setString(1, kbTenantId.toString());
+		statement.setString(2, paymentMethod.getKbAccountId() == null ? null : paymentMethod.getKbAccountId().toString());
+		setId(statement, 3, paymentMethod.getKbPaymentMethodId());
+		statement.setString(4, paymentMethod.getToken());
+		statement.setString(5, paymentMethod.getType());
+		statement.setString(6, paymentMethod.getLastFour());
+	}
+	
+	private int bindSearch(final PreparedStatement statement, final UUID kbTenantId, final SearchField field, final String value) throws SQLException {
+		statement.setString(1, kbTenantId.toString());
+		if (field == SearchField.ALL) {
+			return 2;
+		}
+		if (field == SearchField.PAYMENT_METHOD_ID) {
+			setId(statement, 2, UUID.fromString(value));
+		} else {
+			statement.setString(2, value);
+		}
+		return 3;
+	}
+	
+	/**
+	 * Bind a payment method ID or a credentials tenant ID, in the format the schema stores them.
+	 */
+	private void setId(final PreparedStatement statement, final int index, final UUID id) throws SQLException {
+		if (binaryIds) {
+			statement.setBytes(index, toBytes(id));
+		} else {
+			statement.setString(index, id.toString());
+		}
+	}
+	
+	/**
+	 * Read a payment method ID or a credentials tenant ID, in the format the schema stores them.
+	 */
+	private UUID getId(final ResultSet resultSet, final String column) throws SQLException {
+		if (binaryIds) {
+			return fromBytes(resultSet.getBytes(column));
+		}
+		return UUID.fromString(resultSet.getString(column));
+	}
+	
+	private static byte[] toBytes(final UUID id) {
+		return ByteBuffer.allocate(16).putLong(id.getMostSignificantBits()).putLong(id.getLeastSignificantBits()).array();
+	}
+	
+	private static UUID fromBytes(final byte[] bytes) {
+		final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		return new UUID(buffer.getLong(), buffer.getLong());
+	}
+	
+	private String[] encryptSecrets(final char[] password, final char[] key) throws SQLException {
+		try {
+			return credentialsCipher.encrypt(password, key);
+		} catch (GeneralSecurityException e) {
+			throw new SQLException("could not encrypt the credentials", e);
+		}
+	}
+	
+	private char[] decryptSecret(final String value) throws SQLException {
+		try {
+			return credentialsCipher.decrypt(value);
+		} catch (GeneralSecurityException e) {
+			throw new SQLException("could not decrypt the credentials", e);
+		}
+	}
+	
+	private static void clear(final char[] secret) {
+		if (secret != null) {
+			Arrays.fill(secret, '\0');
+		}
+	}
+	
+	private BaseCommerceCredentials readCredentials(final UUID kbTenantId, final ResultSet resultSet) throws SQLException {
+		final char[] password = decryptSecret(resultSet.getString("password"));
+		final char[] key;
+		try {
+			key = decryptSecret(resultSet.getString("key"));
+		} catch (SQLException e) {
+			clear(password);
+			throw e;
+		}
+		return new BaseCommerceCredentials(kbTenantId,
+		                                   resultSet.getString("username"),
+		                                   password,
+		                                   key,
+		                                   resultSet.getBoolean("test"),
+		                                   resultSet.getDouble("requestsPerSecond"),
+		                                   resultSet.getInt("burst"),
+		                                   resultSet.getLong("version"));
+	}
+	
+	/**
+	 * What a charge needs from the database.
+	 */
+	public static class ChargeDetails {
+		private final BaseCommerceCredentials credentials;
+		private final BaseCommercePaymentMethod paymentMethod;
+		
+		public ChargeDetails(final BaseCommerceCredentials credentials, final BaseCommercePaymentMethod paymentMethod) {
+			this.credentials = credentials;
+			this.paymentMethod = paymentMethod;
+		}
+		
+		public BaseCommerceCredentials getCredentials() {
+			return credentials;
+		}
+		
+		/**
+		 * @return the payment method, or null if it isn't known
+		 */
+		public BaseCommercePaymentMethod getPaymentMethod() {
+			return paymentMethod;
+		}
+	}
+	
+	/**
+	 * The columns payment methods can be searched by. Each has an index starting with the tenant, which InnoDB ends with
+	 * the record ID, so a search seeks straight to the page and reads only its rows.
+	 */
+	public enum SearchField {
+		ALL(null),
+		PAYMENT_METHOD_ID("paymentMethodId"),
+		LAST_FOUR("lastFour"),
+		TYPE("type"),
+		TOKEN("token");
+		
+		private final String searchQuery;
+		private final String lastRecordIdQuery;
+		private final String countQuery;
+		
+		SearchField(final String column) {
+			final String where = " FROM `baseCommerce_paymentMethods` WHERE `tenantId` = ?" + (column == null ? "" : " AND `" + column + "` = ?");
+			this.searchQuery = "SELECT `id`, `paymentMethodId`, `token`, `type`, `lastFour`" + where + " AND `id` > ? ORDER BY `id` LIMIT ?";
+			this.lastRecordIdQuery = "SELECT COUNT(*), MAX(`id`) FROM (SELECT `id`" + where + " AND `id` > ? ORDER BY `id` LIMIT ?) `page`";
+			this.countQuery = "SELECT COUNT(*)" + where;
+		}
+		
+		/**
+		 * @return the query reading a page, bound to the tenant, the value unless {@link #ALL}, the record ID the page
+		 * starts after and the page size
+		 */
+		String getSearchQuery() {
+			return searchQuery;
+		}
+		
+		/**
+		 * @return the query finding the end of a page, bound like {@link #getSearchQuery()}
+		 */
+		String getLastRecordIdQuery() {
+			return lastRecordIdQuery;
+		}
+	}
+	
+	/**
+	 * A payment method and its record ID, which is the pagination key.
+	 */
+	public static class PaymentMethodRecord {
+		
+		private final long recordId;
+		private final BaseCommercePaymentMethod paymentMethod;
+		
+		public PaymentMethodRecord(final long recordId, final BaseCommercePaymentMethod paymentMethod) {
+			this.recordId = recordId;
+			this.paymentMethod = paymentMethod;
+		}
+		
+		public long getRecordId() {
+			return recordId;
+		}
+		
+		public BaseCommercePaymentMethod getPaymentMethod() {
+			return paymentMethod;
+		}
+	}
+	
+	/**
+	 * Take a MySQL named lock, for work that only one Kill Bill node should do at a time. The lock belongs to the
+	 * session, so the connection is kept until the lock is closed.
+	 *
+	 * @param name - the lock
+	 * @return the lock, or null if another session holds it
+	 * @throws SQLException if the lock could not be requested
+	 */
+	public NamedLock tryLock(final String name) throws SQLException {
+		final Connection connection = dataSource.getConnection();
+		try (PreparedStatement statement = connection.prepareStatement(GET_LOCK_QUERY)) {
+			statement.setString(1, name);
+			try (ResultSet resultSet = statement.executeQuery()) {
+				if (resultSet.next() && resultSet.getInt(1) == 1) {
+					return new NamedLock(connection, name);
+				}
+			}
+		} catch (SQLException e) {
+			connection.close();
+			throw e;
+		}
+		connection.close();
+		return null;
+	}
+	
+	/**
+	 * A named lock held by this node, released when closed.
+	 */
+	public static class NamedLock implements AutoCloseable {
+		
+		private final Connection connection;
+		private final String name;
+		
+		private NamedLock(final Connection connection, final String name) {
+			this.connection = connection;
+			this.name = name;
+		}
+		
+		@Override
+		public void close() throws SQLException {
+			// pooled connections outlive close(), so the lock has to be released explicitly
+			try (PreparedStatement statement = connection.prepareStatement(RELEASE_LOCK_QUERY)) {
+				statement.setString(1, name);
+				statement.executeQuery().close();
+			} finally {
+				connection.close();
+			}
+		}
+	}
+	
+	/**
+	 * A transaction and its record ID, which is the pagination key.
+	 */
+	public static class TransactionRecord {
+		
+		private final long recordId;
+		private final BaseCommercePaymentTransactionInfoPlugin transaction;
+		
+		public TransactionRecord(final long recordId, final BaseCommercePaymentTransactionInfoPlugin transaction) {
+			this.recordId = recordId;
+			this.transaction = transaction;
+		}
+		
+		public long getRecordId() {
+			return recordId;
+		}
+		
+		public BaseCommercePaymentTransactionInfoPlugin getTransaction() {
+			return transaction;
+		}
+	}
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.fathomstudio.killbillbasecommerceplugin;
+
+/**
+ * The deadline of the gateway operation running on the current thread.
+ * <p>
+ * {@link BaseCommerceRetryingGateway} sets it once for the whole operation, retries included, and the layers under it
+ * ({@link BaseCommerceRateLimitedGateway}, {@link BaseCommerceGatewayExecutor}) wait no longer than what is left.
+ */
+public final class BaseCommerceDeadline {
+	
+	private static final ThreadLocal<Long> DEADLINE_NANOS = new ThreadLocal<Long>();
+	
+	private BaseCommerceDeadline() {
+	}
+	
+	/**
+	 * @return the deadline of the current thread, in {@link System#nanoTime()} terms, or null if there is none
+	 */
+	public static Long get() {
+		return DEADLINE_NANOS.get();
+	}
+	
+	/**
+	 * Set the deadline of the current thread, e.g. on a thread working for another one.
+	 *
+	 * @param deadlineNanos - the deadline, or null for none
+	 * @return the previous deadline, to {@link #set(Long)} back when done
+	 */
+	public static Long set(final Long deadlineNanos) {
+		final Long previous = DEADLINE_NANOS.get();
+		if (deadlineNanos == null) {
+			DEADLINE_NANOS.remove();
+		} else {
+			DEADLINE_NANOS.set(deadlineNanos);
+		}
+		return previous;
+	}
+	
+	/**
+	 * Start an operation with a timeout. A deadline already set by an enclosing operation is kept if it is sooner.
+	 *
+	 * @param timeoutNanos - the time the operation may take
+	 * @return the previous deadline, to {@link #set(Long)} back when done
+	 */
+	public static Long start(final long timeoutNanos) {
+		final Long previous = DEADLINE_NANOS.get();
+		final long deadlineNanos = System.nanoTime() + timeoutNanos;
+		if (previous == null || deadlineNanos - previous < 0) {
+			DEADLINE_NANOS.set(deadlineNanos);
+		}
+		return previous;
+	}
+	
+	/**
+	 * @return the time left before the deadline (negative once passed), or {@link Long#MAX_VALUE} if there is none
+	 */
+	public static long remainingNanos() {
+		final Long deadlineNanos = DEADLINE_NANOS.get();
+		return deadlineNanos == null ? Long.MAX_VALUE : deadlineNanos - System.nanoTime();
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.fathomstudio.killbillbasecommerceplugin;
+
+import java.math.BigDecimal;
+
+/**
+ * The calls made to Base Commerce.
+ * <p>
+ * Only plugin types cross this interface, so the gateway can be swapped (e.g. by a stub in the benchmarks) without
+ * touching the payment logic.
+ */
+public interface BaseCommerceGateway {
+	
+	/**
+	 * Charge a saved payment method.
+	 *
+	 * @param credentials - the tenant credentials
+	 * @param type        - the payment method type, {@link BaseCommercePaymentPluginApi#TYPE_CARD} or {@link BaseCommercePaymentPluginApi#TYPE_BANK}
+	 * @param token       - the payment method token
+	 * @param amount      - the amount
+	 * @return what the gateway replied
+	 * @throws BaseCommerceGatewayException if the gateway could not be reached or rejected the request
+	 */
+	BaseCommerceGatewayResult charge(BaseCommerceCredentials credentials, String type, String token, BigDecimal amount) throws BaseCommerceGatewayException;
+	
+	/**
+	 * Tokenize a bank card.
+	 *
+	 * @param credentials     - the tenant credentials
+	 * @param number          - the card number
+	 * @param expirationMonth - the two digit expiration month
+	 * @param expirationYear  - the four digit expiration year
+	 * @param name            - the name shown for the card
+	 * @return the token
+	 * @throws BaseCommerceGatewayException if the card could not be saved
+	 */
+	String addBankCard(BaseCommerceCredentials credentials, String number, String expirationMonth, String expirationYear, String name) throws BaseCommerceGatewayException;
+	
+	/**
+	 * Tokenize a checking account.
+	 *
+	 * @param credentials   - the tenant credentials
+	 * @param routingNumber - the routing number
+	 * @param accountNumber - the account number
+	 * @param name          - the name shown for the account
+	 * @return the token
+	 * @throws BaseCommerceGatewayException if the account could not be saved
+	 */
+	String addBankAccount(BaseCommerceCredentials credentials, String routingNumber, String accountNumber, String name) throws BaseCommerceGatewayException;
+	
+	/**
+	 * Look up a saved payment method.
+	 *
+	 * @param credentials - the tenant credentials
+	 * @param type        - the payment method type, {@link BaseCommercePaymentPluginApi#TYPE_CARD} or {@link BaseCommercePaymentPluginApi#TYPE_BANK}
+	 * @param token       - the payment method token
+	 * @return true if the token can still be charged, false if it was deleted or failed on the Base Commerce side
+	 * @throws BaseCommerceGatewayException if the gateway could not be reached
+	 */
+	boolean isPaymentMethodActive(BaseCommerceCredentials credentials, String type, String token) throws BaseCommerceGatewayException;
+	
+	/**
+	 * Look up a transaction made earlier, e.g. to see whether a bank debit settled.
+	 *
+	 * @param credentials          - the tenant credentials
+	 * @param type                 - the payment method type, {@link BaseCommercePaymentPluginApi#TYPE_CARD} or {@link BaseCommercePaymentPluginApi#TYPE_BANK}
+	 * @param gatewayTransactionId - the Base Commerce transaction ID
+	 * @return the current state of the transaction
+	 * @throws BaseCommerceGatewayException if the gateway could not be reached or doesn't know the transaction
+	 */
+	BaseCommerceGatewayResult getTransaction(BaseCommerceCredentials credentials, String type, String gatewayTransactionId) throws BaseCommerceGatewayException;
+}
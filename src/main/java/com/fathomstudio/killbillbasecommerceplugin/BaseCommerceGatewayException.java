@@ -0,0 +1,61 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.fathomstudio.killbillbasecommerceplugin;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Thrown when a {@link BaseCommerceGateway} call fails.
+ */
+public class BaseCommerceGatewayException extends Exception {
+	
+	public BaseCommerceGatewayException(final String message, final Throwable cause) {
+		super(message, cause);
+	}
+	
+	/**
+	 * @return true if the failure happened before the request could be sent
+	 */
+	public boolean isNotSent() {
+		for (Throwable cause = this; cause != null; cause = cause.getCause()) {
+			if (cause instanceof ConnectException || cause instanceof NoRouteToHostException || cause instanceof UnknownHostException) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * @return true if the request may have reached Base Commerce but no answer came back: a timeout, an interruption or
+	 * an I/O failure once connected
+	 */
+	public boolean isOutcomeUnknown() {
+		if (isNotSent()) {
+			return false;
+		}
+		for (Throwable cause = this; cause != null; cause = cause.getCause()) {
+			if (cause instanceof IOException || cause instanceof TimeoutException || cause instanceof InterruptedException) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbasecommerceplugin;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.osgi.service.log.LogService;
+
+import java.math.BigDecimal;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Chooses the threads the calls of a gateway run on, and gives up on them after a deadline.
+ * <p>
+ * In {@link Mode#CALLER} mode calls run on the calling Kill Bill thread and only the HTTP client timeouts apply. In
+ * {@link Mode#POOL} mode they run on a bounded pool, and in {@link Mode#VIRTUAL} mode on a new virtual thread each
+ * (JDK 21 and later, otherwise the pool is used). In both, the caller waits at most the deadline of the call, then
+ * interrupts it and moves on; a virtual thread blocked on a socket costs a few kilobytes rather than a platform thread
+ * stack, and its socket is closed by the interrupt, so many slow calls stay cheap. A call that times out before it
+ * started, or that the pool has no room for, throws {@link BaseCommerceGatewayUnavailableException} since nothing was
+ * sent. Calls made within an operation with a {@link BaseCommerceDeadline} wait no longer than what is left of it.
+ */
+public class BaseCommerceGatewayExecutor implements BaseCommerceGateway, BaseCommerceMetricsSource {
+	
+	public enum Mode {
+		CALLER,
+		POOL,
+		VIRTUAL
+	}
+	
+	private final BaseCommerceGateway delegate;
+	private final Mode mode;
+	private final ExecutorService executor;
+	private final long deadlineMillis;
+	private final long lookupDeadlineMillis;
+	private final AtomicLong inFlightCount = new AtomicLong();
+	private final AtomicLong deadlineExceededCount = new AtomicLong();
+	private final AtomicLong rejectedCount = new AtomicLong();
+	
+	/**
+	 * @param delegate             - the gateway making the calls
+	 * @param mode                 - where the calls run
+	 * @param threads              - the size of the pool, in pool mode
+	 * @param queueSize            - the calls waiting for a pool thread, in pool mode
+	 * @param deadlineMillis       - how long a charge or tokenization may take, 0 for no limit
+	 * @param lookupDeadlineMillis - how long a lookup may take, 0 for no limit
+	 * @param logService           - the log service
+	 */
+	public BaseCommerceGatewayExecutor(final BaseCommerceGateway delegate, final Mode mode, final int threads, final int queueSize, final long deadlineMillis, final long lookupDeadlineMillis,
+	                                   final LogService logService) {
+		this.delegate = delegate;
+		this.deadlineMillis = deadlineMillis;
+		this.lookupDeadlineMillis = lookupDeadlineMillis;
+		
+		ExecutorService virtualExecutor = null;
+		if (mode == Mode.VIRTUAL) {
+			virtualExecutor = newVirtualThreadPerTaskExecutor();
+			if (virtualExecutor == null) {
+				logService.log(LogService.LOG_WARNING, "virtual threads need JDK 21 or later, running gateway calls on a pool of " + threads + " threads");
+			}
+		}
+		if (virtualExecutor != null) {
+			this.mode = Mode.VIRTUAL;
+			this.executor = virtualExecutor;
+		} else if (mode == Mode.CALLER) {
+			this.mode = Mode.CALLER;
+			this.executor = null;
+		} else {
+			this.mode = Mode.POOL;
+			this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+			                                       new ArrayBlockingQueue<Runnable>(queueSize),
+			                                       new ThreadFactoryBuilder().setNameFormat("basecommerce-gateway-%d").setDaemon(true).build(),
+			                                       new ThreadPoolExecutor.AbortPolicy());
+		}
+	}
+	
+	/**
+	 * @param mode - the configured mode, case insensitive
+	 * @return the mode, or {@link Mode#CALLER} if it isn't one
+	 */
+	public static Mode parseMode(final String mode) {
+		try {
+			return Mode.valueOf(mode.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			return Mode.CALLER;
+		}
+	}
+	
+	/**
+	 * @return the mode calls actually run in, which is the pool when virtual threads were asked for but aren't available
+	 */
+	public Mode getMode() {
+		return mode;
+	}
+	
+	@Override
+	public BaseCommerceGatewayResult charge(final BaseCommerceCredentials credentials, final String type, final String token, final BigDecimal amount) throws BaseCommerceGatewayException {
+		return execute(new Callable<BaseCommerceGatewayResult>() {
+			@Override
+			public BaseCommerceGatewayResult call() throws BaseCommerceGatewayException {
+				return delegate.charge(credentials, type, token, amount);
+			}
+		}, deadlineMillis);
+	}
+	
+	@Override
+	public String addBankCard(final BaseCommerceCredentials credentials, final String number, final String expirationMonth, final String expirationYear, final String name) throws BaseCommerceGatewayException {
+		return execute(new Callable<String>() {
+			@Override
+			public String call() throws BaseCommerceGatewayException {
+				return delegate.addBankCard(credentials, number, expirationMonth, expirationYear, name);
+			}
+		}, deadlineMillis);
+	}
+	
+	@Override
+	public String addBankAccount(final BaseCommerceCredentials credentials, final String routingNumber, final String accountNumber, final String name) throws BaseCommerceGatewayException {
+		return execute(new Callable<String>() {
+			@Override
+			public String call() throws BaseCommerceGatewayException {
+				return delegate.addBankAccount(credentials, routingNumber, accountNumber, name);
+			}
+		}, deadlineMillis);
+	}
+	
+	@Override
+	public boolean isPaymentMethodActive(final BaseCommerceCredentials credentials, final String type, final String token) throws BaseCommerceGatewayException {
+		return execute(new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws BaseCommerceGatewayException {
+				return delegate.isPaymentMethodActive(credentials, type, token);
+			}
+		}, lookupDeadlineMillis);
+	}
+	
+	@Override
+	public BaseCommerceGatewayResult getTransaction(final BaseCommerceCredentials credentials, final String type, final String gatewayTransactionId) throws BaseCommerceGatewayException {
+		return execute(new Callable<BaseCommerceGatewayResult>() {
+			@Override
+			public BaseCommerceGatewayResult call() throws BaseCommerceGatewayException {
+				return delegate.getTransaction(credentials, type, gatewayTransactionId);
+			}
+		}, lookupDeadlineMillis);
+	}
+	
+	/**
+	 * Stop running calls. Calls still in flight are interrupted.
+	 */
+	public void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+	
+	private <T> T execute(final Callable<T> call, final long deadlineMillis) throws BaseCommerceGatewayException {
+		// the operation this call is part of may have less time left than the call itself
+		final long remainingNanos = BaseCommerceDeadline.remainingNanos();
+		if (remainingNanos <= 0) {
+			deadlineExceededCount.incrementAndGet();
+			throw new BaseCommerceGatewayUnavailableException("gateway operation out of time before the call");
+		}
+		if (executor == null) {
+			return run(call);
+		}
+		final long callDeadlineNanos = deadlineMillis > 0 ? Math.min(TimeUnit.MILLISECONDS.toNanos(deadlineMillis), remainingNanos) : remainingNanos;
+		
+		final AtomicBoolean started = new AtomicBoolean();
+		final Future<T> future;
+		try {
+			future = executor.submit(new Callable<T>() {
+				@Override
+				public T call() throws Exception {
+					// a call cancelled while queued must not reach the gateway
+					if (!started.compareAndSet(false, true)) {
+						throw new CancellationException();
+					}
+					inFlightCount.incrementAndGet();
+					try {
+						return call.call();
+					} finally {
+						inFlightCount.decrementAndGet();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			rejectedCount.incrementAndGet();
+			throw new BaseCommerceGatewayUnavailableException("too many gateway calls waiting for a thread");
+		}
+		
+		try {
+			return callDeadlineNanos == Long.MAX_VALUE ? future.get() : future.get(callDeadlineNanos, TimeUnit.NANOSECONDS);
+		} catch (TimeoutException e) {
+			deadlineExceededCount.incrementAndGet();
+			future.cancel(true);
+			final long callDeadlineMillis = TimeUnit.NANOSECONDS.toMillis(callDeadlineNanos);
+			if (started.compareAndSet(false, true)) {
+				throw new BaseCommerceGatewayUnavailableException("gateway call not started within " + callDeadlineMillis + " ms");
+			}
+			throw new BaseCommerceGatewayException("gateway call timed out after " + callDeadlineMillis + " ms", e);
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			if (started.compareAndSet(false, true)) {
+				throw new BaseCommerceGatewayUnavailableException("interrupted while waiting for the gateway");
+			}
+			throw new BaseCommerceGatewayException("interrupted while waiting for the gateway", e);
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof BaseCommerceGatewayException) {
+				throw (BaseCommerceGatewayException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new BaseCommerceGatewayException(cause.getMessage(), cause);
+		}
+	}
+	
+	private static <T> T run(final Callable<T> call) throws BaseCommerceGatewayException {
+		try {
+			return call.call();
+		} catch (BaseCommerceGatewayException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			// the calls only throw gateway exceptions
+			throw new BaseCommerceGatewayException(e.getMessage(), e);
+		}
+	}
+	
+	/**
+	 * @return an executor starting a virtual thread per call, or null before JDK 21
+	 */
+	private static ExecutorService newVirtualThreadPerTaskExecutor() {
+		// looked up by reflection, the plugin is built for older JDKs
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+	
+	@Override
+	public void appendMetrics(final StringBuilder out) {
+		out.append("# TYPE basecommerce_gateway_calls_in_flight gauge\n");
+		out.append("basecommerce_gateway_calls_in_flight{mode=\"").append(mode.name().toLowerCase()).append("\"} ").append(inFlightCount.get()).append('\n');
+		out.append("# TYPE basecommerce_gateway_deadline_exceeded_total counter\n");
+		out.append("basecommerce_gateway_deadline_exceeded_total ").append(deadlineExceededCount.get()).append('\n');
+		out.append("# TYPE basecommerce_gateway_executor_rejected_total counter\n");
+		out.append("basecommerce_gateway_executor_rejected_total ").append(rejectedCount.get()).append('\n');
+	}
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.fathomstudio.killbillbasecommerceplugin;
+
+/**
+ * What the gateway replied to a charge.
+ */
+public class BaseCommerceGatewayResult {
+	
+	private final boolean success;
+	private final String transactionId;
+	private final String status;
+	private final String code;
+	private final String message;
+	
+	public BaseCommerceGatewayResult(final boolean success, final String transactionId, final String status, final String code, final String message) {
+		this.success = success;
+		this.transactionId = transactionId;
+		this.status = status;
+		this.code = code;
+		this.message = message;
+	}
+	
+	/**
+	 * @return false if the charge failed (a declined card is still a success, as it was processed)
+	 */
+	public boolean isSuccess() {
+		return success;
+	}
+	
+	/**
+	 * @return the gateway transaction ID, or null if the gateway didn't assign one
+	 */
+	public String getTransactionId() {
+		return transactionId;
+	}
+	
+	public String getStatus() {
+		return status;
+	}
+	
+	public String getCode() {
+		return code;
+	}
+	
+	public String getMessage() {
+		return message;
+	}
+}
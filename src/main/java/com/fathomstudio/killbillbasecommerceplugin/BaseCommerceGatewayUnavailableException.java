@@ -0,0 +1,28 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.fathomstudio.killbillbasecommerceplugin;
+
+/**
+ * Thrown when a gateway call is refused before reaching Base Commerce, because the circuit of the tenant is open or
+ * too many of its calls are in flight. Nothing was sent, so the call can be retried.
+ */
+public class BaseCommerceGatewayUnavailableException extends BaseCommerceGatewayException {
+	
+	public BaseCommerceGatewayUnavailableException(final String message) {
+		super(message, null);
+	}
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.fathomstudio.killbillbasecommerceplugin;
+
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wraps a gateway with a circuit breaker and a bulkhead per tenant, so a slow or failing gateway can't tie up every
+ * Kill Bill thread, and one tenant can't starve the others.
+ * <p>
+ * The bulkhead caps the calls in flight for a tenant. The circuit opens after a number of consecutive failures (errors
+ * and timeouts, not declines), refuses calls while open, then lets a single trial call through to decide whether to
+ * close again. Refused calls throw {@link BaseCommerceGatewayUnavailableException}.
+ */
+public class BaseCommerceGuardedGateway implements BaseCommerceGateway, BaseCommerceMetricsSource {
+	
+	private final BaseCommerceGateway delegate;
+	private final int failureThreshold;
+	private final long openNanos;
+	private final int maxConcurrentCalls;
+	private final long maxWaitMillis;
+	private final ConcurrentMap<UUID, TenantGuard> guards = new ConcurrentHashMap<UUID, TenantGuard>();
+	
+	public BaseCommerceGuardedGateway(final BaseCommerceGateway delegate, final int failureThreshold, final long openSeconds, final int maxConcurrentCalls, final long maxWaitMillis) {
+		this.delegate = delegate;
+		this.failureThreshold = failureThreshold;
+		this.openNanos = TimeUnit.SECONDS.toNanos(openSeconds);
+		this.maxConcurrentCalls = maxConcurrentCalls;
+		this.maxWaitMillis = maxWaitMillis;
+	}
+	
+	@Override
+	public BaseCommerceGatewayResult charge(final BaseCommerceCredentials credentials, final String type, final String token, final BigDecimal amount) throws BaseCommerceGatewayException {
+		return call(credentials, new GatewayCall<BaseCommerceGatewayResult>() {
+			@Override
+			public BaseCommerceGatewayResult call() throws BaseCommerceGatewayException {
+				return delegate.charge(credentials, type, token, amount);
+			}
+		});
+	}
+	
+	@Override
+	public String addBankCard(final BaseCommerceCredentials credentials, final String number, final String expirationMonth, final String expirationYear, final String name) throws BaseCommerceGatewayException {
+		return call(credentials, new GatewayCall<String>() {
+			@Override
+			public String call() throws BaseCommerceGatewayException {
+				return delegate.addBankCard(credentials, number, expirationMonth, expirationYear, name);
+			}
+		});
+	}
+	
+	@Override
+	public String addBankAccount(final BaseCommerceCredentials credentials, final String routingNumber, final String accountNumber, final String name) throws BaseCommerceGatewayException {
+		return call(credentials, new GatewayCall<String>() {
+			@Override
+			public String call() throws BaseCommerceGatewayException {
+				return delegate.addBankAccount(credentials, routingNumber, accountNumber, name);
+			}
+		});
+	}
+	
+	@Override
+	public boolean isPaymentMethodActive(final BaseCommerceCredentials credentials, final String type, final String token) throws BaseCommerceGatewayException {
+		return call(credentials, new GatewayCall<Boolean>() {
+			@Override
+			public Boolean call() throws BaseCommerceGatewayException {
+				return delegate.isPaymentMethodActive(credentials, type, token);
+			}
+		});
+	}
+	
+	@Override
+	public BaseCommerceGatewayResult getTransaction(final BaseCommerceCredentials credentials, final String type, final String gatewayTransactionId) throws BaseCommerceGatewayException {
+		return call(credentials, new GatewayCall<BaseCommerceGatewayResult>() {
+			@Override
+			public BaseCommerceGatewayResult call() throws BaseCommerceGatewayException {
+				return delegate.getTransaction(credentials, type, gatewayTransactionId);
+			}
+		});
+	}
+	
+	private <T> T call(final BaseCommerceCredentials credentials, final GatewayCall<T> call) throws BaseCommerceGatewayException {
+		final TenantGuard guard = getGuard(credentials.getKbTenantId());
+		
+		try {
+			if (!guard.permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+				guard.bulkheadRejections.incrementAndGet();
+				throw new BaseCommerceGatewayUnavailableException("too many gateway calls in flight for tenant " + credentials.getKbTenantId());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new BaseCommerceGatewayUnavailableException("interrupted while waiting for the gateway");
+		}
+		
+		try {
+			if (!guard.allowCall()) {
+				guard.circuitRejections.incrementAndGet();
+				throw new BaseCommerceGatewayUnavailableException("gateway circuit open for tenant " + credentials.getKbTenantId());
+			}
+			
+			final T result;
+			try {
+				result = call.call();
+			} catch (BaseCommerceGatewayException e) {
+				guard.onFailure();
+				throw e;
+			} catch (RuntimeException e) {
+				guard.onFailure();
+				throw e;
+			}
+			guard.onSuccess();
+			return result;
+		} finally {
+			guard.permits.release();
+		}
+	}
+	
+	private TenantGuard getGuard(final UUID kbTenantId) {
+		TenantGuard guard = guards.get(kbTenantId);
+		if (guard == null) {
+			final TenantGuard created = new TenantGuard();
+			guard = guards.putIfAbsent(kbTenantId, created);
+			if (guard == null) {
+				guard = created;
+			}
+		}
+		return guard;
+	}
+	
+	@Override
+	public void appendMetrics(final StringBuilder out) {
+		out.append("# TYPE basecommerce_circuit_state gauge\n");
+		for (Map.Entry<UUID, TenantGuard> entry : guards.entrySet()) {
+			out.append("basecommerce_circuit_state{tenant=\"").append(entry.getKey()).append("\"} ").append(entry.getValue().getState().ordinal()).append('\n');
+		}
+		out.append("# TYPE basecommerce_circuit_rejections_total counter\n");
+		for (Map.Entry<UUID, TenantGuard> entry : guards.entrySet()) {
+			out.append("basecommerce_circuit_rejections_total{tenant=\"").append(entry.getKey()).append("\"} ").append(entry.getValue().circuitRejections.get()).append('\n');
+		}
+		out.append("# TYPE basecommerce_bulkhead_rejections_total counter\n");
+		for (Map.Entry<UUID, TenantGuard> entry : guards.entrySet()) {
+			out.append("basecommerce_bulkhead_rejections_total{tenant=\"").append(entry.getKey()).append("\"} ").append(entry.getValue().bulkheadRejections.get()).append('\n');
+		}
+		out.append("# TYPE basecommerce_bulkhead_in_flight gauge\n");
+		for (Map.Entry<UUID, TenantGuard> entry : guards.entrySet()) {
+			out.append("basecommerce_bulkhead_in_flight{tenant=\"").append(entry.getKey()).append("\"} ").append(maxConcurrentCalls - entry.getValue().permits.availablePermits()).append('\n');
+		}
+	}
+	
+	private interface GatewayCall<T> {
+		
+		T call() throws BaseCommerceGatewayException;
+	}
+	
+	/**
+	 * The state of a circuit, exported as its ordinal: 0 closed, 1 open, 2 half open.
+	 */
+	private enum CircuitState {
+		CLOSED,
+		OPEN,
+		HALF_OPEN
+	}
+	
+	private class TenantGuard {
+		
+		private final Semaphore permits = new Semaphore(maxConcurrentCalls);
+		private final AtomicLong circuitRejections = new AtomicLong();
+		private final AtomicLong bulkheadRejections = new AtomicLong();
+		
+		private CircuitState state = CircuitState.CLOSED;
+		private int consecutiveFailures;
+		private long openedAtNanos;
+		private boolean trialInFlight;
+		
+		synchronized boolean allowCall() {
+			if (state == CircuitState.OPEN && System.nanoTime() - openedAtNanos >= openNanos) {
+				state = CircuitState.HALF_OPEN;
+				trialInFlight = false;
+			}
+			if (state == CircuitState.HALF_OPEN) {
+				// only one trial call at a time while half open
+				if (trialInFlight) {
+					return false;
+				}
+				trialInFlight = true;
+				return true;
+			}
+			return state == CircuitState.CLOSED;
+		}
+		
+		synchronized void onSuccess() {
+			state = CircuitState.CLOSED;
+			consecutiveFailures = 0;
+			trialInFlight = false;
+		}
+		
+		synchronized void onFailure() {
+			consecutiveFailures++;
+			if (state == CircuitState.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+				state = CircuitState.OPEN;
+				openedAtNanos = System.nanoTime();
+				trialInFlight = false;
+			}
+		}
+		
+		synchronized CircuitState getState() {
+			return state;
+		}
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbasecommerceplugin;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.killbill.billing.payment.plugin.api.PaymentPluginStatus;
+
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Makes sure a Kill Bill transaction is sent to the gateway at most once, however many times Kill Bill retries it.
+ * <p>
+ * Transactions with a final outcome are kept in memory, in front of {@code baseCommerce_transactions} which is the
+ * persisted record. An attempt still in flight is shared: a retry arriving meanwhile waits for it and gets its result
+ * instead of starting a second one.
+ */
+public class BaseCommerceIdempotencyStore implements BaseCommerceMetricsSource {
+	
+	private final Cache<UUID, BaseCommercePaymentTransactionInfoPlugin> completed;
+	private final ConcurrentMap<UUID, FutureTask<BaseCommercePaymentTransactionInfoPlugin>> inFlight = new ConcurrentHashMap<UUID, FutureTask<BaseCommercePaymentTransactionInfoPlugin>>();
+	private final AtomicLong joined = new AtomicLong();
+	
+	public BaseCommerceIdempotencyStore(final long maxSize, final long ttlSeconds) {
+		this.completed = CacheBuilder.newBuilder()
+		                             .maximumSize(maxSize)
+		                             .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+		                             .recordStats()
+		                             .build();
+	}
+	
+	/**
+	 * @param kbTenantId      - the tenant
+	 * @param kbTransactionId - the transaction
+	 * @return the cached outcome of the transaction, or null if it isn't cached
+	 */
+	public BaseCommercePaymentTransactionInfoPlugin getIfPresent(final UUID kbTenantId, final UUID kbTransactionId) {
+		final BaseCommercePaymentTransactionInfoPlugin transaction = completed.getIfPresent(kbTransactionId);
+		return transaction != null && transaction.getKbTenantId().equals(kbTenantId) ? transaction : null;
+	}
+	
+	/**
+	 * Keep the outcome of a transaction, if it is final. Pending transactions may still change, and canceled ones never
+	 * reached the gateway so Kill Bill is free to try them again.
+	 *
+	 * @param transaction - the transaction
+	 */
+	public void remember(final BaseCommercePaymentTransactionInfoPlugin transaction) {
+		if (isFinal(transaction)) {
+			completed.put(transaction.getKbTransactionPaymentId(), transaction);
+		}
+	}
+	
+	/**
+	 * Run the attempt, unless an attempt for the same transaction is already running, in which case wait for it and
+	 * return its result.
+	 *
+	 * @param kbTransactionId - the transaction
+	 * @param attempt         - makes the transaction, on the calling thread
+	 * @return the result of whichever attempt ran
+	 * @throws ExecutionException   if the attempt failed
+	 * @throws InterruptedException if interrupted while waiting for another attempt
+	 */
+	public BaseCommercePaymentTransactionInfoPlugin runOnce(final UUID kbTransactionId, final Callable<BaseCommercePaymentTransactionInfoPlugin> attempt) throws ExecutionException, InterruptedException {
+		final FutureTask<BaseCommercePaymentTransactionInfoPlugin> task = new FutureTask<BaseCommercePaymentTransactionInfoPlugin>(attempt);
+		final FutureTask<BaseCommercePaymentTransactionInfoPlugin> running = inFlight.putIfAbsent(kbTransactionId, task);
+		if (running != null) {
+			joined.incrementAndGet();
+			return running.get();
+		}
+		try {
+			task.run();
+			return task.get();
+		} finally {
+			inFlight.remove(kbTransactionId, task);
+		}
+	}
+	
+	/**
+	 * @return true if the transaction won't change anymore and must not be attempted again
+	 */
+	public static boolean isFinal(final BaseCommercePaymentTransactionInfoPlugin transaction) {
+		return transaction.getStatus() == PaymentPluginStatus.PROCESSED || transaction.getStatus() == PaymentPluginStatus.ERROR;
+	}
+	
+	@Override
+	public void appendMetrics(final StringBuilder out) {
+		final CacheStats stats = completed.stats();
+		out.append("# TYPE basecommerce_idempotency_cache_hits_total counter\n");
+		out.append("basecommerce_idempotency_cache_hits_total ").append(stats.hitCount()).append('\n');
+		out.append("# TYPE basecommerce_idempotency_cache_misses_total counter\n");
+		out.append("basecommerce_idempotency_cache_misses_total ").append(stats.missCount()).append('\n');
+		out.append("# TYPE basecommerce_idempotency_joined_total counter\n");
+		out.append("basecommerce_idempotency_joined_total ").append(joined.get()).append('\n');
+		out.append("# TYPE basecommerce_idempotency_in_flight gauge\n");
+		out.append("basecommerce_idempotency_in_flight ").append(inFlight.size()).append('\n');
+	}
+}
@@ -18,21 +18,15 @@
 
 package com.fathomstudio.killbillbasecommerceplugin;
 
-import org.killbill.billing.account.api.Account;
-import org.killbill.billing.account.api.AccountApiException;
 import org.killbill.billing.notification.plugin.api.ExtBusEvent;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
-import org.killbill.billing.osgi.libs.killbill.OSGIKillbillDataSource;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillEventDispatcher;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillLogService;
-import org.killbill.billing.plugin.api.PluginTenantContext;
 import org.killbill.billing.plugin.api.notification.PluginConfigurationEventHandler;
 import org.killbill.billing.plugin.api.notification.PluginConfigurationHandler;
 import org.osgi.service.log.LogService;
 
 import javax.annotation.Nullable;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.UUID;
 
@@ -41,13 +35,16 @@ import java.util.UUID;
  */
 public class BaseCommerceListener extends PluginConfigurationEventHandler implements OSGIKillbillEventDispatcher.OSGIKillbillEventHandler {
 	
-	private final LogService logService;
-	private final OSGIKillbillAPI osgiKillbillAPI;
+	private final BaseCommerceCredentialsCache credentialsCache;
+	private final BaseCommerceClientRegistry clientRegistry;
+	private final BaseCommerceAccountCache accountCache;
 	
-	public BaseCommerceListener(final OSGIKillbillLogService logService, final OSGIKillbillAPI killbillAPI, final OSGIKillbillDataSource dataSource) {
-		super(new BluePayPluginConfigurationHandler(BaseCommerceActivator.PLUGIN_NAME, killbillAPI, logService, dataSource));
-		this.logService = logService;
-		this.osgiKillbillAPI = killbillAPI;
+	public BaseCommerceListener(final OSGIKillbillLogService logService, final OSGIKillbillAPI killbillAPI, final BaseCommerceDao dao, final BaseCommerceCredentialsCache credentialsCache, final BaseCommerceClientRegistry clientRegistry,
+	                            final BaseCommerceAccountCache accountCache) {
+		super(new BluePayPluginConfigurationHandler(BaseCommerceActivator.PLUGIN_NAME, killbillAPI, logService, dao, credentialsCache));
+		this.credentialsCache = credentialsCache;
+		this.clientRegistry = clientRegistry;
+		this.accountCache = accountCache;
 	}
 	
 	@Override
@@ -58,19 +55,21 @@ public class BaseCommerceListener extends PluginConfigurationEventHandler implem
 			//
 			case TENANT_CONFIG_CHANGE:
 			case TENANT_CONFIG_DELETION:
+				// drop the cached credentials first, the next charge reads the new ones once the handler saved them
+				if (killbillEvent.getTenantId() != null) {
+					credentialsCache.invalidate(killbillEvent.getTenantId());
+					clientRegistry.invalidate(killbillEvent.getTenantId());
+				}
 				super.handleKillbillEvent(killbillEvent);
 				break;
 			
 			//
-			// Handle ACCOUNT_CREATION and ACCOUNT_CHANGE (only) for demo purpose and just print the account
+			// Drop the cached account, it is fetched again the next time a payment reads it
 			//
 			case ACCOUNT_CREATION:
 			case ACCOUNT_CHANGE:
-				try {
-					final Account account = osgiKillbillAPI.getAccountUserApi().getAccountById(killbillEvent.getAccountId(), new PluginTenantContext(killbillEvent.getTenantId()));
-					logService.log(LogService.LOG_INFO, "Account information: " + account);
-				} catch (final AccountApiException e) {
-					logService.log(LogService.LOG_WARNING, "Unable to find account", e);
+				if (killbillEvent.getAccountId() != null) {
+					accountCache.invalidate(killbillEvent.getAccountId());
 				}
 				break;
 			
@@ -97,12 +96,14 @@ public class BaseCommerceListener extends PluginConfigurationEventHandler implem
 	private static class BluePayPluginConfigurationHandler extends PluginConfigurationHandler {
 		
 		private final LogService logService;
-		private final OSGIKillbillDataSource dataSource;
+		private final BaseCommerceDao dao;
+		private final BaseCommerceCredentialsCache credentialsCache;
 		
-		public BluePayPluginConfigurationHandler(String pluginName, OSGIKillbillAPI osgiKillbillAPI, OSGIKillbillLogService osgiKillbillLogService, OSGIKillbillDataSource dataSource) {
+		public BluePayPluginConfigurationHandler(String pluginName, OSGIKillbillAPI osgiKillbillAPI, OSGIKillbillLogService osgiKillbillLogService, BaseCommerceDao dao, BaseCommerceCredentialsCache credentialsCache) {
 			super(pluginName, osgiKillbillAPI, osgiKillbillLogService);
 			this.logService = osgiKillbillLogService;
-			this.dataSource = dataSource;
+			this.dao = dao;
+			this.credentialsCache = credentialsCache;
 		}
 		
 		@Override
@@ -122,33 +123,41 @@ public class BaseCommerceListener extends PluginConfigurationEventHandler implem
 			String password = parts[1];
 			String key = parts[2];
 			Boolean test = Boolean.parseBoolean(parts[3]);
+			// optional gateway rate limits, 0 keeps the plugin defaults
+			double requestsPerSecond = parts.length > 4 ? parseRequestsPerSecond(parts[4]) : 0;
+			int burst = parts.length > 5 ? parseBurst(parts[5]) : 0;
 			
 			logService.log(LogService.LOG_INFO, "configured with username: " + username);
-			logService.log(LogService.LOG_INFO, "configured with password: " + password);
-			logService.log(LogService.LOG_INFO, "configured with key: " + key);
 			logService.log(LogService.LOG_INFO, "configured with test: " + test);
+			logService.log(LogService.LOG_INFO, "configured with requests per second: " + requestsPerSecond + ", burst: " + burst);
 			
-			try (Connection connection = dataSource.getDataSource().getConnection()) {
-				// save the details to the database
-				String credentialsQuery = "INSERT INTO `baseCommerce_credentials` (`tenantId`, `username`, `password`, `key`, `test`) VALUES (?, ?, ?, ?, ?) ON DUPLICATE KEY UPDATE `tenantId` = ?, `username` = ?, `password` = ?, `key` = ?, `test` = ?";
-				try (PreparedStatement statement = connection.prepareStatement(credentialsQuery)) {
-					statement.setString(1, kbTenantId.toString());
-					statement.setString(2, username);
-					statement.setString(3, password);
-					statement.setString(4, key);
-					statement.setBoolean(5, test);
-					statement.setString(6, kbTenantId.toString());
-					statement.setString(7, username);
-					statement.setString(8, password);
-					statement.setString(9, key);
-					statement.setBoolean(10, test);
-					statement.executeUpdate();
-				} catch (SQLException e) {
-					logService.log(LogService.LOG_ERROR, "could not configure tenant: ", e);
-				}
+			// save the details to the database
+			final BaseCommerceCredentials credentials = new BaseCommerceCredentials(kbTenantId, username, password, key, test, requestsPerSecond, burst);
+			try {
+				dao.saveCredentials(credentials);
+				// the saved credentials have a new version, let the next charge cache them with it
+				credentialsCache.invalidate(kbTenantId);
 			} catch (SQLException e) {
 				logService.log(LogService.LOG_ERROR, "could not configure tenant: ", e);
 			}
 		}
+		
+		private double parseRequestsPerSecond(final String value) {
+			try {
+				return Math.max(0, Double.parseDouble(value.trim()));
+			} catch (NumberFormatException e) {
+				logService.log(LogService.LOG_WARNING, "ignoring invalid requests per second: " + value);
+				return 0;
+			}
+		}
+		
+		private int parseBurst(final String value) {
+			try {
+				return Math.max(0, Integer.parseInt(value.trim()));
+			} catch (NumberFormatException e) {
+				logService.log(LogService.LOG_WARNING, "ignoring invalid burst: " + value);
+				return 0;
+			}
+		}
 	}
 }
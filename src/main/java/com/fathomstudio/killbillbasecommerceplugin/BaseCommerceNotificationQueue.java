@@ -0,0 +1,334 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbasecommerceplugin;
+
+import com.basecommercepay.client.BankAccountTransaction;
+import com.basecommercepay.client.BankCardTransaction;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.account.api.Account;
+import org.killbill.billing.account.api.AccountApiException;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.killbill.billing.payment.api.PaymentApiException;
+import org.killbill.billing.payment.plugin.api.PaymentPluginStatus;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.osgi.service.log.LogService;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Applies the Base Commerce webhooks received by {@link BaseCommercePaymentPluginApi#processNotification} in the
+ * background, so the gateway gets its acknowledgment without waiting on the database or Kill Bill.
+ * <p>
+ * Notifications go through a bounded queue: when it is full {@link #offer(Notification)} refuses them and the gateway
+ * is asked to send them again later, rather than tying up request threads. A single writer drains the queue in batches:
+ * the matching transactions are read with one query and updated with one JDBC batch per batch of notifications, then
+ * Kill Bill is told about the pending payments that settled or failed.
+ * <p>
+ * The notification endpoint isn't authenticated, so a webhook is only taken as a hint: the transaction it is about is
+ * flagged for the {@link BaseCommerceReconciler}, which looks it up on Base Commerce at its own bounded rate and hands
+ * the status found there back to this queue. The writer itself only ever talks to the database and Kill Bill, so a burst
+ * of webhooks, genuine or not, doesn't hold up the confirmed notifications, and costs at most one lookup per flagged
+ * transaction at the reconciliation rate rather than a gateway call each.
+ */
+public class BaseCommerceNotificationQueue implements BaseCommerceMetricsSource {
+	
+	private final BaseCommerceDao dao;
+	private final OSGIKillbillAPI killbillAPI;
+	private final BaseCommerceAccountCache accountCache;
+	private final LogService logService;
+	private final int batchSize;
+	private final BlockingQueue<Notification> queue;
+	private final ExecutorService writer;
+	private final AtomicLong receivedCount = new AtomicLong();
+	private final AtomicLong rejectedCount = new AtomicLong();
+	private final AtomicLong appliedCount = new AtomicLong();
+	private final AtomicLong unmatchedCount = new AtomicLong();
+	private final AtomicLong unconfirmedCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	private volatile boolean stopping;
+	
+	public BaseCommerceNotificationQueue(final BaseCommerceDao dao, final OSGIKillbillAPI killbillAPI, final BaseCommerceAccountCache accountCache, final LogService logService,
+	                                     final int queueSize, final int batchSize) {
+		this.dao = dao;
+		this.killbillAPI = killbillAPI;
+		this.accountCache = accountCache;
+		this.logService = logService;
+		this.batchSize = batchSize;
+		this.queue = new ArrayBlockingQueue<Notification>(queueSize);
+		this.writer = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("basecommerce-notifications-%d").setDaemon(true).build());
+	}
+	
+	/**
+	 * Start the writer.
+	 */
+	public void start() {
+		writer.execute(new Runnable() {
+			@Override
+			public void run() {
+				drainQueue();
+			}
+		});
+	}
+	
+	/**
+	 * Queue a notification, without blocking.
+	 *
+	 * @param notification - the notification
+	 * @return false if the queue is full (or shutting down) and the notification wasn't queued
+	 */
+	public boolean offer(final Notification notification) {
+		receivedCount.incrementAndGet();
+		if (stopping || !queue.offer(notification)) {
+			rejectedCount.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Stop taking new notifications and wait for the queued ones to be applied.
+	 *
+	 * @param timeoutSeconds - how long to wait
+	 * @return true if every queued notification was applied in time
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean drain(final long timeoutSeconds) throws InterruptedException {
+		stopping = true;
+		writer.shutdown();
+		return writer.awaitTermination(timeoutSeconds, TimeUnit.SECONDS);
+	}
+	
+	private void drainQueue() {
+		final List<Notification> batch = new ArrayList<Notification>(batchSize);
+		while (true) {
+			final Notification first;
+			try {
+				first = queue.poll(1, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (first == null) {
+				if (stopping) {
+					return;
+				}
+				continue;
+			}
+			batch.add(first);
+			queue.drainTo(batch, batchSize - 1);
+			try {
+				apply(batch);
+			} catch (RuntimeException e) {
+				// keep the writer alive, the reconciliation will catch up with what was lost
+				failedCount.addAndGet(batch.size());
+				logService.log(LogService.LOG_ERROR, "could not apply " + batch.size() + " notifications: ", e);
+			}
+			batch.clear();
+		}
+	}
+	
+	private void apply(final List<Notification> batch) {
+		// card and bank transactions are numbered separately, so look them up per tenant and type; the last notification wins
+		final Map<String, Map<String, Notification>> groups = new LinkedHashMap<String, Map<String, Notification>>();
+		for (Notification notification : batch) {
+			final String group = notification.kbTenantId + "/" + notification.paymentMethodType;
+			Map<String, Notification> notifications = groups.get(group);
+			if (notifications == null) {
+				notifications = new LinkedHashMap<String, Notification>();
+				groups.put(group, notifications);
+			}
+			notifications.put(notification.gatewayTransactionId, notification);
+		}
+		
+		final DateTime now = DateTime.now(DateTimeZone.UTC);
+		final List<BaseCommercePaymentTransactionInfoPlugin> updates = new ArrayList<BaseCommercePaymentTransactionInfoPlugin>(batch.size());
+		final List<BaseCommercePaymentTransactionInfoPlugin> settled = new ArrayList<BaseCommercePaymentTransactionInfoPlugin>();
+		final List<CallContext> settledContexts = new ArrayList<CallContext>();
+		final List<BaseCommercePaymentTransactionInfoPlugin> lookups = new ArrayList<BaseCommercePaymentTransactionInfoPlugin>();
+		try {
+			for (Map<String, Notification> notifications : groups.values()) {
+				final Notification any = notifications.values().iterator().next();
+				final Map<String, BaseCommercePaymentTransactionInfoPlugin> saved = dao.getTransactionsByGatewayTransactionIds(any.kbTenantId, any.paymentMethodType, notifications.keySet());
+				for (Notification notification : notifications.values()) {
+					final BaseCommercePaymentTransactionInfoPlugin transaction = saved.get(notification.gatewayTransactionId);
+					if (transaction == null) {
+						unmatchedCount.incrementAndGet();
+						logService.log(LogService.LOG_WARNING, "no transaction for notification about " + notification.paymentMethodType + " transaction " + notification.gatewayTransactionId);
+						continue;
+					}
+					if (notification.gatewayStatus.equals(transaction.getGatewayStatus())) {
+						continue;
+					}
+					
+					if (!notification.confirmed) {
+						lookups.add(transaction);
+						continue;
+					}
+					final String gatewayStatus = notification.gatewayStatus;
+					final String message = notification.message;
+					
+					// only pending transactions change status, Kill Bill has no way to hear about the others changing
+					PaymentPluginStatus status = transaction.getStatus();
+					String errorCode = transaction.getGatewayErrorCode();
+					String error = transaction.getGatewayError();
+					if (status == PaymentPluginStatus.PENDING) {
+						status = toStatus(gatewayStatus);
+						if (status == PaymentPluginStatus.ERROR) {
+							errorCode = gatewayStatus;
+							error = message;
+						}
+					}
+					final BaseCommercePaymentTransactionInfoPlugin updated = transaction.withOutcome(status, transaction.getFirstPaymentReferenceId(), gatewayStatus, errorCode, error, now);
+					updates.add(updated);
+					if (transaction.getStatus() == PaymentPluginStatus.PENDING && status != PaymentPluginStatus.PENDING) {
+						settled.add(updated);
+						settledContexts.add(notification.context);
+					}
+				}
+			}
+			dao.saveTransactions(updates);
+			dao.setLookupRequested(lookups, true);
+		} catch (SQLException e) {
+			failedCount.addAndGet(batch.size());
+			logService.log(LogService.LOG_ERROR, "could not apply " + batch.size() + " notifications: ", e);
+			return;
+		}
+		appliedCount.addAndGet(updates.size());
+		unconfirmedCount.addAndGet(lookups.size());
+		
+		// the database is up to date by now, so Kill Bill reads the new state if it asks the plugin
+		for (int i = 0; i < settled.size(); i++) {
+			notifyKillbill(settled.get(i), settledContexts.get(i));
+		}
+	}
+	
+	private void notifyKillbill(final BaseCommercePaymentTransactionInfoPlugin transaction, final CallContext context) {
+		try {
+			final Account account = accountCache.get(transaction.getKbAccountId(), context);
+			killbillAPI.getPaymentApi().notifyPendingTransactionOfStateChanged(account, transaction.getKbTransactionPaymentId(), transaction.getStatus() == PaymentPluginStatus.PROCESSED, context);
+		} catch (AccountApiException | PaymentApiException e) {
+			logService.log(LogService.LOG_WARNING, "could not notify Kill Bill about transaction " + transaction.getKbTransactionPaymentId() + ", the Janitor will pick it up: ", e);
+		}
+	}
+	
+	/**
+	 * @param gatewayStatus - the status reported by Base Commerce
+	 * @return the status of a pending transaction once the gateway reports the given status
+	 */
+	private static PaymentPluginStatus toStatus(final String gatewayStatus) {
+		switch (gatewayStatus) {
+			case BankAccountTransaction.XS_BAT_STATUS_SETTLED:
+				return PaymentPluginStatus.PROCESSED;
+			case BankAccountTransaction.XS_BAT_STATUS_FAILED:
+			case BankAccountTransaction.XS_BAT_STATUS_RETURNED:
+			case BankAccountTransaction.XS_BAT_STATUS_CANCELED:
+			case BankCardTransaction.XS_BCT_STATUS_DECLINED:
+				return PaymentPluginStatus.ERROR;
+			default:
+				return PaymentPluginStatus.PENDING;
+		}
+	}
+	
+	/**
+	 * Parse a notification, a flat JSON object with the Base Commerce {@code transactionId} and its new {@code status},
+	 * optionally the payment method {@code type} ({@code bank} by default) and a {@code message}.
+	 *
+	 * @param body    - the notification as received
+	 * @param context - the context of the request, used to notify Kill Bill later on
+	 * @return the notification
+	 * @throws IllegalArgumentException if the notification can't be parsed
+	 */
+	public static Notification parse(final String body, final CallContext context) {
+		if (body == null) {
+			throw new IllegalArgumentException("empty notification");
+		}
+		final Map<String, String> fields = BaseCommercePaymentMethodImporter.parseJsonObject(body.trim());
+		final String gatewayTransactionId = fields.get("transactionId");
+		if (gatewayTransactionId == null || gatewayTransactionId.isEmpty()) {
+			throw new IllegalArgumentException("missing transactionId");
+		}
+		final String gatewayStatus = fields.get("status");
+		if (gatewayStatus == null || gatewayStatus.isEmpty()) {
+			throw new IllegalArgumentException("missing status");
+		}
+		final String type = fields.get("type");
+		final String paymentMethodType = type == null || type.isEmpty() ? BaseCommercePaymentPluginApi.TYPE_BANK : type;
+		if (!paymentMethodType.equals(BaseCommercePaymentPluginApi.TYPE_CARD) && !paymentMethodType.equals(BaseCommercePaymentPluginApi.TYPE_BANK)) {
+			throw new IllegalArgumentException("unknown type: " + type);
+		}
+		return new Notification(context.getTenantId(), paymentMethodType, gatewayTransactionId, gatewayStatus, fields.get("message"), false, context);
+	}
+	
+	@Override
+	public void appendMetrics(final StringBuilder out) {
+		out.append("# TYPE basecommerce_notification_queue_depth gauge\n");
+		out.append("basecommerce_notification_queue_depth ").append(queue.size()).append('\n');
+		out.append("# TYPE basecommerce_notifications_received_total counter\n");
+		out.append("basecommerce_notifications_received_total ").append(receivedCount.get()).append('\n');
+		out.append("# TYPE basecommerce_notifications_rejected_total counter\n");
+		out.append("basecommerce_notifications_rejected_total ").append(rejectedCount.get()).append('\n');
+		out.append("# TYPE basecommerce_notifications_applied_total counter\n");
+		out.append("basecommerce_notifications_applied_total ").append(appliedCount.get()).append('\n');
+		out.append("# TYPE basecommerce_notifications_unmatched_total counter\n");
+		out.append("basecommerce_notifications_unmatched_total ").append(unmatchedCount.get()).append('\n');
+		out.append("# TYPE basecommerce_notifications_unconfirmed_total counter\n");
+		out.append("basecommerce_notifications_unconfirmed_total ").append(unconfirmedCount.get()).append('\n');
+		out.append("# TYPE basecommerce_notifications_failed_total counter\n");
+		out.append("basecommerce_notifications_failed_total ").append(failedCount.get()).append('\n');
+	}
+	
+	/**
+	 * A webhook from Base Commerce about a change of a transaction.
+	 */
+	public static class Notification {
+		
+		private final UUID kbTenantId;
+		private final String paymentMethodType;
+		private final String gatewayTransactionId;
+		private final String gatewayStatus;
+		private final String message;
+		private final boolean confirmed;
+		private final CallContext context;
+		
+		/**
+		 * @param confirmed - true if the status comes from a gateway lookup, false if the transaction has to be looked up
+		 */
+		public Notification(final UUID kbTenantId, final String paymentMethodType, final String gatewayTransactionId, final String gatewayStatus, final String message, final boolean confirmed,
+		                    final CallContext context) {
+			this.kbTenantId = kbTenantId;
+			this.paymentMethodType = paymentMethodType;
+			this.gatewayTransactionId = gatewayTransactionId;
+			this.gatewayStatus = gatewayStatus;
+			this.message = message;
+			this.confirmed = confirmed;
+			this.context = context;
+		}
+	}
+}
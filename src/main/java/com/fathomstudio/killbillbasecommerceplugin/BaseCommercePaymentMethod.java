@@ -0,0 +1,97 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbasecommerceplugin;
+
+import java.util.UUID;
+
+/**
+ * A Kill Bill payment method and the Base Commerce token it was saved as.
+ */
+public class BaseCommercePaymentMethod {
+	
+	private final UUID kbPaymentMethodId;
+	private final UUID kbAccountId;
+	private final String token;
+	private final String type;
+	private final String lastFour;
+	private final long version;
+	
+	public BaseCommercePaymentMethod(final UUID kbPaymentMethodId, final String token, final String type) {
+		this(kbPaymentMethodId, token, type, null);
+	}
+	
+	public BaseCommercePaymentMethod(final UUID kbPaymentMethodId, final String token, final String type, final String lastFour) {
+		this(kbPaymentMethodId, null, token, type, lastFour);
+	}
+	
+	public BaseCommercePaymentMethod(final UUID kbPaymentMethodId, final UUID kbAccountId, final String token, final String type, final String lastFour) {
+		this(kbPaymentMethodId, kbAccountId, token, type, lastFour, 0);
+	}
+	
+	public BaseCommercePaymentMethod(final UUID kbPaymentMethodId, final UUID kbAccountId, final String token, final String type, final String lastFour, final long version) {
+		this.kbPaymentMethodId = kbPaymentMethodId;
+		this.kbAccountId = kbAccountId;
+		this.token = token;
+		this.type = type;
+		this.lastFour = lastFour;
+		this.version = version;
+	}
+	
+	public UUID getKbPaymentMethodId() {
+		return kbPaymentMethodId;
+	}
+	
+	/**
+	 * @return the account owning the payment method, or null if not known
+	 */
+	public UUID getKbAccountId() {
+		return kbAccountId;
+	}
+	
+	public String getToken() {
+		return token;
+	}
+	
+	/**
+	 * @return either card or bank
+	 */
+	public String getType() {
+		return type;
+	}
+	
+	/**
+	 * @return the last four digits of the card or account number, or null if not known
+	 */
+	public String getLastFour() {
+		return lastFour;
+	}
+	
+	/**
+	 * @return the version of the database row this payment method was read from, or 0 if it wasn't read from it
+	 */
+	public long getVersion() {
+		return version;
+	}
+	
+	/**
+	 * @return the last four characters of the given card or account number
+	 */
+	static String lastFour(final String number) {
+		return number.length() <= 4 ? number : number.substring(number.length() - 4);
+	}
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbasecommerceplugin;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the most recently used payment method tokens in memory, since recurring billing charges the same payment
+ * methods every cycle.
+ * <p>
+ * The cache is bounded and evicts the least recently used entries first. It is filled when a payment method is saved
+ * and on charges, and is invalidated when a payment method is deleted, or by {@link BaseCommerceCacheCoherence} when
+ * another node changed it. A payment method deleted on another node leaves no row to compare against, so entries also
+ * expire some time after they were written.
+ */
+public class BaseCommercePaymentMethodCache implements BaseCommerceMetricsSource {
+	
+	// rough footprint of what isn't the token itself: the key UUID (32), the payment method object (24), the token
+	// String object (24) and array header (16), and the cache entry with its table slot (~64)
+	private static final long ENTRY_OVERHEAD_BYTES = 32 + 24 + 24 + 16 + 64;
+	
+	private final Cache<UUID, BaseCommercePaymentMethod> cache;
+	private final AtomicLong estimatedBytes = new AtomicLong();
+	
+	public BaseCommercePaymentMethodCache(final long maxSize, final long ttlSeconds) {
+		this.cache = CacheBuilder.newBuilder()
+		                         .maximumSize(maxSize)
+		                         .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+		                         .recordStats()
+		                         .removalListener(new RemovalListener<UUID, BaseCommercePaymentMethod>() {
+			                         @Override
+			                         public void onRemoval(final RemovalNotification<UUID, BaseCommercePaymentMethod> notification) {
+				                         if (notification.getValue() != null) {
+					                         estimatedBytes.addAndGet(-estimateBytes(notification.getValue()));
+				                         }
+			                         }
+		                         })
+		                         .build();
+	}
+	
+	/**
+	 * @param kbPaymentMethodId - the payment method
+	 * @return the cached payment method, or null if it isn't cached
+	 */
+	public BaseCommercePaymentMethod getIfPresent(final UUID kbPaymentMethodId) {
+		return cache.getIfPresent(kbPaymentMethodId);
+	}
+	
+	public void put(final BaseCommercePaymentMethod paymentMethod) {
+		// the type only ever takes a couple of values, so share their instances instead of keeping one per entry
+		final BaseCommercePaymentMethod canonical = new BaseCommercePaymentMethod(paymentMethod.getKbPaymentMethodId(), null, paymentMethod.getToken(), canonicalType(paymentMethod.getType()), null,
+		                                                                          paymentMethod.getVersion());
+		estimatedBytes.addAndGet(estimateBytes(canonical));
+		cache.put(canonical.getKbPaymentMethodId(), canonical);
+	}
+	
+	public void invalidate(final UUID kbPaymentMethodId) {
+		cache.invalidate(kbPaymentMethodId);
+	}
+	
+	/**
+	 * Drop the cached payment method if it isn't the given version.
+	 *
+	 * @param kbPaymentMethodId - the payment method
+	 * @param version           - the version in the database
+	 * @return true if a stale payment method was dropped
+	 */
+	public boolean invalidateIfStale(final UUID kbPaymentMethodId, final long version) {
+		// read through the map view so these checks don't count as cache hits or misses
+		final BaseCommercePaymentMethod cached = cache.asMap().get(kbPaymentMethodId);
+		return cached != null && cached.getVersion() != version && cache.asMap().remove(kbPaymentMethodId, cached);
+	}
+	
+	@Override
+	public void appendMetrics(final StringBuilder out) {
+		final CacheStats stats = cache.stats();
+		final long size = cache.size();
+		final long bytes = estimatedBytes.get();
+		out.append("# TYPE basecommerce_payment_method_cache_hits_total counter\n");
+		out.append("basecommerce_payment_method_cache_hits_total ").append(stats.hitCount()).append('\n');
+		out.append("# TYPE basecommerce_payment_method_cache_misses_total counter\n");
+		out.append("basecommerce_payment_method_cache_misses_total ").append(stats.missCount()).append('\n');
+		out.append("# TYPE basecommerce_payment_method_cache_hit_ratio gauge\n");
+		out.append("basecommerce_payment_method_cache_hit_ratio ").append(stats.hitRate()).append('\n');
+		out.append("# TYPE basecommerce_payment_method_cache_evictions_total counter\n");
+		out.append("basecommerce_payment_method_cache_evictions_total ").append(stats.evictionCount()).append('\n');
+		out.append("# TYPE basecommerce_payment_method_cache_size gauge\n");
+		out.append("basecommerce_payment_method_cache_size ").append(size).append('\n');
+		out.append("# TYPE basecommerce_payment_method_cache_estimated_bytes gauge\n");
+		out.append("basecommerce_payment_method_cache_estimated_bytes ").append(bytes).append('\n');
+		out.append("# TYPE basecommerce_payment_method_cache_estimated_bytes_per_entry gauge\n");
+		out.append("basecommerce_payment_method_cache_estimated_bytes_per_entry ").append(size == 0 ? 0 : bytes / size).append('\n');
+	}
+	
+	private static String canonicalType(final String type) {
+		for (final String known : new String[]{BaseCommercePaymentPluginApi.TYPE_CARD, BaseCommercePaymentPluginApi.TYPE_BANK}) {
+			if (known.equals(type)) {
+				return known;
+			}
+		}
+		return type;
+	}
+	
+	private static long estimateBytes(final BaseCommercePaymentMethod paymentMethod) {
+		// two bytes per character, which is the worst case whether or not strings are compacted
+		final String token = paymentMethod.getToken();
+		return ENTRY_OVERHEAD_BYTES + (token == null ? 0 : 2L * token.length());
+	}
+}
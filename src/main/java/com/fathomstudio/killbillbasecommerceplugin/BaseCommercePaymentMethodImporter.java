@@ -0,0 +1,373 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.fathomstudio.killbillbasecommerceplugin;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.osgi.service.log.LogService;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Imports payment methods in bulk, e.g. when migrating a merchant.
+ * <p>
+ * Rows are read from a stream (CSV with a header line, or one flat JSON object per line) and handled in chunks: payment
+ * methods that already have a token are skipped, so re-running an interrupted import resumes it; the others are
+ * tokenized with bounded parallelism and saved with a single JDBC batch per chunk. A line of JSON is written to the
+ * output for each failed row and after each chunk, so the caller can follow the progress.
+ * <p>
+ * Columns: {@code kbPaymentMethodId}, {@code paymentType} ({@code card} or {@code ach}), then {@code creditCardNumber},
+ * {@code creditCardExpirationMonth} and {@code creditCardExpirationYear}, or {@code routingNumber} and {@code accountNumber}.
+ */
+public class BaseCommercePaymentMethodImporter {
+	
+	public static final String FORMAT_CSV = "csv";
+	public static final String FORMAT_NDJSON = "ndjson";
+	
+	private final BaseCommerceDao dao;
+	private final BaseCommerceGateway gateway;
+	private final LogService logService;
+	private final int parallelism;
+	private final int batchSize;
+	
+	public BaseCommercePaymentMethodImporter(final BaseCommerceDao dao, final BaseCommerceGateway gateway, final LogService logService, final int parallelism, final int batchSize) {
+		this.dao = dao;
+		this.gateway = gateway;
+		this.logService = logService;
+		this.parallelism = parallelism;
+		this.batchSize = batchSize;
+	}
+	
+	/**
+	 * Import the payment methods of a tenant.
+	 *
+	 * @param kbTenantId - the tenant
+	 * @param format     - {@link #FORMAT_CSV} or {@link #FORMAT_NDJSON}
+	 * @param in         - the rows
+	 * @param out        - where progress and failures are reported
+	 * @throws IOException  if the rows could not be read
+	 * @throws SQLException if the tenant credentials could not be read or the payment methods could not be saved
+	 */
+	public void importPaymentMethods(final UUID kbTenantId, final String format, final BufferedReader in, final PrintWriter out) throws IOException, SQLException {
+		final BaseCommerceCredentials credentials = dao.getCredentials(kbTenantId);
+		if (credentials == null) {
+			throw new SQLException("no credentials for tenant " + kbTenantId);
+		}
+		
+		final ExecutorService executor = Executors.newFixedThreadPool(parallelism, new ThreadFactoryBuilder().setNameFormat("basecommerce-import-%d").setDaemon(true).build());
+		final Progress progress = new Progress();
+		try {
+			String[] header = null;
+			final List<Row> chunk = new ArrayList<Row>(batchSize);
+			int lineNumber = 0;
+			String line;
+			while ((line = in.readLine()) != null) {
+				lineNumber++;
+				if (line.trim().isEmpty()) {
+					continue;
+				}
+				if (FORMAT_CSV.equals(format) && header == null) {
+					header = parseCsvLine(line).toArray(new String[0]);
+					continue;
+				}
+				
+				final Row row = new Row(lineNumber);
+				try {
+					row.fields = FORMAT_CSV.equals(format) ? toFields(header, parseCsvLine(line)) : parseJsonObject(line);
+					row.kbPaymentMethodId = UUID.fromString(required(row.fields, "kbPaymentMethodId"));
+					final String kbAccountId = row.fields.get("kbAccountId");
+					row.kbAccountId = kbAccountId == null || kbAccountId.isEmpty() ? null : UUID.fromString(kbAccountId);
+				} catch (IllegalArgumentException e) {
+					progress.fail(out, row, e.getMessage());
+					continue;
+				}
+				chunk.add(row);
+				if (chunk.size() >= batchSize) {
+					importChunk(credentials, chunk, executor, progress, out);
+					chunk.clear();
+				}
+			}
+			importChunk(credentials, chunk, executor, progress, out);
+		} finally {
+			executor.shutdownNow();
+		}
+		
+		out.println("{\"done\":true," + progress.toJsonFields() + "}");
+		out.flush();
+		logService.log(LogService.LOG_INFO, "imported payment methods for tenant " + kbTenantId + ": " + progress.toJsonFields());
+	}
+	
+	private void importChunk(final BaseCommerceCredentials credentials, final List<Row> chunk, final ExecutorService executor, final Progress progress, final PrintWriter out) throws SQLException {
+		if (chunk.isEmpty()) {
+			return;
+		}
+		
+		// payment methods imported by a previous run are skipped, which makes the import resumable
+		final List<UUID> kbPaymentMethodIds = new ArrayList<UUID>(chunk.size());
+		for (Row row : chunk) {
+			kbPaymentMethodIds.add(row.kbPaymentMethodId);
+		}
+		final Set<UUID> existing = dao.getExistingPaymentMethodIds(kbPaymentMethodIds);
+		
+		final Map<Row, Future<BaseCommercePaymentMethod>> tokenizations = new LinkedHashMap<Row, Future<BaseCommercePaymentMethod>>();
+		for (final Row row : chunk) {
+			if (existing.contains(row.kbPaymentMethodId)) {
+				progress.skipped++;
+				continue;
+			}
+			tokenizations.put(row, executor.submit(new Callable<BaseCommercePaymentMethod>() {
+				@Override
+				public BaseCommercePaymentMethod call() throws Exception {
+					return tokenize(credentials, row);
+				}
+			}));
+		}
+		
+		final List<BaseCommercePaymentMethod> tokenized = new ArrayList<BaseCommercePaymentMethod>(tokenizations.size());
+		for (Map.Entry<Row, Future<BaseCommercePaymentMethod>> entry : tokenizations.entrySet()) {
+			try {
+				tokenized.add(entry.getValue().get());
+			} catch (ExecutionException e) {
+				progress.fail(out, entry.getKey(), e.getCause().getMessage());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("interrupted", e);
+			}
+		}
+		
+		dao.savePaymentMethods(credentials.getKbTenantId(), tokenized);
+		progress.imported += tokenized.size();
+		out.println("{" + progress.toJsonFields() + "}");
+		out.flush();
+	}
+	
+	private BaseCommercePaymentMethod tokenize(final BaseCommerceCredentials credentials, final Row row) throws BaseCommerceGatewayException {
+		final String paymentType = required(row.fields, "paymentType");
+		if (Objects.equals(paymentType, "card")) {
+			final String number = required(row.fields, "creditCardNumber");
+			String month = required(row.fields, "creditCardExpirationMonth");
+			if (month.length() == 1) {
+				month = "0" + month;
+			}
+			final String year = "20" + required(row.fields, "creditCardExpirationYear");
+			final String lastFour = BaseCommercePaymentMethod.lastFour(number);
+			final String token = gateway.addBankCard(credentials, number, month, year, "Card " + lastFour);
+			return new BaseCommercePaymentMethod(row.kbPaymentMethodId, row.kbAccountId, token, BaseCommercePaymentPluginApi.TYPE_CARD, lastFour);
+		} else if (Objects.equals(paymentType, "ach")) {
+			final String routingNumber = required(row.fields, "routingNumber");
+			final String accountNumber = required(row.fields, "accountNumber");
+			final String lastFour = BaseCommercePaymentMethod.lastFour(accountNumber);
+			final String token = gateway.addBankAccount(credentials, routingNumber, accountNumber, "Bank " + lastFour);
+			return new BaseCommercePaymentMethod(row.kbPaymentMethodId, row.kbAccountId, token, BaseCommercePaymentPluginApi.TYPE_BANK, lastFour);
+		} else {
+			throw new IllegalArgumentException("unknown paymentType: " + paymentType);
+		}
+	}
+	
+	private static String required(final Map<String, String> fields, final String name) {
+		final String value = fields.get(name);
+		if (value == null || value.isEmpty()) {
+			throw new IllegalArgumentException("missing " + name);
+		}
+		return value;
+	}
+	
+	private static Map<String, String> toFields(final String[] header, final List<String> values) {
+		if (values.size() != header.length) {
+			throw new IllegalArgumentException("expected " + header.length + " columns, got " + values.size());
+		}
+		final Map<String, String> fields = new HashMap<String, String>();
+		for (int i = 0; i < header.length; i++) {
+			fields.put(header[i].trim(), values.get(i).trim());
+		}
+		return fields;
+	}
+	
+	/**
+	 * Split a CSV line, honoring double quoted values.
+	 */
+	static List<String> parseCsvLine(final String line) {
+		final List<String> values = new ArrayList<String>();
+		final StringBuilder value = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); i++) {
+			final char c = line.charAt(i);
+			if (quoted) {
+				if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+					value.append('"');
+					i++;
+				} else if (c == '"') {
+					quoted = false;
+				} else {
+					value.append(c);
+				}
+			} else if (c == '"') {
+				quoted = true;
+			} else if (c == ',') {
+				values.add(value.toString());
+				value.setLength(0);
+			} else {
+				value.append(c);
+			}
+		}
+		values.add(value.toString());
+		return values;
+	}
+	
+	/**
+	 * Parse a flat JSON object, whose values are strings, numbers, booleans or null.
+	 */
+	static Map<String, String> parseJsonObject(final String line) {
+		final Map<String, String> fields = new HashMap<String, String>();
+		final int[] position = {skipWhitespace(line, 0)};
+		expect(line, position, '{');
+		if (peek(line, position) == '}') {
+			return fields;
+		}
+		while (true) {
+			final String name = readJsonString(line, position);
+			expect(line, position, ':');
+			final String value;
+			if (peek(line, position) == '"') {
+				value = readJsonString(line, position);
+			} else {
+				final int start = position[0];
+				while (position[0] < line.length() && ",} \t".indexOf(line.charAt(position[0])) < 0) {
+					position[0]++;
+				}
+				final String literal = line.substring(start, position[0]);
+				value = "null".equals(literal) ? null : literal;
+			}
+			fields.put(name, value);
+			if (peek(line, position) == ',') {
+				position[0]++;
+				continue;
+			}
+			expect(line, position, '}');
+			return fields;
+		}
+	}
+	
+	private static String readJsonString(final String line, final int[] position) {
+		expect(line, position, '"');
+		final StringBuilder value = new StringBuilder();
+		while (position[0] < line.length()) {
+			final char c = line.charAt(position[0]++);
+			if (c == '"') {
+				return value.toString();
+			} else if (c == '\\' && position[0] < line.length()) {
+				final char escaped = line.charAt(position[0]++);
+				if (escaped == 'u' && position[0] + 4 <= line.length()) {
+					value.append((char) Integer.parseInt(line.substring(position[0], position[0] + 4), 16));
+					position[0] += 4;
+				} else if (escaped == 'n') {
+					value.append('\n');
+				} else if (escaped == 't') {
+					value.append('\t');
+				} else {
+					value.append(escaped);
+				}
+			} else {
+				value.append(c);
+			}
+		}
+		throw new IllegalArgumentException("unterminated string");
+	}
+	
+	private static char peek(final String line, final int[] position) {
+		position[0] = skipWhitespace(line, position[0]);
+		if (position[0] >= line.length()) {
+			throw new IllegalArgumentException("unexpected end of line");
+		}
+		return line.charAt(position[0]);
+	}
+	
+	private static void expect(final String line, final int[] position, final char expected) {
+		if (peek(line, position) != expected) {
+			throw new IllegalArgumentException("expected '" + expected + "' at column " + (position[0] + 1));
+		}
+		position[0]++;
+	}
+	
+	private static int skipWhitespace(final String line, int position) {
+		while (position < line.length() && Character.isWhitespace(line.charAt(position))) {
+			position++;
+		}
+		return position;
+	}
+	
+	static String jsonString(final String value) {
+		if (value == null) {
+			return "null";
+		}
+		final StringBuilder json = new StringBuilder("\"");
+		for (int i = 0; i < value.length(); i++) {
+			final char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				json.append('\\').append(c);
+			} else if (c < 0x20) {
+				json.append(String.format("\\u%04x", (int) c));
+			} else {
+				json.append(c);
+			}
+		}
+		return json.append('"').toString();
+	}
+	
+	private static class Row {
+		
+		private final int lineNumber;
+		private Map<String, String> fields;
+		private UUID kbPaymentMethodId;
+		private UUID kbAccountId;
+		
+		Row(final int lineNumber) {
+			this.lineNumber = lineNumber;
+		}
+	}
+	
+	private static class Progress {
+		
+		private long imported;
+		private long skipped;
+		private long failed;
+		
+		void fail(final PrintWriter out, final Row row, final String error) {
+			failed++;
+			out.println("{\"line\":" + row.lineNumber + ",\"kbPaymentMethodId\":" + jsonString(row.kbPaymentMethodId == null ? null : row.kbPaymentMethodId.toString()) + ",\"error\":" + jsonString(error) + "}");
+		}
+		
+		String toJsonFields() {
+			return "\"imported\":" + imported + ",\"skipped\":" + skipped + ",\"failed\":" + failed;
+		}
+	}
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.fathomstudio.killbillbasecommerceplugin;
+
+import org.killbill.billing.payment.plugin.api.PaymentMethodInfoPlugin;
+
+import java.util.UUID;
+
+/**
+ * A payment method of an account, as listed to Kill Bill. The token is the external payment method ID.
+ */
+public class BaseCommercePaymentMethodInfoPlugin implements PaymentMethodInfoPlugin {
+	
+	private final UUID kbAccountId;
+	private final BaseCommercePaymentMethod paymentMethod;
+	
+	public BaseCommercePaymentMethodInfoPlugin(final UUID kbAccountId, final BaseCommercePaymentMethod paymentMethod) {
+		this.kbAccountId = kbAccountId;
+		this.paymentMethod = paymentMethod;
+	}
+	
+	@Override
+	public UUID getAccountId() {
+		return kbAccountId;
+	}
+	
+	@Override
+	public UUID getPaymentMethodId() {
+		return paymentMethod.getKbPaymentMethodId();
+	}
+	
+	@Override
+	public boolean isDefault() {
+		return false;
+	}
+	
+	@Override
+	public String getExternalPaymentMethodId() {
+		return paymentMethod.getToken();
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.fathomstudio.killbillbasecommerceplugin;
+
+import org.killbill.billing.payment.api.PaymentMethodPlugin;
+import org.killbill.billing.util.entity.Pagination;
+
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+
+/**
+ * A page of payment method search results, read lazily from the database.
+ * <p>
+ * Offsets are record IDs rather than row counts: a page holds the matching payment methods whose record ID is greater
+ * than {@link #getCurrentOffset()}, and {@link #getNextOffset()} is the record ID of its last payment method. Nothing
+ * is ever skipped by row count, so every page is as cheap as the first one. The iterator reads the page in chunks as it
+ * advances, and the counts are only queried if asked for.
+ */
+public class BaseCommercePaymentMethodPagination implements Pagination<PaymentMethodPlugin> {
+	
+	// rows read per query while iterating
+	private static final int CHUNK_SIZE = 100;
+	
+	private final BaseCommerceDao dao;
+	private final UUID kbTenantId;
+	private final BaseCommerceDao.SearchField field;
+	private final String value;
+	private final long offset;
+	private final long limit;
+	
+	private Long nextOffset;
+	private boolean nextOffsetRead;
+	private Long totalNbRecords;
+	private Long maxNbRecords;
+	
+	public BaseCommercePaymentMethodPagination(final BaseCommerceDao dao, final UUID kbTenantId, final BaseCommerceDao.SearchField field, final String value, final long offset, final long limit) {
+		this.dao = dao;
+		this.kbTenantId = kbTenantId;
+		this.field = field;
+		this.value = value;
+		this.offset = offset;
+		this.limit = limit;
+	}
+	
+	@Override
+	public Long getCurrentOffset() {
+		return offset;
+	}
+	
+	@Override
+	public synchronized Long getNextOffset() {
+		if (!nextOffsetRead) {
+			try {
+				nextOffset = dao.getLastRecordIdOfPage(kbTenantId, field, value, offset, limit);
+			} catch (SQLException e) {
+				throw new RuntimeException(e);
+			}
+			nextOffsetRead = true;
+		}
+		return nextOffset;
+	}
+	
+	@Override
+	public synchronized Long getMaxNbRecords() {
+		if (maxNbRecords == null) {
+			try {
+				maxNbRecords = dao.countPaymentMethods(kbTenantId, BaseCommerceDao.SearchField.ALL, null);
+			} catch (SQLException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return maxNbRecords;
+	}
+	
+	@Override
+	public synchronized Long getTotalNbRecords() {
+		if (totalNbRecords == null) {
+			try {
+				totalNbRecords = dao.countPaymentMethods(kbTenantId, field, value);
+			} catch (SQLException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return totalNbRecords;
+	}
+	
+	@Override
+	public Iterator<PaymentMethodPlugin> iterator() {
+		return new Iterator<PaymentMethodPlugin>() {
+			private long lastRecordId = offset;
+			private long remaining = limit;
+			private List<BaseCommerceDao.PaymentMethodRecord> chunk;
+			private int position;
+			private boolean exhausted;
+			
+			@Override
+			public boolean hasNext() {
+				if (chunk != null && position < chunk.size()) {
+					return true;
+				}
+				if (exhausted || remaining <= 0) {
+					return false;
+				}
+				
+				// read the next chunk, starting after the last record returned
+				final int size = (int) Math.min(CHUNK_SIZE, remaining);
+				try {
+					chunk = dao.searchPaymentMethods(kbTenantId, field, value, lastRecordId, size);
+				} catch (SQLException e) {
+					throw new RuntimeException(e);
+				}
+				position = 0;
+				exhausted = chunk.size() < size;
+				return !chunk.isEmpty();
+			}
+			
+			@Override
+			public PaymentMethodPlugin next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				final BaseCommerceDao.PaymentMethodRecord record = chunk.get(position++);
+				lastRecordId = record.getRecordId();
+				remaining--;
+				return new BaseCommercePaymentMethodPlugin(record.getPaymentMethod());
+			}
+			
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.fathomstudio.killbillbasecommerceplugin;
+
+import org.killbill.billing.payment.api.PaymentMethodPlugin;
+import org.killbill.billing.payment.api.PluginProperty;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A saved payment method, as returned to Kill Bill. The token is the external payment method ID.
+ */
+public class BaseCommercePaymentMethodPlugin implements PaymentMethodPlugin {
+	
+	private final BaseCommercePaymentMethod paymentMethod;
+	
+	public BaseCommercePaymentMethodPlugin(final BaseCommercePaymentMethod paymentMethod) {
+		this.paymentMethod = paymentMethod;
+	}
+	
+	@Override
+	public UUID getKbPaymentMethodId() {
+		return paymentMethod.getKbPaymentMethodId();
+	}
+	
+	@Override
+	public String getExternalPaymentMethodId() {
+		return paymentMethod.getToken();
+	}
+	
+	@Override
+	public boolean isDefaultPaymentMethod() {
+		return false;
+	}
+	
+	@Override
+	public List<PluginProperty> getProperties() {
+		final List<PluginProperty> properties = new ArrayList<PluginProperty>(2);
+		properties.add(new PluginProperty("type", paymentMethod.getType(), false));
+		if (paymentMethod.getLastFour() != null) {
+			properties.add(new PluginProperty("lastFour", paymentMethod.getLastFour(), false));
+		}
+		return properties;
+	}
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.fathomstudio.killbillbasecommerceplugin;
+
+import com.basecommercepay.client.BankCardTransaction;
+import org.killbill.billing.payment.plugin.api.PaymentPluginStatus;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms and outcome counters of the payment operations, per tenant and payment method type.
+ * <p>
+ * Histograms have fixed buckets, so recording is a couple of atomic increments and doesn't allocate beyond the key.
+ */
+public class BaseCommercePaymentMetrics implements BaseCommerceMetricsSource {
+	
+	static final String OPERATION_PURCHASE = "purchase";
+	static final String OPERATION_ADD_PAYMENT_METHOD = "add_payment_method";
+	
+	static final String PHASE_DB_READ = "db_read";
+	static final String PHASE_GATEWAY = "gateway";
+	static final String PHASE_DB_WRITE = "db_write";
+	static final String PHASE_TOTAL = "total";
+	
+	// the decline code of charges that failed on the way to or from the gateway, rather than being rejected by it
+	static final String CODE_TRANSPORT = "transport";
+	
+	// upper bounds of the histogram buckets, from 1ms to 30s
+	private static final long[] BUCKET_BOUNDS_MILLIS = {1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000};
+	private static final long[] BUCKET_BOUNDS_NANOS = new long[BUCKET_BOUNDS_MILLIS.length];
+	
+	static {
+		for (int i = 0; i < BUCKET_BOUNDS_MILLIS.length; i++) {
+			BUCKET_BOUNDS_NANOS[i] = TimeUnit.MILLISECONDS.toNanos(BUCKET_BOUNDS_MILLIS[i]);
+		}
+	}
+	
+	// keyed by operation, tenant, type and phase
+	private final ConcurrentMap<List<String>, Histogram> durations = new ConcurrentHashMap<List<String>, Histogram>();
+	// keyed by tenant, type and status
+	private final ConcurrentMap<List<String>, AtomicLong> outcomes = new ConcurrentHashMap<List<String>, AtomicLong>();
+	// keyed by tenant, type and gateway response code
+	private final ConcurrentMap<List<String>, AtomicLong> declines = new ConcurrentHashMap<List<String>, AtomicLong>();
+	
+	/**
+	 * Record how long a phase of an operation took.
+	 *
+	 * @param operation  - {@link #OPERATION_PURCHASE} or {@link #OPERATION_ADD_PAYMENT_METHOD}
+	 * @param kbTenantId - the tenant
+	 * @param type       - the payment method type
+	 * @param phase      - the phase, e.g. {@link #PHASE_GATEWAY}
+	 * @param nanos      - the duration
+	 */
+	public void recordDuration(final String operation, final UUID kbTenantId, final String type, final String phase, final long nanos) {
+		final List<String> key = Arrays.asList(operation, String.valueOf(kbTenantId), type, phase);
+		Histogram histogram = durations.get(key);
+		if (histogram == null) {
+			final Histogram created = new Histogram();
+			histogram = durations.putIfAbsent(key, created);
+			if (histogram == null) {
+				histogram = created;
+			}
+		}
+		histogram.record(nanos);
+	}
+	
+	/**
+	 * Count the outcome of a charge.
+	 *
+	 * @param transaction - the charge, once the gateway replied
+	 */
+	public void recordOutcome(final BaseCommercePaymentTransactionInfoPlugin transaction) {
+		final String tenant = String.valueOf(transaction.getKbTenantId());
+		final String type = transaction.getPaymentMethodType();
+		increment(outcomes, Arrays.asList(tenant, type, String.valueOf(transaction.getStatus())));
+		if (transaction.getStatus() == PaymentPluginStatus.ERROR || BankCardTransaction.XS_BCT_STATUS_DECLINED.equals(transaction.getGatewayStatus())) {
+			increment(declines, Arrays.asList(tenant, type, getDeclineCode(transaction)));
+		}
+	}
+	
+	/**
+	 * @return the gateway response code, or {@link #CODE_TRANSPORT} if the gateway never answered, in which case the
+	 * error code of the transaction is an exception message that would make the label unbounded
+	 */
+	private static String getDeclineCode(final BaseCommercePaymentTransactionInfoPlugin transaction) {
+		if (transaction.getGatewayStatus() == null) {
+			return CODE_TRANSPORT;
+		}
+		return transaction.getGatewayErrorCode() == null ? "" : transaction.getGatewayErrorCode();
+	}
+	
+	@Override
+	public void appendMetrics(final StringBuilder out) {
+		out.append("# TYPE basecommerce_operation_duration_seconds histogram\n");
+		for (Map.Entry<List<String>, Histogram> entry : durations.entrySet()) {
+			final String labels = labels(new String[]{"operation", "tenant", "type", "phase"}, entry.getKey());
+			entry.getValue().append(out, labels);
+		}
+		out.append("# TYPE basecommerce_payments_total counter\n");
+		for (Map.Entry<List<String>, AtomicLong> entry : outcomes.entrySet()) {
+			out.append("basecommerce_payments_total{").append(labels(new String[]{"tenant", "type", "status"}, entry.getKey())).append("} ").append(entry.getValue().get()).append('\n');
+		}
+		out.append("# TYPE basecommerce_payment_declines_total counter\n");
+		for (Map.Entry<List<String>, AtomicLong> entry : declines.entrySet()) {
+			out.append("basecommerce_payment_declines_total{").append(labels(new String[]{"tenant", "type", "code"}, entry.getKey())).append("} ").append(entry.getValue().get()).append('\n');
+		}
+	}
+	
+	private static void increment(final ConcurrentMap<List<String>, AtomicLong> counters, final List<String> key) {
+		AtomicLong counter = counters.get(key);
+		if (counter == null) {
+			final AtomicLong created = new AtomicLong();
+			counter = counters.putIfAbsent(key, created);
+			if (counter == null) {
+				counter = created;
+			}
+		}
+		counter.incrementAndGet();
+	}
+	
+	private static String labels(final String[] names, final List<String> values) {
+		final StringBuilder labels = new StringBuilder();
+		for (int i = 0; i < names.length; i++) {
+			if (i > 0) {
+				labels.append(',');
+			}
+			final String value = values.get(i) == null ? "" : values.get(i);
+			labels.append(names[i]).append("=\"").append(value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+		}
+		return labels.toString();
+	}
+	
+	/**
+	 * A histogram with fixed buckets, safe to record into from many threads.
+	 */
+	private static class Histogram {
+		
+		// one count per bucket plus the overflow, not cumulative
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKET_BOUNDS_NANOS.length + 1);
+		private final AtomicLong sumNanos = new AtomicLong();
+		
+		void record(final long nanos) {
+			int bucket = 0;
+			while (bucket < BUCKET_BOUNDS_NANOS.length && nanos > BUCKET_BOUNDS_NANOS[bucket]) {
+				bucket++;
+			}
+			counts.incrementAndGet(bucket);
+			sumNanos.addAndGet(nanos);
+		}
+		
+		void append(final StringBuilder out, final String labels) {
+			long cumulative = 0;
+			for (int i = 0; i < BUCKET_BOUNDS_MILLIS.length; i++) {
+				cumulative += counts.get(i);
+				out.append("basecommerce_operation_duration_seconds_bucket{").append(labels).append(",le=\"").append(BUCKET_BOUNDS_MILLIS[i] / 1000.0).append("\"} ").append(cumulative).append('\n');
+			}
+			cumulative += counts.get(BUCKET_BOUNDS_MILLIS.length);
+			out.append("basecommerce_operation_duration_seconds_bucket{").append(labels).append(",le=\"+Inf\"} ").append(cumulative).append('\n');
+			out.append("basecommerce_operation_duration_seconds_sum{").append(labels).append("} ").append(sumNanos.get() / 1e9).append('\n');
+			out.append("basecommerce_operation_duration_seconds_count{").append(labels).append("} ").append(cumulative).append('\n');
+		}
+	}
+}
@@ -17,13 +17,12 @@
 
 package com.fathomstudio.killbillbasecommerceplugin;
 
-import com.basecommercepay.client.*;
+import com.basecommercepay.client.BankAccountTransaction;
+import com.basecommercepay.client.BankCardTransaction;
 import org.joda.time.DateTime;
-import org.killbill.billing.account.api.Account;
-import org.killbill.billing.account.api.AccountApiException;
+import org.joda.time.DateTimeZone;
 import org.killbill.billing.catalog.api.Currency;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
-import org.killbill.billing.osgi.libs.killbill.OSGIKillbillDataSource;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillLogService;
 import org.killbill.billing.payment.api.PaymentMethodPlugin;
 import org.killbill.billing.payment.api.PluginProperty;
@@ -35,29 +34,230 @@ import org.killbill.billing.util.entity.Pagination;
 import org.osgi.service.log.LogService;
 
 import java.math.BigDecimal;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The BluePay gateway interface.
  */
 public class BaseCommercePaymentPluginApi implements PaymentPluginApi {
-	private static final String TYPE_CARD = "card";
-	private static final String TYPE_BANK = "bank";
+	static final String TYPE_CARD = "card";
+	static final String TYPE_BANK = "bank";
 	
 	private final Properties properties;
 	private final OSGIKillbillLogService logService;
 	private OSGIKillbillAPI killbillAPI;
-	private OSGIKillbillDataSource dataSource;
+	private final BaseCommerceDao dao;
+	private final BaseCommerceCredentialsCache credentialsCache;
+	private final BaseCommerceGateway gateway;
+	private final BaseCommercePaymentMethodCache paymentMethodCache;
+	private final BaseCommerceChargeExecutor chargeExecutor;
+	private final BaseCommercePaymentMetrics paymentMetrics;
+	private final ExecutorService refreshExecutor;
+	private final BaseCommerceIdempotencyStore idempotencyStore;
+	private final BaseCommerceNotificationQueue notificationQueue;
+	private final BaseCommerceAccountCache accountCache;
+	private final boolean bankDebitsPending;
+	private final long pendingTimeoutMillis;
 	
-	public BaseCommercePaymentPluginApi(final Properties properties, final OSGIKillbillLogService logService, final OSGIKillbillAPI killbillAPI, OSGIKillbillDataSource dataSource) {
+	public BaseCommercePaymentPluginApi(final Properties properties, final OSGIKillbillLogService logService, final OSGIKillbillAPI killbillAPI, final BaseCommerceDao dao, final BaseCommerceCredentialsCache credentialsCache, final BaseCommerceGateway gateway, final BaseCommercePaymentMethodCache paymentMethodCache, final BaseCommerceChargeExecutor chargeExecutor, final BaseCommercePaymentMetrics paymentMetrics, final ExecutorService refreshExecutor, final BaseCommerceIdempotencyStore idempotencyStore, final BaseCommerceNotificationQueue notificationQueue, final BaseCommerceAccountCache accountCache) {
 		this.properties = properties;
 		this.logService = logService;
 		this.killbillAPI = killbillAPI;
-		this.dataSource = dataSource;
+		this.dao = dao;
+		this.credentialsCache = credentialsCache;
+		this.gateway = gateway;
+		this.paymentMethodCache = paymentMethodCache;
+		this.chargeExecutor = chargeExecutor;
+		this.paymentMetrics = paymentMetrics;
+		this.refreshExecutor = refreshExecutor;
+		this.idempotencyStore = idempotencyStore;
+		this.notificationQueue = notificationQueue;
+		this.accountCache = accountCache;
+		final BaseCommerceConfig config = new BaseCommerceConfig(properties);
+		this.bankDebitsPending = config.isReconciliationEnabled();
+		this.pendingTimeoutMillis = TimeUnit.SECONDS.toMillis(config.getPendingChargesTimeoutSeconds());
+	}
+	
+	/**
+	 * Get the credentials of the tenant, only querying the database if they aren't cached yet.
+	 * <p>
+	 * A connection is only borrowed from the pool on a cache miss, and returned before this method exits.
+	 *
+	 * @param kbTenantId - the tenant
+	 * @return the credentials
+	 * @throws PaymentPluginApiException if the credentials could not be retrieved
+	 */
+	private BaseCommerceCredentials getCredentials(final UUID kbTenantId) throws PaymentPluginApiException {
+		try {
+			return credentialsCache.get(kbTenantId, new Callable<BaseCommerceCredentials>() {
+				@Override
+				public BaseCommerceCredentials call() throws Exception {
+					final BaseCommerceCredentials credentials = dao.getCredentials(kbTenantId);
+					if (credentials == null) {
+						throw new SQLException("no results");
+					}
+					return credentials;
+				}
+			});
+		} catch (ExecutionException e) {
+			logService.log(LogService.LOG_ERROR, "could not retrieve credentials: ", e.getCause());
+			throw new PaymentPluginApiException("could not retrieve credentials", e.getCause());
+		}
+	}
+	
+	/**
+	 * Get everything needed to charge a payment method: the tenant credentials and the payment method token.
+	 * <p>
+	 * If the credentials are cached only the token is read, otherwise both are read with a single query.
+	 *
+	 * @param kbTenantId        - the tenant
+	 * @param kbPaymentMethodId - the payment method
+	 * @return the credentials and the payment method
+	 * @throws PaymentPluginApiException if either could not be retrieved
+	 */
+	private BaseCommerceDao.ChargeDetails getChargeDetails(final UUID kbTenantId, final UUID kbPaymentMethodId) throws PaymentPluginApiException {
+		final BaseCommerceCredentials cachedCredentials = credentialsCache.getIfPresent(kbTenantId);
+		if (cachedCredentials != null) {
+			return new BaseCommerceDao.ChargeDetails(cachedCredentials, getPaymentMethod(kbPaymentMethodId));
+		}
+		
+		final BaseCommerceDao.ChargeDetails chargeDetails;
+		try {
+			chargeDetails = dao.getChargeDetails(kbTenantId, kbPaymentMethodId);
+			if (chargeDetails == null) {
+				throw new SQLException("no results");
+			}
+		} catch (SQLException e) {
+			logService.log(LogService.LOG_ERROR, "could not retrieve credentials: ", e);
+			throw new PaymentPluginApiException("could not retrieve credentials", e);
+		}
+		final BaseCommerceCredentials credentials = credentialsCache.put(chargeDetails.getCredentials());
+		
+		if (chargeDetails.getPaymentMethod() == null) {
+			final SQLException e = new SQLException("no results");
+			logService.log(LogService.LOG_ERROR, "could not retrieve transaction ID: ", e);
+			throw new PaymentPluginApiException("could not retrieve transaction ID", e);
+		}
+		paymentMethodCache.put(chargeDetails.getPaymentMethod());
+		return new BaseCommerceDao.ChargeDetails(credentials, chargeDetails.getPaymentMethod());
+	}
+	
+	/**
+	 * Check that the given credentials can be used with the gateway.
+	 *
+	 * @param credentials - the tenant credentials
+	 * @throws PaymentPluginApiException if the credentials are incomplete
+	 */
+	private void checkCredentials(final BaseCommerceCredentials credentials) throws PaymentPluginApiException {
+		// setup the Base Commerce payment object with the given auth details
+		if (credentials.getUsername() == null || credentials.getUsername().isEmpty()) {
+			throw new PaymentPluginApiException("missing username", new IllegalArgumentException());
+		}
+		try {
+			if (!credentials.hasPassword()) {
+				throw new PaymentPluginApiException("missing password", new IllegalArgumentException());
+			}
+			if (!credentials.hasKey()) {
+				throw new PaymentPluginApiException("missing key", new IllegalArgumentException());
+			}
+		} catch (IllegalStateException e) {
+			// evicted since they were read, the next call reads them again
+			throw new PaymentPluginApiException("could not retrieve credentials", e);
+		}
+	}
+	
+	/**
+	 * Get the token saved for the given payment method, from the cache if possible.
+	 *
+	 * @param kbPaymentMethodId - the payment method
+	 * @return the saved payment method
+	 * @throws PaymentPluginApiException if the payment method could not be retrieved
+	 */
+	private BaseCommercePaymentMethod getPaymentMethod(final UUID kbPaymentMethodId) throws PaymentPluginApiException {
+		final BaseCommercePaymentMethod cachedPaymentMethod = paymentMethodCache.getIfPresent(kbPaymentMethodId);
+		if (cachedPaymentMethod != null) {
+			return cachedPaymentMethod;
+		}
+		try {
+			final BaseCommercePaymentMethod paymentMethod = dao.getPaymentMethod(kbPaymentMethodId);
+			if (paymentMethod == null) {
+				throw new SQLException("no results");
+			}
+			paymentMethodCache.put(paymentMethod);
+			return paymentMethod;
+		} catch (SQLException e) {
+			logService.log(LogService.LOG_ERROR, "could not retrieve transaction ID: ", e);
+			throw new PaymentPluginApiException("could not retrieve transaction ID", e);
+		}
+	}
+	
+	/**
+	 * Record the result of a gateway transaction.
+	 * <p>
+	 * The gateway has already been called at that point, so a failure is logged rather than thrown: failing the call
+	 * would make Kill Bill retry a payment that went through.
+	 *
+	 * @param transaction - the transaction
+	 */
+	private void saveTransaction(final BaseCommercePaymentTransactionInfoPlugin transaction) {
+		try {
+			dao.saveTransaction(transaction);
+		} catch (SQLException e) {
+			logService.log(LogService.LOG_ERROR, "could not save transaction " + transaction.getKbTransactionPaymentId() + ": ", e);
+		}
+	}
+	
+	/**
+	 * @return the saved attempt of a transaction, or null if it was never attempted
+	 * @throws PaymentPluginApiException if the attempts could not be read
+	 */
+	private BaseCommercePaymentTransactionInfoPlugin getTransaction(final UUID kbTenantId, final UUID kbTransactionId) throws PaymentPluginApiException {
+		try {
+			return dao.getTransaction(kbTenantId, kbTransactionId);
+		} catch (SQLException e) {
+			logService.log(LogService.LOG_ERROR, "could not retrieve previous attempts: ", e);
+			throw new PaymentPluginApiException("could not retrieve previous attempts", e);
+		}
+	}
+	
+	/**
+	 * Record a transaction as pending, unless another attempt already did.
+	 *
+	 * @return true if the transaction may be sent to the gateway
+	 * @throws PaymentPluginApiException if the transaction could not be recorded, in which case it must not be sent
+	 */
+	private boolean startTransaction(final BaseCommercePaymentTransactionInfoPlugin pending) throws PaymentPluginApiException {
+		try {
+			return dao.startTransaction(pending);
+		} catch (SQLException e) {
+			logService.log(LogService.LOG_ERROR, "could not record transaction " + pending.getKbTransactionPaymentId() + ": ", e);
+			throw new PaymentPluginApiException("could not record the transaction", e);
+		}
+	}
+	
+	/**
+	 * Save the token of a payment method, replacing any previous one.
+	 *
+	 * @param kbTenantId    - the tenant owning the payment method
+	 * @param paymentMethod - the payment method to save
+	 * @throws PaymentPluginApiException if the payment method could not be saved
+	 */
+	private void savePaymentMethod(final UUID kbTenantId, final BaseCommercePaymentMethod paymentMethod) throws PaymentPluginApiException {
+		// an upsert may replace the token of a cached payment method, drop it before the write so it can't outlive it; the
+		// next read caches it again with the version the database gave it
+		paymentMethodCache.invalidate(paymentMethod.getKbPaymentMethodId());
+		try {
+			dao.savePaymentMethod(kbTenantId, paymentMethod);
+		} catch (SQLException e) {
+			logService.log(LogService.LOG_ERROR, "could not save token: ", e);
+			throw new PaymentPluginApiException("could not save token", e);
+		}
 	}
 	
 	@Override
@@ -204,6 +404,9 @@ public class BaseCommercePaymentPluginApi implements PaymentPluginApi {
 	
 	/**
 	 * Called to actually make the payment.
+	 * <p>
+	 * Kill Bill retries a purchase after a timeout with the same transaction ID. A transaction with a final outcome is
+	 * returned as it was saved, and one still in flight is waited for, so the customer is charged at most once.
 	 *
 	 * @param kbAccountId       - the account
 	 * @param kbPaymentId       - the paymentID
@@ -218,222 +421,176 @@ public class BaseCommercePaymentPluginApi implements PaymentPluginApi {
 	 */
 	@Override
 	public PaymentTransactionInfoPlugin purchasePayment(final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId, final UUID kbPaymentMethodId, final BigDecimal amount, final Currency currency, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
-		String username;
-		String password;
-		String key;
-		Boolean test;
-		
-		try (Connection connection = dataSource.getDataSource().getConnection()) {
-			
-			String credentialsQuery = "SELECT `username`, `password`, `key`, `test` FROM `baseCommerce_credentials` WHERE `tenantId` = ?";
-			try (PreparedStatement statement = connection.prepareStatement(credentialsQuery)) {
-				statement.setString(1, context.getTenantId().toString());
-				ResultSet resultSet = statement.executeQuery();
-				if (!resultSet.next()) {
-					throw new SQLException("no results");
-				}
-				username = resultSet.getString("username");
-				password = resultSet.getString("password");
-				key = resultSet.getString("key");
-				test = resultSet.getBoolean("test");
-				logService.log(LogService.LOG_INFO, "username: " + username);
-				logService.log(LogService.LOG_INFO, "password: " + password);
-				logService.log(LogService.LOG_INFO, "key: " + key);
-				logService.log(LogService.LOG_INFO, "test: " + test);
-			} catch (SQLException e) {
-				logService.log(LogService.LOG_ERROR, "could not retrieve credentials: ", e);
-				throw new PaymentPluginApiException("could not retrieve credentials", e);
-			}
-			
-			// setup the Base Commerce payment object with the given auth details
-			if (username == null || username.isEmpty()) {
-				throw new PaymentPluginApiException("missing username", new IllegalArgumentException());
-			}
-			if (password == null || password.isEmpty()) {
-				throw new PaymentPluginApiException("missing password", new IllegalArgumentException());
-			}
-			if (key == null || key.isEmpty()) {
-				throw new PaymentPluginApiException("missing key", new IllegalArgumentException());
-			}
-			BaseCommerceClient client = new BaseCommerceClient(username, password, key);
-			if (test) {
-				client.setSandbox(true);
-			}
-			
-			// get the account associated with the ID
-			final Account account;
-			try {
-				account = killbillAPI.getAccountUserApi().getAccountById(kbAccountId, context);
-			} catch (AccountApiException e) {
-				throw new RuntimeException(e);
-			}
-			
-			String token;
-			String type;
-			
-			String transactionIdQuery = "SELECT `token`, `type` FROM `baseCommerce_paymentMethods` WHERE `paymentMethodId` = ?";
-			try (PreparedStatement statement = connection.prepareStatement(transactionIdQuery)) {
-				statement.setString(1, kbPaymentMethodId.toString());
-				ResultSet resultSet = statement.executeQuery();
-				if (!resultSet.next()) {
-					throw new SQLException("no results");
-				}
-				token = resultSet.getString("token");
-				type = resultSet.getString("type");
-			} catch (SQLException e) {
-				logService.log(LogService.LOG_ERROR, "could not retrieve transaction ID: ", e);
-				throw new PaymentPluginApiException("could not retrieve transaction ID", e);
-			}
-			
-			boolean success = true;
-			String code = "";
-			String message = "";
-			
-			if (Objects.equals(type, TYPE_CARD)) {
-				// prepare the transaction object
-				BankCardTransaction trans = new BankCardTransaction();
-				trans.setAmount(amount.doubleValue());
-				trans.setType(BankCardTransaction.XS_BCT_TYPE_SALE);
-				trans.setToken(token);
-				
-				// send the transaction to BC
-				try {
-					trans = client.processBankCardTransaction(trans);
-				} catch (BaseCommerceClientException e) {
-					success = false;
-					code = e.getMessage();
-					message = e.getMessage();
-					logService.log(LogService.LOG_ERROR, "could not make payment: ", e);
-				}
-				
-				logService.log(LogService.LOG_INFO, "transaction status: " + trans.getStatus());
-				logService.log(LogService.LOG_INFO, "transaction ID" + trans.getTransactionId());
-				
-				// check if we did OK
-				if (trans.isStatus(BankCardTransaction.XS_BCT_STATUS_FAILED)) {
-					success = false;
-					code = trans.getResponseCode();
-					message = trans.getResponseMessage();
-				} else if (trans.isStatus(BankCardTransaction.XS_BCT_STATUS_DECLINED)) {
-					code = trans.getResponseCode();
-					message = trans.getResponseMessage();
-				} else {
-					// success!
-				}
-			} else if (Objects.equals(type, TYPE_BANK)) {
-				// prepare the transaction object
-				BankAccountTransaction trans = new BankAccountTransaction();
-				trans.setAmount(amount.doubleValue());
-				trans.setType(BankAccountTransaction.XS_BAT_TYPE_DEBIT);
-				trans.setMethod(BankAccountTransaction.XS_BAT_METHOD_WEB);
-				trans.setToken(token);
-				
-				// send the transaction to BC
-				try {
-					trans = client.processBankAccountTransaction(trans);
-				} catch (BaseCommerceClientException e) {
-					success = false;
-					code = e.getMessage();
-					message = e.getMessage();
-					logService.log(LogService.LOG_ERROR, "could not make payment: ", e);
-				}
-				
-				logService.log(LogService.LOG_INFO, "transaction status: " + trans.getStatus());
-				logService.log(LogService.LOG_INFO, "transaction ID" + trans.getMerchantTransactionID() + " " + trans.getRecurringTransactionID() + " " + trans.getBankAccountTransactionId() + " " + trans.getBankAccountTransactionLinkedId());
-				
-				// check if we did OK
-				if (trans.isStatus(BankAccountTransaction.XS_BAT_STATUS_FAILED)) {
-					String _message = "";
-					for (String mess : trans.getMessages()) {
-						_message += mess + " ";
-					}
-					success = false;
-					code = message;
-					message = _message;
-				}
-			} else {
-				throw new PaymentPluginApiException("unknown type: " + type, new IllegalArgumentException());
-			}
-			
-			logService.log(LogService.LOG_INFO, "BC payment completed");
-			logService.log(LogService.LOG_INFO, "success: " + success);
-			logService.log(LogService.LOG_INFO, "message: " + message);
-			logService.log(LogService.LOG_INFO, "code: " + code);
-			
-			// send response
-			final boolean finalSuccess = success;
-			final String finalMessage = message;
-			final String finalCode = code;
-			return new PaymentTransactionInfoPlugin() {
-				@Override
-				public UUID getKbPaymentId() {
-					return kbPaymentId;
-				}
-				
-				@Override
-				public UUID getKbTransactionPaymentId() {
-					return kbTransactionId;
-				}
-				
-				@Override
-				public TransactionType getTransactionType() {
-					return TransactionType.PURCHASE;
-				}
-				
-				@Override
-				public BigDecimal getAmount() {
-					return amount;
-				}
-				
-				@Override
-				public Currency getCurrency() {
-					return currency;
-				}
-				
-				@Override
-				public DateTime getCreatedDate() {
-					return DateTime.now();
-				}
-				
-				@Override
-				public DateTime getEffectiveDate() {
-					return DateTime.now();
-				}
-				
-				@Override
-				public PaymentPluginStatus getStatus() {
-					return finalSuccess ? PaymentPluginStatus.PROCESSED : PaymentPluginStatus.ERROR;
-				}
-				
-				@Override
-				public String getGatewayError() {
-					return finalMessage;
-				}
-				
-				@Override
-				public String getGatewayErrorCode() {
-					return finalCode;
-				}
-				
+		final BaseCommercePaymentTransactionInfoPlugin completed = idempotencyStore.getIfPresent(context.getTenantId(), kbTransactionId);
+		if (completed != null) {
+			return completed;
+		}
+		try {
+			return idempotencyStore.runOnce(kbTransactionId, new Callable<BaseCommercePaymentTransactionInfoPlugin>() {
 				@Override
-				public String getFirstPaymentReferenceId() {
-					return null;
+				public BaseCommercePaymentTransactionInfoPlugin call() throws Exception {
+					return purchase(kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, amount, currency, context);
 				}
-				
+			});
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof PaymentPluginApiException) {
+				throw (PaymentPluginApiException) e.getCause();
+			}
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new PaymentPluginApiException("could not make payment", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new PaymentPluginApiException("interrupted while waiting for a previous attempt", e);
+		}
+	}
+	
+	/**
+	 * Make the payment, unless a previous attempt already did.
+	 *
+	 * @return the outcome of the payment
+	 * @throws PaymentPluginApiException if the payment could not be attempted
+	 */
+	private BaseCommercePaymentTransactionInfoPlugin purchase(final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId, final UUID kbPaymentMethodId, final BigDecimal amount, final Currency currency, final CallContext context) throws PaymentPluginApiException {
+		final long startNanos = System.nanoTime();
+		
+		// a pending transaction is still being charged in the background; a canceled one never reached the gateway
+		final BaseCommercePaymentTransactionInfoPlugin previous = getTransaction(context.getTenantId(), kbTransactionId);
+		if (previous != null && previous.getStatus() != PaymentPluginStatus.CANCELED) {
+			logService.log(LogService.LOG_INFO, "transaction " + kbTransactionId + " was already attempted, returning its " + previous.getStatus() + " outcome");
+			idempotencyStore.remember(previous);
+			return previous;
+		}
+		
+		// read what we need from the database first, so no connection is held during the gateway call
+		final BaseCommerceDao.ChargeDetails chargeDetails = getChargeDetails(context.getTenantId(), kbPaymentMethodId);
+		final long dbReadNanos = System.nanoTime() - startNanos;
+		final BaseCommerceCredentials credentials = chargeDetails.getCredentials();
+		final BaseCommercePaymentMethod paymentMethod = chargeDetails.getPaymentMethod();
+		final String type = paymentMethod.getType();
+		if (!Objects.equals(type, TYPE_CARD) && !Objects.equals(type, TYPE_BANK)) {
+			throw new PaymentPluginApiException("unknown type: " + type, new IllegalArgumentException());
+		}
+		paymentMetrics.recordDuration(BaseCommercePaymentMetrics.OPERATION_PURCHASE, context.getTenantId(), type, BaseCommercePaymentMetrics.PHASE_DB_READ, dbReadNanos);
+		
+		checkCredentials(credentials);
+		
+		final DateTime now = DateTime.now(DateTimeZone.UTC);
+		final BaseCommercePaymentTransactionInfoPlugin pending = new BaseCommercePaymentTransactionInfoPlugin(context.getTenantId(), kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId,
+		                                                                                                      TransactionType.PURCHASE, type, amount, currency,
+		                                                                                                      PaymentPluginStatus.PENDING, null, null, null, null, now, now);
+		
+		// record the transaction as pending before the gateway call: a retry reaching another node then returns it
+		// instead of charging again, and the Janitor finds it even if the charge hasn't run yet
+		if (!startTransaction(pending)) {
+			final BaseCommercePaymentTransactionInfoPlugin current = getTransaction(context.getTenantId(), kbTransactionId);
+			logService.log(LogService.LOG_INFO, "transaction " + kbTransactionId + " is being attempted elsewhere, returning its " + current.getStatus() + " outcome");
+			idempotencyStore.remember(current);
+			return current;
+		}
+		
+		BaseCommercePaymentTransactionInfoPlugin result = null;
+		if (chargeExecutor.isEnabled()) {
+			final boolean queued = chargeExecutor.submit(new BaseCommerceChargeExecutor.Charge() {
 				@Override
-				public String getSecondPaymentReferenceId() {
-					return null;
+				public void run() {
+					// past half the pending timeout, getPaymentInfo may be about to cancel it and let Kill Bill retry
+					if (System.currentTimeMillis() - pending.getEffectiveDate().getMillis() > pendingTimeoutMillis / 2) {
+						cancelPending(pending, "queued for too long", DateTime.now(DateTimeZone.UTC));
+					} else {
+						charge(credentials, paymentMethod, pending);
+					}
 				}
 				
 				@Override
-				public List<PluginProperty> getProperties() {
-					return null;
+				public void cancel() {
+					// the row is saved with a precision of one second
+					cancelPending(pending, "plugin stopped before the charge was made", pending.getEffectiveDate().plusSeconds(1));
 				}
-			};
-		} catch (SQLException e) {
-			logService.log(LogService.LOG_ERROR, "could not retrieve transaction ID: ", e);
-			throw new PaymentPluginApiException("could not retrieve transaction ID", e);
+			});
+			if (queued) {
+				result = pending;
+			} else {
+				// the queue is full: charge on the caller thread, which slows down callers until the queue drains
+				logService.log(LogService.LOG_WARNING, "charge queue is full, charging " + kbTransactionId + " synchronously");
+			}
+		}
+		if (result == null) {
+			result = charge(credentials, paymentMethod, pending);
+		}
+		
+		paymentMetrics.recordDuration(BaseCommercePaymentMetrics.OPERATION_PURCHASE, context.getTenantId(), type, BaseCommercePaymentMetrics.PHASE_TOTAL, System.nanoTime() - startNanos);
+		return result;
+	}
+	
+	/**
+	 * Send the charge to Base Commerce and record its outcome.
+	 *
+	 * @param credentials   - the tenant credentials
+	 * @param paymentMethod - the payment method to charge
+	 * @param pending       - the transaction being made
+	 * @return the final state of the transaction
+	 */
+	private BaseCommercePaymentTransactionInfoPlugin charge(final BaseCommerceCredentials credentials, final BaseCommercePaymentMethod paymentMethod, final BaseCommercePaymentTransactionInfoPlugin pending) {
+		PaymentPluginStatus status;
+		String code;
+		String message;
+		String gatewayTransactionId = null;
+		String gatewayStatus = null;
+		
+		final long gatewayStartNanos = System.nanoTime();
+		try {
+			final BaseCommerceGatewayResult gatewayResult = gateway.charge(credentials, paymentMethod.getType(), paymentMethod.getToken(), pending.getAmount());
+			// card declines come back as processed calls, but nothing was paid
+			status = gatewayResult.isSuccess() && !Objects.equals(gatewayResult.getStatus(), BankCardTransaction.XS_BCT_STATUS_DECLINED) ? PaymentPluginStatus.PROCESSED : PaymentPluginStatus.ERROR;
+			if (status == PaymentPluginStatus.PROCESSED && bankDebitsPending && Objects.equals(paymentMethod.getType(), TYPE_BANK)
+			    && !Objects.equals(gatewayResult.getStatus(), BankAccountTransaction.XS_BAT_STATUS_SETTLED)) {
+				// bank debits settle days later, the reconciler or a notification will finish them
+				status = PaymentPluginStatus.PENDING;
+			}
+			code = gatewayResult.getCode();
+			message = gatewayResult.getMessage();
+			gatewayTransactionId = gatewayResult.getTransactionId();
+			gatewayStatus = gatewayResult.getStatus();
+		} catch (BaseCommerceGatewayUnavailableException e) {
+			// nothing was sent to the gateway, so Kill Bill can safely retry the payment
+			logService.log(LogService.LOG_WARNING, "payment not attempted: " + e.getMessage());
+			status = PaymentPluginStatus.CANCELED;
+			code = "";
+			message = e.getMessage();
+		} catch (BaseCommerceGatewayException e) {
+			if (e.isNotSent()) {
+				// the connection could not be made, even after retries
+				logService.log(LogService.LOG_WARNING, "payment not sent: " + e.getMessage());
+				status = PaymentPluginStatus.CANCELED;
+			} else if (e.isOutcomeUnknown()) {
+				// timed out or cut off once sent, the charge may have gone through: Kill Bill must neither retry it nor
+				// consider it failed
+				logService.log(LogService.LOG_WARNING, "payment outcome unknown: " + e.getMessage());
+				status = PaymentPluginStatus.UNDEFINED;
+			} else {
+				status = PaymentPluginStatus.ERROR;
+			}
+			code = e.getMessage();
+			message = e.getMessage();
 		}
+		paymentMetrics.recordDuration(BaseCommercePaymentMetrics.OPERATION_PURCHASE, pending.getKbTenantId(), pending.getPaymentMethodType(), BaseCommercePaymentMetrics.PHASE_GATEWAY, System.nanoTime() - gatewayStartNanos);
+		
+		logService.log(LogService.LOG_INFO, "BC payment completed");
+		logService.log(LogService.LOG_INFO, "status: " + status);
+		logService.log(LogService.LOG_INFO, "message: " + message);
+		logService.log(LogService.LOG_INFO, "code: " + code);
+		
+		final BaseCommercePaymentTransactionInfoPlugin result = pending.withOutcome(status, gatewayTransactionId, gatewayStatus, code, message, DateTime.now(DateTimeZone.UTC));
+		final long dbWriteStartNanos = System.nanoTime();
+		saveTransaction(result);
+		idempotencyStore.remember(result);
+		paymentMetrics.recordDuration(BaseCommercePaymentMetrics.OPERATION_PURCHASE, pending.getKbTenantId(), pending.getPaymentMethodType(), BaseCommercePaymentMetrics.PHASE_DB_WRITE, System.nanoTime() - dbWriteStartNanos);
+		paymentMetrics.recordOutcome(result);
+		
+		// send response
+		return result;
 	}
 	
 	@Override
@@ -651,8 +808,50 @@ public class BaseCommercePaymentPluginApi implements PaymentPluginApi {
 	
 	@Override
 	public List<PaymentTransactionInfoPlugin> getPaymentInfo(final UUID kbAccountId, final UUID kbPaymentId, final Iterable<PluginProperty> properties, final TenantContext context) throws PaymentPluginApiException {
-		// not implemented
-		return Collections.emptyList();
+		// answered from what we saved when the transactions were made, Base Commerce isn't contacted
+		final List<BaseCommercePaymentTransactionInfoPlugin> transactions;
+		try {
+			transactions = dao.getTransactions(context.getTenantId(), kbPaymentId);
+		} catch (SQLException e) {
+			logService.log(LogService.LOG_ERROR, "could not retrieve transactions: ", e);
+			throw new PaymentPluginApiException("could not retrieve transactions", e);
+		}
+		
+		// a charge pending for that long without a gateway transaction was lost in a crash, the Janitor may retry it
+		final DateTime staleBefore = DateTime.now(DateTimeZone.UTC).minus(pendingTimeoutMillis);
+		final List<PaymentTransactionInfoPlugin> result = new ArrayList<PaymentTransactionInfoPlugin>(transactions.size());
+		for (BaseCommercePaymentTransactionInfoPlugin transaction : transactions) {
+			if (transaction.getStatus() == PaymentPluginStatus.PENDING && transaction.getFirstPaymentReferenceId() == null && transaction.getEffectiveDate().isBefore(staleBefore)) {
+				final BaseCommercePaymentTransactionInfoPlugin canceled = cancelPending(transaction, "never reached the gateway", staleBefore);
+				result.add(canceled == null ? transaction : canceled);
+			} else {
+				result.add(transaction);
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Cancel a pending charge that never reached the gateway, so Kill Bill can make it again.
+	 *
+	 * @param pending       - the charge
+	 * @param message       - why it was canceled
+	 * @param startedBefore - the charge is left alone if it was attempted again since then
+	 * @return the canceled charge, or null if it was left alone
+	 */
+	private BaseCommercePaymentTransactionInfoPlugin cancelPending(final BaseCommercePaymentTransactionInfoPlugin pending, final String message, final DateTime startedBefore) {
+		final BaseCommercePaymentTransactionInfoPlugin canceled = pending.withOutcome(PaymentPluginStatus.CANCELED, null, null, "", message, DateTime.now(DateTimeZone.UTC));
+		try {
+			if (!dao.cancelPendingTransaction(canceled, startedBefore)) {
+				return null;
+			}
+		} catch (SQLException e) {
+			logService.log(LogService.LOG_ERROR, "could not cancel transaction " + pending.getKbTransactionPaymentId() + ": ", e);
+			return null;
+		}
+		logService.log(LogService.LOG_WARNING, "transaction " + pending.getKbTransactionPaymentId() + " canceled: " + message);
+		paymentMetrics.recordOutcome(canceled);
+		return canceled;
 	}
 	
 	@Override
@@ -699,213 +898,147 @@ public class BaseCommercePaymentPluginApi implements PaymentPluginApi {
 	 */
 	@Override
 	public void addPaymentMethod(final UUID kbAccountId, final UUID kbPaymentMethodId, final PaymentMethodPlugin paymentMethodProps, final boolean setDefault, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
-		String username;
-		String password;
-		String key;
-		Boolean test;
+		// the credentials are read (or taken from the cache) before the gateway call, and the token saved after it, so
+		// no connection is held while Base Commerce is tokenizing
+		final long startNanos = System.nanoTime();
+		final BaseCommerceCredentials credentials = getCredentials(context.getTenantId());
+		final long dbReadNanos = System.nanoTime() - startNanos;
+		checkCredentials(credentials);
 		
-		try (Connection connection = dataSource.getDataSource().getConnection()) {
-			
-			String credentialsQuery = "SELECT `username`, `password`, `key`, `test` FROM `baseCommerce_credentials` WHERE `tenantId` = ?";
-			try (PreparedStatement statement = connection.prepareStatement(credentialsQuery)) {
-				statement.setString(1, context.getTenantId().toString());
-				ResultSet resultSet = statement.executeQuery();
-				if (!resultSet.next()) {
-					throw new SQLException("no results");
-				}
-				username = resultSet.getString("username");
-				password = resultSet.getString("password");
-				key = resultSet.getString("key");
-				test = resultSet.getBoolean("test");
-				logService.log(LogService.LOG_INFO, "username: " + username);
-				logService.log(LogService.LOG_INFO, "password: " + password);
-				logService.log(LogService.LOG_INFO, "key: " + key);
-				logService.log(LogService.LOG_INFO, "test: " + test);
-			} catch (SQLException e) {
-				logService.log(LogService.LOG_ERROR, "could not retrieve credentials: ", e);
-				throw new PaymentPluginApiException("could not retrieve credentials", e);
-			}
-			
-			// setup the Base Commerce payment object with the given auth details
-			if (username == null || username.isEmpty()) {
-				throw new PaymentPluginApiException("missing username", new IllegalArgumentException());
-			}
-			if (password == null || password.isEmpty()) {
-				throw new PaymentPluginApiException("missing password", new IllegalArgumentException());
+		String paymentType = null;
+		
+		String creditCardNumber = null;
+		String creditCardCVV2 = null;
+		String creditCardExpirationMonth = null;
+		String creditCardExpirationYear = null;
+		
+		String routingNumber = null;
+		String accountNumber = null;
+		
+		// get the client-passed properties including BluePay auth details and appropriate credit card or ACH details
+		for (PluginProperty property : paymentMethodProps.getProperties()) {
+			String kv_key = property.getKey();
+			Object value = property.getValue();
+			if (Objects.equals(kv_key, "paymentType")) {
+				logService.log(LogService.LOG_INFO, "setting paymentType");
+				paymentType = value.toString();
+			} else if (Objects.equals(kv_key, "creditCardNumber")) {
+				creditCardNumber = value.toString();
+			} else if (Objects.equals(kv_key, "creditCardCVV2")) {
+				creditCardCVV2 = value.toString();
+			} else if (Objects.equals(kv_key, "creditCardExpirationMonth")) {
+				creditCardExpirationMonth = value.toString();
+			} else if (Objects.equals(kv_key, "creditCardExpirationYear")) {
+				creditCardExpirationYear = value.toString();
+			} else if (Objects.equals(kv_key, "routingNumber")) {
+				routingNumber = value.toString();
+			} else if (Objects.equals(kv_key, "accountNumber")) {
+				accountNumber = value.toString();
+			} else {
+				throw new PaymentPluginApiException("unrecognized plugin property: " + kv_key, new IllegalArgumentException());
 			}
-			if (key == null || key.isEmpty()) {
-				throw new PaymentPluginApiException("missing key", new IllegalArgumentException());
+		}
+		
+		// setup the customer that will be associated with this token; the account would be fetched from Kill Bill (or
+		// the cache) the first time one of its fields is read
+	/*final BaseCommerceAccountContext account = accountCache.lazy(kbAccountId, context);
+	HashMap<String, String> customer = new HashMap<>();
+	String firstName = account.getFirstName();
+	String lastName = account.getLastName();
+	logService.log(LogService.LOG_INFO, "firstName: " + firstName);
+	logService.log(LogService.LOG_INFO, "lastName: " + lastName);
+	customer.put("firstName", firstName);
+	customer.put("lastName", lastName);
+	customer.put("address1", account.getAddress1());
+	customer.put("address2", account.getAddress2());
+	customer.put("city", account.getCity());
+	customer.put("state", account.getStateOrProvince());
+	customer.put("zip", account.getPostalCode());
+	customer.put("country", account.getCountry());
+	customer.put("phone", account.getPhone());
+	customer.put("email", account.getEmail());
+	bluePay.setCustomerInformation(customer);*/
+		
+		String token;
+		String type;
+		String lastFour;
+		long gatewayStartNanos;
+		
+		// setup paymentType-specific payment details
+		if (paymentType == null || paymentType.isEmpty()) {
+			throw new PaymentPluginApiException("missing paymentType", new IllegalArgumentException());
+		}
+		if (Objects.equals(paymentType, "card")) { // credit card
+			if (creditCardNumber == null || creditCardNumber.isEmpty()) {
+				throw new PaymentPluginApiException("missing creditCardNumber", new IllegalArgumentException());
 			}
-			BaseCommerceClient client = new BaseCommerceClient(username, password, key);
-			if (test) {
-				client.setSandbox(true);
-			}
-			
-			String paymentType = null;
-			
-			String creditCardNumber = null;
-			String creditCardCVV2 = null;
-			String creditCardExpirationMonth = null;
-			String creditCardExpirationYear = null;
-			
-			String routingNumber = null;
-			String accountNumber = null;
-			
-			// get the client-passed properties including BluePay auth details and appropriate credit card or ACH details
-			for (PluginProperty property : paymentMethodProps.getProperties()) {
-				String kv_key = property.getKey();
-				Object value = property.getValue();
-				logService.log(LogService.LOG_INFO, "key: " + kv_key);
-				logService.log(LogService.LOG_INFO, "value: " + value);
-				if (Objects.equals(kv_key, "paymentType")) {
-					logService.log(LogService.LOG_INFO, "setting paymentType");
-					paymentType = value.toString();
-				} else if (Objects.equals(kv_key, "creditCardNumber")) {
-					creditCardNumber = value.toString();
-				} else if (Objects.equals(kv_key, "creditCardCVV2")) {
-					creditCardCVV2 = value.toString();
-				} else if (Objects.equals(kv_key, "creditCardExpirationMonth")) {
-					creditCardExpirationMonth = value.toString();
-				} else if (Objects.equals(kv_key, "creditCardExpirationYear")) {
-					creditCardExpirationYear = value.toString();
-				} else if (Objects.equals(kv_key, "routingNumber")) {
-					routingNumber = value.toString();
-				} else if (Objects.equals(kv_key, "accountNumber")) {
-					accountNumber = value.toString();
-				} else {
-					throw new PaymentPluginApiException("unrecognized plugin property: " + kv_key, new IllegalArgumentException());
-				}
+			if (creditCardExpirationMonth == null || creditCardExpirationMonth.isEmpty()) {
+				throw new PaymentPluginApiException("missing creditCardExpirationMonth", new IllegalArgumentException());
+			}
+			if (creditCardExpirationYear == null || creditCardExpirationYear.isEmpty()) {
+				throw new PaymentPluginApiException("missing creditCardExpirationYear", new IllegalArgumentException());
+			}
+			if (creditCardCVV2 == null || creditCardCVV2.isEmpty()) {
+				throw new PaymentPluginApiException("missing creditCardCVV2", new IllegalArgumentException());
 			}
 			
-			// get the account object for the account ID
-			final Account account;
+			String twoDigitMonth = creditCardExpirationMonth;
+			if (twoDigitMonth.length() == 1) {
+				twoDigitMonth = "0" + twoDigitMonth;
+			}
+			
+			gatewayStartNanos = System.nanoTime();
 			try {
-				account = killbillAPI.getAccountUserApi().getAccountById(kbAccountId, context);
-			} catch (AccountApiException e) {
-				logService.log(LogService.LOG_ERROR, "could not retrieve account: ", e);
-				throw new PaymentPluginApiException("could not retrieve account", e);
-			}
-			
-			// setup the customer that will be associated with this token
-		/*HashMap<String, String> customer = new HashMap<>();
-		String firstName = account.getName() == null ? null : account.getName().substring(0, account.getFirstNameLength());
-		String lastName = account.getName() == null ? null : account.getName().substring(account.getFirstNameLength());
-		logService.log(LogService.LOG_INFO, "firstName: " + firstName);
-		logService.log(LogService.LOG_INFO, "lastName: " + lastName);
-		customer.put("firstName", firstName);
-		customer.put("lastName", lastName);
-		customer.put("address1", account.getAddress1());
-		customer.put("address2", account.getAddress2());
-		customer.put("city", account.getCity());
-		customer.put("state", account.getStateOrProvince());
-		customer.put("zip", account.getPostalCode());
-		customer.put("country", account.getCountry());
-		customer.put("phone", account.getPhone());
-		customer.put("email", account.getEmail());
-		bluePay.setCustomerInformation(customer);*/
-			
-			String token;
-			String type;
-			
-			// setup paymentType-specific payment details
-			if (paymentType == null || paymentType.isEmpty()) {
-				throw new PaymentPluginApiException("missing paymentType", new IllegalArgumentException());
-			}
-			if (Objects.equals(paymentType, "card")) { // credit card
-				if (creditCardNumber == null || creditCardNumber.isEmpty()) {
-					throw new PaymentPluginApiException("missing creditCardNumber", new IllegalArgumentException());
-				}
-				if (creditCardExpirationMonth == null || creditCardExpirationMonth.isEmpty()) {
-					throw new PaymentPluginApiException("missing creditCardExpirationMonth", new IllegalArgumentException());
-				}
-				if (creditCardExpirationYear == null || creditCardExpirationYear.isEmpty()) {
-					throw new PaymentPluginApiException("missing creditCardExpirationYear", new IllegalArgumentException());
-				}
-				if (creditCardCVV2 == null || creditCardCVV2.isEmpty()) {
-					throw new PaymentPluginApiException("missing creditCardCVV2", new IllegalArgumentException());
-				}
-				
-				String twoDigitMonth = creditCardExpirationMonth;
-				if (twoDigitMonth.length() == 1) {
-					twoDigitMonth = "0" + twoDigitMonth;
-				}
-				
-				BankCard card = new BankCard();
-				card.setExpirationMonth(twoDigitMonth);
-				card.setExpirationYear("20" + creditCardExpirationYear);
-				card.setNumber(creditCardNumber);
-				card.setName("Card " + creditCardNumber.substring(creditCardNumber.length() - 4));
-				try {
-					card = client.addBankCard(card);
-				} catch (BaseCommerceClientException e) {
-					logService.log(LogService.LOG_ERROR, "error while saving bank card: ", e);
-					throw new PaymentPluginApiException("error while saving bank card: " + e.getMessage(), e);
-				}
-				if (card.isStatus(BankCard.XS_BC_STATUS_FAILED)) {
-					String message = "";
-					for (String mess : card.getMessages()) {
-						message += mess + " ";
-					}
-					logService.log(LogService.LOG_ERROR, "error while saving bank card: ", new Exception(message));
-					throw new PaymentPluginApiException("error while saving bank card: " + message, new Exception(message));
-				}
-				token = card.getToken();
-				type = TYPE_CARD;
-			} else if (Objects.equals(paymentType, "ach")) { // ACH
-				if (routingNumber == null) {
-					throw new PaymentPluginApiException("missing routingNumber", new IllegalArgumentException());
-				}
-				if (accountNumber == null) {
-					throw new PaymentPluginApiException("missing accountNumber", new IllegalArgumentException());
-				}
-				
-				BankAccount bank = new BankAccount();
-				bank.setRoutingNumber(routingNumber);
-				bank.setAccountNumber(accountNumber);
-				bank.setType(BankAccount.XS_BA_TYPE_CHECKING);
-				bank.setName("Bank " + (accountNumber.length() <= 4 ? accountNumber : accountNumber.substring(accountNumber.length() - 4)));
-				try {
-					bank = client.addBankAccount(bank);
-				} catch (BaseCommerceClientException e) {
-					logService.log(LogService.LOG_ERROR, "error while saving bank account: ", e);
-					throw new PaymentPluginApiException("error while saving bank account: " + e.getMessage(), e);
-				}
-				if (bank.isStatus(BankAccount.XS_BA_STATUS_FAILED)) {
-					String message = "";
-					for (String mess : bank.getMessages()) {
-						message += mess + " ";
-					}
-					logService.log(LogService.LOG_ERROR, "error while saving bank account: ", new Exception(message));
-					throw new PaymentPluginApiException("error while saving bank account: " + message, new Exception(message));
-				}
-				token = bank.getToken();
-				type = TYPE_BANK;
-			} else {
-				throw new PaymentPluginApiException("unknown paymentType: " + paymentType, new IllegalArgumentException());
-			}
-			
-			String transactionIdQuery = "INSERT INTO `baseCommerce_paymentMethods` (`paymentMethodId`, `token`, `type`) VALUES (?, ?, ?) ON DUPLICATE KEY UPDATE `paymentMethodId` = ?, `token` = ?, `type` = ?";
-			try (PreparedStatement statement = connection.prepareStatement(transactionIdQuery)) {
-				statement.setString(1, kbPaymentMethodId.toString());
-				statement.setString(2, token);
-				statement.setString(3, type);
-				statement.setString(4, kbPaymentMethodId.toString());
-				statement.setString(5, token);
-				statement.setString(6, type);
-				statement.executeUpdate();
-			} catch (SQLException e) {
-				logService.log(LogService.LOG_ERROR, "could not save token: ", e);
-				throw new PaymentPluginApiException("could not save token", e);
+				lastFour = BaseCommercePaymentMethod.lastFour(creditCardNumber);
+				token = gateway.addBankCard(credentials, creditCardNumber, twoDigitMonth, "20" + creditCardExpirationYear, "Card " + lastFour);
+			} catch (BaseCommerceGatewayException e) {
+				logService.log(LogService.LOG_ERROR, "error while saving bank card: ", e);
+				throw new PaymentPluginApiException("error while saving bank card: " + e.getMessage(), e);
 			}
-		} catch (SQLException e) {
-			logService.log(LogService.LOG_ERROR, "could not retrieve credentials: ", e);
-			throw new PaymentPluginApiException("could not retrieve credentials", e);
+			type = TYPE_CARD;
+		} else if (Objects.equals(paymentType, "ach")) { // ACH
+			if (routingNumber == null) {
+				throw new PaymentPluginApiException("missing routingNumber", new IllegalArgumentException());
+			}
+			if (accountNumber == null) {
+				throw new PaymentPluginApiException("missing accountNumber", new IllegalArgumentException());
+			}
+			
+			gatewayStartNanos = System.nanoTime();
+			try {
+				lastFour = BaseCommercePaymentMethod.lastFour(accountNumber);
+				token = gateway.addBankAccount(credentials, routingNumber, accountNumber, "Bank " + lastFour);
+			} catch (BaseCommerceGatewayException e) {
+				logService.log(LogService.LOG_ERROR, "error while saving bank account: ", e);
+				throw new PaymentPluginApiException("error while saving bank account: " + e.getMessage(), e);
+			}
+			type = TYPE_BANK;
+		} else {
+			throw new PaymentPluginApiException("unknown paymentType: " + paymentType, new IllegalArgumentException());
 		}
+		
+		final long gatewayNanos = System.nanoTime() - gatewayStartNanos;
+		
+		final long dbWriteStartNanos = System.nanoTime();
+		savePaymentMethod(context.getTenantId(), new BaseCommercePaymentMethod(kbPaymentMethodId, kbAccountId, token, type, lastFour));
+		final long endNanos = System.nanoTime();
+		
+		paymentMetrics.recordDuration(BaseCommercePaymentMetrics.OPERATION_ADD_PAYMENT_METHOD, context.getTenantId(), type, BaseCommercePaymentMetrics.PHASE_DB_READ, dbReadNanos);
+		paymentMetrics.recordDuration(BaseCommercePaymentMetrics.OPERATION_ADD_PAYMENT_METHOD, context.getTenantId(), type, BaseCommercePaymentMetrics.PHASE_GATEWAY, gatewayNanos);
+		paymentMetrics.recordDuration(BaseCommercePaymentMetrics.OPERATION_ADD_PAYMENT_METHOD, context.getTenantId(), type, BaseCommercePaymentMetrics.PHASE_DB_WRITE, endNanos - dbWriteStartNanos);
+		paymentMetrics.recordDuration(BaseCommercePaymentMetrics.OPERATION_ADD_PAYMENT_METHOD, context.getTenantId(), type, BaseCommercePaymentMetrics.PHASE_TOTAL, endNanos - startNanos);
 	}
 	
 	@Override
 	public void deletePaymentMethod(final UUID kbAccountId, final UUID kbPaymentMethodId, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
-		// not implemented
+		// the token stays on the Base Commerce side, we just forget about it
+		paymentMethodCache.invalidate(kbPaymentMethodId);
+		try {
+			dao.deletePaymentMethod(kbPaymentMethodId);
+		} catch (SQLException e) {
+			logService.log(LogService.LOG_ERROR, "could not delete token: ", e);
+			throw new PaymentPluginApiException("could not delete token", e);
+		}
 	}
 	
 	@Override
@@ -941,44 +1074,112 @@ public class BaseCommercePaymentPluginApi implements PaymentPluginApi {
 	
 	@Override
 	public List<PaymentMethodInfoPlugin> getPaymentMethods(final UUID kbAccountId, final boolean refreshFromGateway, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
-		// not implemented
-		return Collections.emptyList();
+		List<BaseCommercePaymentMethod> paymentMethods;
+		try {
+			paymentMethods = dao.getPaymentMethods(context.getTenantId(), kbAccountId);
+		} catch (SQLException e) {
+			logService.log(LogService.LOG_ERROR, "could not retrieve payment methods: ", e);
+			throw new PaymentPluginApiException("could not retrieve payment methods", e);
+		}
+		if (refreshFromGateway && !paymentMethods.isEmpty()) {
+			paymentMethods = getActivePaymentMethods(getCredentials(context.getTenantId()), paymentMethods);
+		}
+		
+		final List<PaymentMethodInfoPlugin> infos = new ArrayList<PaymentMethodInfoPlugin>(paymentMethods.size());
+		for (BaseCommercePaymentMethod paymentMethod : paymentMethods) {
+			infos.add(new BaseCommercePaymentMethodInfoPlugin(kbAccountId, paymentMethod));
+		}
+		return infos;
 	}
 	
-	@Override
-	public Pagination<PaymentMethodPlugin> searchPaymentMethods(final String searchKey, final Long offset, final Long limit, final Iterable<PluginProperty> properties, final TenantContext context) throws PaymentPluginApiException {
-		// not implemented
-		return new Pagination<PaymentMethodPlugin>() {
-			@Override
-			public Long getCurrentOffset() {
-				return null;
-			}
-			
-			@Override
-			public Long getNextOffset() {
-				return null;
-			}
-			
-			@Override
-			public Long getMaxNbRecords() {
-				return null;
+	/**
+	 * Ask the gateway about every payment method at once, and keep those that can still be charged.
+	 * <p>
+	 * The lookups run concurrently on the refresh executor, so an account with many payment methods costs about one
+	 * round trip. A payment method whose lookup failed is kept, as its state is unknown.
+	 *
+	 * @param credentials    - the tenant credentials
+	 * @param paymentMethods - the payment methods of the account
+	 * @return the payment methods still active on the Base Commerce side
+	 * @throws PaymentPluginApiException if interrupted while waiting for the gateway
+	 */
+	private List<BaseCommercePaymentMethod> getActivePaymentMethods(final BaseCommerceCredentials credentials, final List<BaseCommercePaymentMethod> paymentMethods) throws PaymentPluginApiException {
+		final List<Future<Boolean>> lookups = new ArrayList<Future<Boolean>>(paymentMethods.size());
+		for (final BaseCommercePaymentMethod paymentMethod : paymentMethods) {
+			lookups.add(refreshExecutor.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					return gateway.isPaymentMethodActive(credentials, paymentMethod.getType(), paymentMethod.getToken());
+				}
+			}));
+		}
+		
+		final List<BaseCommercePaymentMethod> active = new ArrayList<BaseCommercePaymentMethod>(paymentMethods.size());
+		try {
+			for (int i = 0; i < paymentMethods.size(); i++) {
+				final BaseCommercePaymentMethod paymentMethod = paymentMethods.get(i);
+				try {
+					if (lookups.get(i).get()) {
+						active.add(paymentMethod);
+					}
+				} catch (ExecutionException e) {
+					logService.log(LogService.LOG_WARNING, "could not refresh payment method " + paymentMethod.getKbPaymentMethodId() + ": ", e.getCause());
+					active.add(paymentMethod);
+				}
 			}
-			
-			@Override
-			public Long getTotalNbRecords() {
-				return null;
+		} catch (InterruptedException e) {
+			for (Future<Boolean> lookup : lookups) {
+				lookup.cancel(true);
 			}
-			
-			@Override
-			public Iterator<PaymentMethodPlugin> iterator() {
-				return null;
+			Thread.currentThread().interrupt();
+			throw new PaymentPluginApiException("interrupted while refreshing payment methods", e);
+		}
+		return active;
+	}
+	
+	/**
+	 * Search the payment methods of the tenant by payment method ID, last four digits, type or token, depending on what
+	 * the search key looks like. An empty key returns all of them.
+	 * <p>
+	 * The offset is a record ID, see {@link BaseCommercePaymentMethodPagination}: pass 0 for the first page, then the
+	 * next offset of the previous page.
+	 */
+	@Override
+	public Pagination<PaymentMethodPlugin> searchPaymentMethods(final String searchKey, final Long offset, final Long limit, final Iterable<PluginProperty> properties, final TenantContext context) throws PaymentPluginApiException {
+		final String key = searchKey == null ? "" : searchKey.trim();
+		BaseCommerceDao.SearchField field;
+		if (key.isEmpty()) {
+			field = BaseCommerceDao.SearchField.ALL;
+		} else if (key.matches("\\d{4}")) {
+			field = BaseCommerceDao.SearchField.LAST_FOUR;
+		} else if (Objects.equals(key, TYPE_CARD) || Objects.equals(key, TYPE_BANK)) {
+			field = BaseCommerceDao.SearchField.TYPE;
+		} else {
+			try {
+				UUID.fromString(key);
+				field = BaseCommerceDao.SearchField.PAYMENT_METHOD_ID;
+			} catch (IllegalArgumentException e) {
+				field = BaseCommerceDao.SearchField.TOKEN;
 			}
-		};
+		}
+		return new BaseCommercePaymentMethodPagination(dao, context.getTenantId(), field, key, offset == null ? 0 : offset, limit == null ? 100 : limit);
 	}
 	
 	@Override
 	public void resetPaymentMethods(final UUID kbAccountId, final List<PaymentMethodInfoPlugin> paymentMethods, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
-		// not implemented
+		final List<UUID> missing;
+		try {
+			missing = dao.resetPaymentMethods(context.getTenantId(), kbAccountId, paymentMethods);
+		} catch (SQLException e) {
+			logService.log(LogService.LOG_ERROR, "could not reset payment methods: ", e);
+			throw new PaymentPluginApiException("could not reset payment methods", e);
+		}
+		for (PaymentMethodInfoPlugin paymentMethod : paymentMethods) {
+			paymentMethodCache.invalidate(paymentMethod.getPaymentMethodId());
+		}
+		if (!missing.isEmpty()) {
+			logService.log(LogService.LOG_WARNING, "payment methods without a Base Commerce token were not reset: " + missing);
+		}
 	}
 	
 	@Override
@@ -1014,7 +1215,23 @@ public class BaseCommercePaymentPluginApi implements PaymentPluginApi {
 	
 	@Override
 	public GatewayNotification processNotification(final String notification, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
-		// not implemented
+		// parsing is cheap, everything else happens on the notification writer so the gateway gets its answer right away
+		final BaseCommerceNotificationQueue.Notification parsed;
+		try {
+			parsed = BaseCommerceNotificationQueue.parse(notification, context);
+		} catch (IllegalArgumentException e) {
+			logService.log(LogService.LOG_WARNING, "invalid notification: " + e.getMessage());
+			return gatewayNotification(400, e.getMessage(), Collections.<String, List<String>>emptyMap());
+		}
+		if (!notificationQueue.offer(parsed)) {
+			// the gateway sends the notification again later
+			logService.log(LogService.LOG_WARNING, "notification queue is full, refusing notification");
+			return gatewayNotification(503, "busy", Collections.singletonMap("Retry-After", Collections.singletonList("5")));
+		}
+		return gatewayNotification(200, "", Collections.<String, List<String>>emptyMap());
+	}
+	
+	private static GatewayNotification gatewayNotification(final int status, final String entity, final Map<String, List<String>> headers) {
 		return new GatewayNotification() {
 			@Override
 			public UUID getKbPaymentId() {
@@ -1023,22 +1240,22 @@ public class BaseCommercePaymentPluginApi implements PaymentPluginApi {
 			
 			@Override
 			public int getStatus() {
-				return 0;
+				return status;
 			}
 			
 			@Override
 			public String getEntity() {
-				return null;
+				return entity;
 			}
 			
 			@Override
 			public Map<String, List<String>> getHeaders() {
-				return null;
+				return headers;
 			}
 			
 			@Override
 			public List<PluginProperty> getProperties() {
-				return null;
+				return Collections.emptyList();
 			}
 		};
 	}
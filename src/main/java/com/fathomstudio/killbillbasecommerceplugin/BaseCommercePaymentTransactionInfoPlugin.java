@@ -0,0 +1,178 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbasecommerceplugin;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.payment.api.TransactionType;
+import org.killbill.billing.payment.plugin.api.PaymentPluginStatus;
+import org.killbill.billing.payment.plugin.api.PaymentTransactionInfoPlugin;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The result of a gateway transaction, as returned to Kill Bill and saved in {@code baseCommerce_transactions}.
+ */
+public class BaseCommercePaymentTransactionInfoPlugin implements PaymentTransactionInfoPlugin {
+	
+	private final UUID kbTenantId;
+	private final UUID kbAccountId;
+	private final UUID kbPaymentId;
+	private final UUID kbTransactionId;
+	private final UUID kbPaymentMethodId;
+	private final TransactionType transactionType;
+	private final String paymentMethodType;
+	private final BigDecimal amount;
+	private final Currency currency;
+	private final PaymentPluginStatus status;
+	private final String gatewayTransactionId;
+	private final String gatewayStatus;
+	private final String gatewayErrorCode;
+	private final String gatewayError;
+	private final DateTime createdDate;
+	private final DateTime effectiveDate;
+	
+	public BaseCommercePaymentTransactionInfoPlugin(final UUID kbTenantId, final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId, final UUID kbPaymentMethodId,
+	                                                final TransactionType transactionType, final String paymentMethodType, final BigDecimal amount, final Currency currency,
+	                                                final PaymentPluginStatus status, final String gatewayTransactionId, final String gatewayStatus,
+	                                                final String gatewayErrorCode, final String gatewayError, final DateTime createdDate, final DateTime effectiveDate) {
+		this.kbTenantId = kbTenantId;
+		this.kbAccountId = kbAccountId;
+		this.kbPaymentId = kbPaymentId;
+		this.kbTransactionId = kbTransactionId;
+		this.kbPaymentMethodId = kbPaymentMethodId;
+		this.transactionType = transactionType;
+		this.paymentMethodType = paymentMethodType;
+		this.amount = amount;
+		this.currency = currency;
+		this.status = status;
+		this.gatewayTransactionId = gatewayTransactionId;
+		this.gatewayStatus = gatewayStatus;
+		this.gatewayErrorCode = gatewayErrorCode;
+		this.gatewayError = gatewayError;
+		this.createdDate = createdDate;
+		this.effectiveDate = effectiveDate;
+	}
+	
+	/**
+	 * @return a copy of this transaction with the outcome reported by the gateway
+	 */
+	public BaseCommercePaymentTransactionInfoPlugin withOutcome(final PaymentPluginStatus status, final String gatewayTransactionId, final String gatewayStatus,
+	                                                            final String gatewayErrorCode, final String gatewayError, final DateTime effectiveDate) {
+		return new BaseCommercePaymentTransactionInfoPlugin(kbTenantId, kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, transactionType, paymentMethodType, amount, currency,
+		                                                    status, gatewayTransactionId, gatewayStatus, gatewayErrorCode, gatewayError, createdDate, effectiveDate);
+	}
+	
+	public UUID getKbTenantId() {
+		return kbTenantId;
+	}
+	
+	public UUID getKbAccountId() {
+		return kbAccountId;
+	}
+	
+	@Override
+	public UUID getKbPaymentId() {
+		return kbPaymentId;
+	}
+	
+	@Override
+	public UUID getKbTransactionPaymentId() {
+		return kbTransactionId;
+	}
+	
+	public UUID getKbPaymentMethodId() {
+		return kbPaymentMethodId;
+	}
+	
+	@Override
+	public TransactionType getTransactionType() {
+		return transactionType;
+	}
+	
+	/**
+	 * @return either card or bank
+	 */
+	public String getPaymentMethodType() {
+		return paymentMethodType;
+	}
+	
+	@Override
+	public BigDecimal getAmount() {
+		return amount;
+	}
+	
+	@Override
+	public Currency getCurrency() {
+		return currency;
+	}
+	
+	@Override
+	public DateTime getCreatedDate() {
+		return createdDate;
+	}
+	
+	@Override
+	public DateTime getEffectiveDate() {
+		return effectiveDate;
+	}
+	
+	@Override
+	public PaymentPluginStatus getStatus() {
+		return status;
+	}
+	
+	/**
+	 * @return the raw Base Commerce status of the transaction (one of the XS_*_STATUS_* values)
+	 */
+	public String getGatewayStatus() {
+		return gatewayStatus;
+	}
+	
+	@Override
+	public String getGatewayError() {
+		return gatewayError;
+	}
+	
+	@Override
+	public String getGatewayErrorCode() {
+		return gatewayErrorCode;
+	}
+	
+	/**
+	 * @return the Base Commerce transaction ID
+	 */
+	@Override
+	public String getFirstPaymentReferenceId() {
+		return gatewayTransactionId;
+	}
+	
+	@Override
+	public String getSecondPaymentReferenceId() {
+		return null;
+	}
+	
+	@Override
+	public List<PluginProperty> getProperties() {
+		return Collections.emptyList();
+	}
+}
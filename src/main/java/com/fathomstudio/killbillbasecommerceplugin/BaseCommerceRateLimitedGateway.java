@@ -0,0 +1,174 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.fathomstudio.killbillbasecommerceplugin;
+
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wraps a gateway with a token bucket per tenant, so bursts like the first-of-month invoice run stay within the
+ * Base Commerce quota of the merchant instead of failing on the gateway side.
+ * <p>
+ * A bucket holds up to the burst of the tenant and refills at its rate (both from the tenant configuration, or the
+ * plugin defaults). A call without a token waits for its turn, up to a maximum wait, after which it is refused with
+ * {@link BaseCommerceGatewayUnavailableException} so Kill Bill retries it later. Tenants without a rate aren't limited.
+ */
+public class BaseCommerceRateLimitedGateway implements BaseCommerceGateway, BaseCommerceMetricsSource {
+	
+	private final BaseCommerceGateway delegate;
+	private final double defaultRequestsPerSecond;
+	private final int defaultBurst;
+	private final long maxWaitNanos;
+	private final ConcurrentMap<UUID, TokenBucket> buckets = new ConcurrentHashMap<UUID, TokenBucket>();
+	
+	public BaseCommerceRateLimitedGateway(final BaseCommerceGateway delegate, final double defaultRequestsPerSecond, final int defaultBurst, final long maxWaitMillis) {
+		this.delegate = delegate;
+		this.defaultRequestsPerSecond = defaultRequestsPerSecond;
+		this.defaultBurst = defaultBurst;
+		this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+	}
+	
+	@Override
+	public BaseCommerceGatewayResult charge(final BaseCommerceCredentials credentials, final String type, final String token, final BigDecimal amount) throws BaseCommerceGatewayException {
+		acquire(credentials);
+		return delegate.charge(credentials, type, token, amount);
+	}
+	
+	@Override
+	public String addBankCard(final BaseCommerceCredentials credentials, final String number, final String expirationMonth, final String expirationYear, final String name) throws BaseCommerceGatewayException {
+		acquire(credentials);
+		return delegate.addBankCard(credentials, number, expirationMonth, expirationYear, name);
+	}
+	
+	@Override
+	public String addBankAccount(final BaseCommerceCredentials credentials, final String routingNumber, final String accountNumber, final String name) throws BaseCommerceGatewayException {
+		acquire(credentials);
+		return delegate.addBankAccount(credentials, routingNumber, accountNumber, name);
+	}
+	
+	@Override
+	public boolean isPaymentMethodActive(final BaseCommerceCredentials credentials, final String type, final String token) throws BaseCommerceGatewayException {
+		acquire(credentials);
+		return delegate.isPaymentMethodActive(credentials, type, token);
+	}
+	
+	@Override
+	public BaseCommerceGatewayResult getTransaction(final BaseCommerceCredentials credentials, final String type, final String gatewayTransactionId) throws BaseCommerceGatewayException {
+		acquire(credentials);
+		return delegate.getTransaction(credentials, type, gatewayTransactionId);
+	}
+	
+	private void acquire(final BaseCommerceCredentials credentials) throws BaseCommerceGatewayUnavailableException {
+		final double requestsPerSecond = credentials.getRequestsPerSecond() > 0 ? credentials.getRequestsPerSecond() : defaultRequestsPerSecond;
+		if (requestsPerSecond <= 0) {
+			return;
+		}
+		final int burst = credentials.getBurst() > 0 ? credentials.getBurst() : defaultBurst > 0 ? defaultBurst : (int) Math.max(1, Math.ceil(requestsPerSecond));
+		
+		final TokenBucket bucket = getBucket(credentials.getKbTenantId());
+		// no point waiting past the deadline of the operation
+		final long waitNanos = bucket.reserve(requestsPerSecond, burst, Math.min(maxWaitNanos, BaseCommerceDeadline.remainingNanos()));
+		if (waitNanos < 0) {
+			bucket.rejections.incrementAndGet();
+			throw new BaseCommerceGatewayUnavailableException("gateway rate limit of tenant " + credentials.getKbTenantId() + " reached");
+		}
+		if (waitNanos == 0) {
+			return;
+		}
+		
+		bucket.waiting.incrementAndGet();
+		try {
+			TimeUnit.NANOSECONDS.sleep(waitNanos);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new BaseCommerceGatewayUnavailableException("interrupted while waiting for the gateway rate limit");
+		} finally {
+			bucket.waiting.decrementAndGet();
+			bucket.waitCount.incrementAndGet();
+			bucket.waitNanos.addAndGet(waitNanos);
+		}
+	}
+	
+	private TokenBucket getBucket(final UUID kbTenantId) {
+		TokenBucket bucket = buckets.get(kbTenantId);
+		if (bucket == null) {
+			final TokenBucket created = new TokenBucket();
+			bucket = buckets.putIfAbsent(kbTenantId, created);
+			if (bucket == null) {
+				bucket = created;
+			}
+		}
+		return bucket;
+	}
+	
+	@Override
+	public void appendMetrics(final StringBuilder out) {
+		out.append("# TYPE basecommerce_rate_limit_waiting gauge\n");
+		for (Map.Entry<UUID, TokenBucket> entry : buckets.entrySet()) {
+			out.append("basecommerce_rate_limit_waiting{tenant=\"").append(entry.getKey()).append("\"} ").append(entry.getValue().waiting.get()).append('\n');
+		}
+		out.append("# TYPE basecommerce_rate_limit_wait_seconds summary\n");
+		for (Map.Entry<UUID, TokenBucket> entry : buckets.entrySet()) {
+			out.append("basecommerce_rate_limit_wait_seconds_sum{tenant=\"").append(entry.getKey()).append("\"} ").append(entry.getValue().waitNanos.get() / 1e9).append('\n');
+			out.append("basecommerce_rate_limit_wait_seconds_count{tenant=\"").append(entry.getKey()).append("\"} ").append(entry.getValue().waitCount.get()).append('\n');
+		}
+		out.append("# TYPE basecommerce_rate_limit_rejections_total counter\n");
+		for (Map.Entry<UUID, TokenBucket> entry : buckets.entrySet()) {
+			out.append("basecommerce_rate_limit_rejections_total{tenant=\"").append(entry.getKey()).append("\"} ").append(entry.getValue().rejections.get()).append('\n');
+		}
+	}
+	
+	private static class TokenBucket {
+		
+		private final AtomicInteger waiting = new AtomicInteger();
+		private final AtomicLong waitCount = new AtomicLong();
+		private final AtomicLong waitNanos = new AtomicLong();
+		private final AtomicLong rejections = new AtomicLong();
+		
+		// starts full
+		private double tokens = Double.MAX_VALUE;
+		private long refilledAtNanos = System.nanoTime();
+		
+		/**
+		 * Take a token, going into debt when there is none so later callers queue behind the waiting ones.
+		 *
+		 * @return how long to wait before calling, or -1 if that would be longer than the maximum wait
+		 */
+		synchronized long reserve(final double requestsPerSecond, final int burst, final long maxWaitNanos) {
+			final long now = System.nanoTime();
+			// the limits can change with the tenant configuration, the bucket follows them on the next call
+			tokens = Math.min(burst, tokens + (now - refilledAtNanos) * requestsPerSecond / 1e9);
+			refilledAtNanos = now;
+			if (tokens >= 1) {
+				tokens -= 1;
+				return 0;
+			}
+			final long waitNanos = (long) Math.ceil((1 - tokens) / requestsPerSecond * 1e9);
+			if (waitNanos > maxWaitNanos) {
+				return -1;
+			}
+			tokens -= 1;
+			return waitNanos;
+		}
+	}
+}
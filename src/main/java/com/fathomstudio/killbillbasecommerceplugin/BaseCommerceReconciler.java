@@ -0,0 +1,328 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbasecommerceplugin;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.api.PluginCallContext;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.osgi.service.log.LogService;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Follows pending bank debits until Base Commerce settles or returns them, for when the webhooks are missed.
+ * <p>
+ * Each run pages through the pending bank transactions of every tenant, and looks them up on the gateway a page at a
+ * time with a bounded number of lookups in flight, no faster than the allowed rate of the tenant. Changes are handed to
+ * the {@link BaseCommerceNotificationQueue}, which saves them and tells Kill Bill, as if the gateway had sent them.
+ * <p>
+ * Transactions flagged by the notification queue, because an unconfirmed webhook is about them, are looked up the same
+ * way every {@code notifications.lookupIntervalSeconds}, whether or not the reconciliation is enabled. A flag is cleared
+ * when its transaction is read and set again if the lookup fails, so a webhook arriving meanwhile is never lost.
+ * <p>
+ * Every node schedules the runs, but a run only happens on the node getting a MySQL named lock, which it holds (with
+ * one connection) until the run is over; the others skip it.
+ */
+public class BaseCommerceReconciler implements BaseCommerceMetricsSource {
+	
+	private static final String LOCK_NAME = "baseCommerce_reconciliation";
+	private static final String LOOKUPS_LOCK_NAME = "baseCommerce_notificationLookups";
+	
+	private final BaseCommerceDao dao;
+	private final BaseCommerceGateway gateway;
+	private final BaseCommerceCredentialsCache credentialsCache;
+	private final BaseCommerceNotificationQueue notificationQueue;
+	private final LogService logService;
+	private final long intervalSeconds;
+	private final long lookupIntervalSeconds;
+	private final int batchSize;
+	private final double requestsPerSecond;
+	private final ScheduledExecutorService scheduler;
+	private final ExecutorService lookups;
+	private final ConcurrentMap<UUID, RateLimiter> rateLimiters = new ConcurrentHashMap<UUID, RateLimiter>();
+	private final AtomicLong runCount = new AtomicLong();
+	private final AtomicLong skippedCount = new AtomicLong();
+	private final AtomicLong checkedCount = new AtomicLong();
+	private final AtomicLong changedCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	private final AtomicLong lookupCount = new AtomicLong();
+	private volatile long lastRunNanos;
+	
+	public BaseCommerceReconciler(final BaseCommerceDao dao, final BaseCommerceGateway gateway, final BaseCommerceCredentialsCache credentialsCache, final BaseCommerceNotificationQueue notificationQueue,
+	                              final LogService logService, final long intervalSeconds, final long lookupIntervalSeconds, final int parallelism, final int batchSize,
+	                              final double requestsPerSecond) {
+		this.dao = dao;
+		this.gateway = gateway;
+		this.credentialsCache = credentialsCache;
+		this.notificationQueue = notificationQueue;
+		this.logService = logService;
+		this.intervalSeconds = intervalSeconds;
+		this.lookupIntervalSeconds = lookupIntervalSeconds;
+		this.batchSize = batchSize;
+		this.requestsPerSecond = requestsPerSecond;
+		// a long reconciliation doesn't hold up the lookups of notifications
+		this.scheduler = Executors.newScheduledThreadPool(2, new ThreadFactoryBuilder().setNameFormat("basecommerce-reconciler-%d").setDaemon(true).build());
+		this.lookups = Executors.newFixedThreadPool(parallelism, new ThreadFactoryBuilder().setNameFormat("basecommerce-reconciler-lookup-%d").setDaemon(true).build());
+	}
+	
+	/**
+	 * Run the reconciliation every interval, starting one interval from now.
+	 */
+	public void start() {
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				reconcile();
+			}
+		}, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+	}
+	
+	/**
+	 * Look up the transactions flagged by unconfirmed notifications every lookup interval.
+	 */
+	public void startLookups() {
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				lookUpFlagged();
+			}
+		}, lookupIntervalSeconds, lookupIntervalSeconds, TimeUnit.SECONDS);
+	}
+	
+	/**
+	 * Stop the reconciliation, abandoning the current run. What wasn't looked up yet will be on the next start.
+	 */
+	public void stop() {
+		scheduler.shutdownNow();
+		lookups.shutdownNow();
+	}
+	
+	private void reconcile() {
+		final long startNanos = System.nanoTime();
+		try (BaseCommerceDao.NamedLock lock = dao.tryLock(LOCK_NAME)) {
+			if (lock == null) {
+				// another node is reconciling
+				skippedCount.incrementAndGet();
+				return;
+			}
+			runCount.incrementAndGet();
+			for (UUID kbTenantId : dao.getTenantsWithPendingTransactions(BaseCommercePaymentPluginApi.TYPE_BANK)) {
+				reconcileTenant(kbTenantId);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (SQLException e) {
+			logService.log(LogService.LOG_ERROR, "could not reconcile pending transactions: ", e);
+		} catch (RuntimeException e) {
+			// an exception would cancel the schedule
+			logService.log(LogService.LOG_ERROR, "could not reconcile pending transactions: ", e);
+		}
+		lastRunNanos = System.nanoTime() - startNanos;
+	}
+	
+	private void lookUpFlagged() {
+		try (BaseCommerceDao.NamedLock lock = dao.tryLock(LOOKUPS_LOCK_NAME)) {
+			if (lock == null) {
+				return;
+			}
+			for (UUID kbTenantId : dao.getTenantsWithLookupRequests()) {
+				lookUpFlagged(kbTenantId);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (SQLException e) {
+			logService.log(LogService.LOG_ERROR, "could not look up notified transactions: ", e);
+		} catch (RuntimeException e) {
+			// an exception would cancel the schedule
+			logService.log(LogService.LOG_ERROR, "could not look up notified transactions: ", e);
+		}
+	}
+	
+	private void lookUpFlagged(final UUID kbTenantId) throws SQLException, InterruptedException {
+		final BaseCommerceCredentials credentials = getCredentials(kbTenantId);
+		if (credentials == null) {
+			return;
+		}
+		final CallContext context = new PluginCallContext(BaseCommerceActivator.PLUGIN_NAME, DateTime.now(DateTimeZone.UTC), kbTenantId);
+		
+		long afterRecordId = 0;
+		while (true) {
+			final List<BaseCommerceDao.TransactionRecord> page = dao.getLookupRequests(kbTenantId, afterRecordId, batchSize);
+			if (page.isEmpty()) {
+				return;
+			}
+			final List<BaseCommercePaymentTransactionInfoPlugin> transactions = new ArrayList<BaseCommercePaymentTransactionInfoPlugin>(page.size());
+			for (BaseCommerceDao.TransactionRecord record : page) {
+				transactions.add(record.getTransaction());
+			}
+			dao.setLookupRequested(transactions, false);
+			lookupCount.addAndGet(transactions.size());
+			final List<BaseCommercePaymentTransactionInfoPlugin> unchecked = new ArrayList<BaseCommercePaymentTransactionInfoPlugin>();
+			final boolean proceed = reconcilePage(credentials, page, context, unchecked);
+			dao.setLookupRequested(unchecked, true);
+			if (!proceed || page.size() < batchSize) {
+				return;
+			}
+			afterRecordId = page.get(page.size() - 1).getRecordId();
+		}
+	}
+	
+	private void reconcileTenant(final UUID kbTenantId) throws SQLException, InterruptedException {
+		final BaseCommerceCredentials credentials = getCredentials(kbTenantId);
+		if (credentials == null) {
+			return;
+		}
+		final CallContext context = new PluginCallContext(BaseCommerceActivator.PLUGIN_NAME, DateTime.now(DateTimeZone.UTC), kbTenantId);
+		
+		long afterRecordId = 0;
+		while (true) {
+			final List<BaseCommerceDao.TransactionRecord> page = dao.getPendingTransactions(kbTenantId, BaseCommercePaymentPluginApi.TYPE_BANK, afterRecordId, batchSize);
+			if (page.isEmpty()) {
+				return;
+			}
+			if (!reconcilePage(credentials, page, context, new ArrayList<BaseCommercePaymentTransactionInfoPlugin>())) {
+				return;
+			}
+			if (page.size() < batchSize) {
+				return;
+			}
+			afterRecordId = page.get(page.size() - 1).getRecordId();
+		}
+	}
+	
+	private BaseCommerceCredentials getCredentials(final UUID kbTenantId) throws SQLException {
+		BaseCommerceCredentials credentials = credentialsCache.getIfPresent(kbTenantId);
+		if (credentials == null) {
+			credentials = dao.getCredentials(kbTenantId);
+			if (credentials == null) {
+				logService.log(LogService.LOG_WARNING, "tenant " + kbTenantId + " has transactions to look up but no credentials");
+				return null;
+			}
+			credentials = credentialsCache.put(credentials);
+		}
+		return credentials;
+	}
+	
+	/**
+	 * @param unchecked - filled with the transactions that could not be looked up, or whose change could not be queued
+	 * @return false if the tenant should be left alone until the next run
+	 */
+	private boolean reconcilePage(final BaseCommerceCredentials credentials, final List<BaseCommerceDao.TransactionRecord> page, final CallContext context,
+	                              final List<BaseCommercePaymentTransactionInfoPlugin> unchecked) throws InterruptedException {
+		final RateLimiter rateLimiter = getRateLimiter(credentials.getKbTenantId());
+		final List<BaseCommercePaymentTransactionInfoPlugin> transactions = new ArrayList<BaseCommercePaymentTransactionInfoPlugin>(page.size());
+		final List<Future<BaseCommerceGatewayResult>> results = new ArrayList<Future<BaseCommerceGatewayResult>>(page.size());
+		for (BaseCommerceDao.TransactionRecord record : page) {
+			final BaseCommercePaymentTransactionInfoPlugin transaction = record.getTransaction();
+			// queued charges don't have a gateway transaction yet
+			if (transaction.getFirstPaymentReferenceId() == null) {
+				continue;
+			}
+			transactions.add(transaction);
+			results.add(lookups.submit(new Callable<BaseCommerceGatewayResult>() {
+				@Override
+				public BaseCommerceGatewayResult call() throws Exception {
+					rateLimiter.acquire();
+					return gateway.getTransaction(credentials, transaction.getPaymentMethodType(), transaction.getFirstPaymentReferenceId());
+				}
+			}));
+		}
+		
+		try {
+			for (int i = 0; i < transactions.size(); i++) {
+				final BaseCommercePaymentTransactionInfoPlugin transaction = transactions.get(i);
+				final BaseCommerceGatewayResult result;
+				try {
+					result = results.get(i).get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof BaseCommerceGatewayUnavailableException) {
+						unchecked.addAll(transactions.subList(i, transactions.size()));
+						logService.log(LogService.LOG_WARNING, "gateway unavailable for tenant " + credentials.getKbTenantId() + ", reconciling it later: " + e.getCause().getMessage());
+						return false;
+					}
+					failedCount.incrementAndGet();
+					unchecked.add(transaction);
+					logService.log(LogService.LOG_WARNING, "could not look up transaction " + transaction.getFirstPaymentReferenceId() + ": ", e.getCause());
+					continue;
+				}
+				checkedCount.incrementAndGet();
+				if (result.getStatus() == null || result.getStatus().equals(transaction.getGatewayStatus())) {
+					continue;
+				}
+				if (!notificationQueue.offer(new BaseCommerceNotificationQueue.Notification(credentials.getKbTenantId(), transaction.getPaymentMethodType(), transaction.getFirstPaymentReferenceId(),
+				                                                                            result.getStatus(), result.getMessage(), true, context))) {
+					unchecked.addAll(transactions.subList(i, transactions.size()));
+					logService.log(LogService.LOG_WARNING, "notification queue is full, reconciling tenant " + credentials.getKbTenantId() + " later");
+					return false;
+				}
+				changedCount.incrementAndGet();
+			}
+			return true;
+		} finally {
+			for (Future<BaseCommerceGatewayResult> result : results) {
+				result.cancel(true);
+			}
+		}
+	}
+	
+	private RateLimiter getRateLimiter(final UUID kbTenantId) {
+		RateLimiter rateLimiter = rateLimiters.get(kbTenantId);
+		if (rateLimiter == null) {
+			final RateLimiter created = RateLimiter.create(requestsPerSecond);
+			rateLimiter = rateLimiters.putIfAbsent(kbTenantId, created);
+			if (rateLimiter == null) {
+				rateLimiter = created;
+			}
+		}
+		return rateLimiter;
+	}
+	
+	@Override
+	public void appendMetrics(final StringBuilder out) {
+		out.append("# TYPE basecommerce_reconciliation_runs_total counter\n");
+		out.append("basecommerce_reconciliation_runs_total ").append(runCount.get()).append('\n');
+		out.append("# TYPE basecommerce_reconciliation_skipped_total counter\n");
+		out.append("basecommerce_reconciliation_skipped_total ").append(skippedCount.get()).append('\n');
+		out.append("# TYPE basecommerce_reconciliation_checked_total counter\n");
+		out.append("basecommerce_reconciliation_checked_total ").append(checkedCount.get()).append('\n');
+		out.append("# TYPE basecommerce_reconciliation_changed_total counter\n");
+		out.append("basecommerce_reconciliation_changed_total ").append(changedCount.get()).append('\n');
+		out.append("# TYPE basecommerce_reconciliation_failed_total counter\n");
+		out.append("basecommerce_reconciliation_failed_total ").append(failedCount.get()).append('\n');
+		out.append("# TYPE basecommerce_reconciliation_notification_lookups_total counter\n");
+		out.append("basecommerce_reconciliation_notification_lookups_total ").append(lookupCount.get()).append('\n');
+		out.append("# TYPE basecommerce_reconciliation_last_run_seconds gauge\n");
+		out.append("basecommerce_reconciliation_last_run_seconds ").append(lastRunNanos / 1e9).append('\n');
+	}
+}
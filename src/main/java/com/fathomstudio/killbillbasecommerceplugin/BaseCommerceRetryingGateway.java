@@ -0,0 +1,348 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.fathomstudio.killbillbasecommerceplugin;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wraps a gateway with retries of transient failures, within a deadline per operation and a retry budget shared by all
+ * tenants.
+ * <p>
+ * Each operation gets a {@link BaseCommerceDeadline} covering all of its attempts. Failures are retried after an
+ * exponential backoff with full jitter, as long as the backoff fits before the deadline and the budget has a token:
+ * every operation adds a fraction of a token, every retry takes a whole one, so retries stay a small share of the
+ * calls and can't multiply the load on a gateway that is down. Declines are results, not failures, and are never
+ * retried; neither are calls refused before reaching the gateway, which the circuit breaker and limits decided on.
+ * <p>
+ * Lookups are idempotent and retried on any I/O failure or timeout. Charges and tokenizations are only retried when
+ * the connection could not be made, since a request that reached Base Commerce may have gone through. Lookups can
+ * also be hedged: when the first attempt is slow, a second one is sent and the first reply wins.
+ */
+public class BaseCommerceRetryingGateway implements BaseCommerceGateway, BaseCommerceMetricsSource {
+	
+	private static final String OPERATION_CHARGE = "charge";
+	private static final String OPERATION_ADD_BANK_CARD = "add_bank_card";
+	private static final String OPERATION_ADD_BANK_ACCOUNT = "add_bank_account";
+	private static final String OPERATION_GET_PAYMENT_METHOD = "get_payment_method";
+	private static final String OPERATION_GET_TRANSACTION = "get_transaction";
+	
+	private final BaseCommerceGateway delegate;
+	private final int maxAttempts;
+	private final long initialBackoffNanos;
+	private final long maxBackoffNanos;
+	private final long deadlineNanos;
+	private final long lookupDeadlineNanos;
+	private final long hedgeDelayNanos;
+	private final ExecutorService hedges;
+	private final RetryBudget budget;
+	private final Map<String, AtomicLong> retryCounts = new LinkedHashMap<String, AtomicLong>();
+	private final AtomicLong budgetExhaustedCount = new AtomicLong();
+	private final AtomicLong hedgeCount = new AtomicLong();
+	private final AtomicLong hedgeWinCount = new AtomicLong();
+	
+	/**
+	 * @param delegate             - the gateway making the calls
+	 * @param maxAttempts          - attempts per operation, the first one included
+	 * @param initialBackoffMillis - the backoff before the first retry, doubled for each next one
+	 * @param maxBackoffMillis     - the longest backoff
+	 * @param deadlineMillis       - how long a charge or tokenization may take, retries included
+	 * @param lookupDeadlineMillis - how long a lookup may take, retries included
+	 * @param budgetRatio          - the retries allowed per operation
+	 * @param budgetMax            - the retries that can be saved up while all is well
+	 * @param hedgeEnabled         - whether slow lookups are hedged
+	 * @param hedgeDelayMillis     - how long a lookup runs before being hedged
+	 */
+	public BaseCommerceRetryingGateway(final BaseCommerceGateway delegate, final int maxAttempts, final long initialBackoffMillis, final long maxBackoffMillis, final long deadlineMillis,
+	                                   final long lookupDeadlineMillis, final double budgetRatio, final int budgetMax, final boolean hedgeEnabled, final long hedgeDelayMillis) {
+		this.delegate = delegate;
+		this.maxAttempts = Math.max(1, maxAttempts);
+		this.initialBackoffNanos = TimeUnit.MILLISECONDS.toNanos(initialBackoffMillis);
+		this.maxBackoffNanos = TimeUnit.MILLISECONDS.toNanos(maxBackoffMillis);
+		this.deadlineNanos = TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+		this.lookupDeadlineNanos = TimeUnit.MILLISECONDS.toNanos(lookupDeadlineMillis);
+		this.hedgeDelayNanos = TimeUnit.MILLISECONDS.toNanos(hedgeDelayMillis);
+		this.hedges = hedgeEnabled ? Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("basecommerce-hedge-%d").setDaemon(true).build()) : null;
+		this.budget = new RetryBudget(budgetRatio, budgetMax);
+		for (String operation : new String[]{OPERATION_CHARGE, OPERATION_ADD_BANK_CARD, OPERATION_ADD_BANK_ACCOUNT, OPERATION_GET_PAYMENT_METHOD, OPERATION_GET_TRANSACTION}) {
+			retryCounts.put(operation, new AtomicLong());
+		}
+	}
+	
+	@Override
+	public BaseCommerceGatewayResult charge(final BaseCommerceCredentials credentials, final String type, final String token, final BigDecimal amount) throws BaseCommerceGatewayException {
+		return call(OPERATION_CHARGE, deadlineNanos, false, new Callable<BaseCommerceGatewayResult>() {
+			@Override
+			public BaseCommerceGatewayResult call() throws BaseCommerceGatewayException {
+				return delegate.charge(credentials, type, token, amount);
+			}
+		});
+	}
+	
+	@Override
+	public String addBankCard(final BaseCommerceCredentials credentials, final String number, final String expirationMonth, final String expirationYear, final String name) throws BaseCommerceGatewayException {
+		return call(OPERATION_ADD_BANK_CARD, deadlineNanos, false, new Callable<String>() {
+			@Override
+			public String call() throws BaseCommerceGatewayException {
+				return delegate.addBankCard(credentials, number, expirationMonth, expirationYear, name);
+			}
+		});
+	}
+	
+	@Override
+	public String addBankAccount(final BaseCommerceCredentials credentials, final String routingNumber, final String accountNumber, final String name) throws BaseCommerceGatewayException {
+		return call(OPERATION_ADD_BANK_ACCOUNT, deadlineNanos, false, new Callable<String>() {
+			@Override
+			public String call() throws BaseCommerceGatewayException {
+				return delegate.addBankAccount(credentials, routingNumber, accountNumber, name);
+			}
+		});
+	}
+	
+	@Override
+	public boolean isPaymentMethodActive(final BaseCommerceCredentials credentials, final String type, final String token) throws BaseCommerceGatewayException {
+		return call(OPERATION_GET_PAYMENT_METHOD, lookupDeadlineNanos, true, new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws BaseCommerceGatewayException {
+				return delegate.isPaymentMethodActive(credentials, type, token);
+			}
+		});
+	}
+	
+	@Override
+	public BaseCommerceGatewayResult getTransaction(final BaseCommerceCredentials credentials, final String type, final String gatewayTransactionId) throws BaseCommerceGatewayException {
+		return call(OPERATION_GET_TRANSACTION, lookupDeadlineNanos, true, new Callable<BaseCommerceGatewayResult>() {
+			@Override
+			public BaseCommerceGatewayResult call() throws BaseCommerceGatewayException {
+				return delegate.getTransaction(credentials, type, gatewayTransactionId);
+			}
+		});
+	}
+	
+	/**
+	 * Stop hedging. Hedged calls still in flight are interrupted.
+	 */
+	public void shutdown() {
+		if (hedges != null) {
+			hedges.shutdownNow();
+		}
+	}
+	
+	private <T> T call(final String operation, final long operationDeadlineNanos, final boolean idempotent, final Callable<T> call) throws BaseCommerceGatewayException {
+		final Long previousDeadline = BaseCommerceDeadline.start(operationDeadlineNanos);
+		try {
+			budget.deposit();
+			for (int attempt = 1; ; attempt++) {
+				try {
+					return idempotent && hedges != null ? hedged(call) : run(call);
+				} catch (BaseCommerceGatewayUnavailableException e) {
+					// refused before reaching the gateway, retrying would only hammer the limits that refused it
+					throw e;
+				} catch (BaseCommerceGatewayException e) {
+					if (attempt >= maxAttempts || !(idempotent ? isTransient(e) : e.isNotSent())) {
+						throw e;
+					}
+					final long backoffNanos = backoff(attempt);
+					if (backoffNanos >= BaseCommerceDeadline.remainingNanos()) {
+						throw e;
+					}
+					if (!budget.tryWithdraw()) {
+						budgetExhaustedCount.incrementAndGet();
+						throw e;
+					}
+					retryCounts.get(operation).incrementAndGet();
+					try {
+						TimeUnit.NANOSECONDS.sleep(backoffNanos);
+					} catch (InterruptedException interrupted) {
+						Thread.currentThread().interrupt();
+						throw e;
+					}
+				}
+			}
+		} finally {
+			BaseCommerceDeadline.set(previousDeadline);
+		}
+	}
+	
+	/**
+	 * Run an idempotent call, and a second one if the first hasn't replied within the hedge delay.
+	 */
+	private <T> T hedged(final Callable<T> call) throws BaseCommerceGatewayException {
+		final Long deadline = BaseCommerceDeadline.get();
+		final Callable<T> attempt = new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				// the hedge threads work for the caller, within its deadline
+				final Long previous = BaseCommerceDeadline.set(deadline);
+				try {
+					return call.call();
+				} finally {
+					BaseCommerceDeadline.set(previous);
+				}
+			}
+		};
+		
+		final CompletionService<T> completion = new ExecutorCompletionService<T>(hedges);
+		final Future<T> first = completion.submit(attempt);
+		Future<T> second = null;
+		try {
+			Future<T> done = completion.poll(Math.min(hedgeDelayNanos, BaseCommerceDeadline.remainingNanos()), TimeUnit.NANOSECONDS);
+			if (done == null && BaseCommerceDeadline.remainingNanos() > 0 && budget.tryWithdraw()) {
+				hedgeCount.incrementAndGet();
+				second = completion.submit(attempt);
+			}
+			ExecutionException failure = null;
+			final int submitted = second == null ? 1 : 2;
+			for (int received = done == null ? 0 : 1; ; ) {
+				if (done != null) {
+					try {
+						final T result = done.get();
+						if (done == second) {
+							hedgeWinCount.incrementAndGet();
+						}
+						return result;
+					} catch (ExecutionException e) {
+						// the other attempt may still succeed
+						failure = e;
+					}
+				}
+				if (received == submitted) {
+					throw unwrap(failure);
+				}
+				done = completion.poll(BaseCommerceDeadline.remainingNanos(), TimeUnit.NANOSECONDS);
+				if (done == null) {
+					throw new BaseCommerceGatewayException("gateway lookup out of time", new TimeoutException());
+				}
+				received++;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new BaseCommerceGatewayException("interrupted while waiting for the gateway", e);
+		} finally {
+			first.cancel(true);
+			if (second != null) {
+				second.cancel(true);
+			}
+		}
+	}
+	
+	private long backoff(final int attempt) {
+		final long ceilingNanos = Math.min(maxBackoffNanos, initialBackoffNanos << Math.min(attempt - 1, 30));
+		// full jitter, so callers that failed together don't retry together
+		return ceilingNanos <= 0 ? 0 : ThreadLocalRandom.current().nextLong(ceilingNanos + 1);
+	}
+	
+	/**
+	 * @return true if the failure was an I/O error or a timeout, rather than an answer from the gateway
+	 */
+	private static boolean isTransient(final Throwable failure) {
+		for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+			if (cause instanceof IOException || cause instanceof TimeoutException) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private static <T> T run(final Callable<T> call) throws BaseCommerceGatewayException {
+		try {
+			return call.call();
+		} catch (BaseCommerceGatewayException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			// the calls only throw gateway exceptions
+			throw new BaseCommerceGatewayException(e.getMessage(), e);
+		}
+	}
+	
+	private static BaseCommerceGatewayException unwrap(final ExecutionException e) {
+		final Throwable cause = e.getCause();
+		if (cause instanceof BaseCommerceGatewayException) {
+			return (BaseCommerceGatewayException) cause;
+		}
+		if (cause instanceof RuntimeException) {
+			throw (RuntimeException) cause;
+		}
+		if (cause instanceof Error) {
+			throw (Error) cause;
+		}
+		return new BaseCommerceGatewayException(cause.getMessage(), cause);
+	}
+	
+	@Override
+	public void appendMetrics(final StringBuilder out) {
+		out.append("# TYPE basecommerce_gateway_retries_total counter\n");
+		for (Map.Entry<String, AtomicLong> entry : retryCounts.entrySet()) {
+			out.append("basecommerce_gateway_retries_total{operation=\"").append(entry.getKey()).append("\"} ").append(entry.getValue().get()).append('\n');
+		}
+		out.append("# TYPE basecommerce_gateway_retry_budget_exhausted_total counter\n");
+		out.append("basecommerce_gateway_retry_budget_exhausted_total ").append(budgetExhaustedCount.get()).append('\n');
+		out.append("# TYPE basecommerce_gateway_retry_budget gauge\n");
+		out.append("basecommerce_gateway_retry_budget ").append(budget.getTokens()).append('\n');
+		out.append("# TYPE basecommerce_gateway_hedges_total counter\n");
+		out.append("basecommerce_gateway_hedges_total ").append(hedgeCount.get()).append('\n');
+		out.append("# TYPE basecommerce_gateway_hedge_wins_total counter\n");
+		out.append("basecommerce_gateway_hedge_wins_total ").append(hedgeWinCount.get()).append('\n');
+	}
+	
+	private static class RetryBudget {
+		
+		private final double ratio;
+		private final double max;
+		// starts full, so the first failures after a start can be retried
+		private double tokens;
+		
+		RetryBudget(final double ratio, final int max) {
+			this.ratio = ratio;
+			this.max = max;
+			this.tokens = max;
+		}
+		
+		synchronized void deposit() {
+			tokens = Math.min(max, tokens + ratio);
+		}
+		
+		synchronized boolean tryWithdraw() {
+			if (tokens < 1) {
+				return false;
+			}
+			tokens -= 1;
+			return true;
+		}
+		
+		synchronized double getTokens() {
+			return tokens;
+		}
+	}
+}
@@ -0,0 +1,547 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.fathomstudio.killbillbasecommerceplugin;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.osgi.service.log.LogService;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Brings the plugin tables of an existing install up to the schema of {@code db.sql}, without taking them offline.
+ * <p>
+ * Applied versions are recorded in {@code baseCommerce_schemaVersions}; installs made before it existed are version 1,
+ * the schema the plugin was first released with. Version 2 adds the columns, indexes and tables added to {@code db.sql}
+ * since: the tenant, account, last four digits, version and update date of payment methods, the tenant and account being
+ * copied from Kill Bill's {@code payment_methods}, the rate limit and version of credentials, and
+ * {@code baseCommerce_transactions}. Version 3 adds {@code BINARY(16)} copies of
+ * {@code baseCommerce_paymentMethods.paymentMethodId} and {@code baseCommerce_credentials.tenantId}, kept in sync by
+ * triggers while existing rows are copied in small chunks, each its own short transaction, then indexes them and drops
+ * the redundant indexes. Version 4 drops the string columns and renames the binary ones in their place. It is only
+ * applied when {@code schema.contract} is set, once every node runs a plugin version that knows it, since nodes switch
+ * the DAO to binary IDs when they see version 4 and fail to use those columns until then. Every DDL is
+ * {@code ALGORITHM=INPLACE, LOCK=NONE}.
+ * <p>
+ * Only nodes with {@code schema.migrate} set run DDL, one at a time under a MySQL named lock; every node checks the
+ * version periodically. Each step checks whether it was already done, so a migration interrupted by a restart picks up
+ * where it stopped.
+ */
+public class BaseCommerceSchemaMigrator implements BaseCommerceMetricsSource {
+	
+	public static final int PLUGIN_COLUMNS_VERSION = 2;
+	public static final int BINARY_IDS_VERSION = 4;
+	
+	private static final int BINARY_COLUMNS_VERSION = 3;
+	private static final String LOCK_NAME = "baseCommerce_schema";
+	private static final String VERSIONS_TABLE = "baseCommerce_schemaVersions";
+	private static final String CREATE_VERSIONS_QUERY = "CREATE TABLE IF NOT EXISTS `baseCommerce_schemaVersions` (`version` INT(11) NOT NULL PRIMARY KEY, `description` VARCHAR(255) NOT NULL, `installedDate` DATETIME NOT NULL) ENGINE = InnoDB CHARACTER SET utf8 COLLATE utf8_bin";
+	private static final String BASELINE_QUERY = "INSERT IGNORE INTO `baseCommerce_schemaVersions` (`version`, `description`, `installedDate`) VALUES (1, 'baseline', CURRENT_TIMESTAMP)";
+	private static final String VERSION_QUERY = "SELECT MAX(`version`) FROM `baseCommerce_schemaVersions`";
+	private static final String SAVE_VERSION_QUERY = "INSERT INTO `baseCommerce_schemaVersions` (`version`, `description`, `installedDate`) VALUES (?, ?, CURRENT_TIMESTAMP)";
+	private static final String TABLE_EXISTS_QUERY = "SELECT 1 FROM `information_schema`.`TABLES` WHERE `TABLE_SCHEMA` = DATABASE() AND `TABLE_NAME` = ?";
+	private static final String COLUMN_EXISTS_QUERY = "SELECT 1 FROM `information_schema`.`COLUMNS` WHERE `TABLE_SCHEMA` = DATABASE() AND `TABLE_NAME` = ? AND `COLUMN_NAME` = ?";
+	private static final String INDEX_EXISTS_QUERY = "SELECT 1 FROM `information_schema`.`STATISTICS` WHERE `TABLE_SCHEMA` = DATABASE() AND `TABLE_NAME` = ? AND `INDEX_NAME` = ?";
+	private static final String TRIGGER_EXISTS_QUERY = "SELECT 1 FROM `information_schema`.`TRIGGERS` WHERE `TRIGGER_SCHEMA` = DATABASE() AND `TRIGGER_NAME` = ?";
+	private static final String CREATE_TRANSACTIONS_QUERY = "CREATE TABLE IF NOT EXISTS `baseCommerce_transactions` (`id` INT(11) NOT NULL AUTO_INCREMENT PRIMARY KEY, `tenantId` VARCHAR(255) NOT NULL, `kbAccountId` VARCHAR(255) NOT NULL, `kbPaymentId` VARCHAR(255) NOT NULL, `kbTransactionId` VARCHAR(255) NOT NULL UNIQUE, `kbPaymentMethodId` VARCHAR(255) NOT NULL, `transactionType` VARCHAR(32) NOT NULL, `paymentMethodType` VARCHAR(32) NOT NULL, `amount` DECIMAL(15, 9) NOT NULL, `currency` CHAR(3) NOT NULL, `status` VARCHAR(32) NOT NULL, `gatewayTransactionId` VARCHAR(255), `gatewayStatus` VARCHAR(255), `gatewayErrorCode` VARCHAR(255), `gatewayError` VARCHAR(1024), `createdDate` DATETIME NOT NULL, `effectiveDate` DATETIME NOT NULL, `lookupRequested` BOOLEAN NOT NULL DEFAULT FALSE, INDEX `INDEX_baseCommerce_transactions_ON_kbPaymentId`(`kbPaymentId`), INDEX `INDEX_baseCommerce_transactions_ON_tenantId_gatewayTransactionId`(`tenantId`, `gatewayTransactionId`), INDEX `INDEX_baseCommerce_transactions_ON_status_paymentMethodType_tenantId`(`status`, `paymentMethodType`, `tenantId`), INDEX `INDEX_baseCommerce_transactions_ON_lookupRequested_tenantId`(`lookupRequested`, `tenantId`)) ENGINE = InnoDB CHARACTER SET utf8 COLLATE utf8_bin";
+	private static final String PAYMENT_METHOD_TENANTS_QUERY = "UPDATE `baseCommerce_paymentMethods` m JOIN `payment_methods` p ON p.`id` = m.`paymentMethodId` JOIN `tenants` t ON t.`record_id` = p.`tenant_record_id` SET m.`tenantId` = t.`id` WHERE m.`id` > ? AND m.`id` <= ? AND m.`tenantId` = ''";
+	private static final String PAYMENT_METHOD_ACCOUNTS_QUERY = "UPDATE `baseCommerce_paymentMethods` m JOIN `payment_methods` p ON p.`id` = m.`paymentMethodId` SET m.`kbAccountId` = p.`account_id` WHERE m.`id` > ? AND m.`id` <= ? AND m.`kbAccountId` IS NULL";
+	private static final String ONLINE = ", ALGORITHM=INPLACE, LOCK=NONE";
+	
+	private static final BinaryColumn PAYMENT_METHOD_ID = new BinaryColumn("baseCommerce_paymentMethods", "paymentMethodId", "paymentMethodId",
+	                                                                       new String[]{"INDEX_baseCommerce_paymentMethods_ON_paymentMethodId"});
+	private static final BinaryColumn TENANT_ID = new BinaryColumn("baseCommerce_credentials", "tenantId", "tenantId",
+	                                                               new String[]{"INDEX_baseCommerce_credentials_ON_tenantId", "INDEX_baseCommerce_credentials_ON_accountId"});
+	
+	private final DataSource dataSource;
+	private final BaseCommerceDao dao;
+	private final LogService logService;
+	private final boolean migrate;
+	private final boolean contract;
+	private final int chunkSize;
+	private final long chunkPauseMillis;
+	private final long checkIntervalSeconds;
+	private final ScheduledExecutorService scheduler;
+	private final AtomicLong backfilledCount = new AtomicLong();
+	private volatile int version;
+	
+	/**
+	 * @param dataSource           - the Kill Bill database
+	 * @param dao                  - the DAO to switch to binary IDs once they are
+	 * @param logService           - the log service
+	 * @param migrate              - whether this node applies migrations, or only follows them
+	 * @param contract             - whether the string ID columns may be dropped
+	 * @param chunkSize            - the rows copied per transaction
+	 * @param chunkPauseMillis     - the pause between two chunks, leaving room to the other writes
+	 * @param checkIntervalSeconds - the delay between two checks of the schema version
+	 */
+	public BaseCommerceSchemaMigrator(final DataSource dataSource, final BaseCommerceDao dao, final LogService logService, final boolean migrate, final boolean contract, final int chunkSize,
+	                                  final long chunkPauseMillis, final long checkIntervalSeconds) {
+		this.dataSource = dataSource;
+		this.dao = dao;
+		this.logService = logService;
+		this.migrate = migrate;
+		this.contract = contract;
+		this.chunkSize = chunkSize;
+		this.chunkPauseMillis = chunkPauseMillis;
+		this.checkIntervalSeconds = checkIntervalSeconds;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("basecommerce-schema-%d").setDaemon(true).build());
+	}
+	
+	/**
+	 * Read the schema version, so the DAO uses the right ID format from the first query, then migrate and follow the
+	 * migrations of other nodes in the background. The columns of version 2 are used by every query, so this node adds
+	 * them before returning when it migrates; filling and indexing them is left to the background migration, and
+	 * {@link #isReady()} tells when it is done.
+	 *
+	 * @throws SQLException if the version could not be read, or the columns added
+	 */
+	public void start() throws SQLException {
+		refreshVersion();
+		if (migrate && version < PLUGIN_COLUMNS_VERSION) {
+			addPluginColumns();
+		}
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				check();
+			}
+		}, 0, checkIntervalSeconds, TimeUnit.SECONDS);
+	}
+	
+	/**
+	 * @return true once the columns of version 2 are filled, which searches and the cache coherence rely on
+	 */
+	public boolean isReady() {
+		return version >= PLUGIN_COLUMNS_VERSION;
+	}
+	
+	/**
+	 * Stop migrating. An interrupted migration resumes on the next start.
+	 */
+	public void stop() {
+		scheduler.shutdownNow();
+	}
+	
+	private void check() {
+		try {
+			refreshVersion();
+			final int targetVersion = contract ? BINARY_IDS_VERSION : BINARY_COLUMNS_VERSION;
+			if (migrate && version < targetVersion) {
+				migrate(targetVersion);
+			}
+		} catch (SQLException e) {
+			logService.log(LogService.LOG_ERROR, "could not migrate the schema: ", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (RuntimeException e) {
+			// an exception would cancel the schedule
+			logService.log(LogService.LOG_ERROR, "could not migrate the schema: ", e);
+		}
+	}
+	
+	private void refreshVersion() throws SQLException {
+		try (Connection connection = dataSource.getConnection()) {
+			// only created by a migrating node, or by db.sql
+			if (!exists(connection, TABLE_EXISTS_QUERY, VERSIONS_TABLE)) {
+				version = 1;
+			} else {
+				try (Statement statement = connection.createStatement();
+				     ResultSet resultSet = statement.executeQuery(VERSION_QUERY)) {
+					resultSet.next();
+					version = resultSet.getInt(1);
+				}
+			}
+		}
+		dao.setBinaryIds(version >= BINARY_IDS_VERSION);
+	}
+	
+	private void migrate(final int targetVersion) throws SQLException, InterruptedException {
+		try (Connection connection = dataSource.getConnection()) {
+			// named locks belong to the connection, which is kept until the lock is released
+			if (!getLock(connection)) {
+				return;
+			}
+			try {
+				execute(connection, CREATE_VERSIONS_QUERY);
+				execute(connection, BASELINE_QUERY);
+				// another node may have migrated while we waited for the lock
+				refreshVersion();
+				if (version < PLUGIN_COLUMNS_VERSION) {
+					logService.log(LogService.LOG_INFO, "migrating the schema to version 2: plugin columns");
+					addPluginColumns(connection);
+					fillPluginColumns(connection);
+					saveVersion(connection, PLUGIN_COLUMNS_VERSION, "plugin columns");
+				}
+				if (version < BINARY_COLUMNS_VERSION && targetVersion >= BINARY_COLUMNS_VERSION) {
+					logService.log(LogService.LOG_INFO, "migrating the schema to version 3: binary id columns");
+					expand(connection, PAYMENT_METHOD_ID);
+					expand(connection, TENANT_ID);
+					saveVersion(connection, BINARY_COLUMNS_VERSION, "binary id columns");
+				}
+				if (version < BINARY_IDS_VERSION && targetVersion >= BINARY_IDS_VERSION) {
+					logService.log(LogService.LOG_INFO, "migrating the schema to version 4: drop string id columns");
+					contract(connection, PAYMENT_METHOD_ID);
+					contract(connection, TENANT_ID);
+					saveVersion(connection, BINARY_IDS_VERSION, "drop string id columns");
+				}
+			} finally {
+				releaseLock(connection);
+			}
+		}
+		refreshVersion();
+	}
+	
+	/**
+	 * Add the columns of version 2 under the migration lock, unless another node holds it and is adding them itself.
+	 */
+	private void addPluginColumns() throws SQLException {
+		try (Connection connection = dataSource.getConnection()) {
+			if (!getLock(connection)) {
+				return;
+			}
+			try {
+				addPluginColumns(connection);
+			} finally {
+				releaseLock(connection);
+			}
+		}
+	}
+	
+	/**
+	 * Add the columns and tables {@code db.sql} gained since the first release. The new NOT NULL columns get constant
+	 * defaults, so rows written by nodes still running an older plugin version stay valid and the DDL stays online; the
+	 * DAO always sets them.
+	 */
+	private void addPluginColumns(final Connection connection) throws SQLException {
+		addSearchColumns(connection);
+		addAccountColumn(connection);
+		addRateLimitColumns(connection);
+		addVersionColumns(connection);
+		addTransactionsTable(connection);
+		addNotificationColumns(connection);
+	}
+	
+	/**
+	 * Fill the columns of version 2 from Kill Bill's tables, then index them. Queries work meanwhile, but searches
+	 * don't see the payment methods whose tenant isn't filled yet.
+	 */
+	private void fillPluginColumns(final Connection connection) throws SQLException, InterruptedException {
+		fillSearchColumns(connection);
+		fillAccountColumn(connection);
+		addVersionIndex(connection);
+		addNotificationIndexes(connection);
+		addReconciliationIndex(connection);
+	}
+	
+	/**
+	 * Create {@code baseCommerce_transactions}, where the gateway results are kept so that {@code getPaymentInfo} is
+	 * served locally. A new table gets every column and index at once; one created by an older plugin version gets the
+	 * later ones from the steps that added them.
+	 */
+	private void addTransactionsTable(final Connection connection) throws SQLException {
+		execute(connection, CREATE_TRANSACTIONS_QUERY);
+	}
+	
+	/**
+	 * Add the tenant and last four digits that payment method searches filter on.
+	 */
+	private void addSearchColumns(final Connection connection) throws SQLException {
+		final String paymentMethods = "baseCommerce_paymentMethods";
+		addColumn(connection, paymentMethods, "tenantId", "VARCHAR(255) NOT NULL DEFAULT '' AFTER `id`");
+		addColumn(connection, paymentMethods, "lastFour", "VARCHAR(4) NULL AFTER `type`");
+	}
+	
+	/**
+	 * Copy the tenant of each payment method from Kill Bill, then add the search indexes, each starting with the tenant.
+	 */
+	private void fillSearchColumns(final Connection connection) throws SQLException, InterruptedException {
+		final String paymentMethods = "baseCommerce_paymentMethods";
+		// the plugin never stored it; payment methods Kill Bill no longer knows stay without tenant, and the last four
+		// digits are filled the next time each payment method is saved
+		backfill(connection, paymentMethods, PAYMENT_METHOD_TENANTS_QUERY);
+		// (tenantId, id) in InnoDB, the only index serving searches that match no column
+		addIndex(connection, paymentMethods, "INDEX_baseCommerce_paymentMethods_ON_tenantId", "`tenantId`");
+		addIndex(connection, paymentMethods, "INDEX_baseCommerce_paymentMethods_ON_tenantId_lastFour", "`tenantId`, `lastFour`");
+		addIndex(connection, paymentMethods, "INDEX_baseCommerce_paymentMethods_ON_tenantId_type", "`tenantId`, `type`");
+		addIndex(connection, paymentMethods, "INDEX_baseCommerce_paymentMethods_ON_tenantId_token", "`tenantId`, `token`");
+	}
+	
+	/**
+	 * Add the account that {@code getPaymentMethods} looks payment methods up by, after the tenant added by the search
+	 * step.
+	 */
+	private void addAccountColumn(final Connection connection) throws SQLException {
+		addColumn(connection, "baseCommerce_paymentMethods", "kbAccountId", "VARCHAR(255) NULL AFTER `tenantId`");
+	}
+	
+	/**
+	 * Copy the account of each payment method from Kill Bill, then index it under the tenant.
+	 */
+	private void fillAccountColumn(final Connection connection) throws SQLException, InterruptedException {
+		final String paymentMethods = "baseCommerce_paymentMethods";
+		backfill(connection, paymentMethods, PAYMENT_METHOD_ACCOUNTS_QUERY);
+		addIndex(connection, paymentMethods, "INDEX_baseCommerce_paymentMethods_ON_tenantId_kbAccountId", "`tenantId`, `kbAccountId`");
+	}
+	
+	/**
+	 * Add the flag of the transactions a notification asked to look up, for a table created before notifications were
+	 * confirmed through the gateway.
+	 */
+	private void addNotificationColumns(final Connection connection) throws SQLException {
+		addColumn(connection, "baseCommerce_transactions", "lookupRequested", "BOOLEAN NOT NULL DEFAULT FALSE AFTER `effectiveDate`");
+	}
+	
+	/**
+	 * Index the transactions by the gateway transaction ID that notifications carry, and the flagged ones by tenant.
+	 */
+	private void addNotificationIndexes(final Connection connection) throws SQLException {
+		final String transactions = "baseCommerce_transactions";
+		addIndex(connection, transactions, "INDEX_baseCommerce_transactions_ON_tenantId_gatewayTransactionId", "`tenantId`, `gatewayTransactionId`");
+		addIndex(connection, transactions, "INDEX_baseCommerce_transactions_ON_lookupRequested_tenantId", "`lookupRequested`, `tenantId`");
+	}
+	
+	/**
+	 * Index the transactions by status and payment method type under the tenant, which the reconciliation pages the
+	 * pending bank debits with.
+	 */
+	private void addReconciliationIndex(final Connection connection) throws SQLException {
+		addIndex(connection, "baseCommerce_transactions", "INDEX_baseCommerce_transactions_ON_status_paymentMethodType_tenantId", "`status`, `paymentMethodType`, `tenantId`");
+	}
+	
+	/**
+	 * Add the request rate and burst a tenant can set for its gateway calls, 0 keeping the plugin defaults.
+	 */
+	private void addRateLimitColumns(final Connection connection) throws SQLException {
+		final String credentials = "baseCommerce_credentials";
+		addColumn(connection, credentials, "requestsPerSecond", "DOUBLE NOT NULL DEFAULT 0 AFTER `test`");
+		addColumn(connection, credentials, "burst", "INT(11) NOT NULL DEFAULT 0 AFTER `requestsPerSecond`");
+	}
+	
+	/**
+	 * Add the row versions the cache coherence compares, after the rate limits of the credentials.
+	 */
+	private void addVersionColumns(final Connection connection) throws SQLException {
+		final String paymentMethods = "baseCommerce_paymentMethods";
+		addColumn(connection, paymentMethods, "version", "BIGINT NOT NULL DEFAULT 1 AFTER `lastFour`");
+		// older rows count as never updated, which no cache coherence check needs to see
+		addColumn(connection, paymentMethods, "updatedDate", "DATETIME(3) NOT NULL DEFAULT '1970-01-01 00:00:00.000' AFTER `version`");
+		addColumn(connection, "baseCommerce_credentials", "version", "BIGINT NOT NULL DEFAULT 1 AFTER `burst`");
+	}
+	
+	/**
+	 * Index the payment methods by update date, which the cache coherence reads the recent changes with.
+	 */
+	private void addVersionIndex(final Connection connection) throws SQLException {
+		addIndex(connection, "baseCommerce_paymentMethods", "INDEX_baseCommerce_paymentMethods_ON_updatedDate", "`updatedDate`");
+	}
+	
+	/**
+	 * Add the binary column next to the string one, keep it in sync, copy the existing rows, index it and drop the
+	 * redundant indexes.
+	 */
+	private void expand(final Connection connection, final BinaryColumn column) throws SQLException, InterruptedException {
+		addColumn(connection, column.table, column.binaryColumn, "BINARY(16) NULL AFTER `" + column.stringColumn + "`");
+		// from here on every write fills the binary column, so the copy below only has to cover the older rows
+		for (String event : new String[]{"INSERT", "UPDATE"}) {
+			final String trigger = column.trigger(event);
+			if (!triggerExists(connection, trigger)) {
+				execute(connection, "CREATE TRIGGER `" + trigger + "` BEFORE " + event + " ON `" + column.table + "` FOR EACH ROW SET NEW.`" + column.binaryColumn + "` = " + toBinary("NEW.`" + column.stringColumn + "`"));
+			}
+		}
+		backfill(connection, column);
+		if (!indexExists(connection, column.table, column.binaryIndex)) {
+			execute(connection, "ALTER TABLE `" + column.table + "` ADD UNIQUE INDEX `" + column.binaryIndex + "`(`" + column.binaryColumn + "`)" + ONLINE);
+		}
+		// each duplicates the unique index of its column, or is used by no query
+		for (String index : column.redundantIndexes) {
+			dropIndex(connection, column.table, index);
+		}
+	}
+	
+	/**
+	 * Copy the string IDs of the rows without a binary one into the binary column.
+	 */
+	private void backfill(final Connection connection, final BinaryColumn column) throws SQLException, InterruptedException {
+		backfill(connection, column.table, "UPDATE `" + column.table + "` SET `" + column.binaryColumn + "` = " + toBinary("`" + column.stringColumn + "`")
+		                                   + " WHERE `id` > ? AND `id` <= ? AND `" + column.binaryColumn + "` IS NULL");
+	}
+	
+	/**
+	 * Run an update over the existing rows of a table, a chunk of record IDs per transaction.
+	 *
+	 * @param update - the update, bound to the first and last record ID of each chunk
+	 */
+	private void backfill(final Connection connection, final String table, final String update) throws SQLException, InterruptedException {
+		final long maxRecordId;
+		try (Statement statement = connection.createStatement();
+		     ResultSet resultSet = statement.executeQuery("SELECT COALESCE(MAX(`id`), 0) FROM `" + table + "`")) {
+			resultSet.next();
+			maxRecordId = resultSet.getLong(1);
+		}
+		try (PreparedStatement statement = connection.prepareStatement(update)) {
+			for (long fromRecordId = 0; fromRecordId < maxRecordId; fromRecordId += chunkSize) {
+				statement.setLong(1, fromRecordId);
+				statement.setLong(2, fromRecordId + chunkSize);
+				backfilledCount.addAndGet(statement.executeUpdate());
+				if (chunkPauseMillis > 0) {
+					Thread.sleep(chunkPauseMillis);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Replace the string column by the binary one.
+	 */
+	private void contract(final Connection connection, final BinaryColumn column) throws SQLException, InterruptedException {
+		// the triggers refer to the string column, so every write would fail once it is gone
+		for (String event : new String[]{"INSERT", "UPDATE"}) {
+			execute(connection, "DROP TRIGGER IF EXISTS `" + column.trigger(event) + "`");
+		}
+		if (columnExists(connection, column.table, column.binaryColumn)) {
+			// covers the rows written since the triggers were dropped; one written after this fails the NOT NULL
+			// below, and the step is retried on the next check
+			backfill(connection, column);
+			execute(connection, "ALTER TABLE `" + column.table + "` DROP INDEX `" + column.stringColumn + "`, DROP COLUMN `" + column.stringColumn + "`, CHANGE COLUMN `"
+			                    + column.binaryColumn + "` `" + column.stringColumn + "` BINARY(16) NOT NULL, RENAME INDEX `" + column.binaryIndex + "` TO `" + column.finalIndex + "`" + ONLINE);
+		}
+	}
+	
+	private void addColumn(final Connection connection, final String table, final String column, final String definition) throws SQLException {
+		if (!columnExists(connection, table, column)) {
+			execute(connection, "ALTER TABLE `" + table + "` ADD COLUMN `" + column + "` " + definition + ONLINE);
+		}
+	}
+	
+	private void addIndex(final Connection connection, final String table, final String index, final String columns) throws SQLException {
+		if (!indexExists(connection, table, index)) {
+			execute(connection, "ALTER TABLE `" + table + "` ADD INDEX `" + index + "`(" + columns + ")" + ONLINE);
+		}
+	}
+	
+	private void dropIndex(final Connection connection, final String table, final String index) throws SQLException {
+		if (indexExists(connection, table, index)) {
+			execute(connection, "ALTER TABLE `" + table + "` DROP INDEX `" + index + "`" + ONLINE);
+		}
+	}
+	
+	private boolean getLock(final Connection connection) throws SQLException {
+		try (PreparedStatement statement = connection.prepareStatement("SELECT GET_LOCK(?, 0)")) {
+			statement.setString(1, LOCK_NAME);
+			try (ResultSet resultSet = statement.executeQuery()) {
+				return resultSet.next() && resultSet.getInt(1) == 1;
+			}
+		}
+	}
+	
+	private void releaseLock(final Connection connection) throws SQLException {
+		try (PreparedStatement statement = connection.prepareStatement("SELECT RELEASE_LOCK(?)")) {
+			statement.setString(1, LOCK_NAME);
+			statement.executeQuery().close();
+		}
+	}
+	
+	private void saveVersion(final Connection connection, final int savedVersion, final String description) throws SQLException {
+		try (PreparedStatement statement = connection.prepareStatement(SAVE_VERSION_QUERY)) {
+			statement.setInt(1, savedVersion);
+			statement.setString(2, description);
+			statement.executeUpdate();
+		}
+		version = savedVersion;
+		logService.log(LogService.LOG_INFO, "schema migrated to version " + savedVersion);
+	}
+	
+	private void execute(final Connection connection, final String sql) throws SQLException {
+		logService.log(LogService.LOG_INFO, "migrating: " + sql);
+		try (Statement statement = connection.createStatement()) {
+			statement.execute(sql);
+		}
+	}
+	
+	private static boolean columnExists(final Connection connection, final String table, final String column) throws SQLException {
+		return exists(connection, COLUMN_EXISTS_QUERY, table, column);
+	}
+	
+	private static boolean indexExists(final Connection connection, final String table, final String index) throws SQLException {
+		return exists(connection, INDEX_EXISTS_QUERY, table, index);
+	}
+	
+	private static boolean triggerExists(final Connection connection, final String trigger) throws SQLException {
+		return exists(connection, TRIGGER_EXISTS_QUERY, trigger);
+	}
+	
+	private static boolean exists(final Connection connection, final String query, final String... parameters) throws SQLException {
+		try (PreparedStatement statement = connection.prepareStatement(query)) {
+			for (int i = 0; i < parameters.length; i++) {
+				statement.setString(i + 1, parameters[i]);
+			}
+			try (ResultSet resultSet = statement.executeQuery()) {
+				return resultSet.next();
+			}
+		}
+	}
+	
+	/**
+	 * @return SQL turning a UUID string into the 16 bytes the DAO binds, most significant first
+	 */
+	private static String toBinary(final String expression) {
+		return "UNHEX(REPLACE(" + expression + ", '-', ''))";
+	}
+	
+	@Override
+	public void appendMetrics(final StringBuilder out) {
+		out.append("# TYPE basecommerce_schema_version gauge\n");
+		out.append("basecommerce_schema_version ").append(version).append('\n');
+		out.append("# TYPE basecommerce_schema_backfilled_rows_total counter\n");
+		out.append("basecommerce_schema_backfilled_rows_total ").append(backfilledCount.get()).append('\n');
+	}
+	
+	/**
+	 * A string UUID column moved to BINARY(16).
+	 */
+	private static class BinaryColumn {
+		
+		private final String table;
+		private final String stringColumn;
+		private final String binaryColumn;
+		private final String binaryIndex;
+		private final String finalIndex;
+		private final String[] redundantIndexes;
+		
+		BinaryColumn(final String table, final String stringColumn, final String name, final String[] redundantIndexes) {
+			this.table = table;
+			this.stringColumn = stringColumn;
+			this.binaryColumn = name + "Binary";
+			this.binaryIndex = "UNIQUE_" + table + "_ON_" + binaryColumn;
+			this.finalIndex = "UNIQUE_" + table + "_ON_" + stringColumn;
+			this.redundantIndexes = redundantIndexes;
+		}
+		
+		String trigger(final String event) {
+			return table + "_" + binaryColumn + "_" + event.toLowerCase();
+		}
+	}
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.fathomstudio.killbillbasecommerceplugin;
+
+import com.basecommercepay.client.*;
+import org.osgi.service.log.LogService;
+
+import java.math.BigDecimal;
+import java.util.Objects;
+
+/**
+ * The gateway backed by the Base Commerce SDK.
+ */
+public class BaseCommerceSdkGateway implements BaseCommerceGateway {
+	
+	private final BaseCommerceClientRegistry clientRegistry;
+	private final LogService logService;
+	
+	public BaseCommerceSdkGateway(final BaseCommerceClientRegistry clientRegistry, final LogService logService) {
+		this.clientRegistry = clientRegistry;
+		this.logService = logService;
+	}
+	
+	@Override
+	public BaseCommerceGatewayResult charge(final BaseCommerceCredentials credentials, final String type, final String token, final BigDecimal amount) throws BaseCommerceGatewayException {
+		final BaseCommerceClient client = clientRegistry.getClient(credentials);
+		
+		if (Objects.equals(type, BaseCommercePaymentPluginApi.TYPE_CARD)) {
+			// prepare the transaction object
+			BankCardTransaction trans = new BankCardTransaction();
+			trans.setAmount(amount.doubleValue());
+			trans.setType(BankCardTransaction.XS_BCT_TYPE_SALE);
+			trans.setToken(token);
+			
+			// send the transaction to BC
+			try {
+				trans = client.processBankCardTransaction(trans);
+			} catch (BaseCommerceClientException e) {
+				logService.log(LogService.LOG_ERROR, "could not make payment: ", e);
+				throw new BaseCommerceGatewayException(e.getMessage(), e);
+			}
+			
+			logService.log(LogService.LOG_INFO, "transaction status: " + trans.getStatus());
+			logService.log(LogService.LOG_INFO, "transaction ID" + trans.getTransactionId());
+			final String transactionId = trans.getTransactionId() > 0 ? String.valueOf(trans.getTransactionId()) : null;
+			
+			// check if we did OK
+			if (trans.isStatus(BankCardTransaction.XS_BCT_STATUS_FAILED)) {
+				return new BaseCommerceGatewayResult(false, transactionId, trans.getStatus(), trans.getResponseCode(), trans.getResponseMessage());
+			} else if (trans.isStatus(BankCardTransaction.XS_BCT_STATUS_DECLINED)) {
+				return new BaseCommerceGatewayResult(true, transactionId, trans.getStatus(), trans.getResponseCode(), trans.getResponseMessage());
+			} else {
+				// success!
+				return new BaseCommerceGatewayResult(true, transactionId, trans.getStatus(), "", "");
+			}
+		} else if (Objects.equals(type, BaseCommercePaymentPluginApi.TYPE_BANK)) {
+			// prepare the transaction object
+			BankAccountTransaction trans = new BankAccountTransaction();
+			trans.setAmount(amount.doubleValue());
+			trans.setType(BankAccountTransaction.XS_BAT_TYPE_DEBIT);
+			trans.setMethod(BankAccountTransaction.XS_BAT_METHOD_WEB);
+			trans.setToken(token);
+			
+			// send the transaction to BC
+			try {
+				trans = client.processBankAccountTransaction(trans);
+			} catch (BaseCommerceClientException e) {
+				logService.log(LogService.LOG_ERROR, "could not make payment: ", e);
+				throw new BaseCommerceGatewayException(e.getMessage(), e);
+			}
+			
+			logService.log(LogService.LOG_INFO, "transaction status: " + trans.getStatus());
+			logService.log(LogService.LOG_INFO, "transaction ID" + trans.getMerchantTransactionID() + " " + trans.getRecurringTransactionID() + " " + trans.getBankAccountTransactionId() + " " + trans.getBankAccountTransactionLinkedId());
+			final String transactionId = trans.getBankAccountTransactionId() > 0 ? String.valueOf(trans.getBankAccountTransactionId()) : null;
+			
+			// check if we did OK
+			if (trans.isStatus(BankAccountTransaction.XS_BAT_STATUS_FAILED)) {
+				return new BaseCommerceGatewayResult(false, transactionId, trans.getStatus(), "", joinMessages(trans.getMessages()));
+			}
+			return new BaseCommerceGatewayResult(true, transactionId, trans.getStatus(), "", "");
+		} else {
+			throw new IllegalArgumentException("unknown type: " + type);
+		}
+	}
+	
+	@Override
+	public String addBankCard(final BaseCommerceCredentials credentials, final String number, final String expirationMonth, final String expirationYear, final String name) throws BaseCommerceGatewayException {
+		BankCard card = new BankCard();
+		card.setExpirationMonth(expirationMonth);
+		card.setExpirationYear(expirationYear);
+		card.setNumber(number);
+		card.setName(name);
+		try {
+			card = clientRegistry.getClient(credentials).addBankCard(card);
+		} catch (BaseCommerceClientException e) {
+			throw new BaseCommerceGatewayException(e.getMessage(), e);
+		}
+		if (card.isStatus(BankCard.XS_BC_STATUS_FAILED)) {
+			final String message = joinMessages(card.getMessages());
+			throw new BaseCommerceGatewayException(message, new Exception(message));
+		}
+		return card.getToken();
+	}
+	
+	@Override
+	public String addBankAccount(final BaseCommerceCredentials credentials, final String routingNumber, final String accountNumber, final String name) throws BaseCommerceGatewayException {
+		BankAccount bank = new BankAccount();
+		bank.setRoutingNumber(routingNumber);
+		bank.setAccountNumber(accountNumber);
+		bank.setType(BankAccount.XS_BA_TYPE_CHECKING);
+		bank.setName(name);
+		try {
+			bank = clientRegistry.getClient(credentials).addBankAccount(bank);
+		} catch (BaseCommerceClientException e) {
+			throw new BaseCommerceGatewayException(e.getMessage(), e);
+		}
+		if (bank.isStatus(BankAccount.XS_BA_STATUS_FAILED)) {
+			final String message = joinMessages(bank.getMessages());
+			throw new BaseCommerceGatewayException(message, new Exception(message));
+		}
+		return bank.getToken();
+	}
+	
+	@Override
+	public boolean isPaymentMethodActive(final BaseCommerceCredentials credentials, final String type, final String token) throws BaseCommerceGatewayException {
+		final BaseCommerceClient client = clientRegistry.getClient(credentials);
+		try {
+			if (Objects.equals(type, BaseCommercePaymentPluginApi.TYPE_CARD)) {
+				final BankCard card = client.getBankCard(token);
+				return card != null && card.isStatus(BankCard.XS_BC_STATUS_ACTIVE);
+			} else if (Objects.equals(type, BaseCommercePaymentPluginApi.TYPE_BANK)) {
+				final BankAccount bank = client.getBankAccount(token);
+				return bank != null && bank.isStatus(BankAccount.XS_BA_STATUS_ACTIVE);
+			} else {
+				throw new IllegalArgumentException("unknown type: " + type);
+			}
+		} catch (BaseCommerceClientException e) {
+			throw new BaseCommerceGatewayException(e.getMessage(), e);
+		}
+	}
+	
+	@Override
+	public BaseCommerceGatewayResult getTransaction(final BaseCommerceCredentials credentials, final String type, final String gatewayTransactionId) throws BaseCommerceGatewayException {
+		final BaseCommerceClient client = clientRegistry.getClient(credentials);
+		final int id;
+		try {
+			id = Integer.parseInt(gatewayTransactionId);
+		} catch (NumberFormatException e) {
+			throw new BaseCommerceGatewayException("invalid transaction ID: " + gatewayTransactionId, e);
+		}
+		try {
+			if (Objects.equals(type, BaseCommercePaymentPluginApi.TYPE_CARD)) {
+				final BankCardTransaction trans = client.getBankCardTransaction(id);
+				if (trans == null) {
+					throw new BaseCommerceGatewayException("unknown transaction: " + gatewayTransactionId, new Exception("not found"));
+				}
+				return new BaseCommerceGatewayResult(!trans.isStatus(BankCardTransaction.XS_BCT_STATUS_FAILED), gatewayTransactionId, trans.getStatus(), trans.getResponseCode(), trans.getResponseMessage());
+			} else if (Objects.equals(type, BaseCommercePaymentPluginApi.TYPE_BANK)) {
+				final BankAccountTransaction trans = client.getBankAccountTransaction(id);
+				if (trans == null) {
+					throw new BaseCommerceGatewayException("unknown transaction: " + gatewayTransactionId, new Exception("not found"));
+				}
+				final String message = trans.getMessages() == null ? "" : joinMessages(trans.getMessages());
+				return new BaseCommerceGatewayResult(!trans.isStatus(BankAccountTransaction.XS_BAT_STATUS_FAILED), gatewayTransactionId, trans.getStatus(), trans.getReturnCode(), message);
+			} else {
+				throw new IllegalArgumentException("unknown type: " + type);
+			}
+		} catch (BaseCommerceClientException e) {
+			throw new BaseCommerceGatewayException(e.getMessage(), e);
+		}
+	}
+	
+	private static String joinMessages(final Iterable<String> messages) {
+		String message = "";
+		for (String mess : messages) {
+			message += mess + " ";
+		}
+		return message;
+	}
+}
@@ -17,6 +17,7 @@
 
 package com.fathomstudio.killbillbasecommerceplugin;
 
+import org.killbill.billing.tenant.api.Tenant;
 import org.osgi.service.log.LogService;
 
 import javax.servlet.ServletException;
@@ -24,22 +25,101 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.sql.SQLException;
+import java.util.UUID;
 
 /**
  * This allows direct communication to the plugin from a caller.
  */
 public class BaseCommerceServlet extends HttpServlet {
 	
+	// set by Kill Bill on plugin requests once the X-Killbill-ApiKey and X-Killbill-ApiSecret headers are authenticated
+	private static final String TENANT_ATTRIBUTE = "killbill_tenant";
+	
 	private final LogService logService;
+	private final BaseCommercePaymentMethodImporter importer;
+	private final BaseCommerceWarmUp warmUp;
+	private final BaseCommerceSchemaMigrator schemaMigrator;
+	private final BaseCommerceMetricsSource[] metricsSources;
 	
-	public BaseCommerceServlet(final LogService logService) {
+	public BaseCommerceServlet(final LogService logService, final BaseCommercePaymentMethodImporter importer, final BaseCommerceWarmUp warmUp, final BaseCommerceSchemaMigrator schemaMigrator,
+	                           final BaseCommerceMetricsSource... metricsSources) {
 		this.logService = logService;
+		this.importer = importer;
+		this.warmUp = warmUp;
+		this.schemaMigrator = schemaMigrator;
+		this.metricsSources = metricsSources;
 	}
 	
 	@Override
 	protected void doGet(final HttpServletRequest req, final HttpServletResponse resp) throws ServletException, IOException {
+		// find me on http://killbill:8080/plugins/killbill-basecommerce-plugin/metrics
+		if ("/metrics".equals(req.getPathInfo())) {
+			final StringBuilder metrics = new StringBuilder();
+			warmUp.appendMetrics(metrics);
+			for (BaseCommerceMetricsSource metricsSource : metricsSources) {
+				metricsSource.appendMetrics(metrics);
+			}
+			resp.setContentType("text/plain; version=0.0.4");
+			resp.getOutputStream().print(metrics.toString());
+			return;
+		}
+		
+		// point the load balancer readiness check to http://killbill:8080/plugins/killbill-basecommerce-plugin/ready
+		if ("/ready".equals(req.getPathInfo())) {
+			resp.setContentType("text/plain");
+			if (!schemaMigrator.isReady()) {
+				resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+				resp.getOutputStream().print("migrating the schema");
+			} else if (!warmUp.isReady()) {
+				resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+				resp.getOutputStream().print("warming up");
+			} else {
+				resp.getOutputStream().print("ready");
+			}
+			return;
+		}
+		
 		// find me on http://killbill:8080/plugins/killbill-basecommerce-plugin
 		logService.log(LogService.LOG_INFO, "Hello, world!");
 		resp.getOutputStream().print("Hello, world!");
 	}
+	
+	@Override
+	protected void doPost(final HttpServletRequest req, final HttpServletResponse resp) throws ServletException, IOException {
+		// POST a file of payment methods to http://killbill:8080/plugins/killbill-basecommerce-plugin/import, with the
+		// API key and secret of the tenant
+		if (!"/import".equals(req.getPathInfo())) {
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND, "unknown path");
+			return;
+		}
+		
+		final Object tenant = req.getAttribute(TENANT_ATTRIBUTE);
+		if (!(tenant instanceof Tenant)) {
+			resp.sendError(HttpServletResponse.SC_UNAUTHORIZED, "missing or invalid X-Killbill-ApiKey and X-Killbill-ApiSecret");
+			return;
+		}
+		final UUID kbTenantId = ((Tenant) tenant).getId();
+		final String contentType = req.getContentType();
+		final String format = req.getParameter("format") != null ? req.getParameter("format")
+		                                                          : contentType != null && contentType.contains("csv") ? BaseCommercePaymentMethodImporter.FORMAT_CSV
+		                                                                                                              : BaseCommercePaymentMethodImporter.FORMAT_NDJSON;
+		if (!BaseCommercePaymentMethodImporter.FORMAT_CSV.equals(format) && !BaseCommercePaymentMethodImporter.FORMAT_NDJSON.equals(format)) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "unknown format: " + format);
+			return;
+		}
+		
+		// progress is streamed back as the import goes, one JSON object per line
+		resp.setContentType("application/x-ndjson");
+		resp.setCharacterEncoding("UTF-8");
+		final PrintWriter out = resp.getWriter();
+		try {
+			importer.importPaymentMethods(kbTenantId, format, req.getReader(), out);
+		} catch (SQLException e) {
+			logService.log(LogService.LOG_ERROR, "payment method import failed: ", e);
+			out.println("{\"done\":false,\"error\":" + BaseCommercePaymentMethodImporter.jsonString(e.getMessage()) + "}");
+			out.flush();
+		}
+	}
 }
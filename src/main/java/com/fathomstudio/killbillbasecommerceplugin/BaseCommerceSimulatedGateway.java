@@ -0,0 +1,129 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.fathomstudio.killbillbasecommerceplugin;
+
+import com.basecommercepay.client.BankAccountTransaction;
+import com.basecommercepay.client.BankCardTransaction;
+
+import java.math.BigDecimal;
+import java.net.SocketTimeoutException;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in-process stand-in for Base Commerce, for load and latency tests that can't use the sandbox.
+ * <p>
+ * Calls take a log-normally distributed time (given by its median and 99th percentile), and fail, get declined or
+ * time out at the given rates. Replies use the same statuses as the real gateway.
+ */
+public class BaseCommerceSimulatedGateway implements BaseCommerceGateway {
+	
+	// the 99th percentile of the standard normal distribution
+	private static final double Z_99 = 2.326;
+	
+	private final double latencyMedianMillis;
+	private final double latencySigma;
+	private final double declineRate;
+	private final double errorRate;
+	private final double timeoutRate;
+	private final long timeoutMillis;
+	private final AtomicInteger ids = new AtomicInteger();
+	
+	public BaseCommerceSimulatedGateway(final long latencyMedianMillis, final long latencyP99Millis, final double declineRate, final double errorRate, final double timeoutRate, final long timeoutMillis) {
+		this.latencyMedianMillis = latencyMedianMillis;
+		this.latencySigma = latencyMedianMillis > 0 && latencyP99Millis > latencyMedianMillis ? Math.log((double) latencyP99Millis / latencyMedianMillis) / Z_99 : 0;
+		this.declineRate = declineRate;
+		this.errorRate = errorRate;
+		this.timeoutRate = timeoutRate;
+		this.timeoutMillis = timeoutMillis;
+	}
+	
+	@Override
+	public BaseCommerceGatewayResult charge(final BaseCommerceCredentials credentials, final String type, final String token, final BigDecimal amount) throws BaseCommerceGatewayException {
+		simulateCall();
+		final String transactionId = String.valueOf(ids.incrementAndGet());
+		final boolean declined = ThreadLocalRandom.current().nextDouble() < declineRate;
+		if (Objects.equals(type, BaseCommercePaymentPluginApi.TYPE_CARD)) {
+			if (declined) {
+				return new BaseCommerceGatewayResult(true, transactionId, BankCardTransaction.XS_BCT_STATUS_DECLINED, "05", "DO NOT HONOR");
+			}
+			return new BaseCommerceGatewayResult(true, transactionId, BankCardTransaction.XS_BCT_STATUS_CAPTURED, "", "");
+		} else if (Objects.equals(type, BaseCommercePaymentPluginApi.TYPE_BANK)) {
+			if (declined) {
+				return new BaseCommerceGatewayResult(false, transactionId, BankAccountTransaction.XS_BAT_STATUS_FAILED, "", "Invalid account number ");
+			}
+			return new BaseCommerceGatewayResult(true, transactionId, BankAccountTransaction.XS_BAT_STATUS_CREATED, "", "");
+		} else {
+			throw new IllegalArgumentException("unknown type: " + type);
+		}
+	}
+	
+	@Override
+	public String addBankCard(final BaseCommerceCredentials credentials, final String number, final String expirationMonth, final String expirationYear, final String name) throws BaseCommerceGatewayException {
+		simulateCall();
+		return "sim-card-" + ids.incrementAndGet();
+	}
+	
+	@Override
+	public String addBankAccount(final BaseCommerceCredentials credentials, final String routingNumber, final String accountNumber, final String name) throws BaseCommerceGatewayException {
+		simulateCall();
+		return "sim-bank-" + ids.incrementAndGet();
+	}
+	
+	@Override
+	public boolean isPaymentMethodActive(final BaseCommerceCredentials credentials, final String type, final String token) throws BaseCommerceGatewayException {
+		simulateCall();
+		return true;
+	}
+	
+	@Override
+	public BaseCommerceGatewayResult getTransaction(final BaseCommerceCredentials credentials, final String type, final String gatewayTransactionId) throws BaseCommerceGatewayException {
+		simulateCall();
+		if (Objects.equals(type, BaseCommercePaymentPluginApi.TYPE_BANK)) {
+			// bank debits settle or come back, at the decline rate
+			if (ThreadLocalRandom.current().nextDouble() < declineRate) {
+				return new BaseCommerceGatewayResult(true, gatewayTransactionId, BankAccountTransaction.XS_BAT_STATUS_RETURNED, "R01", "Insufficient funds ");
+			}
+			return new BaseCommerceGatewayResult(true, gatewayTransactionId, BankAccountTransaction.XS_BAT_STATUS_SETTLED, "", "");
+		}
+		return new BaseCommerceGatewayResult(true, gatewayTransactionId, BankCardTransaction.XS_BCT_STATUS_SETTLED, "", "");
+	}
+	
+	/**
+	 * Wait like a round trip to the gateway would, then fail at the configured rates.
+	 */
+	private void simulateCall() throws BaseCommerceGatewayException {
+		final ThreadLocalRandom random = ThreadLocalRandom.current();
+		try {
+			if (random.nextDouble() < timeoutRate) {
+				Thread.sleep(timeoutMillis);
+				throw new BaseCommerceGatewayException("Read timed out", new SocketTimeoutException("Read timed out"));
+			}
+			final long latencyMillis = Math.round(latencyMedianMillis * Math.exp(latencySigma * random.nextGaussian()));
+			if (latencyMillis > 0) {
+				Thread.sleep(latencyMillis);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new BaseCommerceGatewayException("interrupted", e);
+		}
+		if (random.nextDouble() < errorRate) {
+			throw new BaseCommerceGatewayException("Internal Server Error", new Exception("HTTP 500"));
+		}
+	}
+}
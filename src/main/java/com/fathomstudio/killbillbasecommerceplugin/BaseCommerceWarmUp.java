@@ -0,0 +1,217 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.fathomstudio.killbillbasecommerceplugin;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.osgi.service.log.LogService;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gets the plugin ready for the first charges after a start, instead of letting them pay for it.
+ * <p>
+ * All the tenant credentials are read with a single query into the credentials cache, a gateway client is built for each
+ * tenant, which loads the Base Commerce SDK classes, and connections are opened to the configured gateway URLs, so that
+ * the first charges find kept-alive connections and cached TLS sessions in the JVM HTTP transport the SDK uses.
+ * <p>
+ * It runs in the background so a slow database or gateway never holds up the bundle start, and gives up after a time
+ * limit. {@link #isReady()} tells the load balancer when to send traffic.
+ */
+public class BaseCommerceWarmUp implements BaseCommerceMetricsSource {
+	
+	private final BaseCommerceDao dao;
+	private final BaseCommerceCredentialsCache credentialsCache;
+	private final BaseCommerceClientRegistry clientRegistry;
+	private final LogService logService;
+	private final List<String> urls;
+	private final int connectionsPerUrl;
+	private final long timeoutMillis;
+	private final ExecutorService executor;
+	private final AtomicLong tenantCount = new AtomicLong();
+	private final AtomicLong connectionCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	// ready until started, so a node without warm-up is always ready
+	private volatile boolean ready = true;
+	private volatile boolean timedOut;
+	private volatile long durationNanos;
+	
+	/**
+	 * @param dao               - reads the credentials
+	 * @param credentialsCache  - the cache the credentials are loaded into
+	 * @param clientRegistry    - the gateway clients to build
+	 * @param logService        - the log
+	 * @param urls              - the gateway URLs to open connections to
+	 * @param connectionsPerUrl - the connections opened at once to each URL
+	 * @param timeoutMillis     - how long the warm-up may take before the plugin reports ready anyway
+	 */
+	public BaseCommerceWarmUp(final BaseCommerceDao dao, final BaseCommerceCredentialsCache credentialsCache, final BaseCommerceClientRegistry clientRegistry, final LogService logService,
+	                          final List<String> urls, final int connectionsPerUrl, final long timeoutMillis) {
+		this.dao = dao;
+		this.credentialsCache = credentialsCache;
+		this.clientRegistry = clientRegistry;
+		this.logService = logService;
+		this.urls = urls;
+		this.connectionsPerUrl = connectionsPerUrl;
+		this.timeoutMillis = timeoutMillis;
+		this.executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("basecommerce-warmup-%d").setDaemon(true).build());
+	}
+	
+	/**
+	 * Start warming up in the background. The plugin reports not ready until it is done or the time limit passed.
+	 */
+	public void start() {
+		ready = false;
+		final long startNanos = System.nanoTime();
+		final Future<?> warmUp = executor.submit(new Runnable() {
+			@Override
+			public void run() {
+				warmUp();
+			}
+		});
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					warmUp.get(timeoutMillis, TimeUnit.MILLISECONDS);
+				} catch (TimeoutException e) {
+					timedOut = true;
+					warmUp.cancel(true);
+					logService.log(LogService.LOG_WARNING, "warm-up did not finish within " + timeoutMillis + "ms, reporting ready anyway");
+				} catch (ExecutionException e) {
+					logService.log(LogService.LOG_WARNING, "warm-up failed: ", e.getCause());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					durationNanos = System.nanoTime() - startNanos;
+					ready = true;
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Stop warming up, e.g. if the plugin is stopped before it finished.
+	 */
+	public void stop() {
+		executor.shutdownNow();
+	}
+	
+	/**
+	 * @return true once the warm-up finished or gave up, or if it was never started
+	 */
+	public boolean isReady() {
+		return ready;
+	}
+	
+	private void warmUp() {
+		try {
+			for (BaseCommerceCredentials credentials : dao.getAllCredentials()) {
+				if (Thread.currentThread().isInterrupted()) {
+					return;
+				}
+				try {
+					clientRegistry.getClient(credentialsCache.put(credentials));
+				} catch (BaseCommerceGatewayException e) {
+					// evicted meanwhile, the first charge of the tenant builds its client instead
+					continue;
+				}
+				tenantCount.incrementAndGet();
+			}
+		} catch (SQLException e) {
+			// the credentials will be read on the first charge of each tenant instead
+			logService.log(LogService.LOG_WARNING, "could not preload the credentials: ", e);
+		}
+		
+		// opened at the same time, so that each ends up as a separate kept-alive connection
+		final List<Future<?>> connections = new ArrayList<Future<?>>();
+		for (final String url : urls) {
+			for (int i = 0; i < connectionsPerUrl; i++) {
+				connections.add(executor.submit(new Runnable() {
+					@Override
+					public void run() {
+						openConnection(url);
+					}
+				}));
+			}
+		}
+		try {
+			for (Future<?> connection : connections) {
+				connection.get();
+			}
+		} catch (InterruptedException e) {
+			for (Future<?> connection : connections) {
+				connection.cancel(true);
+			}
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			logService.log(LogService.LOG_WARNING, "could not open a gateway connection: ", e.getCause());
+		}
+	}
+	
+	private void openConnection(final String url) {
+		HttpURLConnection connection = null;
+		try {
+			connection = (HttpURLConnection) new URL(url).openConnection();
+			connection.setConnectTimeout((int) timeoutMillis);
+			connection.setReadTimeout((int) timeoutMillis);
+			connection.setRequestMethod("HEAD");
+			final int status = connection.getResponseCode();
+			// any reply will do, the connection and its TLS session are what we are after; closing the stream rather than
+			// disconnecting hands the connection back to the keep-alive cache
+			final InputStream body = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+			if (body != null) {
+				body.close();
+			}
+			connectionCount.incrementAndGet();
+		} catch (IOException e) {
+			failedCount.incrementAndGet();
+			logService.log(LogService.LOG_WARNING, "could not open a connection to " + url + ": " + e.getMessage());
+			if (connection != null) {
+				connection.disconnect();
+			}
+		}
+	}
+	
+	@Override
+	public void appendMetrics(final StringBuilder out) {
+		out.append("# TYPE basecommerce_warmup_ready gauge\n");
+		out.append("basecommerce_warmup_ready ").append(ready ? 1 : 0).append('\n');
+		out.append("# TYPE basecommerce_warmup_timed_out gauge\n");
+		out.append("basecommerce_warmup_timed_out ").append(timedOut ? 1 : 0).append('\n');
+		out.append("# TYPE basecommerce_warmup_duration_seconds gauge\n");
+		out.append("basecommerce_warmup_duration_seconds ").append(durationNanos / 1e9).append('\n');
+		out.append("# TYPE basecommerce_warmup_tenants gauge\n");
+		out.append("basecommerce_warmup_tenants ").append(tenantCount.get()).append('\n');
+		out.append("# TYPE basecommerce_warmup_connections gauge\n");
+		out.append("basecommerce_warmup_connections ").append(connectionCount.get()).append('\n');
+		out.append("# TYPE basecommerce_warmup_connection_failures gauge\n");
+		out.append("basecommerce_warmup_connection_failures ").append(failedCount.get()).append('\n');
+	}
+}
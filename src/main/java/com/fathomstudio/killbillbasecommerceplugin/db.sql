@@ -1,10 +1,21 @@
 DROP TABLE IF EXISTS `baseCommerce_paymentMethods`;
 CREATE TABLE `baseCommerce_paymentMethods` (
   `id`              INT(11)      NOT NULL AUTO_INCREMENT PRIMARY KEY,
-  `paymentMethodId` VARCHAR(255) NOT NULL UNIQUE,
+  `tenantId`        VARCHAR(255) NOT NULL,
+  `kbAccountId`     VARCHAR(255),
+  `paymentMethodId` BINARY(16)   NOT NULL,
   `token`   VARCHAR(255) NOT NULL,
   `type`   VARCHAR(255) NOT NULL,
-  INDEX `INDEX_baseCommerce_paymentMethods_ON_paymentMethodId`(`paymentMethodId`)
+  `lastFour`        VARCHAR(4),
+  `version`         BIGINT       NOT NULL DEFAULT 1,
+  `updatedDate`     DATETIME(3)  NOT NULL DEFAULT CURRENT_TIMESTAMP(3),
+  UNIQUE INDEX `UNIQUE_baseCommerce_paymentMethods_ON_paymentMethodId`(`paymentMethodId`),
+  INDEX `INDEX_baseCommerce_paymentMethods_ON_tenantId`(`tenantId`),
+  INDEX `INDEX_baseCommerce_paymentMethods_ON_tenantId_kbAccountId`(`tenantId`, `kbAccountId`),
+  INDEX `INDEX_baseCommerce_paymentMethods_ON_tenantId_lastFour`(`tenantId`, `lastFour`),
+  INDEX `INDEX_baseCommerce_paymentMethods_ON_tenantId_type`(`tenantId`, `type`),
+  INDEX `INDEX_baseCommerce_paymentMethods_ON_tenantId_token`(`tenantId`, `token`),
+  INDEX `INDEX_baseCommerce_paymentMethods_ON_updatedDate`(`updatedDate`)
 )
   ENGINE = InnoDB
   CHARACTER SET utf8
@@ -13,14 +24,55 @@ CREATE TABLE `baseCommerce_paymentMethods` (
 DROP TABLE IF EXISTS `baseCommerce_credentials`;
 CREATE TABLE `baseCommerce_credentials` (
   `id`        INT(11)      NOT NULL AUTO_INCREMENT PRIMARY KEY,
-  `tenantId`  VARCHAR(255) NOT NULL UNIQUE,
+  `tenantId`  BINARY(16)   NOT NULL,
   `username` VARCHAR(255),
   `password` VARCHAR(255),
   `key`      VARCHAR(255),
   `test`      BOOLEAN,
-  INDEX `INDEX_baseCommerce_credentials_ON_tenantId`(`tenantId`),
-  INDEX `INDEX_baseCommerce_credentials_ON_accountId`(`username`)
+  `requestsPerSecond` DOUBLE NOT NULL DEFAULT 0,
+  `burst`     INT(11)      NOT NULL DEFAULT 0,
+  `version`   BIGINT       NOT NULL DEFAULT 1,
+  UNIQUE INDEX `UNIQUE_baseCommerce_credentials_ON_tenantId`(`tenantId`)
 )
   ENGINE = InnoDB
   CHARACTER SET utf8
-  COLLATE utf8_bin;
\ No newline at end of file
+  COLLATE utf8_bin;
+DROP TABLE IF EXISTS `baseCommerce_transactions`;
+CREATE TABLE `baseCommerce_transactions` (
+  `id`                   INT(11)        NOT NULL AUTO_INCREMENT PRIMARY KEY,
+  `tenantId`             VARCHAR(255)   NOT NULL,
+  `kbAccountId`          VARCHAR(255)   NOT NULL,
+  `kbPaymentId`          VARCHAR(255)   NOT NULL,
+  `kbTransactionId`      VARCHAR(255)   NOT NULL UNIQUE,
+  `kbPaymentMethodId`    VARCHAR(255)   NOT NULL,
+  `transactionType`      VARCHAR(32)    NOT NULL,
+  `paymentMethodType`    VARCHAR(32)    NOT NULL,
+  `amount`               DECIMAL(15, 9) NOT NULL,
+  `currency`             CHAR(3)        NOT NULL,
+  `status`               VARCHAR(32)    NOT NULL,
+  `gatewayTransactionId` VARCHAR(255),
+  `gatewayStatus`        VARCHAR(255),
+  `gatewayErrorCode`     VARCHAR(255),
+  `gatewayError`         VARCHAR(1024),
+  `createdDate`          DATETIME       NOT NULL,
+  `effectiveDate`        DATETIME       NOT NULL,
+  `lookupRequested`      BOOLEAN        NOT NULL DEFAULT FALSE,
+  INDEX `INDEX_baseCommerce_transactions_ON_kbPaymentId`(`kbPaymentId`),
+  INDEX `INDEX_baseCommerce_transactions_ON_tenantId_gatewayTransactionId`(`tenantId`, `gatewayTransactionId`),
+  INDEX `INDEX_baseCommerce_transactions_ON_status_paymentMethodType_tenantId`(`status`, `paymentMethodType`, `tenantId`),
+  INDEX `INDEX_baseCommerce_transactions_ON_lookupRequested_tenantId`(`lookupRequested`, `tenantId`)
+)
+  ENGINE = InnoDB
+  CHARACTER SET utf8
+  COLLATE utf8_bin;
+
+DROP TABLE IF EXISTS `baseCommerce_schemaVersions`;
+CREATE TABLE `baseCommerce_schemaVersions` (
+  `version`       INT(11)      NOT NULL PRIMARY KEY,
+  `description`   VARCHAR(255) NOT NULL,
+  `installedDate` DATETIME     NOT NULL
+)
+  ENGINE = InnoDB
+  CHARACTER SET utf8
+  COLLATE utf8_bin;
+INSERT INTO `baseCommerce_schemaVersions` (`version`, `description`, `installedDate`) VALUES (1, 'baseline', CURRENT_TIMESTAMP), (2, 'plugin columns', CURRENT_TIMESTAMP), (3, 'binary id columns', CURRENT_TIMESTAMP), (4, 'drop string id columns', CURRENT_TIMESTAMP);
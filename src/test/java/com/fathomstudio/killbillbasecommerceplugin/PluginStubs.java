@@ -0,0 +1,158 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.fathomstudio.killbillbasecommerceplugin;
+
+import com.google.common.io.Files;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.ServiceReference;
+
+import javax.sql.DataSource;
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Stand-ins for the Kill Bill services the plugin talks to, so the tests and benchmarks run without a Kill Bill server.
+ */
+public final class PluginStubs {
+	
+	// relative to the project directory, where the tests and benchmarks run
+	private static final String DDL_PATH = "src/main/java/com/fathomstudio/killbillbasecommerceplugin/db.sql";
+	
+	private PluginStubs() {
+	}
+	
+	/**
+	 * Build an implementation of the given interface answering each method by name.
+	 *
+	 * @param type    - the interface
+	 * @param answers - what each method returns, by method name; other methods return null, false or zero
+	 * @return the implementation
+	 */
+	public static <T> T proxy(final Class<T> type, final Map<String, ?> answers) {
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, new InvocationHandler() {
+			@Override
+			public Object invoke(final Object proxy, final Method method, final Object[] args) {
+				if (answers.containsKey(method.getName())) {
+					return answers.get(method.getName());
+				}
+				return objectMethod(proxy, method, args);
+			}
+		}));
+	}
+	
+	/**
+	 * Build a bundle context that hands out the given services, for the OSGi service trackers of the Kill Bill
+	 * libraries ({@code OSGIKillbillAPI}, {@code OSGIKillbillLogService}).
+	 *
+	 * @param services - the services, by interface name
+	 * @return the bundle context
+	 */
+	public static BundleContext bundleContext(final Map<String, Object> services) {
+		return (BundleContext) Proxy.newProxyInstance(BundleContext.class.getClassLoader(), new Class<?>[]{BundleContext.class}, new InvocationHandler() {
+			@Override
+			public Object invoke(final Object proxy, final Method method, final Object[] args) throws Exception {
+				final String name = method.getName();
+				if (name.equals("createFilter")) {
+					return FrameworkUtil.createFilter((String) args[0]);
+				} else if (name.equals("getServiceReferences") || name.equals("getAllServiceReferences")) {
+					final String serviceName = args[0] instanceof Class ? ((Class<?>) args[0]).getName() : (String) args[0];
+					final ServiceReference reference = services.containsKey(serviceName) ? serviceReference(serviceName) : null;
+					if (Collection.class.isAssignableFrom(method.getReturnType())) {
+						return reference == null ? Collections.emptyList() : Collections.singletonList(reference);
+					}
+					return reference == null ? null : new ServiceReference[]{reference};
+				} else if (name.equals("getServiceReference")) {
+					final String serviceName = args[0] instanceof Class ? ((Class<?>) args[0]).getName() : (String) args[0];
+					return services.containsKey(serviceName) ? serviceReference(serviceName) : null;
+				} else if (name.equals("getService")) {
+					return services.get(((ServiceReference) args[0]).getProperty("objectClass.name"));
+				}
+				return objectMethod(proxy, method, args);
+			}
+		});
+	}
+	
+	/**
+	 * Create the plugin tables from {@code db.sql}, without the MySQL table options H2 doesn't know.
+	 *
+	 * @param dataSource - the database
+	 * @throws Exception if the schema could not be created
+	 */
+	public static void createSchema(final DataSource dataSource) throws Exception {
+		final String ddl = Files.toString(new File(DDL_PATH), StandardCharsets.UTF_8).replaceAll("\\)\\s*ENGINE[^;]*;", ");");
+		try (Connection connection = dataSource.getConnection();
+		     Statement statement = connection.createStatement()) {
+			for (String sql : ddl.split(";")) {
+				if (!sql.trim().isEmpty()) {
+					statement.execute(sql);
+				}
+			}
+		}
+	}
+	
+	private static ServiceReference serviceReference(final String serviceName) {
+		return (ServiceReference) Proxy.newProxyInstance(ServiceReference.class.getClassLoader(), new Class<?>[]{ServiceReference.class}, new InvocationHandler() {
+			@Override
+			public Object invoke(final Object proxy, final Method method, final Object[] args) {
+				if (method.getName().equals("getProperty")) {
+					if ("objectClass.name".equals(args[0])) {
+						return serviceName;
+					} else if ("objectClass".equals(args[0])) {
+						return new String[]{serviceName};
+					}
+					return null;
+				} else if (method.getName().equals("equals")) {
+					return args[0] instanceof ServiceReference && serviceName.equals(((ServiceReference) args[0]).getProperty("objectClass.name"));
+				} else if (method.getName().equals("hashCode")) {
+					return serviceName.hashCode();
+				}
+				return objectMethod(proxy, method, args);
+			}
+		});
+	}
+	
+	private static Object objectMethod(final Object proxy, final Method method, final Object[] args) {
+		final String name = method.getName();
+		if (name.equals("equals")) {
+			return proxy == args[0];
+		} else if (name.equals("hashCode")) {
+			return System.identityHashCode(proxy);
+		} else if (name.equals("toString")) {
+			return "stub " + Arrays.toString(proxy.getClass().getInterfaces());
+		}
+		
+		final Class<?> returnType = method.getReturnType();
+		if (returnType == boolean.class) {
+			return false;
+		} else if (returnType == int.class) {
+			return 0;
+		} else if (returnType == long.class) {
+			return 0L;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.fathomstudio.killbillbasecommerceplugin;
+
+import com.basecommercepay.client.BankCardTransaction;
+
+import java.math.BigDecimal;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A gateway answering each call with the next scripted step, and approving once the script is done, for the tests of
+ * the gateway wrappers.
+ */
+public class StubGateway implements BaseCommerceGateway {
+	
+	private final Queue<Step> script = new ConcurrentLinkedQueue<Step>();
+	private final AtomicInteger calls = new AtomicInteger();
+	// released once per call, before it answers
+	private final Semaphore entered = new Semaphore(0);
+	
+	public StubGateway thenApprove() {
+		script.add(new Step(null, 0, null));
+		return this;
+	}
+	
+	public StubGateway thenFail(final BaseCommerceGatewayException failure) {
+		script.add(new Step(failure, 0, null));
+		return this;
+	}
+	
+	/**
+	 * Approve after the given time, or fail like a timed out call if interrupted before.
+	 */
+	public StubGateway thenDelay(final long millis) {
+		script.add(new Step(null, millis, null));
+		return this;
+	}
+	
+	/**
+	 * Approve once the latch is released.
+	 */
+	public StubGateway thenBlock(final CountDownLatch release) {
+		script.add(new Step(null, 0, release));
+		return this;
+	}
+	
+	public int getCalls() {
+		return calls.get();
+	}
+	
+	/**
+	 * Wait for a call to reach the gateway.
+	 */
+	public void awaitCall() throws InterruptedException {
+		if (!entered.tryAcquire(5, TimeUnit.SECONDS)) {
+			throw new IllegalStateException("no call reached the gateway");
+		}
+	}
+	
+	@Override
+	public BaseCommerceGatewayResult charge(final BaseCommerceCredentials credentials, final String type, final String token, final BigDecimal amount) throws BaseCommerceGatewayException {
+		return next();
+	}
+	
+	@Override
+	public String addBankCard(final BaseCommerceCredentials credentials, final String number, final String expirationMonth, final String expirationYear, final String name) throws BaseCommerceGatewayException {
+		next();
+		return "card";
+	}
+	
+	@Override
+	public String addBankAccount(final BaseCommerceCredentials credentials, final String routingNumber, final String accountNumber, final String name) throws BaseCommerceGatewayException {
+		next();
+		return "bank";
+	}
+	
+	@Override
+	public boolean isPaymentMethodActive(final BaseCommerceCredentials credentials, final String type, final String token) throws BaseCommerceGatewayException {
+		next();
+		return true;
+	}
+	
+	@Override
+	public BaseCommerceGatewayResult getTransaction(final BaseCommerceCredentials credentials, final String type, final String gatewayTransactionId) throws BaseCommerceGatewayException {
+		return next();
+	}
+	
+	private BaseCommerceGatewayResult next() throws BaseCommerceGatewayException {
+		calls.incrementAndGet();
+		final Step step = script.poll();
+		entered.release();
+		if (step != null) {
+			if (step.failure != null) {
+				throw step.failure;
+			}
+			try {
+				if (step.delayMillis > 0) {
+					TimeUnit.MILLISECONDS.sleep(step.delayMillis);
+				}
+				if (step.release != null) {
+					step.release.await();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new BaseCommerceGatewayException("interrupted", e);
+			}
+		}
+		return new BaseCommerceGatewayResult(true, "1", BankCardTransaction.XS_BCT_STATUS_CAPTURED, "", "");
+	}
+	
+	private static class Step {
+		
+		private final BaseCommerceGatewayException failure;
+		private final long delayMillis;
+		private final CountDownLatch release;
+		
+		private Step(final BaseCommerceGatewayException failure, final long delayMillis, final CountDownLatch release) {
+			this.failure = failure;
+			this.delayMillis = delayMillis;
+			this.release = release;
+		}
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.fathomstudio.killbillbasecommerceplugin;
+
+import org.testng.annotations.Test;
+
+import java.util.Collections;
+import java.util.UUID;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Checks that cached credentials are zeroed once evicted, together with the gateway clients built from them.
+ */
+public class TestBaseCommerceCredentialsCache {
+	
+	private final UUID kbTenantId = UUID.randomUUID();
+	
+	@Test(groups = "fast")
+	public void testEvictedCredentialsAreZeroed() throws Exception {
+		final BaseCommerceClientRegistry clientRegistry = new BaseCommerceClientRegistry(10, 3600);
+		final BaseCommerceCredentialsCache cache = new BaseCommerceCredentialsCache(10, 300, clientRegistry);
+		final BaseCommerceCredentials credentials = cache.put(credentials(1));
+		clientRegistry.getClient(credentials);
+		assertEquals(clientRegistry.size(), 1);
+		
+		cache.invalidate(kbTenantId);
+		
+		assertTrue(credentials.isDestroyed());
+		assertEquals(clientRegistry.size(), 0);
+		try {
+			credentials.getPassword();
+			fail("read the password of evicted credentials");
+		} catch (IllegalStateException expected) {
+			// zeroed
+		}
+		try {
+			clientRegistry.getClient(credentials);
+			fail("built a client from evicted credentials");
+		} catch (BaseCommerceGatewayUnavailableException expected) {
+			// nothing was sent
+		}
+	}
+	
+	@Test(groups = "fast")
+	public void testSameVersionKeepsCachedCredentials() {
+		final BaseCommerceCredentialsCache cache = new BaseCommerceCredentialsCache(10, 300);
+		final BaseCommerceCredentials cached = cache.put(credentials(1));
+		final BaseCommerceCredentials reread = credentials(1);
+		
+		assertTrue(cache.put(reread) == cached);
+		assertTrue(reread.isDestroyed());
+		assertFalse(cached.isDestroyed());
+	}
+	
+	@Test(groups = "fast")
+	public void testNewVersionReplacesCachedCredentials() {
+		final BaseCommerceCredentialsCache cache = new BaseCommerceCredentialsCache(10, 300);
+		final BaseCommerceCredentials stale = cache.put(credentials(1));
+		final BaseCommerceCredentials updated = credentials(2);
+		
+		assertTrue(cache.put(updated) == updated);
+		assertTrue(stale.isDestroyed());
+		assertTrue(cache.getIfPresent(kbTenantId) == updated);
+	}
+	
+	@Test(groups = "fast")
+	public void testDeletedCredentialsAreDropped() {
+		final BaseCommerceCredentialsCache cache = new BaseCommerceCredentialsCache(10, 300);
+		final BaseCommerceCredentials cached = cache.put(credentials(1));
+		
+		assertEquals(cache.invalidateAllExcept(Collections.singleton(kbTenantId)), 0);
+		assertTrue(cache.getIfPresent(kbTenantId) == cached);
+		
+		assertEquals(cache.invalidateAllExcept(Collections.<UUID>emptySet()), 1);
+		assertTrue(cached.isDestroyed());
+		assertTrue(cache.getIfPresent(kbTenantId) == null);
+	}
+	
+	@Test(groups = "fast")
+	public void testSecretsAreHandedOutAsCopies() {
+		final BaseCommerceCredentials credentials = credentials(1);
+		final char[] password = credentials.getPassword();
+		password[0] = '\0';
+		
+		assertEquals(new String(credentials.getPassword()), "password");
+	}
+	
+	private BaseCommerceCredentials credentials(final long version) {
+		return new BaseCommerceCredentials(kbTenantId, "username", "password".toCharArray(), "key".toCharArray(), true, 0, 0, version);
+	}
+}
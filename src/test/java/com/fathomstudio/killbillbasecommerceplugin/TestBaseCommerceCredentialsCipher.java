@@ -0,0 +1,107 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.fathomstudio.killbillbasecommerceplugin;
+
+import org.testng.annotations.Test;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Checks the envelope encryption of the credentials secrets, and moving them to a new master key.
+ */
+public class TestBaseCommerceCredentialsCipher {
+	
+	@Test(groups = "fast")
+	public void testRoundTrip() throws Exception {
+		final BaseCommerceCredentialsCipher cipher = new BaseCommerceCredentialsCipher(masterKey(), 10, 300);
+		final String[] encrypted = cipher.encrypt("password".toCharArray(), null, "key".toCharArray());
+		
+		assertTrue(BaseCommerceCredentialsCipher.isEncrypted(encrypted[0]));
+		assertFalse(encrypted[0].contains("password"));
+		assertNull(encrypted[1]);
+		assertEquals(new String(cipher.decrypt(encrypted[0])), "password");
+		assertEquals(new String(cipher.decrypt(encrypted[2])), "key");
+		
+		// rows saved before encryption was enabled are read as they are
+		assertEquals(new String(cipher.decrypt("plaintext")), "plaintext");
+		assertNull(cipher.decrypt(null));
+	}
+	
+	@Test(groups = "fast")
+	public void testEverySaveGetsItsOwnDataKey() throws Exception {
+		final BaseCommerceCredentialsCipher cipher = new BaseCommerceCredentialsCipher(masterKey(), 10, 300);
+		final String first = cipher.encrypt("password".toCharArray())[0];
+		final String second = cipher.encrypt("password".toCharArray())[0];
+		
+		assertFalse(first.substring(0, first.indexOf(':')).equals(second.substring(0, second.indexOf(':'))));
+		assertEquals(new String(cipher.decrypt(first)), "password");
+		assertEquals(new String(cipher.decrypt(second)), "password");
+		
+		// the data key of a row is only unwrapped once while cached
+		cipher.decrypt(first);
+		final StringBuilder out = new StringBuilder();
+		cipher.appendMetrics(out);
+		assertTrue(out.toString().contains("basecommerce_credentials_data_key_unwraps_total 2"), out.toString());
+	}
+	
+	@Test(groups = "fast")
+	public void testMasterKeyRotation() throws Exception {
+		final BaseCommerceCredentialsCipher previous = new BaseCommerceCredentialsCipher(masterKey(), 10, 300);
+		final BaseCommerceCredentialsCipher next = new BaseCommerceCredentialsCipher(masterKey(), 10, 300);
+		final String saved = previous.encrypt("password".toCharArray())[0];
+		
+		assertUnreadable(next, saved);
+		
+		// rotating re-saves each row under the new master key
+		final String resaved = next.encrypt(previous.decrypt(saved))[0];
+		assertEquals(new String(next.decrypt(resaved)), "password");
+		assertUnreadable(previous, resaved);
+	}
+	
+	@Test(groups = "fast")
+	public void testTamperedValuesRejected() throws Exception {
+		final BaseCommerceCredentialsCipher cipher = new BaseCommerceCredentialsCipher(masterKey(), 10, 300);
+		final String saved = cipher.encrypt("password".toCharArray())[0];
+		final char last = saved.charAt(saved.length() - 3);
+		
+		assertUnreadable(cipher, saved.substring(0, saved.length() - 3) + (last == 'A' ? 'B' : 'A') + saved.substring(saved.length() - 2));
+		assertUnreadable(cipher, "{aesgcm}no separator");
+		assertUnreadable(BaseCommerceCredentialsCipher.plaintext(), saved);
+	}
+	
+	private static void assertUnreadable(final BaseCommerceCredentialsCipher cipher, final String value) {
+		try {
+			cipher.decrypt(value);
+			fail("decrypted " + value);
+		} catch (GeneralSecurityException expected) {
+			// wrong key, or not what was encrypted
+		}
+	}
+	
+	private static byte[] masterKey() {
+		final byte[] key = new byte[32];
+		new SecureRandom().nextBytes(key);
+		return key;
+	}
+}
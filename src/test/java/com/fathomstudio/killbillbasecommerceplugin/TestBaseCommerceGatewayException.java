@@ -0,0 +1,65 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.fathomstudio.killbillbasecommerceplugin;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeoutException;
+
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Checks which gateway failures are known not to have been sent, which may have gone through, and which are answers.
+ */
+public class TestBaseCommerceGatewayException {
+	
+	@Test(groups = "fast")
+	public void testConnectionFailuresWereNotSent() {
+		for (Throwable cause : new Throwable[]{new ConnectException("refused"), new NoRouteToHostException("no route"), new UnknownHostException("api.basecommercepay.com"),
+		                                       new IOException("wrapped", new ConnectException("refused"))}) {
+			final BaseCommerceGatewayException e = new BaseCommerceGatewayException("failed", cause);
+			assertTrue(e.isNotSent(), cause.toString());
+			assertFalse(e.isOutcomeUnknown(), cause.toString());
+		}
+	}
+	
+	@Test(groups = "fast")
+	public void testFailuresOnceConnectedHaveUnknownOutcome() {
+		for (Throwable cause : new Throwable[]{new SocketTimeoutException("read timed out"), new IOException("connection reset"), new TimeoutException(), new InterruptedException(),
+		                                       new RuntimeException(new SocketTimeoutException("read timed out"))}) {
+			final BaseCommerceGatewayException e = new BaseCommerceGatewayException("failed", cause);
+			assertFalse(e.isNotSent(), cause.toString());
+			assertTrue(e.isOutcomeUnknown(), cause.toString());
+		}
+	}
+	
+	@Test(groups = "fast")
+	public void testGatewayAnswersAreNeither() {
+		for (BaseCommerceGatewayException e : new BaseCommerceGatewayException[]{new BaseCommerceGatewayException("invalid token", null),
+		                                                                         new BaseCommerceGatewayException("rejected", new IllegalArgumentException("bad amount")),
+		                                                                         new BaseCommerceGatewayUnavailableException("gateway circuit open")}) {
+			assertFalse(e.isNotSent(), e.getMessage());
+			assertFalse(e.isOutcomeUnknown(), e.getMessage());
+		}
+	}
+}
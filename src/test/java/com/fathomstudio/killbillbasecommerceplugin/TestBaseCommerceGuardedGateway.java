@@ -0,0 +1,172 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.fathomstudio.killbillbasecommerceplugin;
+
+import org.testng.annotations.Test;
+
+import java.math.BigDecimal;
+import java.net.SocketTimeoutException;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Checks the circuit breaker and the bulkhead of each tenant.
+ */
+public class TestBaseCommerceGuardedGateway {
+	
+	private final BaseCommerceCredentials credentials = new BaseCommerceCredentials(UUID.randomUUID(), "username", "password", "key", true);
+	
+	@Test(groups = "fast")
+	public void testCircuitOpensAfterConsecutiveFailures() throws Exception {
+		final StubGateway stub = new StubGateway().thenFail(timeout()).thenFail(timeout());
+		final BaseCommerceGuardedGateway gateway = new BaseCommerceGuardedGateway(stub, 2, 60, 10, 1000);
+		
+		for (int i = 0; i < 2; i++) {
+			try {
+				charge(gateway);
+				fail("the failure wasn't thrown");
+			} catch (BaseCommerceGatewayUnavailableException e) {
+				fail("refused before the threshold");
+			} catch (BaseCommerceGatewayException expected) {
+				// counted
+			}
+		}
+		assertRefused(gateway, "circuit open");
+		assertEquals(stub.getCalls(), 2);
+		
+		// another tenant has its own circuit
+		gateway.charge(new BaseCommerceCredentials(UUID.randomUUID(), "username", "password", "key", true), BaseCommercePaymentPluginApi.TYPE_CARD, "token", BigDecimal.TEN);
+		assertEquals(stub.getCalls(), 3);
+	}
+	
+	@Test(groups = "fast")
+	public void testHalfOpenCircuitLetsOneTrialThrough() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final StubGateway stub = new StubGateway().thenFail(timeout()).thenBlock(release);
+		// the circuit opens on the first failure, and is half open right away
+		final BaseCommerceGuardedGateway gateway = new BaseCommerceGuardedGateway(stub, 1, 0, 10, 1000);
+		try {
+			charge(gateway);
+			fail("the failure wasn't thrown");
+		} catch (BaseCommerceGatewayException expected) {
+			// opens the circuit
+		}
+		
+		final AtomicReference<Throwable> trialFailure = new AtomicReference<Throwable>();
+		final Thread trial = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					charge(gateway);
+				} catch (Throwable e) {
+					trialFailure.set(e);
+				}
+			}
+		});
+		trial.start();
+		stub.awaitCall();
+		stub.awaitCall();
+		
+		assertRefused(gateway, "circuit open");
+		assertEquals(stub.getCalls(), 2);
+		
+		// the trial succeeds and closes the circuit
+		release.countDown();
+		trial.join();
+		assertNull(trialFailure.get());
+		charge(gateway);
+		charge(gateway);
+		assertEquals(stub.getCalls(), 4);
+	}
+	
+	@Test(groups = "fast")
+	public void testFailedTrialOpensTheCircuitAgain() throws Exception {
+		final StubGateway stub = new StubGateway().thenFail(timeout()).thenFail(timeout()).thenFail(timeout()).thenFail(timeout());
+		final BaseCommerceGuardedGateway gateway = new BaseCommerceGuardedGateway(stub, 3, 1, 10, 1000);
+		for (int i = 0; i < 3; i++) {
+			try {
+				charge(gateway);
+			} catch (BaseCommerceGatewayException expected) {
+				// counted
+			}
+		}
+		assertRefused(gateway, "circuit open");
+		
+		Thread.sleep(1100);
+		try {
+			charge(gateway);
+			fail("the trial failure wasn't thrown");
+		} catch (BaseCommerceGatewayUnavailableException e) {
+			fail("the trial was refused");
+		} catch (BaseCommerceGatewayException expected) {
+			// a single failure is enough while half open
+		}
+		assertRefused(gateway, "circuit open");
+		assertEquals(stub.getCalls(), 4);
+	}
+	
+	@Test(groups = "fast")
+	public void testBulkheadCapsTheCallsInFlight() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final StubGateway stub = new StubGateway().thenBlock(release);
+		final BaseCommerceGuardedGateway gateway = new BaseCommerceGuardedGateway(stub, 1, 60, 1, 50);
+		
+		final Thread first = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					charge(gateway);
+				} catch (BaseCommerceGatewayException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		});
+		first.start();
+		stub.awaitCall();
+		
+		assertRefused(gateway, "too many gateway calls in flight");
+		release.countDown();
+		first.join();
+		
+		// a full bulkhead isn't a gateway failure, the circuit stays closed
+		charge(gateway);
+		assertEquals(stub.getCalls(), 2);
+	}
+	
+	private void charge(final BaseCommerceGateway gateway) throws BaseCommerceGatewayException {
+		gateway.charge(credentials, BaseCommercePaymentPluginApi.TYPE_CARD, "token", BigDecimal.TEN);
+	}
+	
+	private void assertRefused(final BaseCommerceGateway gateway, final String reason) throws BaseCommerceGatewayException {
+		try {
+			charge(gateway);
+			fail("the call wasn't refused");
+		} catch (BaseCommerceGatewayUnavailableException expected) {
+			assertTrue(expected.getMessage().contains(reason), expected.getMessage());
+		}
+	}
+	
+	private static BaseCommerceGatewayException timeout() {
+		return new BaseCommerceGatewayException("read timed out", new SocketTimeoutException("read timed out"));
+	}
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.fathomstudio.killbillbasecommerceplugin;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.payment.api.TransactionType;
+import org.killbill.billing.payment.plugin.api.PaymentPluginStatus;
+import org.testng.annotations.Test;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Checks that a transaction retried by Kill Bill is only attempted once.
+ */
+public class TestBaseCommerceIdempotencyStore {
+	
+	private final UUID kbTenantId = UUID.randomUUID();
+	
+	@Test(groups = "fast")
+	public void testOnlyFinalOutcomesRemembered() {
+		final BaseCommerceIdempotencyStore store = new BaseCommerceIdempotencyStore(10, 300);
+		for (PaymentPluginStatus status : new PaymentPluginStatus[]{PaymentPluginStatus.PENDING, PaymentPluginStatus.CANCELED, PaymentPluginStatus.UNDEFINED}) {
+			final BaseCommercePaymentTransactionInfoPlugin transaction = transaction(UUID.randomUUID(), status);
+			store.remember(transaction);
+			assertNull(store.getIfPresent(kbTenantId, transaction.getKbTransactionPaymentId()), status.toString());
+		}
+		
+		final BaseCommercePaymentTransactionInfoPlugin processed = transaction(UUID.randomUUID(), PaymentPluginStatus.PROCESSED);
+		store.remember(processed);
+		assertTrue(store.getIfPresent(kbTenantId, processed.getKbTransactionPaymentId()) == processed);
+		// not to another tenant
+		assertNull(store.getIfPresent(UUID.randomUUID(), processed.getKbTransactionPaymentId()));
+	}
+	
+	@Test(groups = "fast")
+	public void testConcurrentAttemptsJoinTheRunningOne() throws Exception {
+		final BaseCommerceIdempotencyStore store = new BaseCommerceIdempotencyStore(10, 300);
+		final UUID kbTransactionId = UUID.randomUUID();
+		final BaseCommercePaymentTransactionInfoPlugin processed = transaction(kbTransactionId, PaymentPluginStatus.PROCESSED);
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger attempts = new AtomicInteger();
+		
+		final AtomicReference<BaseCommercePaymentTransactionInfoPlugin> firstResult = new AtomicReference<BaseCommercePaymentTransactionInfoPlugin>();
+		final Thread first = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					firstResult.set(store.runOnce(kbTransactionId, new Callable<BaseCommercePaymentTransactionInfoPlugin>() {
+						@Override
+						public BaseCommercePaymentTransactionInfoPlugin call() throws Exception {
+							attempts.incrementAndGet();
+							started.countDown();
+							release.await();
+							return processed;
+						}
+					}));
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		});
+		first.start();
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		
+		final AtomicReference<BaseCommercePaymentTransactionInfoPlugin> retryResult = new AtomicReference<BaseCommercePaymentTransactionInfoPlugin>();
+		final Thread retry = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					retryResult.set(store.runOnce(kbTransactionId, new Callable<BaseCommercePaymentTransactionInfoPlugin>() {
+						@Override
+						public BaseCommercePaymentTransactionInfoPlugin call() {
+							attempts.incrementAndGet();
+							return transaction(kbTransactionId, PaymentPluginStatus.ERROR);
+						}
+					}));
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		});
+		retry.start();
+		// until the retry waits on the running attempt
+		while (!metrics(store).contains("basecommerce_idempotency_joined_total 1")) {
+			Thread.sleep(10);
+		}
+		
+		release.countDown();
+		first.join();
+		retry.join();
+		assertEquals(attempts.get(), 1);
+		assertTrue(firstResult.get() == processed);
+		assertTrue(retryResult.get() == processed);
+		
+		// once done, the next attempt runs
+		store.runOnce(kbTransactionId, new Callable<BaseCommercePaymentTransactionInfoPlugin>() {
+			@Override
+			public BaseCommercePaymentTransactionInfoPlugin call() {
+				attempts.incrementAndGet();
+				return processed;
+			}
+		});
+		assertEquals(attempts.get(), 2);
+	}
+	
+	private BaseCommercePaymentTransactionInfoPlugin transaction(final UUID kbTransactionId, final PaymentPluginStatus status) {
+		return new BaseCommercePaymentTransactionInfoPlugin(kbTenantId, UUID.randomUUID(), UUID.randomUUID(), kbTransactionId, UUID.randomUUID(), TransactionType.PURCHASE,
+		                                                    BaseCommercePaymentPluginApi.TYPE_CARD, BigDecimal.TEN, Currency.USD, status, "1", null, null, null,
+		                                                    DateTime.now(DateTimeZone.UTC), DateTime.now(DateTimeZone.UTC));
+	}
+	
+	private static String metrics(final BaseCommerceIdempotencyStore store) {
+		final StringBuilder out = new StringBuilder();
+		store.appendMetrics(out);
+		return out.toString();
+	}
+}
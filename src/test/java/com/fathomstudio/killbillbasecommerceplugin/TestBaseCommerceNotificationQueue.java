@@ -0,0 +1,133 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.fathomstudio.killbillbasecommerceplugin;
+
+import com.basecommercepay.client.BankAccountTransaction;
+import com.google.common.collect.ImmutableMap;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.account.api.AccountUserApi;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.killbill.billing.payment.api.PaymentApi;
+import org.killbill.billing.payment.api.TransactionType;
+import org.killbill.billing.payment.plugin.api.PaymentPluginStatus;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.log.LogService;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Checks of the notification writer against an in-memory H2 database (in MySQL mode, loaded from {@code db.sql}).
+ */
+public class TestBaseCommerceNotificationQueue {
+	
+	private static final String GATEWAY_TRANSACTION_ID = "42";
+	
+	private final UUID kbTenantId = UUID.randomUUID();
+	private final UUID kbTransactionId = UUID.randomUUID();
+	
+	private JdbcConnectionPool dataSource;
+	private BaseCommerceDao dao;
+	private BaseCommerceNotificationQueue queue;
+	private CallContext context;
+	
+	@BeforeMethod(groups = "fast")
+	public void setUp() throws Exception {
+		dataSource = JdbcConnectionPool.create("jdbc:h2:mem:basecommerce-" + UUID.randomUUID() + ";MODE=MySQL;DB_CLOSE_DELAY=-1", "sa", "");
+		PluginStubs.createSchema(dataSource);
+		dao = new BaseCommerceDao(dataSource);
+		dao.setBinaryIds(true);
+		final DateTime now = DateTime.now(DateTimeZone.UTC);
+		dao.saveTransaction(new BaseCommercePaymentTransactionInfoPlugin(kbTenantId, UUID.randomUUID(), UUID.randomUUID(), kbTransactionId, UUID.randomUUID(), TransactionType.PURCHASE,
+		                                                                 BaseCommercePaymentPluginApi.TYPE_BANK, BigDecimal.TEN, Currency.USD, PaymentPluginStatus.PENDING,
+		                                                                 GATEWAY_TRANSACTION_ID, BankAccountTransaction.XS_BAT_STATUS_INITIATED, null, null, now, now));
+		
+		final LogService logService = PluginStubs.proxy(LogService.class, Collections.<String, Object>emptyMap());
+		final BundleContext bundleContext = PluginStubs.bundleContext(ImmutableMap.<String, Object>of(
+				AccountUserApi.class.getName(), PluginStubs.proxy(AccountUserApi.class, Collections.<String, Object>emptyMap()),
+				PaymentApi.class.getName(), PluginStubs.proxy(PaymentApi.class, Collections.<String, Object>emptyMap()),
+				LogService.class.getName(), logService));
+		final OSGIKillbillAPI killbillAPI = new OSGIKillbillAPI(bundleContext);
+		queue = new BaseCommerceNotificationQueue(dao, killbillAPI, new BaseCommerceAccountCache(killbillAPI, 10, 60), logService, 100, 10);
+		queue.start();
+		context = PluginStubs.proxy(CallContext.class, ImmutableMap.of("getTenantId", kbTenantId));
+	}
+	
+	@AfterMethod(groups = "fast")
+	public void tearDown() throws Exception {
+		queue.drain(10);
+		dataSource.dispose();
+	}
+	
+	/**
+	 * A webhook can't be trusted, so it only flags its transaction for a lookup: the writer neither applies it nor calls
+	 * the gateway.
+	 */
+	@Test(groups = "fast")
+	public void testUnconfirmedNotificationFlagsTheTransaction() throws Exception {
+		assertTrue(queue.offer(notification(false)));
+		assertTrue(queue.drain(10));
+		
+		assertEquals(dao.getTransaction(kbTenantId, kbTransactionId).getStatus(), PaymentPluginStatus.PENDING);
+		final List<BaseCommerceDao.TransactionRecord> flagged = dao.getLookupRequests(kbTenantId, 0, 10);
+		assertEquals(flagged.size(), 1);
+		assertEquals(flagged.get(0).getTransaction().getKbTransactionPaymentId(), kbTransactionId);
+	}
+	
+	/**
+	 * A status confirmed by a lookup settles the pending transaction.
+	 */
+	@Test(groups = "fast")
+	public void testConfirmedNotificationSettlesThePayment() throws Exception {
+		assertTrue(queue.offer(notification(true)));
+		assertTrue(queue.drain(10));
+		
+		assertEquals(dao.getTransaction(kbTenantId, kbTransactionId).getStatus(), PaymentPluginStatus.PROCESSED);
+		assertTrue(dao.getLookupRequests(kbTenantId, 0, 10).isEmpty());
+	}
+	
+	/**
+	 * Once looked up, a transaction leaves the flagged ones until another notification is about it.
+	 */
+	@Test(groups = "fast")
+	public void testFlagClearedOnLookup() throws Exception {
+		assertTrue(queue.offer(notification(false)));
+		assertTrue(queue.drain(10));
+		
+		final BaseCommercePaymentTransactionInfoPlugin transaction = dao.getLookupRequests(kbTenantId, 0, 10).get(0).getTransaction();
+		dao.setLookupRequested(Collections.singletonList(transaction), false);
+		assertTrue(dao.getLookupRequests(kbTenantId, 0, 10).isEmpty());
+		assertTrue(dao.getTenantsWithLookupRequests().isEmpty());
+	}
+	
+	private BaseCommerceNotificationQueue.Notification notification(final boolean confirmed) {
+		return new BaseCommerceNotificationQueue.Notification(kbTenantId, BaseCommercePaymentPluginApi.TYPE_BANK, GATEWAY_TRANSACTION_ID, BankAccountTransaction.XS_BAT_STATUS_SETTLED,
+		                                                      null, confirmed, context);
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.fathomstudio.killbillbasecommerceplugin;
+
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.killbill.billing.payment.api.PaymentMethodPlugin;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Checks of the payment method search pages against an in-memory H2 database (in MySQL mode, loaded from
+ * {@code db.sql}).
+ */
+public class TestBaseCommercePaymentMethodPagination {
+	
+	private static final int ROWS = 250;
+	private static final int PAGE_SIZE = 100;
+	
+	private final UUID kbTenantId = UUID.randomUUID();
+	
+	private JdbcConnectionPool dataSource;
+	private BaseCommerceDao dao;
+	
+	@BeforeMethod(groups = "fast")
+	public void setUp() throws Exception {
+		dataSource = JdbcConnectionPool.create("jdbc:h2:mem:basecommerce-" + UUID.randomUUID() + ";MODE=MySQL;DB_CLOSE_DELAY=-1", "sa", "");
+		PluginStubs.createSchema(dataSource);
+		dao = new BaseCommerceDao(dataSource);
+		// db.sql creates the migrated schema
+		dao.setBinaryIds(true);
+		
+		dao.savePaymentMethods(kbTenantId, paymentMethods(ROWS));
+		// another tenant, which no page may return
+		dao.savePaymentMethods(UUID.randomUUID(), paymentMethods(10));
+	}
+	
+	@AfterMethod(groups = "fast")
+	public void tearDown() {
+		dataSource.dispose();
+	}
+	
+	/**
+	 * Following the next offsets returns every payment method of the tenant once, and the last page has no next one.
+	 */
+	@Test(groups = "fast")
+	public void testPagesFollowRecordIds() throws Exception {
+		final Set<UUID> seen = new HashSet<UUID>();
+		Long offset = 0L;
+		int pages = 0;
+		while (offset != null) {
+			final BaseCommercePaymentMethodPagination page = new BaseCommercePaymentMethodPagination(dao, kbTenantId, BaseCommerceDao.SearchField.ALL, null, offset, PAGE_SIZE);
+			for (PaymentMethodPlugin paymentMethod : page) {
+				assertTrue(seen.add(paymentMethod.getKbPaymentMethodId()), "payment method returned twice");
+			}
+			assertEquals((long) page.getTotalNbRecords(), ROWS);
+			offset = page.getNextOffset();
+			pages++;
+		}
+		assertEquals(seen.size(), ROWS);
+		assertEquals(pages, (ROWS + PAGE_SIZE - 1) / PAGE_SIZE);
+	}
+	
+	/**
+	 * A page read after a filter matches only the filtered payment methods, and ends on a partial page.
+	 */
+	@Test(groups = "fast")
+	public void testFilteredPageEnds() throws Exception {
+		int cards = 0;
+		Long offset = 0L;
+		while (offset != null) {
+			final BaseCommercePaymentMethodPagination page = new BaseCommercePaymentMethodPagination(dao, kbTenantId, BaseCommerceDao.SearchField.TYPE,
+			                                                                                     BaseCommercePaymentPluginApi.TYPE_CARD, offset, PAGE_SIZE);
+			for (PaymentMethodPlugin ignored : page) {
+				cards++;
+			}
+			offset = page.getNextOffset();
+		}
+		assertEquals(cards, ROWS / 2);
+		
+		final BaseCommercePaymentMethodPagination past = new BaseCommercePaymentMethodPagination(dao, kbTenantId, BaseCommerceDao.SearchField.ALL, null, Long.MAX_VALUE - 1, PAGE_SIZE);
+		assertFalse(past.iterator().hasNext());
+		assertNull(past.getNextOffset());
+	}
+	
+	/**
+	 * A deep page seeks through an index starting with the tenant, and neither query skips rows by count: a page costs
+	 * the same whatever its depth.
+	 */
+	@Test(groups = "fast")
+	public void testDeepPageReadsTheIndex() throws Exception {
+		for (BaseCommerceDao.SearchField field : new BaseCommerceDao.SearchField[]{BaseCommerceDao.SearchField.ALL, BaseCommerceDao.SearchField.TYPE}) {
+			for (String query : new String[]{field.getSearchQuery(), field.getLastRecordIdQuery()}) {
+				assertFalse(query.toUpperCase().contains("OFFSET"), query);
+				final String plan = explain(query, field, ROWS - PAGE_SIZE);
+				assertTrue(plan.contains("INDEX_BASECOMMERCE_PAYMENTMETHODS_ON_TENANTID"), plan);
+				assertFalse(plan.contains("TABLESCAN"), plan);
+			}
+		}
+	}
+	
+	private static List<BaseCommercePaymentMethod> paymentMethods(final int count) {
+		final List<BaseCommercePaymentMethod> paymentMethods = new ArrayList<BaseCommercePaymentMethod>(count);
+		for (int i = 0; i < count; i++) {
+			final String type = i % 2 == 0 ? BaseCommercePaymentPluginApi.TYPE_CARD : BaseCommercePaymentPluginApi.TYPE_BANK;
+			paymentMethods.add(new BaseCommercePaymentMethod(UUID.randomUUID(), "token-" + i, type, String.format("%04d", i)));
+		}
+		return paymentMethods;
+	}
+	
+	private String explain(final String query, final BaseCommerceDao.SearchField field, final long afterRecordId) throws Exception {
+		try (Connection connection = dataSource.getConnection();
+		     PreparedStatement statement = connection.prepareStatement("EXPLAIN " + query)) {
+			int index = 1;
+			statement.setString(index++, kbTenantId.toString());
+			if (field != BaseCommerceDao.SearchField.ALL) {
+				statement.setString(index++, BaseCommercePaymentPluginApi.TYPE_CARD);
+			}
+			statement.setLong(index++, afterRecordId);
+			statement.setInt(index, PAGE_SIZE);
+			final StringBuilder plan = new StringBuilder();
+			try (ResultSet resultSet = statement.executeQuery()) {
+				while (resultSet.next()) {
+					plan.append(resultSet.getString(1)).append('\n');
+				}
+			}
+			return plan.toString().toUpperCase();
+		}
+	}
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.fathomstudio.killbillbasecommerceplugin;
+
+import com.basecommercepay.client.BankCardTransaction;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.payment.api.TransactionType;
+import org.killbill.billing.payment.plugin.api.PaymentPluginStatus;
+import org.testng.annotations.Test;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Checks that the outcome counters keep a bounded set of labels.
+ */
+public class TestBaseCommercePaymentMetrics {
+	
+	private final UUID kbTenantId = UUID.randomUUID();
+	
+	@Test(groups = "fast")
+	public void testTransportFailuresShareOneCode() {
+		final BaseCommercePaymentMetrics metrics = new BaseCommercePaymentMetrics();
+		metrics.recordOutcome(charge(PaymentPluginStatus.ERROR, null, "connect timed out to 10.0.0.1:443", "connect timed out to 10.0.0.1:443"));
+		
+		final String text = text(metrics);
+		assertTrue(text.contains("code=\"" + BaseCommercePaymentMetrics.CODE_TRANSPORT + "\"} 1"), text);
+		assertFalse(text.contains("timed out"), text);
+	}
+	
+	@Test(groups = "fast")
+	public void testDeclinesCountedByResponseCode() {
+		final BaseCommercePaymentMetrics metrics = new BaseCommercePaymentMetrics();
+		metrics.recordOutcome(charge(PaymentPluginStatus.PROCESSED, BankCardTransaction.XS_BCT_STATUS_DECLINED, "05", "DO NOT HONOR"));
+		metrics.recordOutcome(charge(PaymentPluginStatus.PROCESSED, BankCardTransaction.XS_BCT_STATUS_CAPTURED, "", ""));
+		
+		final String text = text(metrics);
+		assertTrue(text.contains("code=\"05\"} 1"), text);
+		assertTrue(text.contains("status=\"PROCESSED\"} 2"), text);
+	}
+	
+	private BaseCommercePaymentTransactionInfoPlugin charge(final PaymentPluginStatus status, final String gatewayStatus, final String code, final String message) {
+		return new BaseCommercePaymentTransactionInfoPlugin(kbTenantId, UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID(), TransactionType.PURCHASE,
+		                                                    BaseCommercePaymentPluginApi.TYPE_CARD, BigDecimal.TEN, Currency.USD, status, null, gatewayStatus, code, message,
+		                                                    DateTime.now(DateTimeZone.UTC), DateTime.now(DateTimeZone.UTC));
+	}
+	
+	private static String text(final BaseCommercePaymentMetrics metrics) {
+		final StringBuilder out = new StringBuilder();
+		metrics.appendMetrics(out);
+		return out.toString();
+	}
+}
@@ -0,0 +1,408 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.fathomstudio.killbillbasecommerceplugin;
+
+import com.basecommercepay.client.BankCardTransaction;
+import com.google.common.collect.ImmutableMap;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.killbill.billing.account.api.AccountUserApi;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillLogService;
+import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.payment.plugin.api.PaymentPluginStatus;
+import org.killbill.billing.payment.plugin.api.PaymentTransactionInfoPlugin;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.log.LogService;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Checks of the payment plugin api against an in-memory H2 database (in MySQL mode, loaded from {@code db.sql}).
+ */
+public class TestBaseCommercePaymentPluginApi {
+	
+	private final UUID kbTenantId = UUID.randomUUID();
+	private final UUID kbAccountId = UUID.randomUUID();
+	private final UUID kbPaymentMethodId = UUID.randomUUID();
+	
+	private JdbcConnectionPool pool;
+	private CountingDataSource dataSource;
+	private BaseCommerceDao dao;
+	private ExecutorService executor;
+	
+	@BeforeMethod(groups = "fast")
+	public void setUp() throws Exception {
+		pool = JdbcConnectionPool.create("jdbc:h2:mem:basecommerce-" + UUID.randomUUID() + ";MODE=MySQL;DB_CLOSE_DELAY=-1", "sa", "");
+		PluginStubs.createSchema(pool);
+		dataSource = new CountingDataSource(pool);
+		
+		dao = new BaseCommerceDao(dataSource);
+		// db.sql creates the migrated schema
+		dao.setBinaryIds(true);
+		dao.saveCredentials(new BaseCommerceCredentials(kbTenantId, "username", "password", "key", true));
+		dao.savePaymentMethod(kbTenantId, new BaseCommercePaymentMethod(kbPaymentMethodId, kbAccountId, "token", BaseCommercePaymentPluginApi.TYPE_CARD, "1111"));
+		executor = Executors.newCachedThreadPool();
+	}
+	
+	@AfterMethod(groups = "fast")
+	public void tearDown() {
+		executor.shutdownNow();
+		pool.dispose();
+	}
+	
+	/**
+	 * The credentials and token are read, and the outcome written, outside of the gateway call: a slow gateway must not
+	 * hold connections of the Kill Bill pool.
+	 */
+	@Test(groups = "fast")
+	public void testNoConnectionHeldDuringGatewayCall() throws Exception {
+		final CountDownLatch inGateway = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final BlockingGateway gateway = new BlockingGateway(inGateway, release);
+		final BaseCommercePaymentPluginApi api = newApi(gateway);
+		final CallContext context = PluginStubs.proxy(CallContext.class, ImmutableMap.of("getTenantId", kbTenantId));
+		
+		final Future<PaymentTransactionInfoPlugin> purchase = executor.submit(new Callable<PaymentTransactionInfoPlugin>() {
+			@Override
+			public PaymentTransactionInfoPlugin call() throws Exception {
+				return api.purchasePayment(kbAccountId, UUID.randomUUID(), UUID.randomUUID(), kbPaymentMethodId, BigDecimal.TEN, Currency.USD,
+				                           Collections.<PluginProperty>emptyList(), context);
+			}
+		});
+		assertTrue(inGateway.await(10, TimeUnit.SECONDS), "the gateway was never called");
+		try {
+			assertEquals(dataSource.getCheckedOut(), 0, "connections checked out during the gateway call");
+		} finally {
+			release.countDown();
+		}
+		
+		assertEquals(purchase.get(10, TimeUnit.SECONDS).getStatus(), PaymentPluginStatus.PROCESSED);
+		assertEquals(dataSource.getCheckedOut(), 0);
+		assertTrue(dataSource.getBorrowed() > 0, "the credentials were not read from the database");
+	}
+	
+	/**
+	 * A retry reaching another node while the first attempt is still at the gateway gets the pending transaction
+	 * rather than charging a second time.
+	 */
+	@Test(groups = "fast")
+	public void testRetryOnAnotherNodeDuringGatewayCall() throws Exception {
+		final CountDownLatch inGateway = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final BlockingGateway gateway = new BlockingGateway(inGateway, release);
+		final CallContext context = PluginStubs.proxy(CallContext.class, ImmutableMap.of("getTenantId", kbTenantId));
+		final UUID kbPaymentId = UUID.randomUUID();
+		final UUID kbTransactionId = UUID.randomUUID();
+		
+		final BaseCommercePaymentPluginApi firstNode = newApi(gateway);
+		final Future<PaymentTransactionInfoPlugin> first = executor.submit(new Callable<PaymentTransactionInfoPlugin>() {
+			@Override
+			public PaymentTransactionInfoPlugin call() throws Exception {
+				return firstNode.purchasePayment(kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, BigDecimal.TEN, Currency.USD,
+				                                 Collections.<PluginProperty>emptyList(), context);
+			}
+		});
+		assertTrue(inGateway.await(10, TimeUnit.SECONDS), "the gateway was never called");
+		try {
+			final PaymentTransactionInfoPlugin retry = newApi(gateway).purchasePayment(kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, BigDecimal.TEN, Currency.USD,
+			                                                                          Collections.<PluginProperty>emptyList(), context);
+			assertEquals(retry.getStatus(), PaymentPluginStatus.PENDING);
+		} finally {
+			release.countDown();
+		}
+		
+		assertEquals(first.get(10, TimeUnit.SECONDS).getStatus(), PaymentPluginStatus.PROCESSED);
+		assertEquals(gateway.getCharges(), 1);
+	}
+	
+	@Test(groups = "fast")
+	public void testApprovedCardIsProcessed() throws Exception {
+		final PaymentTransactionInfoPlugin charge = purchase(new ScriptedGateway(new BaseCommerceGatewayResult(true, "1", BankCardTransaction.XS_BCT_STATUS_CAPTURED, "", ""), null));
+		
+		assertEquals(charge.getStatus(), PaymentPluginStatus.PROCESSED);
+		assertEquals(charge.getFirstPaymentReferenceId(), "1");
+	}
+	
+	/**
+	 * Base Commerce answers a declined card with a processed call, which must not be reported as paid.
+	 */
+	@Test(groups = "fast")
+	public void testDeclinedCardIsError() throws Exception {
+		final PaymentTransactionInfoPlugin charge = purchase(new ScriptedGateway(new BaseCommerceGatewayResult(true, "2", BankCardTransaction.XS_BCT_STATUS_DECLINED, "05", "DO NOT HONOR"), null));
+		
+		assertEquals(charge.getStatus(), PaymentPluginStatus.ERROR);
+		assertEquals(charge.getGatewayErrorCode(), "05");
+		assertEquals(charge.getGatewayError(), "DO NOT HONOR");
+	}
+	
+	/**
+	 * A charge that never left is safe to retry, one cut off once sent may have gone through, and any other failure is
+	 * an error.
+	 */
+	@Test(groups = "fast")
+	public void testTransportFailures() throws Exception {
+		assertEquals(purchase(new ScriptedGateway(null, new BaseCommerceGatewayException("refused", new ConnectException("Connection refused")))).getStatus(),
+		             PaymentPluginStatus.CANCELED);
+		assertEquals(purchase(new ScriptedGateway(null, new BaseCommerceGatewayException("timed out", new SocketTimeoutException("Read timed out")))).getStatus(),
+		             PaymentPluginStatus.UNDEFINED);
+		
+		final PaymentTransactionInfoPlugin failed = purchase(new ScriptedGateway(null, new BaseCommerceGatewayException("bad response", new Exception("bad response"))));
+		assertEquals(failed.getStatus(), PaymentPluginStatus.ERROR);
+		assertEquals(failed.getGatewayError(), "bad response");
+	}
+	
+	private PaymentTransactionInfoPlugin purchase(final BaseCommerceGateway gateway) throws Exception {
+		final CallContext context = PluginStubs.proxy(CallContext.class, ImmutableMap.of("getTenantId", kbTenantId));
+		return newApi(gateway).purchasePayment(kbAccountId, UUID.randomUUID(), UUID.randomUUID(), kbPaymentMethodId, BigDecimal.TEN, Currency.USD,
+		                                       Collections.<PluginProperty>emptyList(), context);
+	}
+	
+	private BaseCommercePaymentPluginApi newApi(final BaseCommerceGateway gateway) {
+		final LogService logService = PluginStubs.proxy(LogService.class, Collections.<String, Object>emptyMap());
+		final AccountUserApi accountUserApi = PluginStubs.proxy(AccountUserApi.class, Collections.<String, Object>emptyMap());
+		final BundleContext bundleContext = PluginStubs.bundleContext(ImmutableMap.<String, Object>of(AccountUserApi.class.getName(), accountUserApi,
+		                                                                                            LogService.class.getName(), logService));
+		final BaseCommerceConfig config = new BaseCommerceConfig(new Properties());
+		final BaseCommerceAccountCache accountCache = new BaseCommerceAccountCache(new OSGIKillbillAPI(bundleContext), config.getAccountCacheMaxSize(), config.getAccountCacheTtlSeconds());
+		final BaseCommerceCredentialsCache credentialsCache = new BaseCommerceCredentialsCache(config.getCredentialsCacheMaxSize(), config.getCredentialsCacheTtlSeconds());
+		return new BaseCommercePaymentPluginApi(new Properties(), new OSGIKillbillLogService(bundleContext), new OSGIKillbillAPI(bundleContext), dao,
+		                                        credentialsCache,
+		                                        gateway,
+		                                        new BaseCommercePaymentMethodCache(config.getPaymentMethodCacheMaxSize(), config.getPaymentMethodCacheTtlSeconds()),
+		                                        new BaseCommerceChargeExecutor(false, config.getAsyncChargesThreads(), config.getAsyncChargesQueueSize()),
+		                                        new BaseCommercePaymentMetrics(),
+		                                        executor,
+		                                        new BaseCommerceIdempotencyStore(config.getIdempotencyCacheMaxSize(), config.getIdempotencyCacheTtlSeconds()),
+		                                        new BaseCommerceNotificationQueue(dao, new OSGIKillbillAPI(bundleContext), accountCache, logService,
+		                                                                          config.getNotificationsQueueSize(), config.getNotificationsBatchSize()),
+		                                        accountCache);
+	}
+	
+	/**
+	 * A gateway whose charges wait until released.
+	 */
+	private static class BlockingGateway implements BaseCommerceGateway {
+		
+		private final CountDownLatch inGateway;
+		private final CountDownLatch release;
+		private final AtomicInteger charges = new AtomicInteger();
+		
+		private BlockingGateway(final CountDownLatch inGateway, final CountDownLatch release) {
+			this.inGateway = inGateway;
+			this.release = release;
+		}
+		
+		@Override
+		public BaseCommerceGatewayResult charge(final BaseCommerceCredentials credentials, final String type, final String token, final BigDecimal amount) throws BaseCommerceGatewayException {
+			charges.incrementAndGet();
+			inGateway.countDown();
+			try {
+				if (!release.await(10, TimeUnit.SECONDS)) {
+					throw new BaseCommerceGatewayException("never released", null);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new BaseCommerceGatewayException("interrupted", e);
+			}
+			return new BaseCommerceGatewayResult(true, "1", "CAPTURED", "", "");
+		}
+		
+		int getCharges() {
+			return charges.get();
+		}
+		
+		@Override
+		public String addBankCard(final BaseCommerceCredentials credentials, final String number, final String expirationMonth, final String expirationYear, final String name) {
+			return "card";
+		}
+		
+		@Override
+		public String addBankAccount(final BaseCommerceCredentials credentials, final String routingNumber, final String accountNumber, final String name) {
+			return "bank";
+		}
+		
+		@Override
+		public boolean isPaymentMethodActive(final BaseCommerceCredentials credentials, final String type, final String token) {
+			return true;
+		}
+		
+		@Override
+		public BaseCommerceGatewayResult getTransaction(final BaseCommerceCredentials credentials, final String type, final String gatewayTransactionId) {
+			return new BaseCommerceGatewayResult(true, gatewayTransactionId, "CAPTURED", "", "");
+		}
+	}
+	
+	/**
+	 * A gateway whose charges all get the same answer, or the same failure.
+	 */
+	private static class ScriptedGateway implements BaseCommerceGateway {
+		
+		private final BaseCommerceGatewayResult result;
+		private final BaseCommerceGatewayException failure;
+		
+		private ScriptedGateway(final BaseCommerceGatewayResult result, final BaseCommerceGatewayException failure) {
+			this.result = result;
+			this.failure = failure;
+		}
+		
+		@Override
+		public BaseCommerceGatewayResult charge(final BaseCommerceCredentials credentials, final String type, final String token, final BigDecimal amount) throws BaseCommerceGatewayException {
+			if (failure != null) {
+				throw failure;
+			}
+			return result;
+		}
+		
+		@Override
+		public String addBankCard(final BaseCommerceCredentials credentials, final String number, final String expirationMonth, final String expirationYear, final String name) {
+			return "card";
+		}
+		
+		@Override
+		public String addBankAccount(final BaseCommerceCredentials credentials, final String routingNumber, final String accountNumber, final String name) {
+			return "bank";
+		}
+		
+		@Override
+		public boolean isPaymentMethodActive(final BaseCommerceCredentials credentials, final String type, final String token) {
+			return true;
+		}
+		
+		@Override
+		public BaseCommerceGatewayResult getTransaction(final BaseCommerceCredentials credentials, final String type, final String gatewayTransactionId) {
+			return result;
+		}
+	}
+	
+	/**
+	 * Counts the connections borrowed and not yet closed.
+	 */
+	private static class CountingDataSource implements DataSource {
+		
+		private final DataSource delegate;
+		private final AtomicInteger checkedOut = new AtomicInteger();
+		private final AtomicInteger borrowed = new AtomicInteger();
+		
+		private CountingDataSource(final DataSource delegate) {
+			this.delegate = delegate;
+		}
+		
+		int getCheckedOut() {
+			return checkedOut.get();
+		}
+		
+		int getBorrowed() {
+			return borrowed.get();
+		}
+		
+		@Override
+		public Connection getConnection() throws SQLException {
+			return count(delegate.getConnection());
+		}
+		
+		@Override
+		public Connection getConnection(final String username, final String password) throws SQLException {
+			return count(delegate.getConnection(username, password));
+		}
+		
+		private Connection count(final Connection connection) {
+			checkedOut.incrementAndGet();
+			borrowed.incrementAndGet();
+			return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, new InvocationHandler() {
+				private boolean closed;
+				
+				@Override
+				public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+					if (method.getName().equals("close") && !closed) {
+						closed = true;
+						checkedOut.decrementAndGet();
+					}
+					try {
+						return method.invoke(connection, args);
+					} catch (InvocationTargetException e) {
+						throw e.getCause();
+					}
+				}
+			});
+		}
+		
+		@Override
+		public PrintWriter getLogWriter() throws SQLException {
+			return delegate.getLogWriter();
+		}
+		
+		@Override
+		public void setLogWriter(final PrintWriter out) throws SQLException {
+			delegate.setLogWriter(out);
+		}
+		
+		@Override
+		public void setLoginTimeout(final int seconds) throws SQLException {
+			delegate.setLoginTimeout(seconds);
+		}
+		
+		@Override
+		public int getLoginTimeout() throws SQLException {
+			return delegate.getLoginTimeout();
+		}
+		
+		@Override
+		public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+			throw new SQLFeatureNotSupportedException();
+		}
+		
+		@Override
+		public <T> T unwrap(final Class<T> iface) throws SQLException {
+			return delegate.unwrap(iface);
+		}
+		
+		@Override
+		public boolean isWrapperFor(final Class<?> iface) throws SQLException {
+			return delegate.isWrapperFor(iface);
+		}
+	}
+}
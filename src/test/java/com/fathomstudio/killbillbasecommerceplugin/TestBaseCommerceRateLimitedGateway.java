@@ -0,0 +1,140 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.fathomstudio.killbillbasecommerceplugin;
+
+import org.testng.annotations.Test;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Checks the token bucket of each tenant: the burst goes through, later calls wait their turn, and calls that would
+ * wait too long are refused without reaching the gateway.
+ */
+public class TestBaseCommerceRateLimitedGateway {
+	
+	@Test(groups = "fast")
+	public void testCallsPastTheBurstWait() throws Exception {
+		final StubGateway stub = new StubGateway();
+		final BaseCommerceRateLimitedGateway gateway = new BaseCommerceRateLimitedGateway(stub, 10, 2, 1000);
+		final BaseCommerceCredentials credentials = credentials(0, 0);
+		
+		final long start = System.nanoTime();
+		charge(gateway, credentials);
+		charge(gateway, credentials);
+		final long burstMillis = (System.nanoTime() - start) / 1000000;
+		charge(gateway, credentials);
+		final long totalMillis = (System.nanoTime() - start) / 1000000;
+		
+		assertTrue(burstMillis < 50, "the burst waited " + burstMillis + "ms");
+		// a token every 100ms
+		assertTrue(totalMillis >= 90, "the call past the burst waited " + totalMillis + "ms");
+		assertEquals(stub.getCalls(), 3);
+	}
+	
+	@Test(groups = "fast")
+	public void testWaitingCallsPutTheBucketInDebt() throws Exception {
+		final StubGateway stub = new StubGateway();
+		final BaseCommerceRateLimitedGateway gateway = new BaseCommerceRateLimitedGateway(stub, 1, 1, 1500);
+		final BaseCommerceCredentials credentials = credentials(0, 0);
+		charge(gateway, credentials);
+		
+		// takes the next token, a second from now
+		final AtomicReference<Throwable> waiterFailure = new AtomicReference<Throwable>();
+		final Thread waiter = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					charge(gateway, credentials);
+				} catch (Throwable e) {
+					waiterFailure.set(e);
+				}
+			}
+		});
+		waiter.start();
+		Thread.sleep(200);
+		
+		// the token after that is two seconds away, past the maximum wait
+		try {
+			charge(gateway, credentials);
+			fail("the call didn't queue behind the waiting one");
+		} catch (BaseCommerceGatewayUnavailableException expected) {
+			// refused
+		}
+		waiter.join();
+		assertNull(waiterFailure.get());
+		assertEquals(stub.getCalls(), 2);
+	}
+	
+	@Test(groups = "fast")
+	public void testCallsRefusedPastTheMaximumWait() throws Exception {
+		final StubGateway stub = new StubGateway();
+		final BaseCommerceRateLimitedGateway gateway = new BaseCommerceRateLimitedGateway(stub, 1, 1, 0);
+		final BaseCommerceCredentials credentials = credentials(0, 0);
+		charge(gateway, credentials);
+		
+		try {
+			charge(gateway, credentials);
+			fail("the call past the rate limit went through");
+		} catch (BaseCommerceGatewayUnavailableException expected) {
+			// nothing was sent
+		}
+		assertEquals(stub.getCalls(), 1);
+		
+		// another tenant has its own bucket
+		charge(gateway, credentials(0, 0));
+		assertEquals(stub.getCalls(), 2);
+	}
+	
+	@Test(groups = "fast")
+	public void testTenantLimitsOverrideTheDefaults() throws Exception {
+		final StubGateway stub = new StubGateway();
+		final BaseCommerceRateLimitedGateway gateway = new BaseCommerceRateLimitedGateway(stub, 0, 0, 0);
+		
+		final BaseCommerceCredentials unlimited = credentials(0, 0);
+		for (int i = 0; i < 100; i++) {
+			charge(gateway, unlimited);
+		}
+		assertEquals(stub.getCalls(), 100);
+		
+		final BaseCommerceCredentials limited = credentials(1, 3);
+		for (int i = 0; i < 3; i++) {
+			charge(gateway, limited);
+		}
+		try {
+			charge(gateway, limited);
+			fail("the tenant limit wasn't applied");
+		} catch (BaseCommerceGatewayUnavailableException expected) {
+			// past the burst of the tenant
+		}
+		assertEquals(stub.getCalls(), 103);
+	}
+	
+	private static void charge(final BaseCommerceGateway gateway, final BaseCommerceCredentials credentials) throws BaseCommerceGatewayException {
+		gateway.charge(credentials, BaseCommercePaymentPluginApi.TYPE_CARD, "token", BigDecimal.TEN);
+	}
+	
+	private static BaseCommerceCredentials credentials(final double requestsPerSecond, final int burst) {
+		return new BaseCommerceCredentials(UUID.randomUUID(), "username", "password", "key", true, requestsPerSecond, burst);
+	}
+}
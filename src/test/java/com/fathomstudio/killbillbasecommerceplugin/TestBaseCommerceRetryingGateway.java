@@ -0,0 +1,135 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.fathomstudio.killbillbasecommerceplugin;
+
+import org.testng.annotations.Test;
+
+import java.math.BigDecimal;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.UUID;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Checks which failures are retried, the retry budget and the hedging of slow lookups.
+ */
+public class TestBaseCommerceRetryingGateway {
+	
+	private final BaseCommerceCredentials credentials = new BaseCommerceCredentials(UUID.randomUUID(), "username", "password", "key", true);
+	
+	@Test(groups = "fast")
+	public void testChargesOnlyRetriedWhenNotSent() throws Exception {
+		final StubGateway stub = new StubGateway().thenFail(refused()).thenApprove().thenFail(timeout());
+		final BaseCommerceRetryingGateway gateway = gateway(stub, 10, false);
+		
+		// the connection failed, the charge can't have gone through
+		charge(gateway);
+		assertEquals(stub.getCalls(), 2);
+		
+		// the charge may have gone through, sending it again could charge twice
+		try {
+			charge(gateway);
+			fail("the timeout wasn't thrown");
+		} catch (BaseCommerceGatewayException expected) {
+			assertTrue(expected.isOutcomeUnknown());
+		}
+		assertEquals(stub.getCalls(), 3);
+	}
+	
+	@Test(groups = "fast")
+	public void testLookupsRetriedOnTimeouts() throws Exception {
+		final StubGateway stub = new StubGateway().thenFail(timeout()).thenFail(timeout());
+		final BaseCommerceRetryingGateway gateway = gateway(stub, 10, false);
+		
+		gateway.getTransaction(credentials, BaseCommercePaymentPluginApi.TYPE_CARD, "1");
+		assertEquals(stub.getCalls(), 3);
+	}
+	
+	@Test(groups = "fast")
+	public void testRefusedCallsNotRetried() throws Exception {
+		final StubGateway stub = new StubGateway().thenFail(new BaseCommerceGatewayUnavailableException("gateway circuit open"));
+		final BaseCommerceRetryingGateway gateway = gateway(stub, 10, false);
+		
+		try {
+			gateway.getTransaction(credentials, BaseCommercePaymentPluginApi.TYPE_CARD, "1");
+			fail("the refusal wasn't thrown");
+		} catch (BaseCommerceGatewayUnavailableException expected) {
+			// left to the limits that refused it
+		}
+		assertEquals(stub.getCalls(), 1);
+	}
+	
+	@Test(groups = "fast")
+	public void testRetriesStopWhenTheBudgetIsSpent() throws Exception {
+		final StubGateway stub = new StubGateway().thenFail(refused()).thenApprove().thenFail(refused());
+		// a single retry saved up, and none earned by the calls
+		final BaseCommerceRetryingGateway gateway = new BaseCommerceRetryingGateway(stub, 3, 1, 1, 5000, 5000, 0, 1, false, 0);
+		
+		charge(gateway);
+		assertEquals(stub.getCalls(), 2);
+		try {
+			charge(gateway);
+			fail("retried past the budget");
+		} catch (BaseCommerceGatewayException expected) {
+			assertTrue(expected.isNotSent());
+		}
+		assertEquals(stub.getCalls(), 3);
+		assertTrue(metrics(gateway).contains("basecommerce_gateway_retry_budget_exhausted_total 1"), metrics(gateway));
+	}
+	
+	@Test(groups = "fast")
+	public void testSlowLookupsHedged() throws Exception {
+		final StubGateway stub = new StubGateway().thenDelay(3000);
+		final BaseCommerceRetryingGateway gateway = gateway(stub, 10, true);
+		try {
+			final long start = System.nanoTime();
+			gateway.getTransaction(credentials, BaseCommercePaymentPluginApi.TYPE_CARD, "1");
+			final long millis = (System.nanoTime() - start) / 1000000;
+			
+			assertTrue(millis < 1000, "the lookup waited " + millis + "ms for the slow attempt");
+			assertEquals(stub.getCalls(), 2);
+			assertTrue(metrics(gateway).contains("basecommerce_gateway_hedge_wins_total 1"), metrics(gateway));
+		} finally {
+			gateway.shutdown();
+		}
+	}
+	
+	private BaseCommerceRetryingGateway gateway(final StubGateway stub, final int budgetMax, final boolean hedgeEnabled) {
+		return new BaseCommerceRetryingGateway(stub, 3, 1, 1, 5000, 5000, 0.1, budgetMax, hedgeEnabled, 50);
+	}
+	
+	private void charge(final BaseCommerceGateway gateway) throws BaseCommerceGatewayException {
+		gateway.charge(credentials, BaseCommercePaymentPluginApi.TYPE_CARD, "token", BigDecimal.TEN);
+	}
+	
+	private static String metrics(final BaseCommerceMetricsSource source) {
+		final StringBuilder out = new StringBuilder();
+		source.appendMetrics(out);
+		return out.toString();
+	}
+	
+	private static BaseCommerceGatewayException refused() {
+		return new BaseCommerceGatewayException("connection refused", new ConnectException("connection refused"));
+	}
+	
+	private static BaseCommerceGatewayException timeout() {
+		return new BaseCommerceGatewayException("read timed out", new SocketTimeoutException("read timed out"));
+	}
+}